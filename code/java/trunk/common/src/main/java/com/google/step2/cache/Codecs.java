@@ -0,0 +1,469 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.cache;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.step2.discovery.HostMeta;
+import com.google.step2.discovery.IdpIdentifier;
+import com.google.step2.discovery.Link;
+import com.google.step2.discovery.LinkPattern;
+import com.google.step2.discovery.LinkSyntaxException;
+import com.google.step2.discovery.SecureDiscoveryInformation;
+import com.google.step2.discovery.SecureUrlIdentifier;
+import com.google.step2.util.EncodingUtil;
+import com.google.step2.xmlsimplesign.CertUtil;
+import com.google.step2.xmlsimplesign.VerificationResult;
+
+import org.openid4java.association.Association;
+import org.openid4java.discovery.DiscoveryException;
+import org.openid4java.discovery.Identifier;
+import org.openid4java.discovery.UrlIdentifier;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Codecs for the values step2 keeps in caches. The encodings are compact:
+ * host-metas are kept as their Link lines, certificates in DER, and
+ * everything else as the strings and numbers it's made of. Encoded values
+ * start with a format version, so that nodes running different versions
+ * of step2 can share a cache (they simply miss on each other's values).
+ */
+public final class Codecs {
+
+  private static final int FORMAT_VERSION = 1;
+
+  private static final String MAC_ALGORITHM = "HmacSHA256";
+  private static final int MAC_LENGTH = 32;
+
+  // GCM isn't available on all the JREs we run on, so values are encrypted
+  // with AES-CBC, and then sealed with a MAC
+  private static final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
+  private static final String CIPHER_KEY_ALGORITHM = "AES";
+  private static final int CIPHER_KEY_LENGTH = 16;
+  private static final int IV_LENGTH = 16;
+  // what the encryption key is derived from, along with the secret
+  private static final String CIPHER_KEY_LABEL = "step2 shared cache encryption";
+
+  private static final SecureRandom random = new SecureRandom();
+
+  // how identifiers are tagged
+  private static final int NO_IDENTIFIER = 0;
+  private static final int URL_IDENTIFIER = 1;
+  private static final int SECURE_URL_IDENTIFIER = 2;
+  private static final int IDP_IDENTIFIER = 3;
+
+  private static final CacheCodec<HostMeta> HOST_META =
+      new CacheCodec<HostMeta>() {
+        public void write(HostMeta hostMeta, DataOutput out) throws IOException {
+          out.writeInt(hostMeta.getLinks().size());
+          for (Link link : hostMeta.getLinks()) {
+            out.writeUTF(link.toString());
+          }
+          out.writeInt(hostMeta.getLinkPatterns().size());
+          for (LinkPattern linkPattern : hostMeta.getLinkPatterns()) {
+            out.writeUTF(linkPattern.toString());
+          }
+        }
+
+        public HostMeta read(DataInput in) throws IOException {
+          HostMeta hostMeta = new HostMeta();
+          try {
+            for (int i = in.readInt(); i > 0; i--) {
+              hostMeta.addLink(Link.fromString(in.readUTF()));
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+              hostMeta.addLinkPattern(LinkPattern.fromString(in.readUTF()));
+            }
+          } catch (LinkSyntaxException e) {
+            throw new IOException("bad link in cached host-meta: "
+                + e.getMessage());
+          }
+          return hostMeta;
+        }
+      };
+
+  private static final CacheCodec<SecureDiscoveryInformation>
+      DISCOVERY_INFORMATION = new CacheCodec<SecureDiscoveryInformation>() {
+        public void write(SecureDiscoveryInformation info, DataOutput out)
+            throws IOException {
+          out.writeUTF(info.getOPEndpoint().toString());
+          writeIdentifier(info.getClaimedIdentifier(), out);
+          writeNullableString(info.getDelegateIdentifier(), out);
+          writeNullableString(info.getVersion(), out);
+          Set<?> types = info.getTypes();
+          out.writeInt(types == null ? -1 : types.size());
+          if (types != null) {
+            for (Object type : types) {
+              out.writeUTF(type.toString());
+            }
+          }
+          out.writeBoolean(info.isSecure());
+        }
+
+        public SecureDiscoveryInformation read(DataInput in)
+            throws IOException {
+          URL opEndpoint = new URL(in.readUTF());
+          Identifier claimedIdentifier = readIdentifier(in);
+          String delegate = readNullableString(in);
+          String version = readNullableString(in);
+          Set<String> types = null;
+          int typeCount = in.readInt();
+          if (typeCount >= 0) {
+            types = Sets.newHashSet();
+            for (int i = 0; i < typeCount; i++) {
+              types.add(in.readUTF());
+            }
+          }
+          try {
+            SecureDiscoveryInformation info = (types == null)
+                ? new SecureDiscoveryInformation(
+                    opEndpoint, claimedIdentifier, delegate, version)
+                : new SecureDiscoveryInformation(
+                    opEndpoint, claimedIdentifier, delegate, version, types);
+            info.setSecure(in.readBoolean());
+            return info;
+          } catch (DiscoveryException e) {
+            throw new IOException("bad cached discovery information: "
+                + e.getMessage());
+          }
+        }
+      };
+
+  private static final CacheCodec<VerificationResult> VERIFICATION_RESULT =
+      new CacheCodec<VerificationResult>() {
+        public void write(VerificationResult result, DataOutput out)
+            throws IOException {
+          out.writeInt(result.getCerts().size());
+          for (X509Certificate cert : result.getCerts()) {
+            try {
+              writeBytes(cert.getEncoded(), out);
+            } catch (CertificateEncodingException e) {
+              throw new IOException("can't encode certificate: "
+                  + e.getMessage());
+            }
+          }
+        }
+
+        public VerificationResult read(DataInput in) throws IOException {
+          List<X509Certificate> certs = Lists.newArrayList();
+          for (int i = in.readInt(); i > 0; i--) {
+            try {
+              certs.add(CertUtil.getCertFromBytes(readBytes(in)));
+            } catch (GeneralSecurityException e) {
+              throw new IOException("bad cached certificate: " + e.getMessage());
+            }
+          }
+          return new VerificationResult(certs);
+        }
+      };
+
+  private static final CacheCodec<Association> ASSOCIATION =
+      new CacheCodec<Association>() {
+        public void write(Association association, DataOutput out)
+            throws IOException {
+          out.writeUTF(association.getType());
+          out.writeUTF(association.getHandle());
+          writeBytes(association.getMacKey().getEncoded(), out);
+          out.writeLong(association.getExpiry().getTime());
+        }
+
+        public Association read(DataInput in) throws IOException {
+          String type = in.readUTF();
+          String handle = in.readUTF();
+          byte[] macKey = readBytes(in);
+          Date expiry = new Date(in.readLong());
+          if (Association.TYPE_HMAC_SHA1.equals(type)) {
+            return Association.createHmacSha1(handle, macKey, expiry);
+          } else if (Association.TYPE_HMAC_SHA256.equals(type)) {
+            return Association.createHmacSha256(handle, macKey, expiry);
+          }
+          throw new IOException("unknown association type: " + type);
+        }
+      };
+
+  private Codecs() {
+  }
+
+  public static CacheCodec<HostMeta> hostMeta() {
+    return HOST_META;
+  }
+
+  /**
+   * Returns a codec for discovery information. Claimed identifiers must be
+   * URL or IdP identifiers (which is what step2's discovery produces).
+   */
+  public static CacheCodec<SecureDiscoveryInformation> discoveryInformation() {
+    return DISCOVERY_INFORMATION;
+  }
+
+  public static CacheCodec<VerificationResult> verificationResult() {
+    return VERIFICATION_RESULT;
+  }
+
+  /**
+   * Returns a codec for HMAC-SHA1 and HMAC-SHA256 associations.
+   */
+  public static CacheCodec<Association> association() {
+    return ASSOCIATION;
+  }
+
+  /**
+   * Returns a codec for lists of values (e.g. the discovery information
+   * for an identifier).
+   */
+  public static <V> CacheCodec<List<V>> listOf(final CacheCodec<V> codec) {
+    return new CacheCodec<List<V>>() {
+      public void write(List<V> values, DataOutput out) throws IOException {
+        out.writeInt(values.size());
+        for (V value : values) {
+          codec.write(value, out);
+        }
+      }
+
+      public List<V> read(DataInput in) throws IOException {
+        List<V> values = Lists.newArrayList();
+        for (int i = in.readInt(); i > 0; i--) {
+          values.add(codec.read(in));
+        }
+        return values;
+      }
+    };
+  }
+
+  /**
+   * Appends a MAC of the key and the encoded value, keyed with the given
+   * secret, so that a value can't be forged or moved to another key by
+   * anyone who doesn't know the secret.
+   */
+  public static byte[] seal(byte[] secret, String key, byte[] encoded)
+      throws IOException {
+    byte[] mac = mac(secret, key, encoded);
+    byte[] sealed = new byte[encoded.length + mac.length];
+    System.arraycopy(encoded, 0, sealed, 0, encoded.length);
+    System.arraycopy(mac, 0, sealed, encoded.length, mac.length);
+    return sealed;
+  }
+
+  /**
+   * Returns the encoded value from a value written by
+   * {@link #seal(byte[], String, byte[])}, or null if its MAC doesn't match
+   * (i.e., it was written with another secret, or for another key).
+   */
+  public static byte[] unseal(byte[] secret, String key, byte[] sealed)
+      throws IOException {
+    if (sealed.length < MAC_LENGTH) {
+      return null;
+    }
+    byte[] encoded = new byte[sealed.length - MAC_LENGTH];
+    System.arraycopy(sealed, 0, encoded, 0, encoded.length);
+    byte[] mac = new byte[MAC_LENGTH];
+    System.arraycopy(sealed, encoded.length, mac, 0, MAC_LENGTH);
+    // MessageDigest.isEqual takes the same time wherever the MACs differ
+    return MessageDigest.isEqual(mac, mac(secret, key, encoded))
+        ? encoded : null;
+  }
+
+  /**
+   * Encrypts the encoded value with a key derived from the given secret, and
+   * seals the result (see {@link #seal(byte[], String, byte[])}), for values
+   * that nobody but the nodes may read, such as association MAC keys.
+   */
+  public static byte[] encrypt(byte[] secret, String key, byte[] encoded)
+      throws IOException {
+    byte[] iv = new byte[IV_LENGTH];
+    random.nextBytes(iv);
+    byte[] ciphertext;
+    try {
+      Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+      cipher.init(Cipher.ENCRYPT_MODE, cipherKey(secret),
+          new IvParameterSpec(iv));
+      ciphertext = cipher.doFinal(encoded);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("could not encrypt value: " + e);
+    }
+    byte[] encrypted = new byte[IV_LENGTH + ciphertext.length];
+    System.arraycopy(iv, 0, encrypted, 0, IV_LENGTH);
+    System.arraycopy(ciphertext, 0, encrypted, IV_LENGTH, ciphertext.length);
+    return seal(secret, key, encrypted);
+  }
+
+  /**
+   * Returns the encoded value from a value written by
+   * {@link #encrypt(byte[], String, byte[])}, or null if its MAC doesn't
+   * match.
+   */
+  public static byte[] decrypt(byte[] secret, String key, byte[] sealed)
+      throws IOException {
+    byte[] encrypted = unseal(secret, key, sealed);
+    if (encrypted == null || encrypted.length < IV_LENGTH) {
+      return null;
+    }
+    try {
+      Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+      cipher.init(Cipher.DECRYPT_MODE, cipherKey(secret),
+          new IvParameterSpec(encrypted, 0, IV_LENGTH));
+      return cipher.doFinal(encrypted, IV_LENGTH, encrypted.length - IV_LENGTH);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("could not decrypt value: " + e);
+    }
+  }
+
+  /**
+   * Derives the encryption key from the secret, so that it's not the same
+   * as the MAC key.
+   */
+  private static SecretKeySpec cipherKey(byte[] secret) throws IOException {
+    byte[] derived = mac(secret, CIPHER_KEY_LABEL, new byte[0]);
+    return new SecretKeySpec(derived, 0, CIPHER_KEY_LENGTH, CIPHER_KEY_ALGORITHM);
+  }
+
+  private static byte[] mac(byte[] secret, String key, byte[] encoded)
+      throws IOException {
+    try {
+      Mac mac = Mac.getInstance(MAC_ALGORITHM);
+      mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+      byte[] keyBytes = EncodingUtil.getUtf8Bytes(key);
+      // the length keeps bytes from moving between key and value
+      mac.update(new byte[] {
+          (byte) (keyBytes.length >>> 24), (byte) (keyBytes.length >>> 16),
+          (byte) (keyBytes.length >>> 8), (byte) keyBytes.length });
+      mac.update(keyBytes);
+      return mac.doFinal(encoded);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("could not compute MAC: " + e);
+    }
+  }
+
+  public static <V> byte[] encode(CacheCodec<V> codec, V value)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(FORMAT_VERSION);
+    codec.write(value, out);
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Reads a value written by {@link #encode(CacheCodec, Object)}.
+   *
+   * @throws IOException if the value is malformed, or was written in a
+   *   format we don't know.
+   */
+  public static <V> V decode(CacheCodec<V> codec, byte[] encoded)
+      throws IOException {
+    DataInputStream in =
+        new DataInputStream(new ByteArrayInputStream(encoded));
+    int version = in.readUnsignedByte();
+    if (version != FORMAT_VERSION) {
+      throw new IOException("unknown format version: " + version);
+    }
+    V value = codec.read(in);
+    if (in.read() != -1) {
+      throw new IOException("trailing bytes after cached value");
+    }
+    return value;
+  }
+
+  private static void writeIdentifier(Identifier identifier, DataOutput out)
+      throws IOException {
+    if (identifier == null) {
+      out.writeByte(NO_IDENTIFIER);
+    } else if (identifier instanceof SecureUrlIdentifier) {
+      out.writeByte(SECURE_URL_IDENTIFIER);
+      out.writeUTF(((UrlIdentifier) identifier).getUrl().toString());
+    } else if (identifier instanceof UrlIdentifier) {
+      out.writeByte(URL_IDENTIFIER);
+      out.writeUTF(identifier.getIdentifier());
+    } else if (identifier instanceof IdpIdentifier) {
+      out.writeByte(IDP_IDENTIFIER);
+      out.writeUTF(identifier.getIdentifier());
+    } else {
+      throw new IOException("can't write identifier of type "
+          + identifier.getClass().getName());
+    }
+  }
+
+  private static Identifier readIdentifier(DataInput in) throws IOException {
+    int tag = in.readUnsignedByte();
+    try {
+      switch (tag) {
+        case NO_IDENTIFIER:
+          return null;
+        case URL_IDENTIFIER:
+          return new UrlIdentifier(in.readUTF());
+        case SECURE_URL_IDENTIFIER:
+          return new SecureUrlIdentifier(new UrlIdentifier(in.readUTF()));
+        case IDP_IDENTIFIER:
+          return new IdpIdentifier(in.readUTF());
+        default:
+          throw new IOException("unknown identifier type: " + tag);
+      }
+    } catch (DiscoveryException e) {
+      throw new IOException("bad cached identifier: " + e.getMessage());
+    }
+  }
+
+  private static void writeNullableString(String s, DataOutput out)
+      throws IOException {
+    out.writeBoolean(s != null);
+    if (s != null) {
+      out.writeUTF(s);
+    }
+  }
+
+  private static String readNullableString(DataInput in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  private static void writeBytes(byte[] bytes, DataOutput out)
+      throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static byte[] readBytes(DataInput in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      throw new IOException("negative length: " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.cache;
+
+import com.google.step2.util.Cache;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A cache that keeps a local copy of what it puts into, or gets from, a
+ * {@link SharedCache}. Lookups that miss the local cache go to the shared
+ * cache, and what's found there is kept locally for as long as it's still
+ * valid in the shared cache (so the expiry of an entry is the same on all
+ * nodes). Puts and removes go to both, but other nodes aren't told:
+ * their local copies stay until they expire.
+ *
+ * If the shared cache fails, the near cache carries on as a local cache:
+ * failed lookups count as misses, and failed puts only put locally.
+ *
+ * Keys in the shared cache are the namespace followed by the key's
+ * toString(), so keys must have a stable string form, and each kind of
+ * value needs its own namespace.
+ *
+ * Anyone who can talk to the shared cache can write to it, so values are
+ * sealed with a MAC keyed by a secret that all nodes share (see
+ * {@link Codecs#seal}). A value whose MAC doesn't match is a miss. Values
+ * that must stay secret are encrypted as well (see {@link Codecs#encrypt}).
+ */
+public class NearCache<K, V> implements Cache<K, V> {
+
+  private static final Logger log = Logger.getLogger(NearCache.class.getName());
+
+  private final Cache<K, V> local;
+  private final SharedCache shared;
+  private final String namespace;
+  private final CacheCodec<V> codec;
+  private final byte[] secret;
+  private final boolean encrypt;
+
+  private final AtomicLong sharedHits = new AtomicLong();
+  private final AtomicLong sharedMisses = new AtomicLong();
+  private final AtomicLong sharedFailures = new AtomicLong();
+
+  /**
+   * @param secret the key of the MACs on values in the shared cache, which
+   *   must be the same on all nodes
+   */
+  public NearCache(Cache<K, V> local, SharedCache shared, String namespace,
+      CacheCodec<V> codec, byte[] secret) {
+    this(local, shared, namespace, codec, secret, false);
+  }
+
+  /**
+   * @param secret the key of the MACs on values in the shared cache (and
+   *   what the encryption key is derived from), which must be the same on
+   *   all nodes
+   * @param encrypt whether to encrypt values in the shared cache
+   */
+  public NearCache(Cache<K, V> local, SharedCache shared, String namespace,
+      CacheCodec<V> codec, byte[] secret, boolean encrypt) {
+    if (secret.length == 0) {
+      throw new IllegalArgumentException("shared cache secret is empty");
+    }
+    this.local = local;
+    this.shared = shared;
+    this.namespace = namespace;
+    this.codec = codec;
+    this.secret = secret.clone();
+    this.encrypt = encrypt;
+  }
+
+  public V get(K key) {
+    V value = local.get(key);
+    if (value != null) {
+      return value;
+    }
+
+    SharedCache.Entry entry;
+    try {
+      entry = shared.get(sharedKey(key));
+      if (entry == null || entry.getRemainingMillis() < 1000L) {
+        sharedMisses.incrementAndGet();
+        return null;
+      }
+      byte[] encoded = encrypt
+          ? Codecs.decrypt(secret, sharedKey(key), entry.getValue())
+          : Codecs.unseal(secret, sharedKey(key), entry.getValue());
+      if (encoded == null) {
+        sharedMisses.incrementAndGet();
+        log.warning("ignoring " + sharedKey(key) + " in the shared cache, "
+            + "which wasn't written with our secret");
+        return null;
+      }
+      value = Codecs.decode(codec, encoded);
+    } catch (IOException e) {
+      sharedFailures.incrementAndGet();
+      log.log(Level.WARNING, "could not get " + sharedKey(key)
+          + " from the shared cache", e);
+      return null;
+    }
+    sharedHits.incrementAndGet();
+    local.put(key, value, entry.getRemainingMillis() / 1000L);
+    return value;
+  }
+
+  public void put(K key, V value, long maxSeconds) {
+    local.put(key, value, maxSeconds);
+    try {
+      byte[] encoded = Codecs.encode(codec, value);
+      shared.put(sharedKey(key), encrypt
+          ? Codecs.encrypt(secret, sharedKey(key), encoded)
+          : Codecs.seal(secret, sharedKey(key), encoded),
+          maxSeconds);
+    } catch (IOException e) {
+      sharedFailures.incrementAndGet();
+      log.log(Level.WARNING, "could not put " + sharedKey(key)
+          + " into the shared cache", e);
+    }
+  }
+
+  public void remove(K key) {
+    local.remove(key);
+    try {
+      shared.remove(sharedKey(key));
+    } catch (IOException e) {
+      sharedFailures.incrementAndGet();
+      log.log(Level.WARNING, "could not remove " + sharedKey(key)
+          + " from the shared cache", e);
+    }
+  }
+
+  /**
+   * Returns the number of local misses that were found in the shared cache.
+   */
+  public long getSharedHitCount() {
+    return sharedHits.get();
+  }
+
+  public long getSharedMissCount() {
+    return sharedMisses.get();
+  }
+
+  /**
+   * Returns how often talking to the shared cache (or decoding what came
+   * from it) failed.
+   */
+  public long getSharedFailureCount() {
+    return sharedFailures.get();
+  }
+
+  private String sharedKey(K key) {
+    return namespace + key;
+  }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.cache;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.google.step2.util.Cache;
+import com.google.step2.util.EncodingUtil;
+import com.google.step2.util.ExpiringLruCache;
+import com.google.step2.util.TimeSource;
+
+import org.openid4java.association.Association;
+import org.openid4java.consumer.ConsumerAssociationStore;
+
+/**
+ * A {@link ConsumerAssociationStore} that keeps associations in a
+ * {@link SharedCache} (through a {@link NearCache}), so that all nodes of a
+ * relying party use the same associations with an OP, instead of each
+ * establishing its own. Each association is kept until it expires.
+ *
+ * Associations hold the keys that positive assertions are checked with, so
+ * they are encrypted in the shared cache (see {@link Codecs#encrypt}):
+ * anyone who could read them could forge assertions.
+ */
+@Singleton
+public class SharedAssociationStore implements ConsumerAssociationStore {
+
+  private static final int LOCAL_CACHE_SIZE = 1024;
+
+  private static final String NAMESPACE = "step2-association:";
+
+  private final ExpiringLruCache<String, Association> local =
+      new ExpiringLruCache<String, Association>(LOCAL_CACHE_SIZE);
+  private final Cache<String, Association> associations;
+
+  private TimeSource timeSource = new TimeSource();
+
+  /**
+   * @param secret what the keys that protect associations in the shared
+   *   cache are derived from (see {@link NearCache}), which must be the same
+   *   on all nodes
+   */
+  @Inject
+  public SharedAssociationStore(SharedCache sharedCache,
+      @Named("SharedCacheSecret") String secret) {
+    this.associations = new NearCache<String, Association>(local,
+        sharedCache, NAMESPACE, Codecs.association(),
+        EncodingUtil.getUtf8Bytes(secret), true);
+  }
+
+  public void setTimeSource(TimeSource timeSource) {
+    this.timeSource = timeSource;
+    local.setTimeSource(timeSource);
+  }
+
+  public void save(String opUrl, Association association) {
+    long maxSeconds = (association.getExpiry().getTime()
+        - timeSource.currentTimeMillis()) / 1000L;
+    if (maxSeconds <= 0) {
+      return;
+    }
+    associations.put(handleKey(opUrl, association.getHandle()), association,
+        maxSeconds);
+    // the association to use for new requests to the OP
+    associations.put(latestKey(opUrl), association, maxSeconds);
+  }
+
+  public Association load(String opUrl, String handle) {
+    return associations.get(handleKey(opUrl, handle));
+  }
+
+  public Association load(String opUrl) {
+    return associations.get(latestKey(opUrl));
+  }
+
+  public void remove(String opUrl, String handle) {
+    associations.remove(handleKey(opUrl, handle));
+    Association latest = associations.get(latestKey(opUrl));
+    if (latest != null && latest.getHandle().equals(handle)) {
+      associations.remove(latestKey(opUrl));
+    }
+  }
+
+  private static String handleKey(String opUrl, String handle) {
+    return "handle " + opUrl + " " + handle;
+  }
+
+  private static String latestKey(String opUrl) {
+    return "latest " + opUrl;
+  }
+}
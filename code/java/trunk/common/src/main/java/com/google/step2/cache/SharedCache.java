@@ -0,0 +1,74 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.cache;
+
+import java.io.IOException;
+
+/**
+ * A cache shared by several relying party nodes (e.g. a memcached-style
+ * tier), so that what one node has discovered, fetched or verified doesn't
+ * have to be discovered, fetched or verified again by the others. Values are
+ * opaque bytes (see {@link CacheCodec}), keyed by strings.
+ *
+ * Nodes usually don't talk to a shared cache directly, but through a
+ * {@link NearCache}, which keeps a local copy of what it has seen. Whatever
+ * is in the shared cache is trusted by every node, so it must not be
+ * writable by anybody else. It must be treated as confidential, too: even
+ * though the values that have to stay secret (such as associations) are
+ * encrypted, keys and the other values tell who is logging in where.
+ *
+ * Implementations must be thread-safe. See {@link SocketSharedCache} for a
+ * client of the {@link SharedCacheServer} reference server.
+ */
+public interface SharedCache {
+
+  /**
+   * Returns the value for the key, with how long it may still be used, or
+   * null if there is none.
+   */
+  public Entry get(String key) throws IOException;
+
+  public void put(String key, byte[] value, long maxSeconds) throws IOException;
+
+  public void remove(String key) throws IOException;
+
+  /**
+   * A value from the shared cache.
+   */
+  public static final class Entry {
+
+    private final byte[] value;
+    private final long remainingMillis;
+
+    public Entry(byte[] value, long remainingMillis) {
+      this.value = value;
+      this.remainingMillis = remainingMillis;
+    }
+
+    public byte[] getValue() {
+      return value;
+    }
+
+    /**
+     * Returns for how long the value may still be used, so that copies
+     * of it don't outlive it.
+     */
+    public long getRemainingMillis() {
+      return remainingMillis;
+    }
+  }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.cache;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The protocol that {@link SocketSharedCache} and {@link SharedCacheServer}
+ * speak. Each request is an operation byte and a key (as written by
+ * {@link DataOutput#writeUTF(String)}); a PUT is followed by the number of
+ * seconds the value may be kept, and the value. Each response starts with a
+ * status byte; a HIT is followed by the number of milliseconds the value
+ * may still be used, and the value. Values are written as their length,
+ * followed by the bytes.
+ */
+final class SharedCacheProtocol {
+
+  static final int GET = 1;
+  static final int PUT = 2;
+  static final int REMOVE = 3;
+
+  static final int MISS = 0;
+  static final int HIT = 1;
+  static final int OK = 2;
+  static final int ERROR = 3;
+
+  static final int MAX_VALUE_LENGTH = 16 * 1024 * 1024;
+
+  private SharedCacheProtocol() {
+  }
+
+  static void writeValue(byte[] value, DataOutput out) throws IOException {
+    out.writeInt(value.length);
+    out.write(value);
+  }
+
+  static byte[] readValue(DataInput in) throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > MAX_VALUE_LENGTH) {
+      throw new IOException("bad value length: " + length);
+    }
+    byte[] value = new byte[length];
+    in.readFully(value);
+    return value;
+  }
+}
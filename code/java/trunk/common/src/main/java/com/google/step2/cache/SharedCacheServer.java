@@ -0,0 +1,222 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.cache;
+
+import com.google.step2.util.ExpiringLruCache;
+import com.google.step2.util.TimeSource;
+import com.google.step2.util.Weigher;
+import com.google.step2.util.Weighers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A reference implementation of the server side of a {@link SharedCache}:
+ * an in-memory cache, bounded by the size of the values it holds, that
+ * {@link SocketSharedCache}s talk to over TCP. It only listens on the
+ * loopback interface, so it's meant for trying out, and testing, a fleet of
+ * nodes on one machine. A real deployment would put a proper caching tier
+ * (e.g. memcached) behind its own {@link SharedCache}.
+ *
+ * To run it on its own:
+ *
+ *   java com.google.step2.cache.SharedCacheServer [port] [max megabytes]
+ */
+public class SharedCacheServer {
+
+  private static final Logger log =
+      Logger.getLogger(SharedCacheServer.class.getName());
+
+  private static final int DEFAULT_PORT = 11311;
+  private static final int DEFAULT_MAX_MEGABYTES = 64;
+
+  private final int requestedPort;
+  private final ExpiringLruCache<String, StoredValue> values;
+  private final Set<Socket> clients =
+      Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+  private volatile TimeSource timeSource = new TimeSource();
+  private ServerSocket serverSocket;
+  private ExecutorService executor;
+
+  /**
+   * @param port the port to listen on, or 0 for any free port
+   * @param maxBytes how many bytes of keys and values the server holds on
+   *   to at most
+   */
+  public SharedCacheServer(int port, long maxBytes) {
+    this.requestedPort = port;
+    this.values = new ExpiringLruCache<String, StoredValue>(maxBytes,
+        new Weigher<String, StoredValue>() {
+          public int weigh(String key, StoredValue value) {
+            return Weighers.weighString(key)
+                + Weighers.byteArrays().weigh(key, value.bytes);
+          }
+        });
+  }
+
+  public void setTimeSource(TimeSource timeSource) {
+    this.timeSource = timeSource;
+    values.setTimeSource(timeSource);
+  }
+
+  public synchronized void start() throws IOException {
+    serverSocket = new ServerSocket(requestedPort, 50,
+        InetAddress.getByName("127.0.0.1"));
+    executor = Executors.newCachedThreadPool();
+    executor.execute(new Runnable() {
+      public void run() {
+        accept();
+      }
+    });
+  }
+
+  /**
+   * Returns the port the server is listening on.
+   */
+  public synchronized int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Returns the number of bytes the server is holding on to.
+   */
+  public long getWeight() {
+    return values.getWeight();
+  }
+
+  public synchronized void stop() throws IOException {
+    serverSocket.close();
+    for (Socket client : clients) {
+      client.close();
+    }
+    executor.shutdown();
+  }
+
+  private void accept() {
+    while (true) {
+      final Socket client;
+      try {
+        client = serverSocket.accept();
+      } catch (IOException e) {
+        if (!serverSocket.isClosed()) {
+          log.log(Level.WARNING, "could not accept connection", e);
+        }
+        return;
+      }
+      clients.add(client);
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            serve(client);
+          } catch (EOFException e) {
+            // the client hung up
+          } catch (SocketException e) {
+            // the client hung up, or we are stopping
+          } catch (IOException e) {
+            log.log(Level.WARNING, "dropping shared cache client", e);
+          } finally {
+            clients.remove(client);
+            try {
+              client.close();
+            } catch (IOException e) {
+              // nothing we can do
+            }
+          }
+        }
+      });
+    }
+  }
+
+  private void serve(Socket client) throws IOException {
+    client.setTcpNoDelay(true);
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(client.getInputStream()));
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(client.getOutputStream()));
+
+    while (true) {
+      int op = in.readUnsignedByte();
+      String key = in.readUTF();
+      if (op == SharedCacheProtocol.GET) {
+        StoredValue value = values.get(key);
+        long remainingMillis = (value == null)
+            ? 0 : value.expireMillis - timeSource.currentTimeMillis();
+        if (remainingMillis > 0) {
+          out.writeByte(SharedCacheProtocol.HIT);
+          out.writeLong(remainingMillis);
+          SharedCacheProtocol.writeValue(value.bytes, out);
+        } else {
+          out.writeByte(SharedCacheProtocol.MISS);
+        }
+      } else if (op == SharedCacheProtocol.PUT) {
+        long maxSeconds = in.readLong();
+        byte[] bytes = SharedCacheProtocol.readValue(in);
+        if (maxSeconds > 0) {
+          values.put(key, new StoredValue(bytes,
+              timeSource.currentTimeMillis() + maxSeconds * 1000L), maxSeconds);
+        } else {
+          values.remove(key);
+        }
+        out.writeByte(SharedCacheProtocol.OK);
+      } else if (op == SharedCacheProtocol.REMOVE) {
+        values.remove(key);
+        out.writeByte(SharedCacheProtocol.OK);
+      } else {
+        out.writeByte(SharedCacheProtocol.ERROR);
+        out.flush();
+        throw new IOException("unknown operation: " + op);
+      }
+      out.flush();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+    long megabytes = args.length > 1
+        ? Long.parseLong(args[1]) : DEFAULT_MAX_MEGABYTES;
+    SharedCacheServer server = new SharedCacheServer(port, megabytes << 20);
+    server.start();
+    log.info("shared cache listening on 127.0.0.1:" + server.getPort());
+  }
+
+  private static class StoredValue {
+
+    private final byte[] bytes;
+    private final long expireMillis;
+
+    public StoredValue(byte[] bytes, long expireMillis) {
+      this.bytes = bytes;
+      this.expireMillis = expireMillis;
+    }
+  }
+}
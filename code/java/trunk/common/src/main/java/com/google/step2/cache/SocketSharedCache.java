@@ -0,0 +1,182 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.cache;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A {@link SharedCache} that talks to a {@link SharedCacheServer} over TCP.
+ * Connections are kept open and reused; one that fails is closed, and the
+ * next request opens a new one.
+ */
+@Singleton
+public class SocketSharedCache implements SharedCache {
+
+  private static final int DEFAULT_TIMEOUT_MILLIS = 1000;
+  private static final int MAX_IDLE_CONNECTIONS = 8;
+
+  private final InetSocketAddress address;
+  private final ConcurrentLinkedQueue<Connection> idle =
+      new ConcurrentLinkedQueue<Connection>();
+  private int timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+  @Inject
+  public SocketSharedCache(@Named("SharedCacheHost") String host,
+      @Named("SharedCachePort") int port) {
+    this.address = new InetSocketAddress(host, port);
+  }
+
+  /**
+   * Sets how long we wait for connecting to, or hearing back from, the
+   * server. A slow shared cache shouldn't hold up the node for longer than
+   * going to the source would.
+   */
+  public void setTimeoutMillis(int timeoutMillis) {
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  public Entry get(String key) throws IOException {
+    Connection connection = borrow();
+    boolean healthy = false;
+    try {
+      connection.out.writeByte(SharedCacheProtocol.GET);
+      connection.out.writeUTF(key);
+      connection.out.flush();
+
+      Entry entry = null;
+      int status = connection.in.readUnsignedByte();
+      if (status == SharedCacheProtocol.HIT) {
+        long remainingMillis = connection.in.readLong();
+        entry = new Entry(SharedCacheProtocol.readValue(connection.in),
+            remainingMillis);
+      } else if (status != SharedCacheProtocol.MISS) {
+        throw new IOException("shared cache returned status " + status);
+      }
+      healthy = true;
+      return entry;
+    } finally {
+      release(connection, healthy);
+    }
+  }
+
+  public void put(String key, byte[] value, long maxSeconds)
+      throws IOException {
+    Connection connection = borrow();
+    boolean healthy = false;
+    try {
+      connection.out.writeByte(SharedCacheProtocol.PUT);
+      connection.out.writeUTF(key);
+      connection.out.writeLong(maxSeconds);
+      SharedCacheProtocol.writeValue(value, connection.out);
+      connection.out.flush();
+      expectOk(connection);
+      healthy = true;
+    } finally {
+      release(connection, healthy);
+    }
+  }
+
+  public void remove(String key) throws IOException {
+    Connection connection = borrow();
+    boolean healthy = false;
+    try {
+      connection.out.writeByte(SharedCacheProtocol.REMOVE);
+      connection.out.writeUTF(key);
+      connection.out.flush();
+      expectOk(connection);
+      healthy = true;
+    } finally {
+      release(connection, healthy);
+    }
+  }
+
+  /**
+   * Closes the idle connections.
+   */
+  public void close() {
+    Connection connection;
+    while ((connection = idle.poll()) != null) {
+      connection.close();
+    }
+  }
+
+  private void expectOk(Connection connection) throws IOException {
+    int status = connection.in.readUnsignedByte();
+    if (status != SharedCacheProtocol.OK) {
+      throw new IOException("shared cache returned status " + status);
+    }
+  }
+
+  private Connection borrow() throws IOException {
+    Connection connection = idle.poll();
+    if (connection != null) {
+      return connection;
+    }
+    Socket socket = new Socket();
+    try {
+      socket.setTcpNoDelay(true);
+      socket.setSoTimeout(timeoutMillis);
+      socket.connect(address, timeoutMillis);
+      return new Connection(socket);
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  private void release(Connection connection, boolean healthy) {
+    if (healthy && idle.size() < MAX_IDLE_CONNECTIONS) {
+      idle.add(connection);
+    } else {
+      connection.close();
+    }
+  }
+
+  private static class Connection {
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    public Connection(Socket socket) throws IOException {
+      this.socket = socket;
+      this.in = new DataInputStream(
+          new BufferedInputStream(socket.getInputStream()));
+      this.out = new DataOutputStream(
+          new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    public void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // nothing we can do
+      }
+    }
+  }
+}
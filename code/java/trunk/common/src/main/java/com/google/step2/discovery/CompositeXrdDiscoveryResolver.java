@@ -0,0 +1,124 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.discovery;
+
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Inject;
+
+import org.openid4java.discovery.DiscoveryException;
+import org.openid4java.discovery.UrlIdentifier;
+
+import java.net.URI;
+import java.util.List;
+
+/**
+ * Combines several {@link XrdDiscoveryResolver}s, each for a different type
+ * of discovery document. For each host, {@link Discovery2} asks this
+ * resolver to {@link #select} the one that is cheapest to use, based on
+ * the links in the host's host-meta:
+ *
+ * - discovery for a user is cheapest with a link-pattern that points
+ *   directly to the user's document (one fetch), and more expensive with
+ *   a link to a site-wide document (which is fetched before the user's);
+ * - among resolvers that are equally cheap, the one listed first wins. By
+ *   default, that's {@link XrdResolver}, since XRD 1.0 documents are
+ *   simpler to read than XRDS documents.
+ *
+ * Used directly (without selecting a resolver first), this behaves like
+ * the first of its resolvers.
+ */
+public class CompositeXrdDiscoveryResolver implements XrdDiscoveryResolver {
+
+  private final List<XrdDiscoveryResolver> resolvers;
+  private final XrdLocationSelector xrdLocationSelector =
+      new XrdLocationSelector();
+
+  @Inject
+  public CompositeXrdDiscoveryResolver(XrdResolver xrdResolver,
+      LegacyXrdsResolver xrdsResolver) {
+    this(ImmutableList.<XrdDiscoveryResolver>of(xrdResolver, xrdsResolver));
+  }
+
+  /**
+   * @param resolvers the resolvers, in order of preference
+   */
+  public CompositeXrdDiscoveryResolver(
+      List<? extends XrdDiscoveryResolver> resolvers) {
+    if (resolvers.isEmpty()) {
+      throw new IllegalArgumentException("need at least one resolver");
+    }
+    this.resolvers = ImmutableList.<XrdDiscoveryResolver>copyOf(resolvers);
+  }
+
+  /**
+   * Returns the resolver to use for the given host-meta.
+   *
+   * @param claimedId the user we're doing discovery for, or null if we're
+   *   doing discovery for the site
+   */
+  public XrdDiscoveryResolver select(HostMeta hostMeta,
+      UrlIdentifier claimedId) {
+    XrdDiscoveryResolver best = null;
+    int bestCost = Integer.MAX_VALUE;
+    for (XrdDiscoveryResolver resolver : resolvers) {
+      int cost = getCost(resolver.getDiscoveryDocumentType(), hostMeta,
+          claimedId);
+      if (cost < bestCost) {
+        best = resolver;
+        bestCost = cost;
+      }
+    }
+    return (best == null) ? resolvers.get(0) : best;
+  }
+
+  /**
+   * Returns how many documents we'd fetch to do discovery with documents of
+   * the given type, or Integer.MAX_VALUE if the host-meta doesn't link to
+   * any.
+   */
+  private int getCost(String mimeType, HostMeta hostMeta,
+      UrlIdentifier claimedId) {
+    if (claimedId != null && xrdLocationSelector.findUserXrdUriForOp(
+        hostMeta, mimeType, claimedId) != null) {
+      return 1;
+    }
+    if (xrdLocationSelector.findSiteXrdUriForOp(hostMeta, mimeType) != null) {
+      return (claimedId == null) ? 1 : 2;
+    }
+    return Integer.MAX_VALUE;
+  }
+
+  public String getDiscoveryDocumentType() {
+    return resolvers.get(0).getDiscoveryDocumentType();
+  }
+
+  public List<SecureDiscoveryInformation> findOpEndpointsForSite(
+      IdpIdentifier site, URI xrdUri) throws DiscoveryException {
+    return resolvers.get(0).findOpEndpointsForSite(site, xrdUri);
+  }
+
+  public List<SecureDiscoveryInformation> findOpEndpointsForUser(
+      UrlIdentifier claimedId, URI xrdUri) throws DiscoveryException {
+    return resolvers.get(0).findOpEndpointsForUser(claimedId, xrdUri);
+  }
+
+  public List<SecureDiscoveryInformation> findOpEndpointsForUserThroughSiteXrd(
+      UrlIdentifier claimedId, URI xrdUri) throws DiscoveryException {
+    return resolvers.get(0).findOpEndpointsForUserThroughSiteXrd(claimedId,
+        xrdUri);
+  }
+}
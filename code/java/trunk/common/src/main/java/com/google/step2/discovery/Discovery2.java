@@ -194,8 +194,9 @@ public class Discovery2 extends Discovery {
 
     // Find XRD that host-meta is pointing to. In the case of site-discovery,
     // this will point to the site's XRD.
+    XrdDiscoveryResolver resolver = getXrdResolver(hostMeta, null);
     URI xrdUri = xrdLocationSelector.findSiteXrdUriForOp(hostMeta,
-        xrdResolver.getDiscoveryDocumentType());
+        resolver.getDiscoveryDocumentType());
 
     if (xrdUri == null) {
       return Collections.emptyList();
@@ -203,7 +204,7 @@ public class Discovery2 extends Discovery {
 
     // now that we have the location of the XRD, perform the actual
     // discovery based on the XRD.
-    return xrdResolver.findOpEndpointsForSite(site, xrdUri);
+    return resolver.findOpEndpointsForSite(site, xrdUri);
   }
 
   /**
@@ -278,24 +279,25 @@ public class Discovery2 extends Discovery {
 
     // First, let's check whether there are link-patterns in the host-meta that
     // point directly to the user's XRD(S).
+    XrdDiscoveryResolver resolver = getXrdResolver(hostMeta, claimedId);
     URI xrdUri = xrdLocationSelector.findUserXrdUriForOp(hostMeta,
-        xrdResolver.getDiscoveryDocumentType(), claimedId);
+        resolver.getDiscoveryDocumentType(), claimedId);
 
     if (xrdUri != null) {
 
       // xrdUri points to user's XRD
-      return xrdResolver.findOpEndpointsForUser(claimedId, xrdUri);
+      return resolver.findOpEndpointsForUser(claimedId, xrdUri);
     }
 
     // There were no link-patterns, i.e.,  we'll have to go with the
     // site-wide XRD(S)
     xrdUri = xrdLocationSelector.findSiteXrdUriForOp(hostMeta,
-        xrdResolver.getDiscoveryDocumentType());
+        resolver.getDiscoveryDocumentType());
 
     if (xrdUri != null) {
 
       // xrdUri points to site-wide XRD
-      return xrdResolver.findOpEndpointsForUserThroughSiteXrd(claimedId,
+      return resolver.findOpEndpointsForUserThroughSiteXrd(claimedId,
           xrdUri);
     }
 
@@ -303,6 +305,23 @@ public class Discovery2 extends Discovery {
     return Collections.emptyList();
   }
 
+  /**
+   * Returns the resolver for the documents the host-meta links to. That's
+   * the injected resolver, unless it combines several resolvers, in which
+   * case it picks the one that's cheapest for the host.
+   *
+   * @param claimedId the user we're doing discovery for, or null if we're
+   *   doing discovery for the site
+   */
+  private XrdDiscoveryResolver getXrdResolver(HostMeta hostMeta,
+      UrlIdentifier claimedId) {
+    if (xrdResolver instanceof CompositeXrdDiscoveryResolver) {
+      return ((CompositeXrdDiscoveryResolver) xrdResolver).select(hostMeta,
+          claimedId);
+    }
+    return xrdResolver;
+  }
+
   /**
    * Link-element based discovery.
    */
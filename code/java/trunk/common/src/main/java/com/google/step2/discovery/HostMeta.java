@@ -16,6 +16,9 @@
  */
 package com.google.step2.discovery;
 
+import com.google.step2.util.Weigher;
+import com.google.step2.util.Weighers;
+
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -32,6 +35,28 @@ public class HostMeta {
 
   private final static Logger log = Logger.getLogger(HostMeta.class.getName());
 
+  // what a HostMeta, and each of its links, takes up on the heap besides
+  // the URI strings: the objects themselves, rel-types and link parameters
+  private static final int HOST_META_OVERHEAD = 64;
+  private static final int LINK_OVERHEAD = 256;
+
+  private static final Weigher<Object, HostMeta> WEIGHER =
+      new Weigher<Object, HostMeta>() {
+        public int weigh(Object key, HostMeta hostMeta) {
+          int weight = HOST_META_OVERHEAD;
+          for (Link link : hostMeta.links) {
+            // a link keeps its URI as a string, and parsed into a URI
+            weight += LINK_OVERHEAD
+                + 2 * Weighers.weighString(link.getLinkValue().getUriString());
+          }
+          for (LinkPattern linkPattern : hostMeta.linkPatterns) {
+            weight += LINK_OVERHEAD
+                + Weighers.weighString(linkPattern.getUriPattern());
+          }
+          return weight;
+        }
+      };
+
   // links found in the host-meta
   private final ArrayList<Link> links;
 
@@ -98,6 +123,14 @@ public class HostMeta {
     }
   }
 
+  /**
+   * Returns a weigher for caches of host-metas, which estimates the size of
+   * a host-meta on the heap, in bytes.
+   */
+  public static Weigher<Object, HostMeta> weigher() {
+    return WEIGHER;
+  }
+
   public HostMeta() {
     links = new ArrayList<Link>();
     linkPatterns = new ArrayList<LinkPattern>();
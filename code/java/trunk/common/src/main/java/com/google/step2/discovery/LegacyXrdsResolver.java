@@ -22,8 +22,10 @@ import com.google.step2.http.FetchException;
 import com.google.step2.http.FetchRequest;
 import com.google.step2.http.FetchResponse;
 import com.google.step2.http.HttpFetcher;
-import com.google.step2.util.XmlUtil;
+import com.google.step2.util.ExpiringLruCache;
+import com.google.step2.util.TimeSource;
 import com.google.step2.xmlsimplesign.CertValidator;
+import com.google.step2.xmlsimplesign.DigestingInputStream;
 import com.google.step2.xmlsimplesign.VerificationResult;
 import com.google.step2.xmlsimplesign.Verifier;
 import com.google.step2.xmlsimplesign.XmlSimpleSignException;
@@ -32,31 +34,35 @@ import org.openid4java.discovery.DiscoveryException;
 import org.openid4java.discovery.DiscoveryInformation;
 import org.openid4java.discovery.Identifier;
 import org.openid4java.discovery.UrlIdentifier;
-import org.openxri.xml.Service;
-import org.openxri.xml.XRD;
-import org.openxri.xml.XRDS;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.xml.sax.SAXException;
-
-import java.io.ByteArrayInputStream;
+
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.text.ParseException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.net.URL;
+import java.security.cert.X509Certificate;
 import java.util.List;
-import java.util.Vector;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 
 /**
- * Implements XRDS-based discovery.
+ * Implements XRDS-based discovery. XRDS documents are read with
+ * {@link XrdsReader} straight off the network, and their signatures are
+ * checked against the digest of what was read (see
+ * {@link DigestingInputStream}), so documents are never buffered in full.
+ *
+ * When discovery for a user starts at the site's XRDS, what we need from the
+ * site's XRDS (the URITemplate, the NextAuthority, the canonical ID, and
+ * whether the document was signed by the site) is the same for every user of
+ * that site. It is cached per site XRDS URI: for several minutes if the
+ * document was signed (but never beyond the expiry of the signing
+ * certificates), and for a minute otherwise. A signed entry is dropped as
+ * soon as the verifier's generation changes (e.g., because new CRLs came
+ * in), since the signature might not verify anymore. Discovery for a user
+ * then usually only fetches and verifies the user's XRDS.
  */
 public class LegacyXrdsResolver implements XrdDiscoveryResolver {
 
@@ -76,6 +82,10 @@ public class LegacyXrdsResolver implements XrdDiscoveryResolver {
   // used to delegate to new signer in next XRDS document
   private static final String NEXT_AUTHORITY_TAG = "NextAuthority";
 
+  private static final int SITE_XRD_CACHE_SIZE = 256;
+  private static final long SITE_XRD_CACHE_AGE_SECONDS = 10 * 60;
+  private static final long UNSIGNED_SITE_XRD_CACHE_AGE_SECONDS = 60;
+
   // injected fetcher
   private final HttpFetcher httpFetcher;
 
@@ -86,6 +96,11 @@ public class LegacyXrdsResolver implements XrdDiscoveryResolver {
   // the signing cert belongs to an authority appropriate for the given XRD
   private final CertValidator certValidator;
 
+  private final ExpiringLruCache<String, SiteXrd> siteXrdCache =
+      new ExpiringLruCache<String, SiteXrd>(SITE_XRD_CACHE_SIZE);
+
+  private TimeSource timeSource = new TimeSource();
+
   @Inject
   public LegacyXrdsResolver(HttpFetcher httpFetcher, Verifier verifier,
       CertValidator validator) {
@@ -94,6 +109,11 @@ public class LegacyXrdsResolver implements XrdDiscoveryResolver {
     this.certValidator = validator;
   }
 
+  public void setTimeSource(TimeSource timeSource) {
+    this.timeSource = timeSource;
+    siteXrdCache.setTimeSource(timeSource);
+  }
+
   public String getDiscoveryDocumentType() {
     return XRDS_TYPE;
   }
@@ -140,7 +160,7 @@ public class LegacyXrdsResolver implements XrdDiscoveryResolver {
     // We're given the XRDS for the site of the claimedID.
     // Perform mapping to extract user's XRDS location.
     NextXrdLocation userXrdsLocation =
-        mapClaimedIdToUserXrdsUri(getXrd(siteXrdsUri), claimedId);
+        mapClaimedIdToUserXrdsUri(getSiteXrd(siteXrdsUri), claimedId);
 
     // now that we have the user XRDS URI, we fetch the XRDS
     // and return the list of OP endpoints found in there.
@@ -150,11 +170,71 @@ public class LegacyXrdsResolver implements XrdDiscoveryResolver {
         userXrdsLocation.getNextAuthority());
   }
 
+  /**
+   * Returns what we need from the site's XRDS, from the cache if possible.
+   */
+  private SiteXrd getSiteXrd(URI siteXrdsUri) throws DiscoveryException {
+    String key = siteXrdsUri.toASCIIString();
+    long generation = verifier.getGeneration();
+    try {
+      SiteXrd siteXrd =
+          siteXrdCache.get(key, new SiteXrdLoader(siteXrdsUri, generation));
+      if (siteXrd.isSigned() && siteXrd.getGeneration() != generation) {
+        // verified before the verifier's generation changed
+        siteXrdCache.remove(key);
+        siteXrd = siteXrdCache.get(key,
+            new SiteXrdLoader(siteXrdsUri, generation));
+      }
+      return siteXrd;
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof DiscoveryException) {
+        throw (DiscoveryException) e.getCause();
+      }
+      throw new DiscoveryException("could not load XRDS from "
+          + siteXrdsUri.toASCIIString(), e.getCause());
+    }
+  }
+
+  /**
+   * Extracts the URITemplate, the NextAuthority and the CanonicalID from a
+   * site's XRD, and checks whether it was signed by the site named in the
+   * CanonicalID.
+   */
+  private SiteXrd parseSiteXrd(XrdRepresentations siteXrd, long generation) {
+    String canonicalId = getCanonicalId(siteXrd.getXrd());
+    if (canonicalId == null) {
+      logger.warning("XRD from " + siteXrd.getSource() +
+          "did not have canonical Id");
+    }
+    VerificationResult signature = (canonicalId == null)
+        ? null
+        : checkSignature(siteXrd, canonicalId);
+
+    // find the <Service> element with type '.../describedby'
+    XrdsService service =
+        siteXrd.getXrd().getServiceForType(URI_TEMPLATE_TYPE);
+    if (service == null) {
+      return new SiteXrd(siteXrd.getSource(), false, null, null, null, null,
+          generation);
+    }
+
+    // is there a NextAuthority? We only trust the next authority element
+    // if the document is properly signed.
+    String nextAuthority = (signature != null)
+        ? service.getTagValue(NEXT_AUTHORITY_TAG)  // might still be null
+        : null;                                    // must be null if unsigned
+
+    return new SiteXrd(siteXrd.getSource(), true,
+        service.getTagValue(URI_TEMPLATE_TAG), nextAuthority, canonicalId,
+        signature, generation);
+  }
+
   /**
    * Looks for a URITemplate in the XRD, and applies the claimed id to it in
    * order to generate the user's XRDS endpoint.
    *
-   * @param siteXrd the XRD for the site (host) identified in the claimedId
+   * @param siteXrd what we found in the XRD for the site (host) identified in
+   *   the claimedId
    *
    * @return A {@link NextXrdLocation}, which is a struct containing the URI
    *   obtained by mapping the claimedId onto the URITemplate found in the XRD,
@@ -166,29 +246,26 @@ public class LegacyXrdsResolver implements XrdDiscoveryResolver {
    * @throws DiscoveryException
    */
   /* visible for testing */
-  NextXrdLocation mapClaimedIdToUserXrdsUri(XrdRepresentations siteXrd,
+  NextXrdLocation mapClaimedIdToUserXrdsUri(SiteXrd siteXrd,
       UrlIdentifier claimedId) throws DiscoveryException {
 
     // extract the host from the claimed id - this is the canonicalID
     // we expect in the site's XRD
     IdpIdentifier host = new IdpIdentifier(claimedId.getUrl().getHost());
 
-    // find the <Service> element with type '.../describedby'
-    Service service = getServiceForType(siteXrd.getXrd(), URI_TEMPLATE_TYPE);
-    if (service == null) {
+    if (!siteXrd.hasService()) {
       throw new DiscoveryException("could not find service of type " +
           URI_TEMPLATE_TYPE + " in XRDS at location " +
           claimedId.getIdentifier());
     }
 
-    // is there a NextAuthority? We only trust the next authority element
-    // if the document is properly signed.
-    String nextAuthority = checkSecurity(siteXrd, host, null)
-        ? getTagValue(service, NEXT_AUTHORITY_TAG)  // might still be null
-        : null;                                     // must be null if unsigned
+    // the NextAuthority only counts if the site's XRD is about, and signed
+    // by, the host in the claimed id
+    String nextAuthority = siteXrd.isSignedFor(host)
+        ? siteXrd.getNextAuthority()
+        : null;
 
-    // find the <URITemplate> tag inside the <Service> element
-    String uriTemplate = getTagValue(service, URI_TEMPLATE_TAG);
+    String uriTemplate = siteXrd.getUriTemplate();
     if (uriTemplate == null) {
       throw new DiscoveryException("missing " + URI_TEMPLATE_TAG + " in " +
           "service specification in XRDS at location " +
@@ -202,23 +279,6 @@ public class LegacyXrdsResolver implements XrdDiscoveryResolver {
     return new NextXrdLocation(newUri, nextAuthority);
   }
 
-  /**
-   * Returns the first value of a tag inside a Service element.
-   * @param service the Service element inside which we're looking for a tag.
-   * @param tagName the name of the tag
-   * @return the value of the tag, or null if no such tag exists.
-   */
-  private String getTagValue(Service service, String tagName) {
-    @SuppressWarnings("unchecked")
-    Vector<Element> tags = service.getOtherTagValues(tagName);
-    if (tags == null || tags.size() == 0) {
-      return null;
-    }
-
-    // we're just looking at the first tag
-    return tags.get(0).getTextContent();
-  }
-
   /**
    * Finds OP-endpoints in an XRDS document.
    * @param xrd The XRD in which we're looking for OP endpoints.
@@ -239,9 +299,9 @@ public class LegacyXrdsResolver implements XrdDiscoveryResolver {
 
     boolean isSecure = checkSecurity(xrd, id, authority);
 
-    List<Service> services = getServicesForType(xrd.getXrd(), version);
+    List<XrdsService> services = xrd.getXrd().getServicesForType(version);
 
-    if (services == null) {
+    if (services.isEmpty()) {
       throw new DiscoveryException("could not find <Service> of type " +
           version + " in XRDS for " + xrd.getSource());
     }
@@ -249,7 +309,7 @@ public class LegacyXrdsResolver implements XrdDiscoveryResolver {
     List<SecureDiscoveryInformation> result =
         Lists.newArrayListWithCapacity(services.size());
 
-    for (Service service : services) {
+    for (XrdsService service : services) {
       try {
         if (version.equals(DiscoveryInformation.OPENID2)) {
           // look for LocalID and use claimedID, if given.
@@ -298,22 +358,36 @@ public class LegacyXrdsResolver implements XrdDiscoveryResolver {
       return false;
     }
 
-    // now, check the signature:
+    // If we're not given an authority, the XRD should be signed by the
+    // entity identified in the canonical id.
+    authority = (authority == null) ? canonicalId : authority;
+    return checkSignature(xrd, authority) != null;
+  }
+
+  /**
+   * Checks the signature on the XRD, and whether the signing cert belongs to
+   * the given authority.
+   *
+   * @return the result of verifying the signature, or null if the signature
+   *   could not be validated
+   */
+  private VerificationResult checkSignature(XrdRepresentations xrd,
+      String authority) {
     VerificationResult verificatioResult;
     try {
-      verificatioResult = verifier.verify(xrd.getDocument(), xrd.getSignature());
+      verificatioResult = verifier.verify(xrd.getDocument(),
+          xrd.getXrd().getSignatureBlock(), xrd.getSignature());
     } catch (XmlSimpleSignException e) {
       logger.log(Level.WARNING, "signature on XRD from " + xrd.getSource() +
           "did not verify", e);
-      return false;
+      return null;
     }
 
     // finally, validate the signing cert (make sure it belongs to the authority
-    // that is supposed to have signed this XRD). If we're not given an
-    // authority, the XRD should be signed by the entity identified in the
-    // canonical id.
-    authority = (authority == null) ? canonicalId : authority;
-    return certValidator.matches(verificatioResult.getCerts().get(0), authority);
+    // that is supposed to have signed this XRD).
+    return certValidator.matches(verificatioResult.getCerts().get(0), authority)
+        ? verificatioResult
+        : null;
   }
 
   /**
@@ -321,14 +395,12 @@ public class LegacyXrdsResolver implements XrdDiscoveryResolver {
    * CanonicalId in the document for us to consider the document secure.
    * @param xrd
    */
-  @SuppressWarnings("deprecation")
-  private String getCanonicalId(XRD xrd) {
-    // The new API doesn't tell us if there are more than one canonical ID
-    // in the document, but we need to know.
-    if (xrd.getNumCanonicalids() != 1) {
+  private String getCanonicalId(XrdsDescriptor xrd) {
+    List<String> canonicalIds = xrd.getCanonicalIds();
+    if (canonicalIds.size() != 1) {
       return null;
     }
-    return xrd.getCanonicalidAt(0).getValue();
+    return canonicalIds.get(0);
   }
 
   /**
@@ -342,9 +414,9 @@ public class LegacyXrdsResolver implements XrdDiscoveryResolver {
    * @throws MalformedURLException
    */
   private SecureDiscoveryInformation createDiscoveryInfoForServer(
-      Service service, boolean isSecure) throws DiscoveryException, MalformedURLException {
+      XrdsService service, boolean isSecure) throws DiscoveryException, MalformedURLException {
     SecureDiscoveryInformation result =
-        new SecureDiscoveryInformation(service.getURIAt(0).getURI().toURL());
+        new SecureDiscoveryInformation(getOpEndpoint(service));
     result.setSecure(isSecure);
     return result;
   }
@@ -362,14 +434,14 @@ public class LegacyXrdsResolver implements XrdDiscoveryResolver {
    * @throws MalformedURLException
    */
   private SecureDiscoveryInformation createDiscoveryInfoForSignon(
-      Service service, Identifier claimedId, boolean isSecure)
+      XrdsService service, Identifier claimedId, boolean isSecure)
       throws DiscoveryException, MalformedURLException {
 
     // could be null
-    String localId = getLocalId(service);
+    String localId = service.getLocalId();
 
     SecureDiscoveryInformation result = new SecureDiscoveryInformation(
-        service.getURIAt(0).getURI().toURL(),
+        getOpEndpoint(service),
         claimedId,
         localId,
         DiscoveryInformation.OPENID2);
@@ -379,18 +451,23 @@ public class LegacyXrdsResolver implements XrdDiscoveryResolver {
   }
 
   /**
-   * Returns LocalID from a <Service> element.
-   * @param service
-   * @return null if there is no LocalID specified.
+   * Returns the first URI of a <Service> element as a URL.
+   * @throws MalformedURLException if there is no URI, or it isn't an
+   *   absolute URL.
    */
-  private String getLocalId(Service service) {
-    int numLocalIds = service.getNumLocalIDs();
-
-    if (numLocalIds == 0) {
-      return null;
+  private URL getOpEndpoint(XrdsService service) throws MalformedURLException {
+    String uri = service.getUri();
+    if (uri == null) {
+      throw new MalformedURLException("<Service> has no <URI>");
+    }
+    try {
+      return new URI(uri).toURL();
+    } catch (URISyntaxException e) {
+      throw new MalformedURLException(e.getMessage());
+    } catch (IllegalArgumentException e) {
+      // not an absolute URI
+      throw new MalformedURLException(e.getMessage());
     }
-
-    return service.getLocalIDAt(0).getValue();
   }
 
   /**
@@ -419,9 +496,10 @@ public class LegacyXrdsResolver implements XrdDiscoveryResolver {
    * from it.
    *
    * @return an {@link XrdRepresentations} object, which not only contains the
-   *   parsed XRD, but also the document as a byte array, the URI from which
-   *   the XRD was fetched, and the Signature that we might have see in the
-   *   HTTP response's Signature header.
+   *   parsed XRD, but also the stream the document was read through (whose
+   *   digest the signature is checked against), the URI from which the XRD
+   *   was fetched, and the Signature that we might have see in the HTTP
+   *   response's Signature header. Null if the document had no XRD.
    *
    * @throws FetchException
    */
@@ -429,134 +507,209 @@ public class LegacyXrdsResolver implements XrdDiscoveryResolver {
 
     FetchRequest request = FetchRequest.createGetRequest(uri);
 
-    XRDS xrds;
-    byte[] documentBytes;
-    String signature;
+    FetchResponse response = httpFetcher.fetch(request);
+    String signature = response.getFirstHeader("Signature"); // could be null
 
+    // we read the document straight off the network, only once: the XRD and
+    // the Signature element are picked up on the way, and the signature is
+    // later checked against the digest of what we read.
+    DigestingInputStream document =
+        new DigestingInputStream(response.getContentAsStream());
+    XrdsDescriptor xrd;
     try {
-      FetchResponse response = httpFetcher.fetch(request);
-
-      documentBytes = response.getContentAsBytes();
-      signature = response.getFirstHeader("Signature"); // could be null
-
-      Document document =
-          XmlUtil.getDocument(new ByteArrayInputStream(documentBytes));
-
-      xrds = new XRDS(document.getDocumentElement(), false);
-
-    } catch (ParserConfigurationException e) {
-      throw new FetchException(e);
-    } catch (SAXException e) {
+      xrd = XrdsReader.read(document);
+      document.finish();
+    } catch (XMLStreamException e) {
       throw new FetchException(e);
     } catch (IOException e) {
       throw new FetchException(e);
-    } catch (URISyntaxException e) {
-      throw new FetchException(e);
-    } catch (ParseException e) {
-      throw new FetchException(e);
     }
 
-    return new XrdRepresentations(xrds.getFinalXRD(), uri.toASCIIString(),
-        documentBytes, signature);
+    return (xrd == null)
+        ? null
+        : new XrdRepresentations(xrd, uri.toASCIIString(), document,
+            signature);
   }
 
   /**
-   * Returns highest-priority service for given type from an XRD
+   * Helper class that bundles the location of the next XRD document in the
+   * discovery chain, together with the authority that should sign that next
+   * XRD document.
    */
-  private Service getServiceForType(XRD xrd, String type) {
+  private static class NextXrdLocation {
 
-    @SuppressWarnings("unchecked")
-    List<Service> allServices = xrd.getPrioritizedServices();
+    private final URI uri;
+    private final String nextAuthority;
 
-    if (allServices == null) {
-      return null;
+    public NextXrdLocation(URI uri, String nextAuthority) {
+      this.uri = uri;
+      this.nextAuthority = nextAuthority;
     }
 
-    for (Service service : allServices) {
-      if (service.matchType(type)) {
-        return service;
-      }
+    public URI getUri() {
+      return uri;
     }
 
-    return null;
+    public String getNextAuthority() {
+      return nextAuthority;
+    }
   }
 
   /**
-   * Returns services (highest-priority first) for given type from an XRD
+   * What discovery for a user needs from a site's XRD: the URITemplate and
+   * NextAuthority of its describedby service, its CanonicalID, and whether
+   * it was signed by the site named in the CanonicalID.
    */
-  private List<Service> getServicesForType(XRD xrd, String type) {
+  /* visible for testing */
+  static class SiteXrd {
 
-    @SuppressWarnings("unchecked")
-    List<Service> allServices = xrd.getPrioritizedServices();
-    List<Service> result = Lists.newArrayList();
+    private final String source;
+    private final boolean hasService;
+    private final String uriTemplate;
+    private final String nextAuthority;
+    private final String canonicalId;
+    private final VerificationResult signature;
+    private final long generation;
+
+    /**
+     * @param nextAuthority must be null if the XRD wasn't signed
+     * @param signature the verified signature, or null if the XRD wasn't
+     *   signed by the site named in the canonical ID
+     * @param generation the verifier's generation before the signature was
+     *   verified
+     */
+    public SiteXrd(String source, boolean hasService, String uriTemplate,
+        String nextAuthority, String canonicalId, VerificationResult signature,
+        long generation) {
+      this.source = source;
+      this.hasService = hasService;
+      this.uriTemplate = uriTemplate;
+      this.nextAuthority = nextAuthority;
+      this.canonicalId = canonicalId;
+      this.signature = signature;
+      this.generation = generation;
+    }
 
-    if (allServices == null) {
-      return null;
+    public String getSource() {
+      return source;
     }
 
-    for (Service service : allServices) {
-      if (service.matchType(type)) {
-        result.add(service);
-      }
+    /**
+     * Returns whether the XRD had a describedby service.
+     */
+    public boolean hasService() {
+      return hasService;
     }
 
-    if (result.size() == 0) {
-      return null;
+    public String getUriTemplate() {
+      return uriTemplate;
     }
 
-    return result;
+    public String getNextAuthority() {
+      return nextAuthority;
+    }
+
+    public String getCanonicalId() {
+      return canonicalId;
+    }
+
+    public boolean isSigned() {
+      return signature != null;
+    }
+
+    /**
+     * Returns the verifier's generation (see {@link Verifier#getGeneration()})
+     * from before the signature was verified.
+     */
+    public long getGeneration() {
+      return generation;
+    }
+
+    /**
+     * Returns whether the XRD is about the given site, and signed by it.
+     */
+    public boolean isSignedFor(IdpIdentifier site) {
+      if (signature == null) {
+        return false;
+      }
+      if (!canonicalId.equals(site.getIdentifier())) {
+        logger.warning("Canonical ID " + canonicalId + " in XRD from " +
+            source + " did not equal identifier " + site.getIdentifier());
+        return false;
+      }
+      return true;
+    }
+
+    /**
+     * Returns when the signing certificates expire, or Long.MAX_VALUE if
+     * the XRD wasn't signed.
+     */
+    public long getNotAfter() {
+      long notAfter = Long.MAX_VALUE;
+      if (signature != null) {
+        for (X509Certificate cert : signature.getCerts()) {
+          notAfter = Math.min(notAfter, cert.getNotAfter().getTime());
+        }
+      }
+      return notAfter;
+    }
   }
 
   /**
-   * Helper class that bundles the location of the next XRD document in the
-   * discovery chain, together with the authority that should sign that next
-   * XRD document.
+   * Fetches and parses site XRDs for the site XRD cache.
    */
-  private static class NextXrdLocation {
+  private class SiteXrdLoader implements ExpiringLruCache.Loader<String, SiteXrd> {
 
     private final URI uri;
-    private final String nextAuthority;
+    private final long generation;
 
-    public NextXrdLocation(URI uri, String nextAuthority) {
+    public SiteXrdLoader(URI uri, long generation) {
       this.uri = uri;
-      this.nextAuthority = nextAuthority;
+      this.generation = generation;
     }
 
-    public URI getUri() {
-      return uri;
+    public SiteXrd load(String key) throws DiscoveryException {
+      return parseSiteXrd(getXrd(uri), generation);
     }
 
-    public String getNextAuthority() {
-      return nextAuthority;
+    public long getMaxSeconds(String key, SiteXrd siteXrd) {
+      if (!siteXrd.isSigned()) {
+        return UNSIGNED_SITE_XRD_CACHE_AGE_SECONDS;
+      }
+      long secondsLeft =
+          (siteXrd.getNotAfter() - timeSource.currentTimeMillis()) / 1000L;
+      return Math.min(SITE_XRD_CACHE_AGE_SECONDS, secondsLeft);
     }
   }
 
   /**
-   * Helper class that hold two different representations of the XRD: the
-   * parsed version (useful for extracting information from it), and the
-   * raw bytes (useful for verifying the signature). Also holds the value
-   * of the Signature: header, if it was present when fetching the XRD, and
-   * the location (source) from which the the XRD was fetched.
+   * Helper class that hold different representations of the XRD: the
+   * parsed XRD (useful for extracting information from it), and the stream
+   * it was read through (with the digest the signature is checked against).
+   * Also holds the value of the Signature: header, if it was present when
+   * fetching the XRD, and the location (source) from which the the XRD was
+   * fetched.
    */
   private static class XrdRepresentations {
 
-    private final XRD xrd;
-    private final byte[] document;
+    private final XrdsDescriptor xrd;
+    private final DigestingInputStream document;
     private final String source;
     private final String signature;
 
-    public XrdRepresentations(XRD xrd, String source, byte[] document, String signature) {
+    public XrdRepresentations(XrdsDescriptor xrd, String source,
+        DigestingInputStream document, String signature) {
       this.xrd = xrd;
       this.source = source;
       this.document = document;
       this.signature = signature;
     }
 
-    public XRD getXrd() {
+    public XrdsDescriptor getXrd() {
       return xrd;
     }
 
-    public byte[] getDocument() {
+    public DigestingInputStream getDocument() {
       return document;
     }
 
@@ -26,8 +26,12 @@ public abstract class LinkBase {
   private final LinkValue value;
   private final String prefix;
 
+  // the line we were parsed from, so that we can be written out again
+  private final String input;
+
   protected LinkBase(String input, String prefix) throws LinkSyntaxException {
     this.value = getLinkValue(input, prefix);
+    this.input = input;
 
     // we keep track of the prefix only for our equals() and hashCode() methods
     this.prefix = prefix.toLowerCase();
@@ -68,6 +72,15 @@ public abstract class LinkBase {
     return getLinkValue().getParameter(name);
   }
 
+  /**
+   * Returns the line this link or link-pattern was parsed from, e.g.
+   * "Link: &lt;http://example.com/path&gt;; foo=bar".
+   */
+  @Override
+  public String toString() {
+    return input;
+  }
+
   @Override
   public int hashCode() {
     final int prime = 31;
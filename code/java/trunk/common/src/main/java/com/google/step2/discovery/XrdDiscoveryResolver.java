@@ -42,8 +42,9 @@ public interface XrdDiscoveryResolver {
    * be parsed by an implementing class.
    *
    * The legacy implementation {@link LegacyXrdsResolver} returns
-   * application/xrds+xml here, while newer implementations might return
-   * application/xrd+xml here.
+   * application/xrds+xml here, while {@link XrdResolver} returns
+   * application/xrd+xml here. To use both, bind this interface to
+   * {@link CompositeXrdDiscoveryResolver}.
    */
   public String getDiscoveryDocumentType();
 
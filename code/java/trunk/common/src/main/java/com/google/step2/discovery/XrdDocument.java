@@ -0,0 +1,74 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.discovery;
+
+import com.google.common.collect.Lists;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An XRD 1.0 document, as read by {@link XrdReader}: its Subject, and its
+ * links in document order (which is the order of preference).
+ */
+class XrdDocument {
+
+  private final List<String> subjects;
+  private final List<XrdLink> links;
+
+  public XrdDocument(List<String> subjects, List<XrdLink> links) {
+    this.subjects = Collections.unmodifiableList(subjects);
+    this.links = Collections.unmodifiableList(links);
+  }
+
+  /**
+   * Returns the subject of the document, or null unless there is exactly one
+   * Subject element.
+   */
+  public String getSubject() {
+    return (subjects.size() == 1) ? subjects.get(0) : null;
+  }
+
+  public List<XrdLink> getLinks() {
+    return links;
+  }
+
+  /**
+   * Returns the links with the given rel, in document order.
+   */
+  public List<XrdLink> getLinksByRel(String rel) {
+    List<XrdLink> result = Lists.newArrayList();
+    for (XrdLink link : links) {
+      if (rel.equals(link.getRel())) {
+        result.add(link);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the first link with the given rel, or null if there is none.
+   */
+  public XrdLink getLinkByRel(String rel) {
+    for (XrdLink link : links) {
+      if (rel.equals(link.getRel())) {
+        return link;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.discovery;
+
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+
+/**
+ * A Link element of an XRD 1.0 document, as read by {@link XrdReader}: its
+ * rel, type, href and template attributes, and the text of its child
+ * elements (such as LocalID), by local name.
+ */
+class XrdLink {
+
+  private final String rel;
+  private final String type;
+  private final String href;
+  private final String template;
+  private final Map<String, String> tags = Maps.newHashMap();
+
+  public XrdLink(String rel, String type, String href, String template) {
+    this.rel = rel;
+    this.type = type;
+    this.href = href;
+    this.template = template;
+  }
+
+  public String getRel() {
+    return rel;
+  }
+
+  /**
+   * Returns the MIME type of the linked document, or null if the link
+   * doesn't say.
+   */
+  public String getType() {
+    return type;
+  }
+
+  public String getHref() {
+    return href;
+  }
+
+  public String getTemplate() {
+    return template;
+  }
+
+  /**
+   * Returns the text of the first child element with the given local name
+   * (in any namespace), or null if there is none.
+   */
+  public String getTagValue(String localName) {
+    return tags.get(localName);
+  }
+
+  void addTag(String localName, String value) {
+    if (!tags.containsKey(localName)) {
+      tags.put(localName, value);
+    }
+  }
+}
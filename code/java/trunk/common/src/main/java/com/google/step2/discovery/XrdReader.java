@@ -0,0 +1,114 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.discovery;
+
+import com.google.common.collect.Lists;
+import com.google.step2.util.XmlUtil;
+
+import java.io.InputStream;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads an XRD 1.0 document (application/xrd+xml) with a StAX parser, in a
+ * single pass and without building a tree of the document. We keep the
+ * Subject, and the rel, type, href and template of each Link, along with
+ * the text of the Link's child elements. Everything else (Expires, Alias,
+ * Property, a Signature) is skipped.
+ *
+ * The XRD, Subject and Link elements must be in the XRD 1.0 namespace;
+ * children of a Link are recognized by their local name.
+ */
+class XrdReader {
+
+  private static final String XRD_NAMESPACE =
+      "http://docs.oasis-open.org/ns/xri/xrd-1.0";
+
+  private static final String XRD_ELEMENT = "XRD";
+  private static final String SUBJECT_ELEMENT = "Subject";
+  private static final String LINK_ELEMENT = "Link";
+  private static final String REL_ATTRIBUTE = "rel";
+  private static final String TYPE_ATTRIBUTE = "type";
+  private static final String HREF_ATTRIBUTE = "href";
+  private static final String TEMPLATE_ATTRIBUTE = "template";
+
+  private XrdReader() {
+  }
+
+  /**
+   * Returns the document, or null if its root element isn't an XRD 1.0
+   * XRD element.
+   */
+  public static XrdDocument read(InputStream input) throws XMLStreamException {
+    XMLStreamReader reader = XmlUtil.getXmlStreamReader(input);
+    try {
+      // move to the root element
+      int event = reader.getEventType();
+      while (event != XMLStreamConstants.START_ELEMENT) {
+        if (!reader.hasNext()) {
+          return null;
+        }
+        event = reader.next();
+      }
+      if (!isXrd(reader, XRD_ELEMENT)) {
+        return null;
+      }
+
+      List<String> subjects = Lists.newArrayList();
+      List<XrdLink> links = Lists.newArrayList();
+      while (XrdsReader.nextChild(reader)) {
+        if (isXrd(reader, SUBJECT_ELEMENT)) {
+          subjects.add(XrdsReader.readText(reader));
+        } else if (isXrd(reader, LINK_ELEMENT)) {
+          links.add(readLink(reader));
+        } else {
+          XrdsReader.skipElement(reader);
+        }
+      }
+
+      // read the rest of the document, so that we notice if it isn't
+      // well-formed
+      while (reader.hasNext()) {
+        reader.next();
+      }
+      return new XrdDocument(subjects, links);
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static XrdLink readLink(XMLStreamReader reader)
+      throws XMLStreamException {
+    XrdLink link = new XrdLink(
+        reader.getAttributeValue(null, REL_ATTRIBUTE),
+        reader.getAttributeValue(null, TYPE_ATTRIBUTE),
+        reader.getAttributeValue(null, HREF_ATTRIBUTE),
+        reader.getAttributeValue(null, TEMPLATE_ATTRIBUTE));
+    while (XrdsReader.nextChild(reader)) {
+      link.addTag(reader.getLocalName(), XrdsReader.readText(reader));
+    }
+    return link;
+  }
+
+  private static boolean isXrd(XMLStreamReader reader, String name) {
+    return name.equals(reader.getLocalName())
+        && XRD_NAMESPACE.equals(reader.getNamespaceURI());
+  }
+}
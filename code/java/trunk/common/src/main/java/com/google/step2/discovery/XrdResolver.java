@@ -0,0 +1,275 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.discovery;
+
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+import com.google.step2.http.FetchException;
+import com.google.step2.http.FetchRequest;
+import com.google.step2.http.FetchResponse;
+import com.google.step2.http.HttpFetcher;
+import com.google.step2.xmlsimplesign.CertValidator;
+import com.google.step2.xmlsimplesign.VerificationResult;
+import com.google.step2.xmlsimplesign.Verifier;
+import com.google.step2.xmlsimplesign.XmlSimpleSignException;
+
+import org.openid4java.discovery.DiscoveryException;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.discovery.Identifier;
+import org.openid4java.discovery.UrlIdentifier;
+
+import java.io.ByteArrayInputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.stream.XMLStreamException;
+
+/**
+ * Implements discovery in XRD 1.0 documents (application/xrd+xml), which
+ * are read with {@link XrdReader}.
+ *
+ * OP endpoints are the href of Links with rel
+ * http://specs.openid.net/auth/2.0/server (in a site's XRD) or
+ * http://specs.openid.net/auth/2.0/signon (in a user's XRD), in document
+ * order. A signon Link may have a LocalID child element. A site's XRD
+ * points to the XRDs of its users with the template of a describedby Link,
+ * which may have a NextAuthority child element naming who signs the users'
+ * XRDs.
+ *
+ * As with {@link LegacyXrdsResolver}, an XRD is secure if its Subject is
+ * the identifier we're doing discovery on, and it is signed by that
+ * identifier (or by the next authority named in the site's XRD).
+ */
+public class XrdResolver implements XrdDiscoveryResolver {
+
+  private static final Logger logger =
+      Logger.getLogger(XrdResolver.class.getName());
+
+  // the type of meta-data document this resolver understands
+  private static final String XRD_TYPE = "application/xrd+xml";
+
+  // the rel of the link to a user's XRD in a site's XRD
+  private static final String DESCRIBED_BY_REL = "describedby";
+
+  private static final String LOCAL_ID_TAG = "LocalID";
+  private static final String NEXT_AUTHORITY_TAG = "NextAuthority";
+
+  private final HttpFetcher httpFetcher;
+  private final Verifier verifier;
+  private final CertValidator certValidator;
+
+  @Inject
+  public XrdResolver(HttpFetcher httpFetcher, Verifier verifier,
+      CertValidator validator) {
+    this.httpFetcher = httpFetcher;
+    this.verifier = verifier;
+    this.certValidator = validator;
+  }
+
+  public String getDiscoveryDocumentType() {
+    return XRD_TYPE;
+  }
+
+  public List<SecureDiscoveryInformation> findOpEndpointsForSite(
+      IdpIdentifier site, URI siteXrdUri) throws DiscoveryException {
+    return resolveXrd(getXrd(siteXrdUri), DiscoveryInformation.OPENID2_OP,
+        site, null);
+  }
+
+  public List<SecureDiscoveryInformation> findOpEndpointsForUser(
+      UrlIdentifier claimedId, URI userXrdUri) throws DiscoveryException {
+    return resolveXrd(getXrd(userXrdUri), DiscoveryInformation.OPENID2,
+        claimedId, null);
+  }
+
+  public List<SecureDiscoveryInformation> findOpEndpointsForUserThroughSiteXrd(
+      UrlIdentifier claimedId, URI siteXrdUri) throws DiscoveryException {
+    FetchedXrd siteXrd = getXrd(siteXrdUri);
+
+    XrdLink link = siteXrd.getXrd().getLinkByRel(DESCRIBED_BY_REL);
+    if (link == null || link.getTemplate() == null) {
+      throw new DiscoveryException("could not find " + DESCRIBED_BY_REL
+          + " link with a template in XRD at " + siteXrd.getSource());
+    }
+
+    // we only trust the next authority if the site's XRD is properly signed
+    IdpIdentifier host = new IdpIdentifier(claimedId.getUrl().getHost());
+    String nextAuthority = checkSecurity(siteXrd, host, null)
+        ? link.getTagValue(NEXT_AUTHORITY_TAG)  // might still be null
+        : null;                                 // must be null if unsigned
+
+    URI userXrdUri = new UriTemplate(link.getTemplate())
+        .map(URI.create(claimedId.getIdentifier()));
+    return resolveXrd(getXrd(userXrdUri), DiscoveryInformation.OPENID2,
+        claimedId, nextAuthority);
+  }
+
+  /**
+   * Returns the OP endpoints of the given type (rel) in the XRD.
+   *
+   * @param authority who we expect to be signing this XRD. If this is null,
+   *   then the XRD must be signed by an authority that matches its Subject.
+   */
+  private List<SecureDiscoveryInformation> resolveXrd(FetchedXrd xrd,
+      String version, Identifier id, String authority)
+      throws DiscoveryException {
+
+    List<XrdLink> links = xrd.getXrd().getLinksByRel(version);
+    if (links.isEmpty()) {
+      throw new DiscoveryException("could not find <Link> with rel " +
+          version + " in XRD for " + xrd.getSource());
+    }
+
+    boolean isSecure = checkSecurity(xrd, id, authority);
+
+    List<SecureDiscoveryInformation> result =
+        Lists.newArrayListWithCapacity(links.size());
+    for (XrdLink link : links) {
+      SecureDiscoveryInformation info;
+      try {
+        if (version.equals(DiscoveryInformation.OPENID2)) {
+          info = new SecureDiscoveryInformation(getOpEndpoint(link), id,
+              link.getTagValue(LOCAL_ID_TAG), DiscoveryInformation.OPENID2);
+        } else {
+          info = new SecureDiscoveryInformation(getOpEndpoint(link));
+        }
+      } catch (MalformedURLException e) {
+        logger.log(Level.WARNING, "found malformed URL in discovery document " +
+            "at " + xrd.getSource(), e);
+        continue;
+      }
+      info.setSecure(isSecure);
+      result.add(info);
+    }
+    return result;
+  }
+
+  /**
+   * Checks that the XRD is about the given identifier, and is signed by the
+   * given authority (or, if that is null, by the identifier).
+   */
+  private boolean checkSecurity(FetchedXrd xrd, Identifier id,
+      String authority) {
+
+    String subject = xrd.getXrd().getSubject();
+    if (subject == null) {
+      logger.warning("XRD from " + xrd.getSource() +
+          " did not have a single Subject");
+      return false;
+    }
+    if (!subject.equals(id.getIdentifier())) {
+      logger.warning("Subject " + subject + " in XRD from " +
+          xrd.getSource() + " did not equal identifier " + id.getIdentifier());
+      return false;
+    }
+
+    VerificationResult verificationResult;
+    try {
+      verificationResult =
+          verifier.verify(xrd.getDocument(), xrd.getSignature());
+    } catch (XmlSimpleSignException e) {
+      logger.log(Level.WARNING, "signature on XRD from " + xrd.getSource() +
+          " did not verify", e);
+      return false;
+    }
+
+    authority = (authority == null) ? subject : authority;
+    return certValidator.matches(verificationResult.getCerts().get(0),
+        authority);
+  }
+
+  private URL getOpEndpoint(XrdLink link) throws MalformedURLException {
+    if (link.getHref() == null) {
+      throw new MalformedURLException("<Link> has no href");
+    }
+    try {
+      return new URI(link.getHref()).toURL();
+    } catch (URISyntaxException e) {
+      throw new MalformedURLException(e.getMessage());
+    } catch (IllegalArgumentException e) {
+      // not an absolute URI
+      throw new MalformedURLException(e.getMessage());
+    }
+  }
+
+  /**
+   * Fetches and reads an XRD, or throws if it can't be fetched or isn't an
+   * XRD 1.0 document.
+   */
+  private FetchedXrd getXrd(URI uri) throws DiscoveryException {
+    try {
+      FetchResponse response =
+          httpFetcher.fetch(FetchRequest.createGetRequest(uri));
+      String signature = response.getFirstHeader("Signature"); // could be null
+      byte[] document = response.getContentAsBytes();
+      XrdDocument xrd = XrdReader.read(new ByteArrayInputStream(document));
+      if (xrd == null) {
+        throw new DiscoveryException("document at " + uri.toASCIIString() +
+            " is not an XRD");
+      }
+      return new FetchedXrd(xrd, uri.toASCIIString(), document, signature);
+    } catch (FetchException e) {
+      throw new DiscoveryException("could not fetch XRD from "
+          + uri.toASCIIString(), e);
+    } catch (XMLStreamException e) {
+      throw new DiscoveryException("could not parse XRD from "
+          + uri.toASCIIString(), e);
+    }
+  }
+
+  /**
+   * An XRD, together with the raw bytes that its signature is computed
+   * over, the value of the Signature: header (if there was one), and the
+   * location it was fetched from.
+   */
+  private static class FetchedXrd {
+
+    private final XrdDocument xrd;
+    private final String source;
+    private final byte[] document;
+    private final String signature;
+
+    public FetchedXrd(XrdDocument xrd, String source, byte[] document,
+        String signature) {
+      this.xrd = xrd;
+      this.source = source;
+      this.document = document;
+      this.signature = signature;
+    }
+
+    public XrdDocument getXrd() {
+      return xrd;
+    }
+
+    public String getSource() {
+      return source;
+    }
+
+    public byte[] getDocument() {
+      return document;
+    }
+
+    public String getSignature() {
+      return signature;
+    }
+  }
+}
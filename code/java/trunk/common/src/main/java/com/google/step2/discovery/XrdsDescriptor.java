@@ -0,0 +1,107 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.discovery;
+
+import com.google.common.collect.Lists;
+import com.google.step2.xmlsimplesign.SignatureBlock;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An XRD, as read by {@link XrdsReader}: its CanonicalIDs, and its services
+ * sorted by priority. The final XRD of a document also carries the
+ * signature block of the document, if it had one.
+ */
+class XrdsDescriptor {
+
+  // services with a priority come first, lowest priority first, followed by
+  // the ones without a priority. Services with the same priority stay in
+  // document order.
+  private static final Comparator<XrdsService> BY_PRIORITY =
+      new Comparator<XrdsService>() {
+        public int compare(XrdsService a, XrdsService b) {
+          Integer p = a.getPriority();
+          Integer q = b.getPriority();
+          if (p == null || q == null) {
+            return (p == null) ? ((q == null) ? 0 : 1) : -1;
+          }
+          return p.compareTo(q);
+        }
+      };
+
+  private final List<String> canonicalIds;
+  private final List<XrdsService> services;
+  private SignatureBlock signatureBlock;
+
+  public XrdsDescriptor(List<String> canonicalIds, List<XrdsService> services) {
+    this.canonicalIds = Collections.unmodifiableList(canonicalIds);
+    List<XrdsService> sorted = Lists.newArrayList(services);
+    Collections.sort(sorted, BY_PRIORITY);  // stable
+    this.services = Collections.unmodifiableList(sorted);
+  }
+
+  /**
+   * Returns the Signature of the XRDS document the XRD was the final XRD
+   * of, or null if it had none.
+   */
+  public SignatureBlock getSignatureBlock() {
+    return signatureBlock;
+  }
+
+  void setSignatureBlock(SignatureBlock signatureBlock) {
+    this.signatureBlock = signatureBlock;
+  }
+
+  public List<String> getCanonicalIds() {
+    return canonicalIds;
+  }
+
+  /**
+   * Returns the services of the XRD, highest priority first.
+   */
+  public List<XrdsService> getServices() {
+    return services;
+  }
+
+  /**
+   * Returns the services of the given type, highest priority first.
+   */
+  public List<XrdsService> getServicesForType(String type) {
+    List<XrdsService> result = Lists.newArrayList();
+    for (XrdsService service : services) {
+      if (service.matchType(type)) {
+        result.add(service);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the highest-priority service of the given type, or null if there
+   * is none.
+   */
+  public XrdsService getServiceForType(String type) {
+    for (XrdsService service : services) {
+      if (service.matchType(type)) {
+        return service;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,240 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.discovery;
+
+import com.google.common.collect.Lists;
+import com.google.step2.util.XmlUtil;
+import com.google.step2.xmlsimplesign.SignatureBlock;
+import com.google.step2.xmlsimplesign.SignatureBlockReader;
+
+import java.io.InputStream;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads the final XRD out of an XRDS document with a StAX parser, in a
+ * single pass and without building a tree of the document. We only keep
+ * what discovery looks at: the CanonicalIDs of the XRD, and the types,
+ * URIs, LocalIDs and other elements (such as URITemplate) of its services.
+ *
+ * Like openxri, elements are recognized by their local name, whatever
+ * their namespace, and the final XRD is the last child of the XRDS
+ * element (or, if that is a nested XRDS element, its final XRD). Unlike
+ * openxri, services with the same priority are kept in document order,
+ * rather than shuffled, and text values are trimmed.
+ *
+ * The Signature element of the document (a child of the root element) is
+ * read on the way, so that the signature can be checked without reading
+ * the document again (see {@link XrdsDescriptor#getSignatureBlock()}).
+ */
+class XrdsReader {
+
+  private static final String XRDS_ELEMENT = "XRDS";
+  private static final String XRD_ELEMENT = "XRD";
+  private static final String CANONICAL_ID_ELEMENT = "CanonicalID";
+  private static final String SERVICE_ELEMENT = "Service";
+  private static final String TYPE_ELEMENT = "Type";
+  private static final String URI_ELEMENT = "URI";
+  private static final String LOCAL_ID_ELEMENT = "LocalID";
+  private static final String PRIORITY_ATTRIBUTE = "priority";
+
+  private XrdsReader() {
+  }
+
+  /**
+   * Returns the final XRD of the document, or null if the root element
+   * isn't an XRDS element, or there is no XRD in it.
+   */
+  public static XrdsDescriptor read(InputStream input)
+      throws XMLStreamException {
+    XMLStreamReader reader = XmlUtil.getXmlStreamReader(input);
+    try {
+      // move to the root element
+      int event = reader.getEventType();
+      while (event != XMLStreamConstants.START_ELEMENT) {
+        if (!reader.hasNext()) {
+          return null;
+        }
+        event = reader.next();
+      }
+      if (!XRDS_ELEMENT.equals(reader.getLocalName())) {
+        return null;
+      }
+      XrdsDescriptor xrd = readXrds(reader, true);
+
+      // read the rest of the document, so that we notice if it isn't
+      // well-formed
+      while (reader.hasNext()) {
+        reader.next();
+      }
+      return xrd;
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * @param root whether this is the root element, whose Signature child (if
+   *   any) signs the document
+   */
+  private static XrdsDescriptor readXrds(XMLStreamReader reader, boolean root)
+      throws XMLStreamException {
+    XrdsDescriptor last = null;
+    SignatureBlock signature = null;
+    boolean sawChild = false;
+    while (nextChild(reader)) {
+      String name = reader.getLocalName();
+      if (XRD_ELEMENT.equals(name)) {
+        last = readXrd(reader);
+        sawChild = true;
+      } else if (XRDS_ELEMENT.equals(name)) {
+        last = readXrds(reader, false);
+        sawChild = true;
+      } else if (root && signature == null
+          && SignatureBlockReader.isSignature(reader)) {
+        signature = SignatureBlockReader.readSignature(reader);
+      } else {
+        skipElement(reader);
+      }
+    }
+    if (last != null) {
+      last.setSignatureBlock(signature);
+    }
+    return sawChild ? last : null;
+  }
+
+  private static XrdsDescriptor readXrd(XMLStreamReader reader)
+      throws XMLStreamException {
+    List<String> canonicalIds = Lists.newArrayList();
+    List<XrdsService> services = Lists.newArrayList();
+    while (nextChild(reader)) {
+      String name = reader.getLocalName();
+      if (CANONICAL_ID_ELEMENT.equals(name)) {
+        canonicalIds.add(readText(reader));
+      } else if (SERVICE_ELEMENT.equals(name)) {
+        services.add(readService(reader));
+      } else {
+        skipElement(reader);
+      }
+    }
+    return new XrdsDescriptor(canonicalIds, services);
+  }
+
+  private static XrdsService readService(XMLStreamReader reader)
+      throws XMLStreamException {
+    XrdsService service = new XrdsService(
+        parsePriority(reader.getAttributeValue(null, PRIORITY_ATTRIBUTE)));
+    while (nextChild(reader)) {
+      String name = reader.getLocalName();
+      if (TYPE_ELEMENT.equals(name)) {
+        service.addType(readText(reader));
+      } else if (URI_ELEMENT.equals(name)) {
+        service.addUri(readText(reader));
+      } else if (LOCAL_ID_ELEMENT.equals(name)) {
+        service.addLocalId(readText(reader));
+      } else {
+        service.addTag(name, readText(reader));
+      }
+    }
+    return service;
+  }
+
+  /**
+   * Returns the priority, or null if there is none (or it isn't a number).
+   */
+  private static Integer parsePriority(String priority) {
+    if (priority == null || priority.length() == 0) {
+      return null;
+    }
+    try {
+      return Integer.valueOf(priority.trim());
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  // the following are also used by XrdReader
+
+  /**
+   * Returns the (trimmed) text inside the current element, including the
+   * text inside any of its child elements, and moves the reader to the end
+   * tag of the element.
+   */
+  static String readText(XMLStreamReader reader)
+      throws XMLStreamException {
+    StringBuilder text = new StringBuilder();
+    int depth = 1;
+    while (depth > 0) {
+      int event = reader.next();
+      switch (event) {
+        case XMLStreamConstants.START_ELEMENT:
+          depth++;
+          break;
+        case XMLStreamConstants.END_ELEMENT:
+          depth--;
+          break;
+        case XMLStreamConstants.CHARACTERS:
+        case XMLStreamConstants.CDATA:
+        case XMLStreamConstants.SPACE:
+        case XMLStreamConstants.ENTITY_REFERENCE:
+          text.append(reader.getText());
+          break;
+        default:
+          break;
+      }
+    }
+    return text.toString().trim();
+  }
+
+  /**
+   * Moves to the next child element of the current element. Returns false
+   * (leaving the reader on the end tag of the current element) if there are
+   * no more child elements.
+   */
+  static boolean nextChild(XMLStreamReader reader)
+      throws XMLStreamException {
+    while (reader.hasNext()) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        return true;
+      }
+      if (event == XMLStreamConstants.END_ELEMENT) {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Moves the reader from the start tag of an element to its end tag.
+   */
+  static void skipElement(XMLStreamReader reader)
+      throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+  }
+}
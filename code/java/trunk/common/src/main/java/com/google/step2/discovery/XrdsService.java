@@ -0,0 +1,113 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.discovery;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Service element of an XRD, as read by {@link XrdsReader}: its priority,
+ * its Type, URI and LocalID values (in document order), and the text of
+ * any other elements in it (such as URITemplate), by local name.
+ */
+class XrdsService {
+
+  private final Integer priority;
+  private final List<String> types = Lists.newArrayList();
+  private final List<String> uris = Lists.newArrayList();
+  private final List<String> localIds = Lists.newArrayList();
+  private final Map<String, List<String>> otherTags = Maps.newHashMap();
+
+  /**
+   * @param priority the priority of the service, or null if it has none
+   */
+  public XrdsService(Integer priority) {
+    this.priority = priority;
+  }
+
+  /**
+   * Returns the priority of the service (lower values come first), or null
+   * if it has none.
+   */
+  public Integer getPriority() {
+    return priority;
+  }
+
+  public List<String> getTypes() {
+    return Collections.unmodifiableList(types);
+  }
+
+  public boolean matchType(String type) {
+    return types.contains(type);
+  }
+
+  public List<String> getUris() {
+    return Collections.unmodifiableList(uris);
+  }
+
+  /**
+   * Returns the first URI of the service, or null if it has none.
+   */
+  public String getUri() {
+    return uris.isEmpty() ? null : uris.get(0);
+  }
+
+  /**
+   * Returns the first LocalID of the service, or null if it has none.
+   */
+  public String getLocalId() {
+    return localIds.isEmpty() ? null : localIds.get(0);
+  }
+
+  public List<String> getLocalIds() {
+    return Collections.unmodifiableList(localIds);
+  }
+
+  /**
+   * Returns the text of the first element with the given local name (in any
+   * namespace) that isn't a Type, URI or LocalID, or null if there is none.
+   */
+  public String getTagValue(String localName) {
+    List<String> values = otherTags.get(localName);
+    return (values == null) ? null : values.get(0);
+  }
+
+  void addType(String type) {
+    types.add(type);
+  }
+
+  void addUri(String uri) {
+    uris.add(uri);
+  }
+
+  void addLocalId(String localId) {
+    localIds.add(localId);
+  }
+
+  void addTag(String localName, String value) {
+    List<String> values = otherTags.get(localName);
+    if (values == null) {
+      values = Lists.newArrayList();
+      otherTags.put(localName, values);
+    }
+    values.add(value);
+  }
+}
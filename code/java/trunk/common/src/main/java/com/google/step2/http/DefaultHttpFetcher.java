@@ -18,17 +18,28 @@ package com.google.step2.http;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.ProtocolException;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultRedirectHandler;
 import org.apache.http.impl.conn.ProxySelectorRoutePlanner;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URI;
+import java.util.Map;
 
 /**
  * Default implementations of HttpFetcher and FetchResponse. Based on
@@ -36,14 +47,49 @@ import java.io.InputStream;
  * that we pick up the default proxy set in the VM (can be set through
  * {@link java.net.ProxySelector}.setDefault(), or by specifying system
  * properties http.proxyHost, http.proxyPort, etc.).
+ *
+ * HTTPS connections are made through a {@link SharedSslContext}, so that
+ * TLS sessions can be resumed across fetches (and across fetcher instances).
+ *
+ * Permanent redirects (301 and 308) of GET and HEAD requests are remembered
+ * in a {@link PermanentRedirectCache}, and later fetches of the same URI go
+ * straight to the location we were redirected to. If that location starts
+ * failing, we forget about the redirect and fetch the original URI again.
  */
 public class DefaultHttpFetcher implements HttpFetcher {
 
+  // not known to Apache http client's HttpStatus yet
+  private static final int SC_PERMANENT_REDIRECT = 308;
+
+  // names of the HttpContext attributes in which we keep track of the
+  // redirects that were followed during a fetch
+  private static final String PERMANENT_LOCATION_ATTRIBUTE =
+      "step2.permanent-location";
+  private static final String TEMPORARY_REDIRECT_ATTRIBUTE =
+      "step2.temporary-redirect";
+
   private final DefaultHttpClient httpClient;
+  private final PermanentRedirectCache redirectCache;
 
   public DefaultHttpFetcher() {
+    this(SharedSslContext.getDefault());
+  }
+
+  public DefaultHttpFetcher(SharedSslContext sslContext) {
+    this(sslContext, new PermanentRedirectCache());
+  }
+
+  public DefaultHttpFetcher(SharedSslContext sslContext,
+      PermanentRedirectCache redirectCache) {
+    this.redirectCache = redirectCache;
+
     // this follows redirects by default
     this.httpClient = new DefaultHttpClient();
+    httpClient.setRedirectHandler(new MemoizingRedirectHandler());
+
+    // use the shared SSLContext (and therefore its session cache) for https
+    httpClient.getConnectionManager().getSchemeRegistry().register(
+        new Scheme("https", sslContext.getSocketFactory(), 443));
 
     // this means you can set a proxy through
     // java.net.ProxySelector.setDefault(), or by simply starting the
@@ -55,30 +101,126 @@ public class DefaultHttpFetcher implements HttpFetcher {
 
   public FetchResponse fetch(FetchRequest request) throws FetchException {
 
+    // POSTs aren't redirected automatically, so there is nothing to remember
+    URI location = (request.getMethod() == FetchRequest.Method.POST)
+        ? null
+        : redirectCache.getLocation(request.getUri());
+
+    if (location != null) {
+      try {
+        HttpResponse response = execute(request, location);
+        if (response.getStatusLine().getStatusCode() < HttpStatus.SC_BAD_REQUEST) {
+          return new DefaultFetchResponse(response);
+        }
+        discardContent(response);
+      } catch (FetchException e) {
+        // fall through, and try the original URI
+      }
+
+      // the location we were redirected to has started failing. Maybe the
+      // redirect isn't there anymore, either.
+      redirectCache.invalidate(request.getUri());
+    }
+
+    return new DefaultFetchResponse(execute(request, request.getUri()));
+  }
+
+  /**
+   * Sends the request to the given URI (which is either the URI of the
+   * request, or a location we remember the request being redirected to), and
+   * remembers any permanent redirects along the way.
+   */
+  private HttpResponse execute(FetchRequest request, URI uri)
+      throws FetchException {
+
     HttpUriRequest uriRequest;
 
     switch (request.getMethod()) {
       case GET:
-        uriRequest = new HttpGet(request.getUri());
+        uriRequest = new HttpGet(uri);
         break;
       case POST:
-        uriRequest = new HttpPost(request.getUri());
+        uriRequest = new HttpPost(uri);
         break;
       case HEAD:
-        uriRequest = new HttpHead(request.getUri());
+        uriRequest = new HttpHead(uri);
         break;
       default:
         throw new FetchException("unsupported HTTP method: " +
             request.getMethod());
     }
+    for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+      uriRequest.setHeader(header.getKey(), header.getValue());
+    }
 
+    HttpContext context = new BasicHttpContext();
+    HttpResponse response;
     try {
-      return new DefaultFetchResponse(httpClient.execute(uriRequest));
+      response = httpClient.execute(uriRequest, context);
     } catch (ClientProtocolException e) {
       throw new FetchException(request, e);
     } catch (IOException e) {
       throw new FetchException(request, e);
     }
+
+    URI permanentLocation =
+        (URI) context.getAttribute(PERMANENT_LOCATION_ATTRIBUTE);
+    if (permanentLocation != null) {
+      redirectCache.put(request.getUri(), permanentLocation);
+    }
+
+    return response;
+  }
+
+  private void discardContent(HttpResponse response) {
+    HttpEntity entity = response.getEntity();
+    if (entity == null) {
+      return;
+    }
+    try {
+      entity.consumeContent();
+    } catch (IOException e) {
+      // ignored
+    }
+  }
+
+  /**
+   * Follows redirects just like the default handler (plus 308s for GET and
+   * HEAD requests), and records in the HttpContext where the redirects led
+   * us. Only the leading run of permanent redirects is recorded: once we see
+   * a temporary redirect, the locations after that aren't permanent.
+   */
+  private static class MemoizingRedirectHandler extends DefaultRedirectHandler {
+
+    @Override
+    public boolean isRedirectRequested(HttpResponse response,
+        HttpContext context) {
+      if (response.getStatusLine().getStatusCode() == SC_PERMANENT_REDIRECT) {
+        HttpRequest request =
+            (HttpRequest) context.getAttribute(ExecutionContext.HTTP_REQUEST);
+        String method = request.getRequestLine().getMethod();
+        return method.equalsIgnoreCase(HttpGet.METHOD_NAME)
+            || method.equalsIgnoreCase(HttpHead.METHOD_NAME);
+      }
+      return super.isRedirectRequested(response, context);
+    }
+
+    @Override
+    public URI getLocationURI(HttpResponse response, HttpContext context)
+        throws ProtocolException {
+      URI location = super.getLocationURI(response, context);
+
+      if (context.getAttribute(TEMPORARY_REDIRECT_ATTRIBUTE) == null) {
+        int status = response.getStatusLine().getStatusCode();
+        if (status == HttpStatus.SC_MOVED_PERMANENTLY
+            || status == SC_PERMANENT_REDIRECT) {
+          context.setAttribute(PERMANENT_LOCATION_ATTRIBUTE, location);
+        } else {
+          context.setAttribute(TEMPORARY_REDIRECT_ATTRIBUTE, Boolean.TRUE);
+        }
+      }
+      return location;
+    }
   }
 
   private static class DefaultFetchResponse implements FetchResponse {
@@ -17,6 +17,9 @@
 package com.google.step2.http;
 
 import java.net.URI;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Class that represents an HTTP request.
@@ -31,6 +34,7 @@ public class FetchRequest {
 
   private final Method method;
   private final URI uri;
+  private final Map<String, String> headers = new LinkedHashMap<String, String>();
 
   public static FetchRequest createGetRequest(URI uri) {
     return new FetchRequest(Method.GET, uri);
@@ -63,6 +67,22 @@ public class FetchRequest {
     return uri;
   }
 
+  /**
+   * Adds a header to this HTTP request, e.g., If-None-Match for a
+   * conditional GET.
+   */
+  public FetchRequest setHeader(String name, String value) {
+    headers.put(name, value);
+    return this;
+  }
+
+  /**
+   * Returns the headers that were added to this HTTP request.
+   */
+  public Map<String, String> getHeaders() {
+    return Collections.unmodifiableMap(headers);
+  }
+
   // implementing hashCode and equals so we can use these in EasyMock-based
   // test cases like this:
   //
@@ -80,6 +100,7 @@ public class FetchRequest {
     int result = 1;
     result = prime * result + ((method == null) ? 0 : method.hashCode());
     result = prime * result + ((uri == null) ? 0 : uri.hashCode());
+    result = prime * result + headers.hashCode();
     return result;
   }
 
@@ -95,6 +116,7 @@ public class FetchRequest {
     if (uri == null) {
       if (other.uri != null) return false;
     } else if (!uri.equals(other.uri)) return false;
+    if (!headers.equals(other.headers)) return false;
     return true;
   }
 }
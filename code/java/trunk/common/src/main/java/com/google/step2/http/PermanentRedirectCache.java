@@ -0,0 +1,83 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.http;
+
+import com.google.step2.util.ExpiringLruCache;
+import com.google.step2.util.TimeSource;
+
+import java.net.URI;
+
+/**
+ * Remembers where permanent (301 and 308) redirects led us. Many claimed ids
+ * and host-meta URLs redirect (http to https, bare domain to www) on every
+ * request, so remembering the redirect saves a round-trip on later fetches
+ * of the same URI.
+ *
+ * Entries are dropped after a while, even though the redirects claim to be
+ * permanent, and callers should also invalidate an entry as soon as the
+ * location it points to starts failing.
+ */
+public class PermanentRedirectCache {
+
+  public static final int DEFAULT_CAPACITY = 1024;
+  public static final long DEFAULT_MAX_AGE_SECONDS = 24 * 60 * 60;
+
+  private final ExpiringLruCache<URI, URI> locations;
+  private final long maxAgeSeconds;
+
+  public PermanentRedirectCache() {
+    this(DEFAULT_CAPACITY, DEFAULT_MAX_AGE_SECONDS);
+  }
+
+  /**
+   * @param capacity how many redirects to remember
+   * @param maxAgeSeconds for how long to remember a redirect
+   */
+  public PermanentRedirectCache(int capacity, long maxAgeSeconds) {
+    this.locations = new ExpiringLruCache<URI, URI>(capacity);
+    this.maxAgeSeconds = maxAgeSeconds;
+  }
+
+  public void setTimeSource(TimeSource timeSource) {
+    locations.setTimeSource(timeSource);
+  }
+
+  /**
+   * Returns the location that a fetch of the given URI was last permanently
+   * redirected to, or null if we don't know of such a redirect.
+   */
+  public URI getLocation(URI uri) {
+    return locations.get(uri);
+  }
+
+  /**
+   * Records that fetching uri was permanently redirected to location.
+   */
+  public void put(URI uri, URI location) {
+    if (uri.equals(location)) {
+      return;
+    }
+    locations.put(uri, location, maxAgeSeconds);
+  }
+
+  /**
+   * Forgets about the redirect of the given URI.
+   */
+  public void invalidate(URI uri) {
+    locations.remove(uri);
+  }
+}
@@ -0,0 +1,230 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.http;
+
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.params.HttpParams;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * An SSLContext that is shared between all HTTPS fetches, so that a TLS
+ * session negotiated with a host can be resumed by later fetches from the
+ * same host instead of going through a full handshake each time. (The full
+ * handshake costs more CPU than verifying the signature on the XRDS we're
+ * fetching.)
+ *
+ * Session tickets, where the JSSE provider supports them, are kept in the
+ * same client session cache, so the session cache size bounds those, too.
+ *
+ * This class also keeps track of how many handshakes were performed, and how
+ * many of them resumed a cached session.
+ */
+public class SharedSslContext {
+
+  // the number of TLS sessions we keep around. We talk to a fairly small
+  // number of IdPs, so this doesn't need to be huge.
+  public static final int DEFAULT_SESSION_CACHE_SIZE = 1024;
+
+  // how long a cached TLS session may be resumed
+  public static final int DEFAULT_SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
+  private static SharedSslContext defaultInstance;
+
+  private final SSLContext sslContext;
+  private final InstrumentedSocketFactory socketFactory;
+
+  private final AtomicLong fullHandshakes = new AtomicLong();
+  private final AtomicLong resumedHandshakes = new AtomicLong();
+
+  /**
+   * Returns the instance that is shared by all {@link DefaultHttpFetcher}s
+   * that weren't given an SSL context of their own.
+   */
+  public static synchronized SharedSslContext getDefault() {
+    if (defaultInstance == null) {
+      defaultInstance = new SharedSslContext();
+    }
+    return defaultInstance;
+  }
+
+  /**
+   * Creates a shared context that uses the VM's default key and trust
+   * managers.
+   */
+  public SharedSslContext() {
+    this(createDefaultSslContext());
+  }
+
+  /**
+   * Creates a shared context around the given, already initialized,
+   * SSLContext.
+   */
+  public SharedSslContext(SSLContext sslContext) {
+    this.sslContext = sslContext;
+    this.socketFactory = new InstrumentedSocketFactory(sslContext);
+    setSessionCacheSize(DEFAULT_SESSION_CACHE_SIZE);
+    setSessionTimeout(DEFAULT_SESSION_TIMEOUT_SECONDS);
+  }
+
+  private static SSLContext createDefaultSslContext() {
+    try {
+      SSLContext context = SSLContext.getInstance(SSLSocketFactory.TLS);
+
+      // null key and trust managers mean we're using the VM defaults, i.e.,
+      // -Djavax.net.ssl.trustStore, or if that is not set, a keystore on a
+      // default path
+      context.init(null, null, null);
+      return context;
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    } catch (KeyManagementException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public SSLContext getSslContext() {
+    return sslContext;
+  }
+
+  /**
+   * Returns the socket factory that Apache http client should use for https
+   * connections. The factory creates its sockets from the shared SSLContext,
+   * and records whether their handshakes resumed a cached session.
+   */
+  public SSLSocketFactory getSocketFactory() {
+    return socketFactory;
+  }
+
+  /**
+   * Sets the maximum number of client-side TLS sessions that are cached for
+   * resumption. 0 means no limit.
+   */
+  public void setSessionCacheSize(int size) {
+    sslContext.getClientSessionContext().setSessionCacheSize(size);
+  }
+
+  public int getSessionCacheSize() {
+    return sslContext.getClientSessionContext().getSessionCacheSize();
+  }
+
+  /**
+   * Sets for how long (in seconds) a cached TLS session may be resumed.
+   * 0 means no limit.
+   */
+  public void setSessionTimeout(int seconds) {
+    sslContext.getClientSessionContext().setSessionTimeout(seconds);
+  }
+
+  public int getSessionTimeout() {
+    return sslContext.getClientSessionContext().getSessionTimeout();
+  }
+
+  /**
+   * Returns the number of TLS handshakes completed on sockets from this
+   * context, whether they were full handshakes or resumed a session.
+   */
+  public long getHandshakeCount() {
+    return fullHandshakes.get() + resumedHandshakes.get();
+  }
+
+  /**
+   * Returns the number of handshakes that negotiated a new session.
+   */
+  public long getFullHandshakeCount() {
+    return fullHandshakes.get();
+  }
+
+  /**
+   * Returns the number of handshakes that resumed a cached session.
+   */
+  public long getResumedHandshakeCount() {
+    return resumedHandshakes.get();
+  }
+
+  /**
+   * Returns the fraction (between 0 and 1) of handshakes that resumed a
+   * cached session.
+   */
+  public double getResumptionRate() {
+    long resumed = resumedHandshakes.get();
+    long total = resumed + fullHandshakes.get();
+    return (total == 0) ? 0.0 : ((double) resumed) / total;
+  }
+
+  /**
+   * Records the handshake that has just been completed on the given socket.
+   * @param startMillis the time at which we started to connect the socket. A
+   *   session that was created before that time must have been resumed.
+   */
+  private void recordHandshake(Socket socket, long startMillis) {
+    if (!(socket instanceof SSLSocket)) {
+      return;
+    }
+    SSLSession session = ((SSLSocket) socket).getSession();
+    if (session == null || !session.isValid()) {
+      // handshake failed
+      return;
+    }
+    if (session.getCreationTime() < startMillis) {
+      resumedHandshakes.incrementAndGet();
+    } else {
+      fullHandshakes.incrementAndGet();
+    }
+  }
+
+  /**
+   * Apache http client's SSLSocketFactory completes the handshake (in order
+   * to verify the host name) before handing out a connected socket, so we
+   * can inspect the negotiated session right there.
+   */
+  private class InstrumentedSocketFactory extends SSLSocketFactory {
+
+    public InstrumentedSocketFactory(SSLContext sslContext) {
+      super(sslContext);
+    }
+
+    @Override
+    public Socket connectSocket(Socket sock, String host, int port,
+        InetAddress localAddress, int localPort, HttpParams params)
+        throws IOException {
+      long start = System.currentTimeMillis();
+      Socket result =
+          super.connectSocket(sock, host, port, localAddress, localPort, params);
+      recordHandshake(result, start);
+      return result;
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port,
+        boolean autoClose) throws IOException {
+      long start = System.currentTimeMillis();
+      Socket result = super.createSocket(socket, host, port, autoClose);
+      recordHandshake(result, start);
+      return result;
+    }
+  }
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.util;
+
+import java.util.Arrays;
+
+/**
+ * Wraps a byte array (typically, a digest) so that it can be used as a key
+ * in maps and caches.
+ */
+public final class ByteArrayKey {
+
+  private final byte[] bytes;
+
+  public ByteArrayKey(byte[] bytes) {
+    this.bytes = bytes;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof ByteArrayKey)) {
+      return false;
+    }
+    return Arrays.equals(bytes, ((ByteArrayKey) obj).bytes);
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(bytes);
+  }
+
+  /**
+   * Returns the bytes in hex, e.g. to use the key in a shared cache.
+   */
+  @Override
+  public String toString() {
+    StringBuilder hex = new StringBuilder(2 * bytes.length);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+      hex.append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.util;
+
+/**
+ * A cache of values that each expire after a given number of seconds.
+ * Implemented by {@link ExpiringLruCache}, and by caches that put a local
+ * cache in front of a shared one (see
+ * {@link com.google.step2.cache.NearCache}), so that users of a cache can
+ * be pointed at either.
+ */
+public interface Cache<K, V> {
+
+  /**
+   * Returns the value for the key, or null if there is none (or it has
+   * expired).
+   */
+  public V get(K key);
+
+  public void put(K key, V value, long maxSeconds);
+
+  public void remove(K key);
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.util;
+
+/**
+ * A snapshot of the statistics of an {@link ExpiringLruCache}.
+ */
+public class CacheStats {
+
+  private final long hitCount;
+  private final long missCount;
+  private final long loadSuccessCount;
+  private final long loadFailureCount;
+  private final long totalLoadTime;
+  private final long evictionCount;
+  private final long expirationCount;
+
+  public CacheStats(long hitCount, long missCount, long loadSuccessCount,
+      long loadFailureCount, long totalLoadTime, long evictionCount,
+      long expirationCount) {
+    this.hitCount = hitCount;
+    this.missCount = missCount;
+    this.loadSuccessCount = loadSuccessCount;
+    this.loadFailureCount = loadFailureCount;
+    this.totalLoadTime = totalLoadTime;
+    this.evictionCount = evictionCount;
+    this.expirationCount = expirationCount;
+  }
+
+  /**
+   * Returns the number of lookups that found a (live) value, including
+   * lookups that waited for another thread to load it.
+   */
+  public long getHitCount() {
+    return hitCount;
+  }
+
+  /**
+   * Returns the number of lookups that found no value, or an expired one.
+   */
+  public long getMissCount() {
+    return missCount;
+  }
+
+  public long getRequestCount() {
+    return hitCount + missCount;
+  }
+
+  /**
+   * Returns the fraction of lookups that were hits, or 1.0 if there were
+   * no lookups.
+   */
+  public double getHitRate() {
+    long requests = getRequestCount();
+    return (requests == 0) ? 1.0 : ((double) hitCount) / requests;
+  }
+
+  public long getLoadSuccessCount() {
+    return loadSuccessCount;
+  }
+
+  public long getLoadFailureCount() {
+    return loadFailureCount;
+  }
+
+  /**
+   * Returns the time spent loading values, in nanoseconds.
+   */
+  public long getTotalLoadTime() {
+    return totalLoadTime;
+  }
+
+  /**
+   * Returns the average time a load took, in nanoseconds.
+   */
+  public double getAverageLoadPenalty() {
+    long loads = loadSuccessCount + loadFailureCount;
+    return (loads == 0) ? 0.0 : ((double) totalLoadTime) / loads;
+  }
+
+  /**
+   * Returns the number of entries that were dropped to make room.
+   */
+  public long getEvictionCount() {
+    return evictionCount;
+  }
+
+  /**
+   * Returns the number of entries that were removed because they reached
+   * their maximum age.
+   */
+  public long getExpirationCount() {
+    return expirationCount;
+  }
+
+  @Override
+  public String toString() {
+    return "CacheStats[hits=" + hitCount + ", misses=" + missCount
+        + ", loadSuccesses=" + loadSuccessCount
+        + ", loadFailures=" + loadFailureCount
+        + ", totalLoadTime=" + totalLoadTime
+        + ", evictions=" + evictionCount
+        + ", expirations=" + expirationCount + "]";
+  }
+}
@@ -18,6 +18,7 @@ package com.google.step2.util;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.ArrayUtils;
@@ -29,6 +30,19 @@ public class EncodingUtil {
 
   public static Charset UTF8 = Charset.forName("UTF-8");
 
+  private static final String BASE64_ALPHABET =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+  // the value of each ASCII character in base64, or -1
+  private static final byte[] BASE64_VALUES = new byte[128];
+
+  static {
+    Arrays.fill(BASE64_VALUES, (byte) -1);
+    for (int i = 0; i < BASE64_ALPHABET.length(); i++) {
+      BASE64_VALUES[BASE64_ALPHABET.charAt(i)] = (byte) i;
+    }
+  }
+
   public static String getUtf8String(byte[] data) {
     return UTF8.decode(ByteBuffer.wrap(data)).toString();
   }
@@ -45,11 +59,56 @@ public class EncodingUtil {
     return EncodingUtil.getUtf8String(Base64.encodeBase64(bytes, false));
   }
 
+  /**
+   * Decodes base64 straight from the characters of the string (without
+   * first converting it to bytes). Like commons-codec, this ignores
+   * whitespace (e.g., the line breaks in base64-encoded certificates) and any
+   * other characters that aren't part of the base64 alphabet, and stops at
+   * the first padding character.
+   */
   public static byte[] decodeBase64(String b64) {
-    return Base64.decodeBase64(getUtf8Bytes(b64));
+    int length = b64.length();
+
+    // first, count the digits, so we know how large the result will be
+    int digits = 0;
+    for (int i = 0; i < length; i++) {
+      int value = getBase64Value(b64.charAt(i));
+      if (value == -2) {
+        break;
+      } else if (value >= 0) {
+        digits++;
+      }
+    }
+
+    byte[] result = new byte[digits * 3 / 4];
+    int bits = 0;
+    int bitCount = 0;
+    int pos = 0;
+    for (int i = 0; i < length && pos < result.length; i++) {
+      int value = getBase64Value(b64.charAt(i));
+      if (value < 0) {
+        continue;
+      }
+      bits = (bits << 6) | value;
+      bitCount += 6;
+      if (bitCount >= 8) {
+        bitCount -= 8;
+        result[pos++] = (byte) (bits >> bitCount);
+      }
+    }
+    return result;
   }
 
   public static byte[] decodeBase64(byte[] b64) {
     return Base64.decodeBase64(b64);
   }
+
+  // returns the value of a base64 digit, -2 for padding, or -1 for anything
+  // else
+  private static int getBase64Value(char c) {
+    if (c == '=') {
+      return -2;
+    }
+    return (c < BASE64_VALUES.length) ? BASE64_VALUES[c] : -1;
+  }
 }
@@ -0,0 +1,41 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.util;
+
+/**
+ * How an {@link ExpiringLruCache} decides which entry to evict once it is
+ * full.
+ */
+public enum EvictionPolicy {
+
+  /** Evict the least recently used entry. */
+  LRU,
+
+  /**
+   * W-TinyLFU: new entries go into a small LRU window (1% of the capacity).
+   * An entry leaving the window only stays in the cache if it has been asked
+   * for more often recently than the entry it would push out of the main
+   * part of the cache, as estimated by a {@link FrequencySketch}. The main
+   * part is a segmented LRU: entries that were hit again while there are
+   * protected from eviction, up to 80% of the main part.
+   *
+   * This keeps entries that are used over and over from being pushed out by
+   * keys that are only looked up once (crawlers, scans, one-off sites),
+   * which plain LRU does poorly with.
+   */
+  TINY_LFU
+}
@@ -16,70 +16,791 @@
  */
 package com.google.step2.util;
 
-
-import java.util.LinkedHashMap;
-import java.util.Map.Entry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Cache supporting both LRU and time-based expiry.
  *
  * LRU: once maximum size is reached, the least recently accessed element is discarded.
+ * Alternatively, the cache can use {@link EvictionPolicy#TINY_LFU}, which
+ * also takes into account how often keys have been asked for, and holds on
+ * to popular entries when many keys are looked up only once.
+ *
+ * Size: by default, the capacity is a number of entries. A cache can instead
+ * be given a maximum weight, and a {@link Weigher} that says how much each
+ * entry weighs (e.g. an estimate of its size in bytes, see
+ * {@link Weighers}), so that it can be sized by a memory budget.
+ *
+ * Time-based: entries are discarded once they reach a maximum age. Expired
+ * entries are removed when they are looked up, and each part of the cache
+ * is swept for expired entries about once a minute, as a side effect of
+ * using it (or whenever {@link #cleanUp()} is called).
  *
- * Time-based: entries are discarded once they reach a maximum age.
+ * The cache is split into segments (by hash of the key), each with its own
+ * share of the capacity, its own lock, and its own LRU order, so that threads
+ * working on different keys rarely contend. Lookups don't block at all: an
+ * entry is moved to the front of its segment's LRU list only if the lock can
+ * be taken right away. Under contention, the LRU order is therefore only
+ * approximate. Small caches have a single segment, and are exact LRU caches
+ * when used from a single thread.
+ *
+ * Values can be loaded into the cache with {@link #get(Object, Loader)}: if
+ * several threads ask for the same missing key, only one of them loads it.
+ * A {@link RemovalListener} can be told about removed entries, and
+ * {@link #getStats()} returns hit, load and eviction counts.
  */
-public class ExpiringLruCache<K, V> {
+public class ExpiringLruCache<K, V> implements Cache<K, V> {
+
+  private static final Logger log = Logger.getLogger(ExpiringLruCache.class.getName());
+
+  private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+  // segments smaller than this would evict too eagerly when keys aren't
+  // evenly spread
+  private static final int MIN_SEGMENT_CAPACITY = 32;
+
+  // the frequency sketch of a weighted segment is sized for this many
+  // entries at most, since we can't tell how many entries the weight allows
+  private static final int MAX_SKETCH_SIZE = 4096;
+
+  private static final long SWEEP_INTERVAL_MILLIS = 60 * 1000L;
+
+  /**
+   * Loads values for {@link ExpiringLruCache#get(Object, Loader)}.
+   */
+  public interface Loader<K, V> {
 
-  private final LruLinkedHashMap<K, V> map;
+    public V load(K key) throws Exception;
 
-  private TimeSource timeSource = new TimeSource();
+    /**
+     * Returns for how long the loaded value may be used. If this is not
+     * positive, the value is returned, but not cached.
+     */
+    public long getMaxSeconds(K key, V value);
+  }
+
+  private final Segment[] segments;
+  private final int segmentMask;
+  private final long maxWeight;
+  private final Weigher<? super K, ? super V> weigher;
+
+  private volatile TimeSource timeSource = new TimeSource();
+  private volatile RemovalListener<? super K, ? super V> removalListener;
 
   public ExpiringLruCache(int capacity) {
-    map = new LruLinkedHashMap<K, V>(capacity);
+    this(capacity, DEFAULT_CONCURRENCY_LEVEL);
+  }
+
+  /**
+   * @param concurrencyLevel the number of threads expected to use the cache
+   *   at the same time. The cache has at most this many segments.
+   */
+  public ExpiringLruCache(int capacity, int concurrencyLevel) {
+    this(capacity, concurrencyLevel, EvictionPolicy.LRU);
+  }
+
+  /**
+   * @param concurrencyLevel the number of threads expected to use the cache
+   *   at the same time. The cache has at most this many segments.
+   * @param policy how each segment picks the entry to evict once it's full
+   */
+  public ExpiringLruCache(int capacity, int concurrencyLevel,
+      EvictionPolicy policy) {
+    this(capacity, Weighers.<K, V>singleton(), concurrencyLevel, policy);
+  }
+
+  /**
+   * Creates an LRU cache that holds entries up to a total weight, rather
+   * than up to a number of entries.
+   */
+  public ExpiringLruCache(long maxWeight,
+      Weigher<? super K, ? super V> weigher) {
+    this(maxWeight, weigher, DEFAULT_CONCURRENCY_LEVEL, EvictionPolicy.LRU);
+  }
+
+  /**
+   * Creates a cache that holds entries up to a total weight, rather than up
+   * to a number of entries. Each segment gets its share of the weight, so an
+   * entry heavier than maxWeight divided by the number of segments (at most
+   * concurrencyLevel) is never kept.
+   *
+   * @param weigher tells the weight of each entry, when it's put into the
+   *   cache (or loaded)
+   */
+  @SuppressWarnings("unchecked")
+  public ExpiringLruCache(long maxWeight, Weigher<? super K, ? super V> weigher,
+      int concurrencyLevel, EvictionPolicy policy) {
+    if (maxWeight <= 0) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+    this.maxWeight = maxWeight;
+    this.weigher = weigher;
+    int maxSegments = (int) Math.max(1,
+        Math.min(concurrencyLevel, maxWeight / MIN_SEGMENT_CAPACITY));
+    int segmentCount = Integer.highestOneBit(maxSegments);
+    int sketchSize = (weigher == Weighers.singleton())
+        ? Integer.MAX_VALUE : MAX_SKETCH_SIZE;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Segment[] segments = (Segment[]) new ExpiringLruCache.Segment[segmentCount];
+    this.segments = segments;
+    segmentMask = segmentCount - 1;
+    for (int i = 0; i < segmentCount; i++) {
+      // spread the capacity, giving the first segments one extra if needed
+      long segmentCapacity = maxWeight / segmentCount
+          + ((i < maxWeight % segmentCount) ? 1 : 0);
+      segments[i] = new Segment(segmentCapacity,
+          (int) Math.min(segmentCapacity, sketchSize), policy);
+    }
   }
 
   public void setTimeSource(TimeSource timeSource) {
     this.timeSource = timeSource;
   }
 
+  public void setRemovalListener(
+      RemovalListener<? super K, ? super V> removalListener) {
+    this.removalListener = removalListener;
+  }
+
   public void put(K key, V value, long maxSeconds) {
-    synchronized(map) {
-      long maxAge = timeSource.currentTimeMillis() + maxSeconds * 1000L;
-      map.put(key, new EntryWithAge<V>(value, maxAge));
-    }
+    int weight = weigh(key, value);
+    long now = timeSource.currentTimeMillis();
+    segmentFor(key).put(
+        new Node<K, V>(key, value, now + maxSeconds * 1000L, weight), now);
   }
 
   public V get(K key) {
-    synchronized(map) {
-      EntryWithAge<V> entry = map.get(key);
-      if (entry != null && timeSource.currentTimeMillis() < entry.expireMillis) {
-        return entry.value;
+    return segmentFor(key).get(key, timeSource.currentTimeMillis());
+  }
+
+  /**
+   * Returns the value for the given key, loading it if it isn't in the cache
+   * (or has expired). If another thread is already loading the value, waits
+   * for that thread instead.
+   *
+   * @throws ExecutionException if the loader threw. Failures aren't cached:
+   *   the next lookup tries to load the value again.
+   */
+  public V get(K key, Loader<? super K, V> loader) throws ExecutionException {
+    return segmentFor(key).get(key, loader);
+  }
+
+  public void remove(K key) {
+    segmentFor(key).remove(key);
+  }
+
+  /**
+   * Removes all entries.
+   */
+  public void clear() {
+    for (Segment segment : segments) {
+      segment.clear();
+    }
+  }
+
+  /**
+   * Removes all expired entries now, rather than waiting for the cache to
+   * come across them.
+   */
+  public void cleanUp() {
+    long now = timeSource.currentTimeMillis();
+    for (Segment segment : segments) {
+      segment.sweep(now, true);
+    }
+  }
+
+  /**
+   * Returns the number of entries in the cache (including values that are
+   * being loaded, and expired entries that haven't been removed yet).
+   */
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  /**
+   * Returns the total weight of the entries in the cache (which is the
+   * number of entries, unless the cache was created with a {@link Weigher}).
+   */
+  public long getWeight() {
+    long weight = 0;
+    for (Segment segment : segments) {
+      weight += segment.weight();
+    }
+    return weight;
+  }
+
+  public long getMaxWeight() {
+    return maxWeight;
+  }
+
+  public CacheStats getStats() {
+    long[] totals = new long[7];
+    for (Segment segment : segments) {
+      totals[0] += segment.hits.get();
+      totals[1] += segment.misses.get();
+      totals[2] += segment.loadSuccesses.get();
+      totals[3] += segment.loadFailures.get();
+      totals[4] += segment.loadNanos.get();
+      totals[5] += segment.evictions.get();
+      totals[6] += segment.expirations.get();
+    }
+    return new CacheStats(totals[0], totals[1], totals[2], totals[3],
+        totals[4], totals[5], totals[6]);
+  }
+
+  private int weigh(K key, V value) {
+    int weight = weigher.weigh(key, value);
+    if (weight < 0) {
+      throw new IllegalArgumentException("negative weight: " + weight);
+    }
+    return weight;
+  }
+
+  private Segment segmentFor(K key) {
+    return segments[spread(key.hashCode()) & segmentMask];
+  }
+
+  // the variant of Wang/Jenkins hash that ConcurrentHashMap uses, so that
+  // keys with poor hash codes still spread over the segments
+  private static int spread(int h) {
+    h += (h << 15) ^ 0xffffcd7d;
+    h ^= (h >>> 10);
+    h += (h << 3);
+    h ^= (h >>> 6);
+    h += (h << 2) + (h << 14);
+    return h ^ (h >>> 16);
+  }
+
+  private void notifyListener(List<Removal<K, V>> removals) {
+    RemovalListener<? super K, ? super V> listener = removalListener;
+    if (listener == null || removals == null) {
+      return;
+    }
+    for (Removal<K, V> removal : removals) {
+      try {
+        listener.onRemoval(removal.node.key, removal.node.value, removal.cause);
+      } catch (RuntimeException e) {
+        log.log(Level.WARNING, "removal listener threw", e);
       }
-      return null;
     }
   }
 
-  private static class EntryWithAge<V> {
+  /**
+   * A cache entry, which is also a node in one of its segment's lists. While
+   * a value is being loaded, its key maps to a node that only holds the load.
+   */
+  private static class Node<K, V> {
+    private final K key;
     private final V value;
     private final long expireMillis;
+    private final int weight;
+    private final FutureTask<V> loading;
+
+    // guarded by the segment lock; null while the node isn't in a list
+    private NodeList<K, V> list;
+    private Node<K, V> prev;
+    private Node<K, V> next;
 
-    public EntryWithAge(V value, long expireMillis) {
+    public Node(K key, V value, long expireMillis, int weight) {
+      this(key, value, expireMillis, weight, null);
+    }
+
+    public Node(K key, V value, long expireMillis, int weight,
+        FutureTask<V> loading) {
+      this.key = key;
       this.value = value;
       this.expireMillis = expireMillis;
+      this.weight = weight;
+      this.loading = loading;
+    }
+
+    public boolean isLive(long now) {
+      return loading == null && now < expireMillis;
+    }
+
+    public boolean isExpired(long now) {
+      return loading == null && now >= expireMillis;
+    }
+  }
+
+  /**
+   * A doubly linked list of nodes, most recently used first, after a
+   * sentinel.
+   */
+  private static class NodeList<K, V> {
+    private final Node<K, V> sentinel = new Node<K, V>(null, null, 0L, 0);
+    private long weight;
+
+    public NodeList() {
+      sentinel.prev = sentinel;
+      sentinel.next = sentinel;
+    }
+
+    public Node<K, V> first() {
+      return sentinel.next == sentinel ? null : sentinel.next;
+    }
+
+    public Node<K, V> last() {
+      return sentinel.prev == sentinel ? null : sentinel.prev;
+    }
+
+    public void addFirst(Node<K, V> node) {
+      node.list = this;
+      node.prev = sentinel;
+      node.next = sentinel.next;
+      sentinel.next.prev = node;
+      sentinel.next = node;
+      weight += node.weight;
+    }
+
+    public void remove(Node<K, V> node) {
+      node.prev.next = node.next;
+      node.next.prev = node.prev;
+      node.list = null;
+      node.prev = null;
+      node.next = null;
+      weight -= node.weight;
+    }
+  }
+
+  private static class Removal<K, V> {
+    private final Node<K, V> node;
+    private final RemovalCause cause;
+
+    public Removal(Node<K, V> node, RemovalCause cause) {
+      this.node = node;
+      this.cause = cause;
     }
   }
 
-  private static class LruLinkedHashMap<K, V> extends LinkedHashMap<K, EntryWithAge<V>> {
+  /**
+   * A part of the cache. Lookups go to a ConcurrentHashMap, while the lists
+   * and the map's contents are only changed while holding the lock. Removals
+   * are collected while holding the lock, and passed on to the listener
+   * after releasing it.
+   *
+   * Capacities are weights (numbers of entries, for a cache without a
+   * Weigher). New entries go into the window list. Once it holds more than
+   * windowCapacity, its least recently used entry moves on to the
+   * probation list; if the segment is then over capacity, either that entry
+   * or the least recently used one on probation is evicted. Entries hit on
+   * probation move to the protected list (and ones pushed out of there go
+   * back on probation). With plain LRU, the whole capacity is window, so
+   * the entry leaving the window is always the one evicted.
+   */
+  private class Segment {
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final long capacity;
+    private final long windowCapacity;
+    private final long protectedCapacity;
+    private final FrequencySketch sketch;
+    private final ConcurrentHashMap<K, Node<K, V>> map;
+    private final NodeList<K, V> window = new NodeList<K, V>();
+    private final NodeList<K, V> probation = new NodeList<K, V>();
+    private final NodeList<K, V> protectedList = new NodeList<K, V>();
+    private int count;
+    private long weight;
+    private long nextSweepMillis;
+    private List<Removal<K, V>> removals;
 
-    private final int capacity;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loadSuccesses = new AtomicLong();
+    private final AtomicLong loadFailures = new AtomicLong();
+    private final AtomicLong loadNanos = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
 
-    public LruLinkedHashMap(int capacity) {
-      super(capacity, 0.75f, true);
+    /**
+     * @param expectedSize the number of entries the segment is expected to
+     *   hold when full
+     */
+    public Segment(long capacity, int expectedSize, EvictionPolicy policy) {
       this.capacity = capacity;
+      this.map = new ConcurrentHashMap<K, Node<K, V>>(expectedSize);
+      if (policy == EvictionPolicy.TINY_LFU) {
+        windowCapacity = Math.max(1, capacity / 100);
+        protectedCapacity = (capacity - windowCapacity) * 4 / 5;
+        sketch = new FrequencySketch(expectedSize);
+      } else {
+        windowCapacity = capacity;
+        protectedCapacity = 0;
+        sketch = null;
+      }
+    }
+
+    public V get(K key, long now) {
+      Node<K, V> node = map.get(key);
+      if (node == null || node.loading != null) {
+        misses.incrementAndGet();
+        if (sketch != null && lock.tryLock()) {
+          try {
+            recordAccess(key);
+          } finally {
+            lock.unlock();
+          }
+        }
+        return null;
+      }
+      boolean live = node.isLive(now);
+      (live ? hits : misses).incrementAndGet();
+      touch(node, live, now);
+      return live ? node.value : null;
+    }
+
+    public V get(final K key, final Loader<? super K, V> loader)
+        throws ExecutionException {
+      long now = timeSource.currentTimeMillis();
+      Node<K, V> node = map.get(key);
+      if (node != null && node.isLive(now)) {
+        hits.incrementAndGet();
+        touch(node, true, now);
+        return node.value;
+      }
+
+      Node<K, V> placeholder = null;
+      lock.lock();
+      try {
+        now = timeSource.currentTimeMillis();
+        node = map.get(key);
+        if (node != null && node.loading != null) {
+          // somebody else is loading it
+          hits.incrementAndGet();
+          recordAccess(key);
+        } else if (node != null && node.isLive(now)) {
+          hits.incrementAndGet();
+          onHit(node);
+          return node.value;
+        } else {
+          misses.incrementAndGet();
+          recordAccess(key);
+          placeholder = new Node<K, V>(key, null, Long.MAX_VALUE, 0,
+              new FutureTask<V>(new Callable<V>() {
+                public V call() throws Exception {
+                  return loader.load(key);
+                }
+              }));
+          insert(placeholder, now);
+        }
+      } finally {
+        unlockAndNotify();
+      }
+
+      if (placeholder == null) {
+        return waitFor(node.loading);
+      }
+      return load(placeholder, loader);
+    }
+
+    /**
+     * Moves a live node to the front of its list, or removes an expired
+     * one. If somebody else holds the lock, we don't wait for it: the access
+     * simply doesn't count towards the LRU order (or the key's frequency),
+     * and an expired entry stays until later.
+     */
+    private void touch(Node<K, V> node, boolean live, long now) {
+      if (!lock.tryLock()) {
+        return;
+      }
+      try {
+        if (node.list != null) {
+          if (live) {
+            onHit(node);
+          } else {
+            recordAccess(node.key);
+            removeNode(node, RemovalCause.EXPIRED);
+          }
+        }
+        sweep(now, false);
+      } finally {
+        unlockAndNotify();
+      }
+    }
+
+    private V load(Node<K, V> placeholder, Loader<? super K, V> loader)
+        throws ExecutionException {
+      long start = System.nanoTime();
+      placeholder.loading.run();
+      loadNanos.addAndGet(System.nanoTime() - start);
+
+      V value;
+      try {
+        value = waitFor(placeholder.loading);
+      } catch (ExecutionException e) {
+        loadFailures.incrementAndGet();
+        removePlaceholder(placeholder);
+        throw e;
+      }
+      loadSuccesses.incrementAndGet();
+
+      // if the loader or the weigher throws, the placeholder must not stay
+      // behind, or the key could never be loaded again
+      boolean replaced = false;
+      try {
+        long maxSeconds = loader.getMaxSeconds(placeholder.key, value);
+        int weight = maxSeconds > 0 ? weigh(placeholder.key, value) : 0;
+        lock.lock();
+        try {
+          // unless the placeholder was evicted, or replaced by a put
+          if (map.get(placeholder.key) == placeholder) {
+            removeNode(placeholder, null);
+            if (maxSeconds > 0) {
+              long now = timeSource.currentTimeMillis();
+              insert(new Node<K, V>(placeholder.key, value,
+                  now + maxSeconds * 1000L, weight), now);
+            }
+          }
+          replaced = true;
+        } finally {
+          unlockAndNotify();
+        }
+      } finally {
+        if (!replaced) {
+          removePlaceholder(placeholder);
+        }
+      }
+      return value;
+    }
+
+    private void removePlaceholder(Node<K, V> placeholder) {
+      lock.lock();
+      try {
+        if (map.get(placeholder.key) == placeholder) {
+          removeNode(placeholder, null);
+        }
+      } finally {
+        unlockAndNotify();
+      }
+    }
+
+    private V waitFor(FutureTask<V> loading) throws ExecutionException {
+      try {
+        return loading.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ExecutionException(e);
+      }
+    }
+
+    public void put(Node<K, V> node, long now) {
+      lock.lock();
+      try {
+        recordAccess(node.key);
+        insert(node, now);
+      } finally {
+        unlockAndNotify();
+      }
+    }
+
+    public void remove(K key) {
+      lock.lock();
+      try {
+        Node<K, V> node = map.get(key);
+        if (node != null) {
+          removeNode(node, RemovalCause.EXPLICIT);
+        }
+      } finally {
+        unlockAndNotify();
+      }
+    }
+
+    public void clear() {
+      lock.lock();
+      try {
+        for (NodeList<K, V> list : lists()) {
+          while (list.first() != null) {
+            removeNode(list.first(), RemovalCause.EXPLICIT);
+          }
+        }
+      } finally {
+        unlockAndNotify();
+      }
+    }
+
+    public int size() {
+      lock.lock();
+      try {
+        return count;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    public long weight() {
+      lock.lock();
+      try {
+        return weight;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Removes expired entries, if it's time to (or if forced to).
+     */
+    public void sweep(long now, boolean force) {
+      if (force) {
+        lock.lock();
+      } else if (now < nextSweepMillis || !lock.isHeldByCurrentThread()) {
+        return;
+      }
+      try {
+        nextSweepMillis = now + SWEEP_INTERVAL_MILLIS;
+        for (NodeList<K, V> list : lists()) {
+          Node<K, V> node = list.first();
+          while (node != null) {
+            Node<K, V> next = node.next == list.sentinel ? null : node.next;
+            if (node.isExpired(now)) {
+              removeNode(node, RemovalCause.EXPIRED);
+            }
+            node = next;
+          }
+        }
+      } finally {
+        if (force) {
+          unlockAndNotify();
+        }
+      }
+    }
+
+    // must hold the lock
+    private void insert(Node<K, V> node, long now) {
+      Node<K, V> old = map.put(node.key, node);
+      if (old != null) {
+        unlinkAndCount(old, old.isExpired(now)
+            ? RemovalCause.EXPIRED : RemovalCause.REPLACED);
+      }
+      window.addFirst(node);
+      count++;
+      weight += node.weight;
+      if (node.weight > capacity) {
+        // it would push out everything else, and still not fit
+        removeNode(node, RemovalCause.SIZE);
+      } else {
+        evict(now);
+      }
+      sweep(now, false);
+    }
+
+    // must hold the lock
+    private void evict(long now) {
+      Node<K, V> candidate = null;
+      while (window.weight > windowCapacity) {
+        candidate = window.last();
+        window.remove(candidate);
+        probation.addFirst(candidate);
+      }
+      while (weight > capacity) {
+        Node<K, V> victim = probation.last();
+        if (victim == null) {
+          victim = protectedList.last() != null
+              ? protectedList.last() : window.last();
+        }
+        if (candidate != null && candidate != victim && !admit(candidate, victim, now)) {
+          victim = candidate;
+        }
+        if (victim == candidate) {
+          candidate = null;
+        }
+        removeNode(victim, victim.isExpired(now)
+            ? RemovalCause.EXPIRED : RemovalCause.SIZE);
+      }
+    }
+
+    /**
+     * Returns whether the candidate leaving the window should stay in the
+     * cache at the expense of the victim.
+     */
+    private boolean admit(Node<K, V> candidate, Node<K, V> victim, long now) {
+      if (sketch == null) {
+        // LRU: everything that left the window goes, oldest first
+        return true;
+      } else if (victim.isExpired(now)) {
+        return true;
+      } else if (candidate.isExpired(now)) {
+        return false;
+      }
+      return sketch.frequency(spread(candidate.key.hashCode()))
+          > sketch.frequency(spread(victim.key.hashCode()));
+    }
+
+    // must hold the lock
+    private void onHit(Node<K, V> node) {
+      recordAccess(node.key);
+      NodeList<K, V> list = node.list;
+      list.remove(node);
+      if (list != probation) {
+        list.addFirst(node);
+        return;
+      }
+      protectedList.addFirst(node);
+      while (protectedList.weight > protectedCapacity) {
+        Node<K, V> demoted = protectedList.last();
+        protectedList.remove(demoted);
+        probation.addFirst(demoted);
+      }
+    }
+
+    // must hold the lock
+    private void recordAccess(K key) {
+      if (sketch != null) {
+        sketch.increment(spread(key.hashCode()));
+      }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private NodeList<K, V>[] lists() {
+      return new NodeList[] { window, probation, protectedList };
+    }
+
+    // must hold the lock. A null cause means no notification.
+    private void removeNode(Node<K, V> node, RemovalCause cause) {
+      map.remove(node.key, node);
+      unlinkAndCount(node, cause);
+    }
+
+    private void unlinkAndCount(Node<K, V> node, RemovalCause cause) {
+      node.list.remove(node);
+      count--;
+      weight -= node.weight;
+      if (node.loading != null || cause == null) {
+        // nobody has seen the value of a placeholder
+        return;
+      }
+      if (cause == RemovalCause.SIZE) {
+        evictions.incrementAndGet();
+      } else if (cause == RemovalCause.EXPIRED) {
+        expirations.incrementAndGet();
+      }
+      if (removalListener != null) {
+        if (removals == null) {
+          removals = new ArrayList<Removal<K, V>>();
+        }
+        removals.add(new Removal<K, V>(node, cause));
+      }
     }
 
-    @Override
-    protected boolean removeEldestEntry(Entry<K, EntryWithAge<V>> eldest) {
-      return this.size() > capacity;
+    private void unlockAndNotify() {
+      List<Removal<K, V>> pending = removals;
+      removals = null;
+      lock.unlock();
+      notifyListener(pending);
     }
   }
 }
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.util;
+
+/**
+ * Estimates how often keys have been seen recently: a count-min sketch of
+ * 4-bit counters (16 per long), with each key counted in four of them. To
+ * favour recent history, all counters are halved once the sketch has seen
+ * ten times as many keys as the cache it belongs to can hold.
+ *
+ * Not thread-safe; {@link ExpiringLruCache} only uses it under a segment
+ * lock.
+ */
+class FrequencySketch {
+
+  private static final long[] SEEDS = {
+      0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+      0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+  private static final long RESET_MASK = 0x7777777777777777L;
+
+  private static final int MAX_COUNT = 15;
+
+  private final long[] table;
+  private final int counterMask;
+  private final int sampleSize;
+  private int additions;
+
+  /**
+   * @param maximumSize the number of entries of the cache this sketch is
+   *   used for
+   */
+  public FrequencySketch(int maximumSize) {
+    // one long (16 counters) per entry, rounded up to a power of two
+    table = new long[Integer.highestOneBit(Math.max(2, maximumSize) - 1) << 1];
+    counterMask = table.length * 16 - 1;
+    sampleSize = 10 * Math.max(1, maximumSize);
+  }
+
+  /**
+   * Returns the estimated number of times the key (given by its hash) has
+   * been seen, at most 15.
+   */
+  public int frequency(int hash) {
+    int frequency = MAX_COUNT;
+    for (int i = 0; i < SEEDS.length; i++) {
+      int counter = counterFor(hash, i);
+      frequency = Math.min(frequency, (int) ((table[counter >>> 4]
+          >>> ((counter & 15) << 2)) & 0xfL));
+    }
+    return frequency;
+  }
+
+  /**
+   * Counts another sighting of the key (given by its hash).
+   */
+  public void increment(int hash) {
+    boolean added = false;
+    for (int i = 0; i < SEEDS.length; i++) {
+      int counter = counterFor(hash, i);
+      int index = counter >>> 4;
+      int offset = (counter & 15) << 2;
+      if (((table[index] >>> offset) & 0xfL) < MAX_COUNT) {
+        table[index] += 1L << offset;
+        added = true;
+      }
+    }
+    if (added && ++additions == sampleSize) {
+      reset();
+    }
+  }
+
+  /* visible for testing */
+  void reset() {
+    for (int i = 0; i < table.length; i++) {
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+    additions /= 2;
+  }
+
+  private int counterFor(int hash, int i) {
+    long h = (hash + SEEDS[i]) * SEEDS[i];
+    h += h >>> 32;
+    return ((int) h) & counterMask;
+  }
+}
@@ -0,0 +1,291 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.util;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A loading cache that refreshes values before they expire, rather than
+ * letting a lookup run into an expired entry and wait for the value to be
+ * loaded again.
+ *
+ * Each value is loaded with an {@link ExpiringLruCache.Loader}, which says
+ * for how long the value may be used (expire-after-write). Once a value is
+ * older than the refresh interval given to the cache (refresh-after-write),
+ * the next lookup still returns it, but also starts reloading it. Only one
+ * refresh runs per entry at a time. Refreshes run on the executor set with
+ * {@link #setExecutor(Executor)}; without one, the lookup that notices the
+ * value is due does the refresh itself (and returns the new value).
+ *
+ * If a refresh fails, the old value is kept, and may be used for a grace
+ * period past its expiry, while later lookups try to refresh it again. Once
+ * the grace period is over, the value is gone, and the next lookup loads it
+ * like any other missing value. Values whose maximum age is shorter than the
+ * refresh interval are never refreshed; they just expire.
+ *
+ * Lookups of missing (or expired) values load them in the calling thread,
+ * and are deduplicated, as with {@link ExpiringLruCache#get(Object,
+ * ExpiringLruCache.Loader)}.
+ */
+public class RefreshingCache<K, V> {
+
+  private static final Logger log = Logger.getLogger(RefreshingCache.class.getName());
+
+  private final ExpiringLruCache<K, Entry<V>> cache;
+  private final long refreshAfterWriteMillis;
+  private final long failureGraceMillis;
+
+  // bumped whenever entries are removed, so that refreshes that were
+  // already running don't put back what was removed
+  private final AtomicLong generation = new AtomicLong();
+  private final AtomicLong refreshCount = new AtomicLong();
+  private final AtomicLong refreshFailureCount = new AtomicLong();
+
+  private volatile TimeSource timeSource = new TimeSource();
+  private volatile Executor executor;
+
+  /**
+   * @param refreshAfterWriteSeconds how old a value gets before lookups
+   *   start refreshing it
+   * @param failureGraceSeconds for how long past its expiry a value may be
+   *   used if it couldn't be refreshed
+   */
+  public RefreshingCache(int capacity, long refreshAfterWriteSeconds,
+      long failureGraceSeconds) {
+    this(new ExpiringLruCache<K, Entry<V>>(capacity), refreshAfterWriteSeconds,
+        failureGraceSeconds);
+  }
+
+  /**
+   * Creates a refreshing cache on top of the given cache, e.g., one bounded
+   * by weight or with a different eviction policy.
+   */
+  public RefreshingCache(ExpiringLruCache<K, Entry<V>> cache,
+      long refreshAfterWriteSeconds, long failureGraceSeconds) {
+    if (refreshAfterWriteSeconds <= 0 || failureGraceSeconds < 0) {
+      throw new IllegalArgumentException("refresh interval must be positive, "
+          + "grace period must not be negative");
+    }
+    Preconditions.checkNotNull(cache);
+    this.cache = cache;
+    this.refreshAfterWriteMillis = refreshAfterWriteSeconds * 1000L;
+    this.failureGraceMillis = failureGraceSeconds * 1000L;
+  }
+
+  public void setTimeSource(TimeSource timeSource) {
+    this.timeSource = timeSource;
+    cache.setTimeSource(timeSource);
+  }
+
+  /**
+   * Sets the executor that refreshes run on. Without one, values are
+   * refreshed in the thread that looks them up.
+   */
+  public void setExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Returns the value for the given key, loading it if it isn't in the
+   * cache, and starting a refresh if it's due for one.
+   *
+   * @throws ExecutionException if the value had to be loaded, and the loader
+   *   threw. Failed refreshes don't throw, they're only logged.
+   */
+  public V get(K key, ExpiringLruCache.Loader<? super K, V> loader)
+      throws ExecutionException {
+    Entry<V> entry = cache.get(key, new EntryLoader(loader));
+    if (timeSource.currentTimeMillis() < entry.refreshMillis
+        || !entry.refreshing.compareAndSet(false, true)) {
+      return entry.value;
+    }
+
+    Refresh refresh = new Refresh(key, entry, loader);
+    Executor executor = this.executor;
+    if (executor != null) {
+      try {
+        executor.execute(refresh);
+        return entry.value;
+      } catch (RejectedExecutionException e) {
+        log.log(Level.FINE, "Refreshing " + key + " in the calling thread", e);
+      }
+    }
+    return refresh.call().value;
+  }
+
+  /**
+   * Returns the value for the given key, or null if it isn't in the cache.
+   * This neither loads nor refreshes the value.
+   */
+  public V getIfPresent(K key) {
+    Entry<V> entry = cache.get(key);
+    return (entry == null) ? null : entry.value;
+  }
+
+  public void invalidate(K key) {
+    generation.incrementAndGet();
+    cache.remove(key);
+  }
+
+  /**
+   * Removes all entries. Refreshes that are still running won't put their
+   * values into the cache.
+   */
+  public void clear() {
+    generation.incrementAndGet();
+    cache.clear();
+  }
+
+  public int size() {
+    return cache.size();
+  }
+
+  /**
+   * Returns the statistics of the underlying cache. Refreshes are counted
+   * separately, see {@link #getRefreshCount()}.
+   */
+  public CacheStats getStats() {
+    return cache.getStats();
+  }
+
+  /**
+   * Returns the number of refreshes that have completed, successfully or not.
+   */
+  public long getRefreshCount() {
+    return refreshCount.get();
+  }
+
+  public long getRefreshFailureCount() {
+    return refreshFailureCount.get();
+  }
+
+  private Entry<V> newEntry(V value, long now, long maxSeconds) {
+    long expireMillis = now + maxSeconds * 1000L;
+    long refreshMillis = now + refreshAfterWriteMillis;
+    return new Entry<V>(value, (refreshMillis < expireMillis)
+        ? refreshMillis : Long.MAX_VALUE, expireMillis + failureGraceMillis);
+  }
+
+  /**
+   * A value in the cache, with the times at which to refresh it, and after
+   * which it may not be used anymore even if refreshing it failed.
+   */
+  public static class Entry<V> {
+
+    private final V value;
+    private final long refreshMillis;
+    private final long graceMillis;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    Entry(V value, long refreshMillis, long graceMillis) {
+      this.value = value;
+      this.refreshMillis = refreshMillis;
+      this.graceMillis = graceMillis;
+    }
+
+    public V getValue() {
+      return value;
+    }
+  }
+
+  /**
+   * Loads missing values for the underlying cache.
+   */
+  private class EntryLoader implements ExpiringLruCache.Loader<K, Entry<V>> {
+
+    private final ExpiringLruCache.Loader<? super K, V> loader;
+
+    public EntryLoader(ExpiringLruCache.Loader<? super K, V> loader) {
+      this.loader = loader;
+    }
+
+    public Entry<V> load(K key) throws Exception {
+      V value = loader.load(key);
+      return newEntry(value, timeSource.currentTimeMillis(),
+          loader.getMaxSeconds(key, value));
+    }
+
+    public long getMaxSeconds(K key, Entry<V> entry) {
+      // the grace period is only for values that couldn't be refreshed
+      return (entry.graceMillis - failureGraceMillis
+          - timeSource.currentTimeMillis()) / 1000L;
+    }
+  }
+
+  /**
+   * Reloads a value that is due for a refresh, and replaces its entry: with
+   * the new value, or (if loading it failed) with the old value, to be used
+   * until the end of its grace period at most.
+   */
+  private class Refresh implements Runnable {
+
+    private final K key;
+    private final Entry<V> entry;
+    private final ExpiringLruCache.Loader<? super K, V> loader;
+    private final long startGeneration = generation.get();
+
+    public Refresh(K key, Entry<V> entry,
+        ExpiringLruCache.Loader<? super K, V> loader) {
+      this.key = key;
+      this.entry = entry;
+      this.loader = loader;
+    }
+
+    public void run() {
+      call();
+    }
+
+    /**
+     * Refreshes the entry, and returns the one that replaces it.
+     */
+    public Entry<V> call() {
+      Entry<V> next;
+      long maxSeconds;
+      try {
+        V value = loader.load(key);
+        maxSeconds = loader.getMaxSeconds(key, value);
+        next = newEntry(value, timeSource.currentTimeMillis(), maxSeconds);
+      } catch (Exception e) {
+        log.log(Level.WARNING, "Refreshing " + key + " failed, keeping the "
+            + "old value for now", e);
+        refreshFailureCount.incrementAndGet();
+        long now = timeSource.currentTimeMillis();
+        maxSeconds = (entry.graceMillis - now) / 1000L;
+        next = new Entry<V>(entry.value,
+            Math.min(now + refreshAfterWriteMillis, entry.graceMillis),
+            entry.graceMillis);
+      } finally {
+        refreshCount.incrementAndGet();
+      }
+
+      if (generation.get() == startGeneration) {
+        if (maxSeconds > 0) {
+          cache.put(key, next, maxSeconds);
+        } else {
+          cache.remove(key);
+        }
+      }
+      return next;
+    }
+  }
+}
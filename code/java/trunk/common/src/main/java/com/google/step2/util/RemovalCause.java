@@ -0,0 +1,35 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.util;
+
+/**
+ * Why an entry was removed from an {@link ExpiringLruCache}.
+ */
+public enum RemovalCause {
+
+  /** The entry was removed, or the cache cleared, by the user of the cache. */
+  EXPLICIT,
+
+  /** The entry was replaced by a new value for the same key. */
+  REPLACED,
+
+  /** The entry reached its maximum age. */
+  EXPIRED,
+
+  /** The cache was full, and its {@link EvictionPolicy} picked the entry. */
+  SIZE
+}
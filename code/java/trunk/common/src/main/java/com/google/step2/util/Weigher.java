@@ -0,0 +1,32 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.util;
+
+/**
+ * Tells an {@link ExpiringLruCache} with a maximum weight how much an entry
+ * counts towards it. {@link Weighers} has weighers that estimate the heap
+ * used by common kinds of values, in bytes. Called without any locks held,
+ * so implementations must be thread-safe.
+ */
+public interface Weigher<K, V> {
+
+  /**
+   * Returns the weight of the entry. Must not be negative, and must not
+   * change while the entry is in the cache.
+   */
+  public int weigh(K key, V value);
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.util;
+
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+/**
+ * Weighers for {@link ExpiringLruCache}s. Except for {@link #singleton()},
+ * they estimate the heap used by the value, in bytes, so that a cache's
+ * maximum weight is its memory budget. The estimates include a rough
+ * allowance for object headers and the parsed form of the data, but don't
+ * count the key.
+ */
+public final class Weighers {
+
+  // object headers, array headers, and the references to them
+  private static final int OBJECT_OVERHEAD = 32;
+
+  // a parsed X509Certificate holds on to its encoding, and to parsed
+  // names, extensions and the public key, which take up about as much again
+  private static final int PARSED_CERTIFICATE_FACTOR = 2;
+
+  // if a certificate can't tell us its encoding, we assume it's about as
+  // large as a typical one
+  private static final int DEFAULT_CERTIFICATE_SIZE = 1024;
+
+  private static final Weigher<Object, Object> SINGLETON =
+      new Weigher<Object, Object>() {
+        public int weigh(Object key, Object value) {
+          return 1;
+        }
+      };
+
+  private static final Weigher<Object, byte[]> BYTE_ARRAYS =
+      new Weigher<Object, byte[]>() {
+        public int weigh(Object key, byte[] value) {
+          return OBJECT_OVERHEAD + value.length;
+        }
+      };
+
+  private static final Weigher<Object, List<X509Certificate>>
+      CERTIFICATE_CHAINS = new Weigher<Object, List<X509Certificate>>() {
+        public int weigh(Object key, List<X509Certificate> value) {
+          return weighCertificates(value);
+        }
+      };
+
+  private Weighers() {
+  }
+
+  /**
+   * Returns a weigher that gives every entry a weight of one, which makes
+   * the maximum weight of a cache the maximum number of entries.
+   */
+  @SuppressWarnings("unchecked")
+  public static <K, V> Weigher<K, V> singleton() {
+    return (Weigher<K, V>) SINGLETON;
+  }
+
+  /**
+   * Returns a weigher for documents (or other data) kept as bytes.
+   */
+  public static Weigher<Object, byte[]> byteArrays() {
+    return BYTE_ARRAYS;
+  }
+
+  /**
+   * Returns a weigher for certificate chains.
+   */
+  public static Weigher<Object, List<X509Certificate>> certificateChains() {
+    return CERTIFICATE_CHAINS;
+  }
+
+  /**
+   * Returns the estimated size of the given certificates on the heap, in
+   * bytes.
+   */
+  public static int weighCertificates(List<X509Certificate> certs) {
+    int weight = OBJECT_OVERHEAD;
+    for (X509Certificate cert : certs) {
+      int size;
+      try {
+        size = cert.getEncoded().length;
+      } catch (CertificateEncodingException e) {
+        size = DEFAULT_CERTIFICATE_SIZE;
+      }
+      weight += OBJECT_OVERHEAD + PARSED_CERTIFICATE_FACTOR * size;
+    }
+    return weight;
+  }
+
+  /**
+   * Returns the estimated size of a String on the heap, in bytes.
+   */
+  public static int weighString(String s) {
+    return s == null ? 0 : OBJECT_OVERHEAD + 2 * s.length();
+  }
+}
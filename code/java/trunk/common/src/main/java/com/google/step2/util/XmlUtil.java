@@ -21,28 +21,131 @@ import org.jdom.JDOMException;
 import org.jdom.input.DOMBuilder;
 import org.xml.sax.SAXException;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLResolver;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 /**
  * Class for parsing XML documents. It can parse a document either into an
- * org.w3c.dom.Document or a org.jdom.Document. In either case, it uses a
- * parser that is configured to not touch the file system or network while
- * parsing the XML.
+ * org.w3c.dom.Document or a org.jdom.Document, or hand out a StAX stream
+ * reader for it. In each case, it uses a parser that is configured to not
+ * touch the file system or network while parsing the XML.
+ *
+ * Looking up and configuring a parser factory is expensive, so we do that
+ * once, and keep a DocumentBuilder per thread, which is reset after every
+ * parse.
+ *
+ * The parsers also limit the number of entity expansions, the depth of
+ * elements, and the size of the documents they accept. The size limit is
+ * enforced here; the other two are passed on to the underlying parser,
+ * which might not support them (Xerces 2.8, for example, only supports a
+ * limit on entity expansions).
  */
 public class XmlUtil {
 
+  private static final Logger logger =
+      Logger.getLogger(XmlUtil.class.getName());
+
+  public static final int DEFAULT_MAX_ENTITY_EXPANSIONS = 64000;
+  public static final int DEFAULT_MAX_ELEMENT_DEPTH = 256;
+  public static final long DEFAULT_MAX_DOCUMENT_SIZE = 1024 * 1024;
+
+  // names of the limits understood by the JDK's built-in parsers
+  private static final String ENTITY_EXPANSION_LIMIT =
+      "http://www.oracle.com/xml/jaxp/properties/entityExpansionLimit";
+  private static final String ELEMENT_DEPTH_LIMIT =
+      "http://www.oracle.com/xml/jaxp/properties/maxElementDepth";
+
+  // Xerces' (pre-2.11) way of limiting entity expansion
+  private static final String XERCES_SECURITY_MANAGER =
+      "http://apache.org/xml/properties/security-manager";
+  private static final String XERCES_SECURITY_MANAGER_CLASS =
+      "org.apache.xerces.util.SecurityManager";
+
+  // resolves every external entity (and external DTD) to nothing
+  private static final XMLResolver EMPTY_RESOLVER = new XMLResolver() {
+    public Object resolveEntity(String publicId, String systemId,
+        String baseUri, String namespace) {
+      return new ByteArrayInputStream(new byte[0]);
+    }
+  };
+
+  private static volatile int maxEntityExpansions =
+      DEFAULT_MAX_ENTITY_EXPANSIONS;
+  private static volatile int maxElementDepth = DEFAULT_MAX_ELEMENT_DEPTH;
+  private static volatile long maxDocumentSize = DEFAULT_MAX_DOCUMENT_SIZE;
+
+  // The factories are expensive to create, but safe to share once they
+  // have been configured. They are replaced when the limits change.
+  private static volatile DocumentBuilderFactory documentBuilderFactory;
+  private static volatile XMLInputFactory xmlInputFactory;
+
+  // the DocumentBuilder of each thread, and the factory it came from
+  private static final ThreadLocal<PooledBuilder> documentBuilders =
+      new ThreadLocal<PooledBuilder>();
+
+  // warnings about unsupported limits that we've already logged
+  private static final Set<String> loggedWarnings =
+      Collections.synchronizedSet(new HashSet<String>());
+
+  /**
+   * Sets the maximum number of entity expansions in a document. 0 means no
+   * limit.
+   */
+  public static synchronized void setMaxEntityExpansions(int max) {
+    maxEntityExpansions = max;
+    resetFactories();
+  }
+
+  public static int getMaxEntityExpansions() {
+    return maxEntityExpansions;
+  }
+
+  /**
+   * Sets the maximum depth of elements in a document. 0 means no limit.
+   */
+  public static synchronized void setMaxElementDepth(int max) {
+    maxElementDepth = max;
+    resetFactories();
+  }
+
+  public static int getMaxElementDepth() {
+    return maxElementDepth;
+  }
+
+  /**
+   * Sets the maximum size (in bytes) of a document. 0 means no limit.
+   */
+  public static void setMaxDocumentSize(long max) {
+    maxDocumentSize = max;
+  }
+
+  public static long getMaxDocumentSize() {
+    return maxDocumentSize;
+  }
+
   public static org.w3c.dom.Document getDocument(InputStream input)
       throws SAXException, IOException, ParserConfigurationException {
 
-    DocumentBuilderFactory factory = getSecureDocumentBuilderFactory();
-    DocumentBuilder builder = factory.newDocumentBuilder();
-
-    return builder.parse(input);
+    DocumentBuilder builder = getDocumentBuilder();
+    try {
+      return builder.parse(limitSize(input));
+    } finally {
+      builder.reset();
+    }
   }
 
   public static Document getJdomDocument(InputStream input)
@@ -56,6 +159,66 @@ public class XmlUtil {
     }
   }
 
+  /**
+   * Returns a StAX reader for the given input. Callers that only need a small
+   * part of a document can stop reading as soon as they have found it, and
+   * should close the reader when they're done.
+   */
+  public static XMLStreamReader getXmlStreamReader(InputStream input)
+      throws XMLStreamException {
+    XMLInputFactory factory = xmlInputFactory;
+    if (factory == null) {
+      factory = initXmlInputFactory();
+    }
+    return factory.createXMLStreamReader(limitSize(input));
+  }
+
+  private static DocumentBuilder getDocumentBuilder()
+      throws ParserConfigurationException {
+    DocumentBuilderFactory factory = documentBuilderFactory;
+    if (factory == null) {
+      factory = initDocumentBuilderFactory();
+    }
+
+    PooledBuilder pooled = documentBuilders.get();
+    if (pooled == null || pooled.factory != factory) {
+      pooled = new PooledBuilder(factory, factory.newDocumentBuilder());
+      documentBuilders.set(pooled);
+    }
+    return pooled.builder;
+  }
+
+  private static synchronized DocumentBuilderFactory
+      initDocumentBuilderFactory() throws ParserConfigurationException {
+    if (documentBuilderFactory == null) {
+      documentBuilderFactory = getSecureDocumentBuilderFactory();
+    }
+    return documentBuilderFactory;
+  }
+
+  private static synchronized XMLInputFactory initXmlInputFactory() {
+    if (xmlInputFactory == null) {
+      xmlInputFactory = getSecureXmlInputFactory();
+    }
+    return xmlInputFactory;
+  }
+
+  private static synchronized void resetFactories() {
+    documentBuilderFactory = null;
+    xmlInputFactory = null;
+  }
+
+  /**
+   * Wraps a stream so that reading more than the maximum document size from
+   * it fails. The parsers here do this themselves; code that reads a
+   * document past the parser (e.g., to digest the rest of it) must wrap the
+   * raw stream with this before it does.
+   */
+  public static InputStream limitSize(InputStream input) {
+    long max = maxDocumentSize;
+    return (max > 0) ? new SizeLimitedInputStream(input, max) : input;
+  }
+
   /* visible for testing */
   static DocumentBuilderFactory getSecureDocumentBuilderFactory()
      throws ParserConfigurationException {
@@ -70,6 +233,103 @@ public class XmlUtil {
     factory.setFeature(
       "http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
 
+    if (!setAttribute(factory, ENTITY_EXPANSION_LIMIT,
+        String.valueOf(maxEntityExpansions)) && maxEntityExpansions > 0) {
+      Object securityManager = newXercesSecurityManager(maxEntityExpansions);
+      if (securityManager == null
+          || !setAttribute(factory, XERCES_SECURITY_MANAGER, securityManager)) {
+        warnOnce("XML parser " + factory.getClass().getName() +
+            " does not support a limit on entity expansions");
+      }
+    }
+    if (!setAttribute(factory, ELEMENT_DEPTH_LIMIT,
+        String.valueOf(maxElementDepth))) {
+      warnOnce("XML parser " + factory.getClass().getName() +
+          " does not support a limit on element depth");
+    }
+
+    return factory;
+  }
+
+  /* visible for testing */
+  static XMLInputFactory getSecureXmlInputFactory() {
+
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+
+    factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    factory.setProperty(
+        XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+
+    // in case the implementation wants to load an external DTD anyway
+    factory.setXMLResolver(EMPTY_RESOLVER);
+
+    if (!setProperty(factory, ENTITY_EXPANSION_LIMIT,
+        String.valueOf(maxEntityExpansions))) {
+      warnOnce("StAX parser " + factory.getClass().getName() +
+          " does not support a limit on entity expansions");
+    }
+    if (!setProperty(factory, ELEMENT_DEPTH_LIMIT,
+        String.valueOf(maxElementDepth))) {
+      warnOnce("StAX parser " + factory.getClass().getName() +
+          " does not support a limit on element depth");
+    }
+
     return factory;
   }
+
+  private static void warnOnce(String message) {
+    if (loggedWarnings.add(message)) {
+      logger.warning(message);
+    }
+  }
+
+  private static boolean setAttribute(DocumentBuilderFactory factory,
+      String name, Object value) {
+    try {
+      factory.setAttribute(name, value);
+      return true;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  private static boolean setProperty(XMLInputFactory factory, String name,
+      Object value) {
+    try {
+      factory.setProperty(name, value);
+      return true;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Returns an org.apache.xerces.util.SecurityManager with the given entity
+   * expansion limit, or null if Xerces isn't around. We don't want to depend
+   * on Xerces just for this, hence the reflection.
+   */
+  private static Object newXercesSecurityManager(int maxEntityExpansions) {
+    try {
+      Class<?> clazz = Class.forName(XERCES_SECURITY_MANAGER_CLASS);
+      Object securityManager = clazz.getConstructor().newInstance();
+      clazz.getMethod("setEntityExpansionLimit", int.class)
+          .invoke(securityManager, maxEntityExpansions);
+      return securityManager;
+    } catch (Exception e) {
+      logger.log(Level.FINE, "could not create Xerces security manager", e);
+      return null;
+    }
+  }
+
+  private static class PooledBuilder {
+
+    private final DocumentBuilderFactory factory;
+    private final DocumentBuilder builder;
+
+    public PooledBuilder(DocumentBuilderFactory factory,
+        DocumentBuilder builder) {
+      this.factory = factory;
+      this.builder = builder;
+    }
+  }
 }
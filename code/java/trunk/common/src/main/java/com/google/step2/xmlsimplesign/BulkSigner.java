@@ -0,0 +1,257 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.xmlsimplesign;
+
+import com.google.step2.util.EncodingUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Signs large numbers of documents (e.g., the XRDS of every user, after the
+ * signing key was rotated) on a pool of worker threads. Documents are signed
+ * with {@link Signer#sign(java.io.InputStream, OutputStream)}, i.e., without
+ * re-serializing them, and every worker thread uses its own Signature
+ * object. The signed documents, and their signatures, are handed to a
+ * {@link Sink}.
+ *
+ * Only so many documents can be waiting to be signed: once that many are
+ * pending, {@link #submit(String, byte[])} blocks until a worker is done
+ * with one. The time callers spent blocked that way is reported by
+ * {@link #getBlockedMillis()}: if it grows, the workers (or the sink) can't
+ * keep up, and adding threads may help.
+ *
+ * Usage:
+ * <pre>
+ * BulkSigner bulk = new BulkSigner(signer, sink, threads, maxPending);
+ * for (User user : users) {
+ *   bulk.submit(user.getId(), renderXrds(user));
+ * }
+ * bulk.finish();
+ * </pre>
+ */
+public class BulkSigner {
+
+  private static final Logger log = Logger.getLogger(BulkSigner.class.getName());
+
+  /**
+   * Receives signed documents. Called from the worker threads, so
+   * implementations must be thread-safe.
+   */
+  public interface Sink {
+
+    /**
+     * Receives a signed document.
+     * @param signature the signature, and its location if the Signer was
+     *   given a signature file prefix. The document is not set.
+     */
+    public void write(String id, byte[] signedDocument,
+        SignatureResult signature) throws IOException;
+
+    /**
+     * Called when a document couldn't be signed, or written.
+     */
+    public void failed(String id, Exception e);
+  }
+
+  private final Signer signer;
+  private final Sink sink;
+  private final ExecutorService executor;
+  private final Semaphore pending;
+  private final int maxPending;
+
+  private final AtomicLong signed = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong bytesSigned = new AtomicLong();
+  private final AtomicLong blockedNanos = new AtomicLong();
+  private final long startNanos = System.nanoTime();
+  private volatile long finishNanos;
+
+  /**
+   * @param signer a Signer that has been given the signing key and
+   *   certificates (and, for detached signatures, a signature file prefix)
+   * @param threads the number of worker threads
+   * @param maxPending the number of documents that may be submitted, but not
+   *   yet be signed and written, before submit() blocks
+   */
+  public BulkSigner(Signer signer, Sink sink, int threads, int maxPending) {
+    this.signer = signer;
+    this.sink = sink;
+    this.executor = Executors.newFixedThreadPool(threads);
+    this.maxPending = maxPending;
+    this.pending = new Semaphore(maxPending);
+  }
+
+  /**
+   * Queues a document for signing. Blocks while too many documents are
+   * pending.
+   */
+  public void submit(final String id, final byte[] document)
+      throws InterruptedException {
+    if (!pending.tryAcquire()) {
+      long start = System.nanoTime();
+      pending.acquire();
+      blockedNanos.addAndGet(System.nanoTime() - start);
+    }
+    try {
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            sign(id, document);
+          } finally {
+            pending.release();
+          }
+        }
+      });
+    } catch (RuntimeException e) {
+      pending.release();
+      throw e;
+    }
+  }
+
+  private void sign(String id, byte[] document) {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(document.length + 4096);
+      SignatureResult result = signer.sign(new ByteArrayInputStream(document), out);
+      sink.write(id, out.toByteArray(), result);
+      signed.incrementAndGet();
+      bytesSigned.addAndGet(document.length);
+    } catch (Exception e) {
+      failed.incrementAndGet();
+      log.log(Level.FINE, "could not sign " + id, e);
+      sink.failed(id, e);
+    }
+  }
+
+  /**
+   * Waits for all submitted documents to be signed and written, and shuts
+   * down the worker threads. No documents may be submitted after this.
+   */
+  public void finish() throws InterruptedException {
+    executor.shutdown();
+    while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+      log.info("still signing: " + getSignedCount() + " signed, "
+          + getPendingCount() + " pending");
+    }
+    finishNanos = System.nanoTime();
+  }
+
+  /**
+   * Returns the number of documents that were signed and written.
+   */
+  public long getSignedCount() {
+    return signed.get();
+  }
+
+  /**
+   * Returns the number of documents that couldn't be signed or written.
+   */
+  public long getFailedCount() {
+    return failed.get();
+  }
+
+  /**
+   * Returns the total size of the documents that were signed (before
+   * signing).
+   */
+  public long getBytesSigned() {
+    return bytesSigned.get();
+  }
+
+  /**
+   * Returns the number of documents that were submitted, but not yet signed
+   * and written.
+   */
+  public int getPendingCount() {
+    return maxPending - pending.availablePermits();
+  }
+
+  /**
+   * Returns for how long submit() has blocked, in total, because too many
+   * documents were pending.
+   */
+  public long getBlockedMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(blockedNanos.get());
+  }
+
+  /**
+   * Returns the number of documents signed per second, since this
+   * BulkSigner was created (until it finished).
+   */
+  public double getDocumentsPerSecond() {
+    long end = (finishNanos == 0) ? System.nanoTime() : finishNanos;
+    double seconds = (end - startNanos) / 1e9;
+    return (seconds <= 0) ? 0.0 : signed.get() / seconds;
+  }
+
+  /**
+   * A sink that writes each signed document into a file named after its id.
+   * Detached signatures are written to files named after the last part of
+   * their SignatureLocation, i.e., the part after the signature file prefix,
+   * so that a web server can serve them from there.
+   */
+  public static class DirectorySink implements Sink {
+
+    private final File documentDir;
+    private final File signatureDir;
+
+    /**
+     * @param signatureDir where to write detached signatures, or null if the
+     *   signatures will be served in HTTP headers
+     */
+    public DirectorySink(File documentDir, File signatureDir) {
+      this.documentDir = documentDir;
+      this.signatureDir = signatureDir;
+    }
+
+    public void write(String id, byte[] signedDocument,
+        SignatureResult signature) throws IOException {
+      writeFile(new File(documentDir, id), signedDocument);
+
+      String location = signature.getSignatureLocation();
+      if (signatureDir != null && location != null) {
+        String name = location.substring(location.lastIndexOf('/') + 1);
+        writeFile(new File(signatureDir, name),
+            EncodingUtil.getUtf8Bytes(signature.getSignature()));
+      }
+    }
+
+    public void failed(String id, Exception e) {
+      log.log(Level.WARNING, "could not sign " + id, e);
+    }
+
+    private static void writeFile(File file, byte[] content) throws IOException {
+      OutputStream out = new FileOutputStream(file);
+      try {
+        out.write(content);
+      } finally {
+        out.close();
+      }
+    }
+  }
+}
@@ -17,22 +17,29 @@
 package com.google.step2.xmlsimplesign;
 
 import java.security.GeneralSecurityException;
-import java.security.cert.CertPath;
+import java.security.PublicKey;
 import java.security.cert.CertPathValidator;
-import java.security.cert.CertificateFactory;
+import java.security.cert.PKIXCertPathValidatorResult;
 import java.security.cert.PKIXParameters;
 import java.security.cert.TrustAnchor;
 import java.security.cert.X509Certificate;
 import java.util.Collection;
+import java.util.Date;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Lists;
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.google.step2.util.ByteArrayKey;
+import com.google.step2.util.CacheStats;
 import com.google.step2.util.ExpiringLruCache;
+import com.google.step2.util.RefreshingCache;
 import com.google.step2.util.TimeSource;
 
 /**
@@ -41,20 +48,60 @@ import com.google.step2.util.TimeSource;
  * This makes heavy use of the JRE CertPath libraries.  Documentation may be found at
  * http://java.sun.com/j2se/1.5.0/docs/guide/security/certpath/CertPathProgGuide.html
  *
+ * Chains that match the {@link CertificatePins} (if any were configured)
+ * are accepted after checking dates and signatures up to the pinned
+ * certificate, without building a path to one of the trust roots. All other
+ * chains go through full PKIX validation, against only those trust roots
+ * that could have issued the top of the chain (see {@link TrustAnchorIndex}).
+ * Chains for an authority can be restricted to a smaller set of trust roots
+ * with {@link #restrictTrustRoots(String, Collection)}.
+ *
+ * Chains are also checked against the CRLs in the {@link RevocationStore},
+ * without going to the network. Whenever CRLs are added to the store, the
+ * cached validations are dropped, and {@link #getGeneration()} changes.
+ *
+ * Validation results are cached, keyed by the fingerprint of the chain:
+ * successes for several minutes (but never beyond the expiry of any of the
+ * certificates in the chain), failures for a few seconds. If several
+ * threads ask about the same chain at the same time, only one of them
+ * actually validates it, and the others wait for the result. Chains that
+ * keep being asked about are validated again after a few minutes, while
+ * the cached result is still good, so that lookups don't wait for the
+ * validation (if an executor was set with {@link #setRefreshExecutor}).
+ *
  * TODO: look for sane PKIXParameter certificate policy configuration.
  */
 public class CachedCertPathValidator {
 
   private static final Logger log = Logger.getLogger(CachedCertPathValidator.class.getName());
   private static final String VALIDATOR_TYPE = "PKIX";
-  private static final String CERTIFICATE_TYPE = "X.509";
   private static final int VALIDATION_CACHE_SIZE = 1024;
   private static final long VALIDATION_CACHE_AGE_SECONDS = 10 * 60;
+  private static final long VALIDATION_REFRESH_SECONDS = 5 * 60;
+  private static final long FAILURE_CACHE_AGE_SECONDS = 30;
+
+  // CertPathValidators aren't guaranteed to be thread-safe
+  private static final ThreadLocal<CertPathValidator> validators =
+      new ThreadLocal<CertPathValidator>();
+
+  // validation parameters are set up once, and copied for each validation
+  private final TrustAnchorIndex trustAnchors;
+  private final ConcurrentMap<String, TrustAnchorIndex> authorityTrustAnchors =
+      new ConcurrentHashMap<String, TrustAnchorIndex>();
+  // failed validations are cached like successful ones, so refreshes
+  // don't fail, and need no grace period
+  private final RefreshingCache<ByteArrayKey, Validation> validationCache =
+      new RefreshingCache<ByteArrayKey, Validation>(VALIDATION_CACHE_SIZE,
+          VALIDATION_REFRESH_SECONDS, 0);
 
-  private final Set<TrustAnchor> trustRoots;
-  private final ExpiringLruCache<List<X509Certificate>, Boolean> validationCache;
+  // incremented whenever cached validations are dropped
+  private final AtomicLong generation = new AtomicLong();
+  // the generation of the revocation store when we last dropped them
+  private volatile long revocationGeneration;
 
   private TimeSource timeSource = new TimeSource();
+  private CertificatePins pins = new CertificatePins();
+  private RevocationStore revocationStore = new RevocationStore();
 
   @Inject
   public CachedCertPathValidator(TrustRootsProvider trustRoots) {
@@ -63,17 +110,15 @@ public class CachedCertPathValidator {
 
   /* visible for testing */
   public CachedCertPathValidator(Collection<X509Certificate> trustRoots) {
-    this.trustRoots = createTrustRoots(trustRoots);
-    this.validationCache = new ExpiringLruCache<List<X509Certificate>, Boolean>(
-        VALIDATION_CACHE_SIZE);
+    this(new TrustAnchorIndex(trustRoots));
   }
 
-  private ImmutableSet<TrustAnchor> createTrustRoots(Collection<X509Certificate> trustRoots) {
-    List<TrustAnchor> anchors = Lists.newArrayList();
-    for (X509Certificate c : trustRoots) {
-      anchors.add(new TrustAnchor(c, null));
-    }
-    return ImmutableSet.copyOf(anchors);
+  /**
+   * Creates a validator for the given trust roots, e.g., ones loaded from a
+   * snapshot with {@link TrustAnchorIndex#load(java.io.InputStream)}.
+   */
+  public CachedCertPathValidator(TrustAnchorIndex trustAnchors) {
+    this.trustAnchors = trustAnchors;
   }
 
   public void setTimeSource(TimeSource timeSource) {
@@ -81,29 +126,238 @@ public class CachedCertPathValidator {
     validationCache.setTimeSource(timeSource);
   }
 
+  /**
+   * Sets the ExecutorService that cached validations are refreshed on.
+   * Without one, a validation due for a refresh is refreshed in the thread
+   * that asks for it.
+   */
+  @Inject(optional = true)
+  public void setRefreshExecutor(
+      @Named("CertValidationRefreshExecutor") ExecutorService executor) {
+    validationCache.setExecutor(executor);
+  }
+
+  @Inject(optional = true)
+  public void setCertificatePins(CertificatePins pins) {
+    this.pins = pins;
+  }
+
+  @Inject(optional = true)
+  public void setRevocationStore(RevocationStore revocationStore) {
+    this.revocationStore = revocationStore;
+    revocationGeneration = revocationStore.getGeneration();
+    invalidate();
+  }
+
+  /**
+   * Only accepts chains for the given authority (the CN of the signing
+   * certificate) if they lead to one of the given trust roots, rather than to
+   * any of the trust roots this validator was created with.
+   */
+  public void restrictTrustRoots(String authority,
+      Collection<X509Certificate> trustRoots) {
+    authorityTrustAnchors.put(authority, new TrustAnchorIndex(trustRoots));
+
+    // chains we have already validated might not pass anymore
+    invalidate();
+  }
+
+  /**
+   * Returns a number that changes whenever chains that have passed
+   * validation might not pass anymore (e.g., because new CRLs have been
+   * added to the revocation store). Callers that cache the outcome of
+   * validations should drop what they have when it changes.
+   */
+  public long getGeneration() {
+    checkRevocationStore();
+    return generation.get();
+  }
+
   public void validate(List<X509Certificate> certs) throws CertValidatorException {
+    checkRevocationStore();
+
     // If a cert chain validates successfully, we cache it for several minutes.  This improves
     // performance dramatically (anywhere from 10x to 50x decrease in CPU usage when repeatedly
     // verifying the same certificate chain.
-    if (validationCache.get(certs) != null) {
+    ByteArrayKey key;
+    try {
+      key = new ByteArrayKey(CertUtil.getFingerprint(certs));
+    } catch (GeneralSecurityException e) {
+      throw new CertValidatorException("Certificate validation failure", e);
+    }
+
+    Validation validation;
+    try {
+      validation = validationCache.get(key, new ValidationLoader(certs));
+    } catch (ExecutionException e) {
+      throw new CertValidatorException("Certificate validation failure",
+          e.getCause());
+    }
+    validation.check();
+  }
+
+  /**
+   * Drops the cached validations if the revocation store has changed since
+   * we last looked.
+   */
+  private void checkRevocationStore() {
+    long storeGeneration = revocationStore.getGeneration();
+    if (storeGeneration != revocationGeneration) {
+      revocationGeneration = storeGeneration;
+      invalidate();
+    }
+  }
+
+  private void invalidate() {
+    validationCache.clear();
+    generation.incrementAndGet();
+  }
+
+  /**
+   * Returns the statistics of the validation cache.
+   */
+  public CacheStats getCacheStats() {
+    return validationCache.getStats();
+  }
+
+  /* visible for testing */
+  void validateNoCache(List<X509Certificate> certs) throws CertValidatorException {
+    // the key of the trust anchor, if we know which one the chain leads to
+    PublicKey anchorKey = null;
+    // how much of the chain has been verified
+    int verified = pins.findPin(certs, timeSource.now());
+
+    if (verified < 0) {
+      try {
+        PKIXParameters params = getTrustAnchors(certs).getParameters(certs);
+        params.setDate(timeSource.now());
+        PKIXCertPathValidatorResult result = (PKIXCertPathValidatorResult)
+            getValidator().validate(CertUtil.getCertPath(certs), params);
+        TrustAnchor anchor = result.getTrustAnchor();
+        anchorKey = (anchor.getTrustedCert() == null)
+            ? anchor.getCAPublicKey()
+            : anchor.getTrustedCert().getPublicKey();
+        verified = certs.size() - 1;
+      } catch (GeneralSecurityException e) {
+        log.log(Level.WARNING, "Certificate validation failed, certs were: " + certs, e);
+        throw new CertValidatorException("Certificate validation failure", e);
+      }
+    }
+
+    checkRevocation(certs.subList(0, verified + 1), anchorKey);
+  }
+
+  /**
+   * Checks the verified part of a chain against the CRLs in the revocation
+   * store. Each certificate is checked with the key of the next one (or, at
+   * the top, with the key of the trust anchor if we know it), which signed
+   * it. For a pinned chain, we don't know who issued the pinned certificate,
+   * so the store has to go by the issuer keys it already knows.
+   */
+  private void checkRevocation(List<X509Certificate> certs, PublicKey anchorKey)
+      throws CertValidatorException {
+    if (revocationStore.isEmpty()) {
       return;
     }
-    validateNoCache(certs);
-    validationCache.put(certs, Boolean.TRUE, VALIDATION_CACHE_AGE_SECONDS);
+    Date now = timeSource.now();
+    for (int i = 0; i < certs.size(); i++) {
+      PublicKey issuerKey = (i + 1 < certs.size())
+          ? certs.get(i + 1).getPublicKey()
+          : anchorKey;
+      if (revocationStore.isRevoked(certs.get(i), issuerKey, now)) {
+        log.warning("Certificate has been revoked: " + certs.get(i));
+        throw new CertValidatorException("Certificate has been revoked: "
+            + certs.get(i).getSubjectX500Principal());
+      }
+    }
   }
 
-  private void validateNoCache(List<X509Certificate> certs) throws CertValidatorException {
-    try {
-      CertPathValidator validator = CertPathValidator.getInstance(VALIDATOR_TYPE);
-      PKIXParameters params = new PKIXParameters(trustRoots);
-      params.setDate(timeSource.now());
-      params.setRevocationEnabled(false);
-      CertificateFactory certFactory = CertificateFactory.getInstance(CERTIFICATE_TYPE);
-      CertPath certPath = certFactory.generateCertPath(certs);
-      validator.validate(certPath, params);
-    } catch (GeneralSecurityException e) {
-      log.log(Level.WARNING, "Certificate validation failed, certs were: " + certs, e);
-      throw new CertValidatorException("Certificate validation failure", e);
+  private TrustAnchorIndex getTrustAnchors(List<X509Certificate> certs) {
+    if (!authorityTrustAnchors.isEmpty() && !certs.isEmpty()) {
+      String authority = CertUtil.getCnFromDn(
+          certs.get(0).getSubjectX500Principal().getName());
+      TrustAnchorIndex restricted =
+          (authority == null) ? null : authorityTrustAnchors.get(authority);
+      if (restricted != null) {
+        return restricted;
+      }
+    }
+    return trustAnchors;
+  }
+
+  private CertPathValidator getValidator() throws GeneralSecurityException {
+    CertPathValidator validator = validators.get();
+    if (validator == null) {
+      validator = CertPathValidator.getInstance(VALIDATOR_TYPE);
+      validators.set(validator);
+    }
+    return validator;
+  }
+
+  /**
+   * The outcome of validating a chain.
+   */
+  private static class Validation {
+
+    // null if the chain is valid
+    private final CertValidatorException failure;
+    private final long notAfter;
+
+    public Validation(CertValidatorException failure, long notAfter) {
+      this.failure = failure;
+      this.notAfter = notAfter;
+    }
+
+    /**
+     * Throws if the validation failed.
+     */
+    public void check() throws CertValidatorException {
+      if (failure != null) {
+        // a fresh exception, since this one might be thrown in many threads
+        throw new CertValidatorException(failure.getMessage(),
+            failure.getCause());
+      }
+    }
+  }
+
+  /**
+   * Validates a chain for the validation cache, which keeps successes for
+   * VALIDATION_CACHE_AGE_SECONDS (but never beyond the expiry of any of the
+   * certificates), and failures for FAILURE_CACHE_AGE_SECONDS.
+   */
+  private class ValidationLoader
+      implements ExpiringLruCache.Loader<ByteArrayKey, Validation> {
+
+    private final List<X509Certificate> certs;
+
+    public ValidationLoader(List<X509Certificate> certs) {
+      this.certs = certs;
+    }
+
+    public Validation load(ByteArrayKey key) {
+      try {
+        validateNoCache(certs);
+        return new Validation(null, getNotAfter(certs));
+      } catch (CertValidatorException e) {
+        return new Validation(e, 0L);
+      }
+    }
+
+    public long getMaxSeconds(ByteArrayKey key, Validation validation) {
+      if (validation.failure != null) {
+        return FAILURE_CACHE_AGE_SECONDS;
+      }
+      long secondsLeft =
+          (validation.notAfter - timeSource.currentTimeMillis()) / 1000L;
+      return Math.min(VALIDATION_CACHE_AGE_SECONDS, secondsLeft);
+    }
+  }
+
+  private static long getNotAfter(List<X509Certificate> certs) {
+    long notAfter = Long.MAX_VALUE;
+    for (X509Certificate cert : certs) {
+      notAfter = Math.min(notAfter, cert.getNotAfter().getTime());
     }
+    return notAfter;
   }
 }
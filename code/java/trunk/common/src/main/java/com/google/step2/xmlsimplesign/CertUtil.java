@@ -16,35 +16,143 @@
  */
 package com.google.step2.xmlsimplesign;
 
+import com.google.step2.util.ByteArrayKey;
 import com.google.step2.util.EncodingUtil;
+import com.google.step2.util.ExpiringLruCache;
+
 import java.io.ByteArrayInputStream;
 import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
+import java.security.cert.CertPath;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.security.spec.EncodedKeySpec;
+import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
- * Parses byte arrays into certificates or private keys.
+ * Parses byte arrays into certificates or private keys, and computes
+ * fingerprints of certificate chains.
+ *
+ * The same few certificates show up in document after document, so parsed
+ * certificates are cached, keyed by a digest of their DER encoding.
  */
 public class CertUtil {
+
+  private static final Pattern CN_PATTERN = Pattern.compile("CN=([^,]+)");
+  private static final String CERTIFICATE_TYPE = "X509";
+  private static final String DIGEST_ALGORITHM = "SHA-256";
+  private static final int CERT_CACHE_SIZE = 1024;
+  private static final long CERT_CACHE_AGE_SECONDS = 24 * 60 * 60;
+
+  // X509Certificates are immutable, so they can be shared between threads.
+  // They also hold on to their parsed public keys.
+  private static final ExpiringLruCache<ByteArrayKey, X509Certificate> certCache =
+      new ExpiringLruCache<ByteArrayKey, X509Certificate>(CERT_CACHE_SIZE);
+
+  // CertificateFactory and MessageDigest aren't thread-safe, but are
+  // expensive enough to look up that we keep one per thread.
+  private static final ThreadLocal<CertificateFactory> certificateFactories =
+      new ThreadLocal<CertificateFactory>();
+  private static final ThreadLocal<MessageDigest> digests =
+      new ThreadLocal<MessageDigest>();
+
   public static X509Certificate getCertFromBase64Bytes(String b64cert)
       throws GeneralSecurityException {
     return getCertFromBytes(EncodingUtil.decodeBase64(b64cert));
   }
 
   public static X509Certificate getCertFromBytes(byte[] derCert) throws GeneralSecurityException {
-    CertificateFactory fac = CertificateFactory.getInstance("X509");
-    ByteArrayInputStream in = new ByteArrayInputStream(derCert);
-    X509Certificate cert = (X509Certificate)fac.generateCertificate(in);
+    ByteArrayKey key = new ByteArrayKey(getDigest().digest(derCert));
+    X509Certificate cert = certCache.get(key);
+    if (cert == null) {
+      ByteArrayInputStream in = new ByteArrayInputStream(derCert);
+      cert = (X509Certificate) getCertificateFactory().generateCertificate(in);
+
+      // make sure the public key is parsed now, rather than during some
+      // later signature check
+      cert.getPublicKey();
+      certCache.put(key, cert, CERT_CACHE_AGE_SECONDS);
+    }
     return cert;
   }
 
+  /**
+   * Returns the SHA-256 digest over the DER encodings of the certificates in
+   * the chain. (DER encodings carry their own length, so simply
+   * concatenating them is unambiguous.)
+   */
+  public static byte[] getFingerprint(List<X509Certificate> certs)
+      throws GeneralSecurityException {
+    MessageDigest digest = getDigest();
+    for (X509Certificate cert : certs) {
+      digest.update(cert.getEncoded());
+    }
+    return digest.digest();
+  }
+
+  /**
+   * Returns the SHA-256 digest of the certificate's SubjectPublicKeyInfo,
+   * i.e., the fingerprint of its public key.
+   */
+  public static byte[] getSpkiFingerprint(X509Certificate cert)
+      throws GeneralSecurityException {
+    return getDigest().digest(cert.getPublicKey().getEncoded());
+  }
+
+  /**
+   * Returns the CN from the given distinguished name, or null if it doesn't
+   * have one.
+   */
+  public static String getCnFromDn(String dn) {
+    Matcher m = CN_PATTERN.matcher(dn);
+
+    if (m.find()) {
+      return m.group(1);
+    } else {
+      return null;
+    }
+  }
+
+  public static CertPath getCertPath(List<X509Certificate> certs)
+      throws GeneralSecurityException {
+    return getCertificateFactory().generateCertPath(certs);
+  }
+
+  /**
+   * Parses a PKCS#8-encoded RSA or EC private key.
+   */
   public static PrivateKey getPrivateKeyFromBytes(byte[] derKey) throws GeneralSecurityException {
-    KeyFactory fac = KeyFactory.getInstance("RSA");
     EncodedKeySpec privKeySpec = new PKCS8EncodedKeySpec(derKey);
-    return fac.generatePrivate(privKeySpec);
+    try {
+      return KeyFactory.getInstance("RSA").generatePrivate(privKeySpec);
+    } catch (InvalidKeySpecException e) {
+      // not an RSA key
+      return KeyFactory.getInstance("EC").generatePrivate(privKeySpec);
+    }
+  }
+
+  private static CertificateFactory getCertificateFactory()
+      throws GeneralSecurityException {
+    CertificateFactory factory = certificateFactories.get();
+    if (factory == null) {
+      factory = CertificateFactory.getInstance(CERTIFICATE_TYPE);
+      certificateFactories.set(factory);
+    }
+    return factory;
+  }
+
+  private static MessageDigest getDigest() throws GeneralSecurityException {
+    MessageDigest digest = digests.get();
+    if (digest == null) {
+      digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+      digests.set(digest);
+    }
+    return digest;
   }
 }
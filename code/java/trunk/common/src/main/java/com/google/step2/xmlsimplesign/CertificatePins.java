@@ -0,0 +1,167 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.xmlsimplesign;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.step2.util.ByteArrayKey;
+import com.google.step2.util.EncodingUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pins authorities to the public keys that sign for them. Almost all signed
+ * XRDS documents come from a handful of authorities, and for those we know
+ * ahead of time which key (or which intermediate CA's key) their signing
+ * certificates carry. A chain whose leaf belongs to a pinned authority (as
+ * identified by the leaf's CN), and which leads to a pinned key, is
+ * accepted without building a path to one of the trust roots.
+ *
+ * Pins are base64-encoded SHA-256 digests of a certificate's
+ * SubjectPublicKeyInfo (see {@link #getFingerprint(X509Certificate)}). They
+ * can be loaded from a properties file that maps authorities to
+ * comma-separated lists of pins:
+ *
+ * <pre>
+ * hosted-id.google.com = 47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU=
+ * </pre>
+ *
+ * Pins should be set up before the object is handed to a
+ * {@link CachedCertPathValidator}.
+ */
+public class CertificatePins {
+
+  private static final Logger logger =
+      Logger.getLogger(CertificatePins.class.getName());
+
+  private final Map<String, Set<ByteArrayKey>> pins = Maps.newHashMap();
+
+  /**
+   * Loads pins from a properties file, as described above.
+   */
+  public static CertificatePins load(InputStream in) throws IOException {
+    Properties properties = new Properties();
+    properties.load(in);
+
+    CertificatePins result = new CertificatePins();
+    for (String authority : properties.stringPropertyNames()) {
+      for (String pin : properties.getProperty(authority).split(",")) {
+        if (pin.trim().length() > 0) {
+          result.addPin(authority, pin.trim());
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the pin for the public key in the given certificate.
+   */
+  public static String getFingerprint(X509Certificate cert)
+      throws GeneralSecurityException {
+    return EncodingUtil.encodeBase64(CertUtil.getSpkiFingerprint(cert));
+  }
+
+  /**
+   * Pins the authority to a public key.
+   * @param pin the base64-encoded SHA-256 digest of the SubjectPublicKeyInfo
+   *   of the authority's signing certificate, or of an intermediate CA
+   *   certificate in its chain.
+   */
+  public CertificatePins addPin(String authority, String pin) {
+    Set<ByteArrayKey> authorityPins = pins.get(authority);
+    if (authorityPins == null) {
+      authorityPins = Sets.newHashSet();
+      pins.put(authority, authorityPins);
+    }
+    authorityPins.add(new ByteArrayKey(EncodingUtil.decodeBase64(pin)));
+    return this;
+  }
+
+  public boolean isEmpty() {
+    return pins.isEmpty();
+  }
+
+  /**
+   * Returns true if the chain belongs to a pinned authority, and leads to a
+   * pinned key (see {@link #findPin(List, Date)}).
+   *
+   * Returns false if the chain doesn't match the pins, in which case the
+   * caller should fall back to the usual path validation.
+   */
+  public boolean accepts(List<X509Certificate> certs, Date now) {
+    return findPin(certs, now) >= 0;
+  }
+
+  /**
+   * Returns the index of the pinned certificate in the chain, or -1 if the
+   * chain doesn't belong to a pinned authority, or doesn't lead to a pinned
+   * key. Walking up the chain from the leaf, every certificate has to be
+   * valid at the given time, and every certificate below the pinned one has
+   * to be signed by the next certificate in the chain. Certificates above
+   * the pinned one aren't looked at, so nothing about them (not even that
+   * they issued the pinned certificate) can be relied on.
+   */
+  public int findPin(List<X509Certificate> certs, Date now) {
+    if (pins.isEmpty() || certs.isEmpty()) {
+      return -1;
+    }
+
+    String authority = CertUtil.getCnFromDn(
+        certs.get(0).getSubjectX500Principal().getName());
+    Set<ByteArrayKey> authorityPins =
+        (authority == null) ? null : pins.get(authority);
+    if (authorityPins == null) {
+      return -1;
+    }
+
+    try {
+      for (int i = 0; i < certs.size(); i++) {
+        X509Certificate cert = certs.get(i);
+        cert.checkValidity(now);
+        if (authorityPins.contains(
+            new ByteArrayKey(CertUtil.getSpkiFingerprint(cert)))) {
+          return i;
+        }
+
+        // not pinned, so it'd better be issued by the next one, which might
+        // be pinned
+        if (i + 1 < certs.size()) {
+          cert.verify(certs.get(i + 1).getPublicKey());
+        }
+      }
+    } catch (GeneralSecurityException e) {
+      logger.log(Level.FINE, "chain for pinned authority " + authority +
+          " did not match pins", e);
+      return -1;
+    }
+
+    logger.fine("chain for pinned authority " + authority +
+        " did not lead to a pinned key");
+    return -1;
+  }
+}
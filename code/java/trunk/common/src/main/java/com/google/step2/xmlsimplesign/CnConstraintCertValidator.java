@@ -17,8 +17,6 @@
 package com.google.step2.xmlsimplesign;
 
 import java.security.cert.X509Certificate;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * A cert validator that will match the given cert if and only if its
@@ -26,8 +24,6 @@ import java.util.regex.Pattern;
  */
 public abstract class CnConstraintCertValidator implements CertValidator {
 
-  private static final Pattern CN_PATTERN = Pattern.compile("CN=([^,]+)");
-
   public boolean matches(X509Certificate cert, String authority) {
     String cn = getCnFromDn(cert.getSubjectX500Principal().getName());
 
@@ -40,13 +36,7 @@ public abstract class CnConstraintCertValidator implements CertValidator {
 
   /* visible for testing */
   String getCnFromDn(String dn) {
-    Matcher m = CN_PATTERN.matcher(dn);
-
-    if (m.find()) {
-      return m.group(1);
-    } else {
-      return null;
-    }
+    return CertUtil.getCnFromDn(dn);
   }
 
   /**
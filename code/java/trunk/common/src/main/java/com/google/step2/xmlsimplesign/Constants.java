@@ -37,6 +37,10 @@ public class Constants {
   public static final String X509_CERTIFICATE = "X509Certificate";
 
   public static final String RSA_SHA1_ALGORITHM = "http://www.w3.org/2000/09/xmldsig#rsa-sha1";
+  public static final String RSA_SHA256_ALGORITHM =
+      "http://www.w3.org/2001/04/xmldsig-more#rsa-sha256";
+  public static final String ECDSA_SHA256_ALGORITHM =
+      "http://www.w3.org/2001/04/xmldsig-more#ecdsa-sha256";
 
   public static final String CANONICALIZE_RAW_OCTETS =
       "http://docs.oasis-open.org/xri/xrd/2009/01#canonicalize-raw-octets";
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.xmlsimplesign;
+
+import com.google.step2.http.FetchException;
+import com.google.step2.http.FetchRequest;
+import com.google.step2.http.FetchResponse;
+import com.google.step2.http.HttpFetcher;
+import com.google.step2.util.EncodingUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.X509CRL;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically fetches CRLs from their distribution points, and hands them
+ * to a {@link RevocationStore}. If given a directory, it also saves the
+ * CRLs there, so that they can be loaded with
+ * {@link RevocationStore#loadDirectory(File)} on the next startup. Only
+ * CRLs that the store has checked the signature of (and that replaced the
+ * ones it had) are saved, so a forged response can't overwrite a saved CRL.
+ */
+public class CrlRefresher implements Runnable {
+
+  private static final Logger log = Logger.getLogger(CrlRefresher.class.getName());
+  private static final String CRL_SUFFIX = ".crl";
+
+  public static final long DEFAULT_REFRESH_PERIOD_SECONDS = 6 * 60 * 60;
+
+  private final HttpFetcher fetcher;
+  private final RevocationStore store;
+  private final List<URI> crlUris;
+  private final File dir;
+
+  /**
+   * @param crlUris where to fetch the CRLs from
+   * @param dir where to save fetched CRLs, or null if they shouldn't be
+   *   saved
+   */
+  public CrlRefresher(HttpFetcher fetcher, RevocationStore store,
+      List<URI> crlUris, File dir) {
+    this.fetcher = fetcher;
+    this.store = store;
+    this.crlUris = crlUris;
+    this.dir = dir;
+  }
+
+  /**
+   * Refreshes the CRLs right away, and then every periodSeconds, on the
+   * given executor.
+   */
+  public ScheduledFuture<?> schedule(ScheduledExecutorService executor,
+      long periodSeconds) {
+    return executor.scheduleWithFixedDelay(this, 0, periodSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Fetches all CRLs. Failures are logged, and the CRLs we already have are
+   * kept.
+   */
+  public void run() {
+    for (URI uri : crlUris) {
+      try {
+        refresh(uri);
+      } catch (FetchException e) {
+        log.log(Level.WARNING, "could not fetch CRL from " + uri, e);
+      } catch (GeneralSecurityException e) {
+        log.log(Level.WARNING, "could not parse CRL from " + uri, e);
+      } catch (RuntimeException e) {
+        // don't let one bad CRL cancel the schedule
+        log.log(Level.WARNING, "could not refresh CRL from " + uri, e);
+      }
+    }
+  }
+
+  /* visible for testing */
+  void refresh(URI uri) throws FetchException, GeneralSecurityException {
+    FetchResponse response = fetcher.fetch(FetchRequest.createGetRequest(uri));
+    if (response.getStatusCode() != 200) {
+      throw new FetchException("unexpected status code "
+          + response.getStatusCode() + " for " + uri);
+    }
+    byte[] content = response.getContentAsBytes();
+    Collection<X509CRL> crls =
+        RevocationStore.parseCrls(new ByteArrayInputStream(content));
+    boolean accepted = store.addCrls(crls);
+
+    if (dir != null && accepted) {
+      save(uri, content);
+    }
+  }
+
+  private void save(URI uri, byte[] content) throws GeneralSecurityException {
+    // one file per distribution point
+    byte[] digest = MessageDigest.getInstance("SHA-256").digest(
+        EncodingUtil.getUtf8Bytes(uri.toString()));
+    StringBuilder name = new StringBuilder();
+    for (int i = 0; i < 8; i++) {
+      name.append(String.format("%02x", digest[i]));
+    }
+    File file = new File(dir, name + CRL_SUFFIX);
+    File tmp = new File(dir, name + CRL_SUFFIX + ".tmp");
+    try {
+      OutputStream out = new FileOutputStream(tmp);
+      try {
+        out.write(content);
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(file)) {
+        // renameTo doesn't replace existing files everywhere
+        file.delete();
+        if (!tmp.renameTo(file)) {
+          log.warning("could not save CRL to " + file);
+        }
+      }
+    } catch (IOException e) {
+      log.log(Level.WARNING, "could not save CRL to " + file, e);
+    }
+  }
+}
@@ -0,0 +1,217 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.xmlsimplesign;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.google.step2.http.FetchException;
+import com.google.step2.http.FetchRequest;
+import com.google.step2.http.FetchResponse;
+import com.google.step2.http.HttpFetcher;
+import com.google.step2.util.EncodingUtil;
+import com.google.step2.util.ExpiringLruCache;
+import com.google.step2.util.TimeSource;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Fetches detached signatures, i.e., the signature values at the
+ * SignatureLocation of a signed document.
+ *
+ * Fetches are started with {@link #prefetch(String)}, so that the
+ * {@link Verifier} can decode and validate the certificates of a document
+ * while the signature is on its way. If an ExecutorService has been set,
+ * fetches run there; otherwise they run in the calling thread.
+ *
+ * Signatures are cached by URL. For a few minutes, cached signatures are
+ * used without asking the server. After that, if the server gave us an ETag,
+ * we ask whether the signature has changed with a conditional GET, and keep
+ * using the cached signature if it hasn't. A document may be re-signed in
+ * place, so the {@link Verifier} {@link #evict}s a cached signature that
+ * doesn't verify, and fetches it again.
+ */
+@Singleton
+public class DetachedSignatureFetcher {
+
+  private static final int CACHE_SIZE = 1024;
+  private static final long FRESH_SECONDS = 10 * 60;
+  private static final long ETAG_CACHE_AGE_SECONDS = 24 * 60 * 60;
+  private static final int SC_OK = 200;
+  private static final int SC_NOT_MODIFIED = 304;
+
+  private final HttpFetcher fetcher;
+  private final ExpiringLruCache<String, CachedSignature> cache =
+      new ExpiringLruCache<String, CachedSignature>(CACHE_SIZE);
+
+  private ExecutorService executor;
+  private TimeSource timeSource = new TimeSource();
+
+  @Inject
+  public DetachedSignatureFetcher(HttpFetcher fetcher) {
+    this.fetcher = fetcher;
+  }
+
+  /**
+   * Sets the ExecutorService that signatures are fetched on. Without one,
+   * signatures are fetched in the thread that asks for them (which is what
+   * environments that don't allow spawning threads need).
+   */
+  @Inject(optional = true)
+  public void setExecutor(
+      @Named("DetachedSignatureExecutor") ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  public void setTimeSource(TimeSource timeSource) {
+    this.timeSource = timeSource;
+    cache.setTimeSource(timeSource);
+  }
+
+  /**
+   * Starts fetching the signature at the given location (unless we have it
+   * in the cache already). Pass the returned Future to
+   * {@link #getSignature(Future)} to get the decoded signature value.
+   */
+  public Future<byte[]> prefetch(final String location) {
+    final CachedSignature cached = cache.get(location);
+    Callable<byte[]> fetch = new Callable<byte[]>() {
+      public byte[] call() throws XmlSimpleSignException {
+        return fetch(location, cached);
+      }
+    };
+
+    if (executor == null
+        || (cached != null && isFresh(cached, timeSource.currentTimeMillis()))) {
+      FutureTask<byte[]> task = new FutureTask<byte[]>(fetch);
+      task.run();
+      return task;
+    }
+    return executor.submit(fetch);
+  }
+
+  /**
+   * Fetches the signature at the given location (unless we have it in the
+   * cache already), and returns the decoded signature value.
+   */
+  public byte[] fetch(String location) throws XmlSimpleSignException {
+    return getSignature(prefetch(location));
+  }
+
+  /**
+   * Waits for a fetch started with {@link #prefetch(String)} to finish.
+   */
+  public byte[] getSignature(Future<byte[]> pending)
+      throws XmlSimpleSignException {
+    try {
+      return pending.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new XmlSimpleSignException("interrupted", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof XmlSimpleSignException) {
+        throw new XmlSimpleSignException(cause.getMessage(), cause.getCause());
+      }
+      throw new XmlSimpleSignException("couldn't fetch signature", cause);
+    }
+  }
+
+  /**
+   * Drops the cached signature for the given location, if it is the given
+   * signature and was fetched (or confirmed by the server) before the given
+   * time, so that the next fetch goes to the server. Returns true if it was
+   * dropped, i.e., if fetching again might give a different signature.
+   */
+  public boolean evict(String location, byte[] signature, long fetchedBefore) {
+    CachedSignature cached = cache.get(location);
+    if (cached == null || cached.fetchedMillis >= fetchedBefore
+        || !Arrays.equals(cached.signature, signature)) {
+      return false;
+    }
+    cache.remove(location);
+    return true;
+  }
+
+  private byte[] fetch(String location, CachedSignature cached)
+      throws XmlSimpleSignException {
+    long now = timeSource.currentTimeMillis();
+    if (cached != null && isFresh(cached, now)) {
+      return cached.signature;
+    }
+
+    FetchRequest request;
+    try {
+      request = FetchRequest.createGetRequest(URI.create(location));
+    } catch (IllegalArgumentException e) {
+      throw new XmlSimpleSignException("bad SignatureLocation " + location, e);
+    }
+    if (cached != null && cached.etag != null) {
+      request.setHeader("If-None-Match", cached.etag);
+    }
+
+    try {
+      FetchResponse response = fetcher.fetch(request);
+      int status = response.getStatusCode();
+      if (status == SC_NOT_MODIFIED && cached != null) {
+        cacheSignature(location, cached.signature, cached.etag, now);
+        return cached.signature;
+      }
+      if (status != SC_OK) {
+        throw new XmlSimpleSignException("couldn't fetch signature from "
+            + location + ", status " + status);
+      }
+      byte[] signature = EncodingUtil.decodeBase64(response.getContentAsBytes());
+      cacheSignature(location, signature, response.getFirstHeader("ETag"), now);
+      return signature;
+    } catch (FetchException e) {
+      throw new XmlSimpleSignException("couldn't fetch signature from " +
+          location, e);
+    }
+  }
+
+  private void cacheSignature(String location, byte[] signature, String etag,
+      long now) {
+    // without an ETag, there is no point in keeping the signature once it
+    // has to be checked with the server again
+    cache.put(location, new CachedSignature(signature, etag, now),
+        (etag == null) ? FRESH_SECONDS : ETAG_CACHE_AGE_SECONDS);
+  }
+
+  private static boolean isFresh(CachedSignature cached, long now) {
+    return now < cached.fetchedMillis + FRESH_SECONDS * 1000L;
+  }
+
+  private static class CachedSignature {
+
+    private final byte[] signature;
+    private final String etag;
+    private final long fetchedMillis;
+
+    public CachedSignature(byte[] signature, String etag, long fetchedMillis) {
+      this.signature = signature;
+      this.etag = etag;
+      this.fetchedMillis = fetchedMillis;
+    }
+  }
+}
@@ -0,0 +1,184 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.xmlsimplesign;
+
+import com.google.common.collect.Maps;
+import com.google.step2.util.XmlUtil;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+/**
+ * An InputStream that computes the digests of everything read through it,
+ * for each of the digest algorithms that a {@link SignatureAlgorithm} might
+ * need. (Which one is needed is only known once the SignatureMethod of the
+ * document has been read.)
+ *
+ * This lets a parser read a document straight from the network, while the
+ * {@link Verifier} later checks the signature against the digest of the
+ * document, without the document ever being buffered in full. See
+ * {@link Verifier#verify(java.io.InputStream, String)}, and
+ * {@link Verifier#verify(DigestingInputStream, org.w3c.dom.Document, String)}
+ * for callers that parse the document themselves.
+ *
+ * Bytes that the parser doesn't read (e.g., trailing whitespace) are still
+ * part of the signed document: they are read when the stream is finished or
+ * closed. Like everything the parser reads, they count towards the
+ * maximum document size (see {@link XmlUtil#limitSize(InputStream)}).
+ */
+public class DigestingInputStream extends FilterInputStream {
+
+  private static final int DRAIN_BUFFER_SIZE = 4096;
+
+  private final Map<String, MessageDigest> digests = Maps.newHashMap();
+  private final Map<String, byte[]> results = Maps.newHashMap();
+  private long length;
+  private boolean finished;
+
+  public DigestingInputStream(InputStream in) {
+    super(XmlUtil.limitSize(in));
+    try {
+      for (SignatureAlgorithm algorithm : SignatureAlgorithm.values()) {
+        String name = algorithm.getDigestAlgorithm();
+        if (!digests.containsKey(name)) {
+          digests.put(name, MessageDigest.getInstance(name));
+        }
+      }
+    } catch (NoSuchAlgorithmException e) {
+      // SHA-1 and SHA-256 are required in every JRE
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    int b = in.read();
+    if (b >= 0) {
+      for (MessageDigest digest : digests.values()) {
+        digest.update((byte) b);
+      }
+      length++;
+    }
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    int count = in.read(b, off, len);
+    if (count > 0) {
+      for (MessageDigest digest : digests.values()) {
+        digest.update(b, off, count);
+      }
+      length += count;
+    }
+    return count;
+  }
+
+  /**
+   * Skipped bytes are read (and digested) nonetheless.
+   */
+  @Override
+  public long skip(long n) throws IOException {
+    byte[] buffer = new byte[(int) Math.min(n, DRAIN_BUFFER_SIZE)];
+    long skipped = 0;
+    while (skipped < n) {
+      int count = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+      if (count < 0) {
+        break;
+      }
+      skipped += count;
+    }
+    return skipped;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public void mark(int readlimit) {
+  }
+
+  @Override
+  public void reset() throws IOException {
+    throw new IOException("mark/reset not supported");
+  }
+
+  /**
+   * Reads the rest of the document, and completes the digests.
+   */
+  public void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+    while (read(buffer, 0, buffer.length) >= 0) {
+      // just digesting
+    }
+    for (Map.Entry<String, MessageDigest> digest : digests.entrySet()) {
+      results.put(digest.getKey(), digest.getValue().digest());
+    }
+    finished = true;
+  }
+
+  /**
+   * Finishes the stream (parsers tend to close their input once they've
+   * seen the end of the document) before closing it.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      finish();
+    } finally {
+      super.close();
+    }
+  }
+
+  public boolean isFinished() {
+    return finished;
+  }
+
+  /**
+   * Returns the digest of the whole document.
+   *
+   * @param algorithm the name of a MessageDigest algorithm, as returned by
+   *   {@link SignatureAlgorithm#getDigestAlgorithm()}
+   * @throws IllegalStateException if the stream hasn't been finished
+   */
+  public byte[] getDigest(String algorithm) {
+    if (!finished) {
+      throw new IllegalStateException("document hasn't been read completely");
+    }
+    byte[] digest = results.get(algorithm);
+    if (digest == null) {
+      throw new IllegalArgumentException("no " + algorithm + " digest");
+    }
+    return digest.clone();
+  }
+
+  /**
+   * Returns the number of bytes read so far.
+   */
+  public long getLength() {
+    return length;
+  }
+}
@@ -0,0 +1,423 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.xmlsimplesign;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.Singleton;
+import com.google.step2.util.TimeSource;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.cert.CRL;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * A local store of certificate revocation lists. We can't afford to fetch
+ * CRLs (or ask OCSP responders) while verifying a signature, so CRLs are
+ * loaded from disk, and refreshed in the background (see
+ * {@link CrlRefresher}). Checking a certificate is a single hash lookup of
+ * its issuer and serial number.
+ *
+ * A CRL only replaces the one we have from the same issuer if it is signed
+ * by the issuer's key. We learn the keys of issuers from the trust roots
+ * (see {@link #addIssuerCertificates}) and from the verified links of the
+ * chains we're asked about in {@link #isRevoked}. A CRL of an issuer whose
+ * key we don't know yet is held back, and doesn't revoke anything until we
+ * have checked it. CRLs that claim to have been issued in the future are
+ * rejected.
+ *
+ * Only CRLs are supported: the JDK has no public API for parsing OCSP
+ * responses.
+ */
+@Singleton
+public class RevocationStore {
+
+  private static final Logger log = Logger.getLogger(RevocationStore.class.getName());
+  private static final String CERTIFICATE_TYPE = "X509";
+  private static final String CRL_SUFFIX = ".crl";
+
+  // how far ahead of our clock the issuer's clock may be
+  private static final long MAX_CLOCK_SKEW_MILLIS = 5 * 60 * 1000L;
+
+  // how many CRLs we hold back per issuer whose key we don't know yet
+  private static final int MAX_UNVERIFIED_CRLS = 8;
+
+  // the most recent verified CRL of each issuer. Guarded by this.
+  private final Map<X500Principal, CrlHolder> crls = Maps.newHashMap();
+
+  // CRLs of issuers whose key we don't know yet. Guarded by this.
+  private final Map<X500Principal, List<X509CRL>> unverifiedCrls =
+      Maps.newHashMap();
+
+  // the keys of the issuers we know about
+  private final ConcurrentMap<X500Principal, PublicKey> issuerKeys =
+      new ConcurrentHashMap<X500Principal, PublicKey>();
+
+  // revoked serial numbers, rebuilt from the CRLs whenever they change, and
+  // never modified after that
+  private volatile Map<RevokedKey, RevokedEntry> revoked = Collections.emptyMap();
+  private volatile boolean hasUnverifiedCrls = false;
+
+  // incremented whenever CRLs are added
+  private final AtomicLong generation = new AtomicLong();
+
+  private TimeSource timeSource = new TimeSource();
+
+  public void setTimeSource(TimeSource timeSource) {
+    this.timeSource = timeSource;
+  }
+
+  /**
+   * Reads all CRLs (DER or PEM-encoded) from files ending in ".crl" in the
+   * given directory. A file that can't be read is skipped.
+   */
+  public void loadDirectory(File dir) {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      log.warning("could not list CRL directory " + dir);
+      return;
+    }
+    List<X509CRL> loaded = Lists.newArrayList();
+    for (File file : files) {
+      if (!file.getName().endsWith(CRL_SUFFIX)) {
+        continue;
+      }
+      try {
+        InputStream in = new FileInputStream(file);
+        try {
+          loaded.addAll(parseCrls(in));
+        } finally {
+          in.close();
+        }
+      } catch (IOException e) {
+        log.log(Level.WARNING, "could not read CRL file " + file, e);
+      } catch (GeneralSecurityException e) {
+        log.log(Level.WARNING, "could not parse CRL file " + file, e);
+      }
+    }
+    addCrls(loaded);
+  }
+
+  /**
+   * Parses one or more DER or PEM-encoded CRLs.
+   */
+  public static Collection<X509CRL> parseCrls(InputStream in)
+      throws GeneralSecurityException {
+    CertificateFactory factory = CertificateFactory.getInstance(CERTIFICATE_TYPE);
+    List<X509CRL> result = Lists.newArrayList();
+    for (CRL crl : factory.generateCRLs(in)) {
+      result.add((X509CRL) crl);
+    }
+    return result;
+  }
+
+  public boolean addCrl(X509CRL crl) {
+    return addCrls(Collections.singletonList(crl));
+  }
+
+  /**
+   * Adds CRLs to the store. A CRL replaces the one we have from the same
+   * issuer if it is signed by the issuer, and the one we have isn't more
+   * recent. If we don't know the issuer's key yet, the CRL is held back
+   * until we do.
+   *
+   * @return true if all of the CRLs were signed by their issuers, and are
+   *   now the most recent ones we have.
+   */
+  public synchronized boolean addCrls(Collection<X509CRL> newCrls) {
+    boolean accepted = true;
+    boolean changed = false;
+    long now = timeSource.currentTimeMillis();
+    for (X509CRL crl : newCrls) {
+      if (!isTimely(crl, now)) {
+        accepted = false;
+        continue;
+      }
+      PublicKey key = issuerKeys.get(crl.getIssuerX500Principal());
+      if (key == null) {
+        changed |= holdBack(crl);
+        accepted = false;
+      } else {
+        CrlHolder current = crls.get(crl.getIssuerX500Principal());
+        accepted &= replace(crl, key);
+        changed |= (crls.get(crl.getIssuerX500Principal()) != current);
+      }
+    }
+    if (changed) {
+      hasUnverifiedCrls = !unverifiedCrls.isEmpty();
+      rebuild();
+    }
+    return accepted;
+  }
+
+  /**
+   * Tells the store the keys of the given issuers (e.g., the trust roots),
+   * so that CRLs signed by them can be checked as soon as they are added.
+   */
+  public void addIssuerCertificates(Collection<X509Certificate> issuers) {
+    for (X509Certificate issuer : issuers) {
+      addIssuerKey(issuer.getSubjectX500Principal(), issuer.getPublicKey());
+    }
+  }
+
+  /**
+   * Remembers the key of an issuer, and checks the CRLs of that issuer we
+   * have been holding back.
+   */
+  private void addIssuerKey(X500Principal issuer, PublicKey key) {
+    if (key.equals(issuerKeys.get(issuer))) {
+      return;
+    }
+    synchronized (this) {
+      issuerKeys.put(issuer, key);
+      List<X509CRL> held = unverifiedCrls.remove(issuer);
+      if (held == null) {
+        return;
+      }
+      for (X509CRL crl : held) {
+        replace(crl, key);
+      }
+      hasUnverifiedCrls = !unverifiedCrls.isEmpty();
+      rebuild();
+    }
+  }
+
+  /**
+   * Returns false (and logs) if the CRL claims to have been issued in the
+   * future. A CRL that is past its nextUpdate is logged, but still used:
+   * it's the best we have.
+   */
+  private boolean isTimely(X509CRL crl, long now) {
+    if (crl.getThisUpdate().getTime() > now + MAX_CLOCK_SKEW_MILLIS) {
+      log.warning("ignoring CRL of " + crl.getIssuerX500Principal()
+          + ", which claims to have been issued at " + crl.getThisUpdate());
+      return false;
+    }
+    if (crl.getNextUpdate() != null && crl.getNextUpdate().getTime() < now) {
+      log.warning("CRL of " + crl.getIssuerX500Principal()
+          + " is out of date, next update was due at " + crl.getNextUpdate());
+    }
+    return true;
+  }
+
+  /**
+   * Keeps a CRL until we know the key of its issuer. Returns false if we
+   * already had it.
+   */
+  private boolean holdBack(X509CRL crl) {
+    List<X509CRL> held = unverifiedCrls.get(crl.getIssuerX500Principal());
+    if (held == null) {
+      held = Lists.newArrayList();
+      unverifiedCrls.put(crl.getIssuerX500Principal(), held);
+    }
+    if (held.contains(crl)) {
+      return false;
+    }
+    if (held.size() >= MAX_UNVERIFIED_CRLS) {
+      held.remove(0);
+    }
+    held.add(crl);
+    return true;
+  }
+
+  /**
+   * Makes the CRL the current one of its issuer if it is signed by the
+   * given key, and not older than the current one. Returns true if it is
+   * the current one now.
+   */
+  private boolean replace(X509CRL crl, PublicKey key) {
+    try {
+      crl.verify(key);
+    } catch (GeneralSecurityException e) {
+      log.log(Level.WARNING, "ignoring CRL of " + crl.getIssuerX500Principal()
+          + ", which isn't signed by the issuer", e);
+      return false;
+    }
+    CrlHolder current = crls.get(crl.getIssuerX500Principal());
+    if (current != null) {
+      if (current.crl.equals(crl)) {
+        return true;
+      }
+      if (current.crl.getThisUpdate().after(crl.getThisUpdate())) {
+        return false;
+      }
+    }
+    crls.put(crl.getIssuerX500Principal(), new CrlHolder(crl, key));
+    return true;
+  }
+
+  private void rebuild() {
+    Map<RevokedKey, RevokedEntry> result = Maps.newHashMap();
+    for (CrlHolder holder : crls.values()) {
+      X509CRL crl = holder.crl;
+      Collection<? extends X509CRLEntry> entries = crl.getRevokedCertificates();
+      if (entries == null) {
+        continue;
+      }
+      for (X509CRLEntry entry : entries) {
+        result.put(new RevokedKey(crl.getIssuerX500Principal(), entry.getSerialNumber()),
+            new RevokedEntry(holder, entry.getRevocationDate()));
+      }
+    }
+    revoked = result;
+    generation.incrementAndGet();
+  }
+
+  /**
+   * Returns the most recent (verified) CRL of the given issuer, or null if
+   * we don't have one.
+   */
+  public synchronized X509CRL getCrl(X500Principal issuer) {
+    CrlHolder holder = crls.get(issuer);
+    return (holder == null) ? null : holder.crl;
+  }
+
+  /**
+   * Returns a number that changes whenever CRLs are added, so that callers
+   * can tell when revocation checks they have cached might have a
+   * different outcome.
+   */
+  public long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * Returns true if there are no CRLs that could revoke a certificate, not
+   * even ones we haven't been able to check yet.
+   */
+  public boolean isEmpty() {
+    return revoked.isEmpty() && !hasUnverifiedCrls;
+  }
+
+  /**
+   * Returns true if we know the certificate to have been revoked at the
+   * given time.
+   *
+   * A certificate on a CRL counts as revoked even if we don't know the key
+   * of its issuer, or if the CRL (which we have checked against the key we
+   * know for the issuer) isn't signed by the given key: a chain that wants
+   * to get past a CRL mustn't be able to do so by claiming some other
+   * issuer.
+   *
+   * @param issuerKey the public key that signed the certificate, or null if
+   *   we don't know it. The chain the certificate and key came from must
+   *   already have been verified up to the key, since CRLs from the issuer
+   *   are checked against this key from now on.
+   */
+  public boolean isRevoked(X509Certificate cert, PublicKey issuerKey, Date now) {
+    if (issuerKey != null) {
+      addIssuerKey(cert.getIssuerX500Principal(), issuerKey);
+    }
+    RevokedEntry entry = revoked.get(
+        new RevokedKey(cert.getIssuerX500Principal(), cert.getSerialNumber()));
+    if (entry == null || entry.revocationDate.after(now)) {
+      return false;
+    }
+    if (issuerKey != null && !entry.crl.isSignedBy(issuerKey)) {
+      log.warning("certificate " + cert.getSerialNumber() + " of "
+          + cert.getIssuerX500Principal() + " is on a CRL that isn't signed"
+          + " by the key that issued it, treating it as revoked");
+    }
+    return true;
+  }
+
+  private static class RevokedKey {
+
+    private final X500Principal issuer;
+    private final BigInteger serial;
+
+    public RevokedKey(X500Principal issuer, BigInteger serial) {
+      this.issuer = issuer;
+      this.serial = serial;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * issuer.hashCode() + serial.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof RevokedKey)) {
+        return false;
+      }
+      RevokedKey other = (RevokedKey) obj;
+      return issuer.equals(other.issuer) && serial.equals(other.serial);
+    }
+  }
+
+  private static class RevokedEntry {
+
+    private final CrlHolder crl;
+    private final Date revocationDate;
+
+    public RevokedEntry(CrlHolder crl, Date revocationDate) {
+      this.crl = crl;
+      this.revocationDate = revocationDate;
+    }
+  }
+
+  /**
+   * A CRL, and the key we last found it to be signed by.
+   */
+  private static class CrlHolder {
+
+    private final X509CRL crl;
+    private volatile PublicKey verifiedKey;
+
+    public CrlHolder(X509CRL crl, PublicKey verifiedKey) {
+      this.crl = crl;
+      this.verifiedKey = verifiedKey;
+    }
+
+    public boolean isSignedBy(PublicKey key) {
+      if (key.equals(verifiedKey)) {
+        return true;
+      }
+      try {
+        crl.verify(key);
+        verifiedKey = key;
+        return true;
+      } catch (GeneralSecurityException e) {
+        log.log(Level.FINE, "CRL of " + crl.getIssuerX500Principal()
+            + " isn't signed by the given key", e);
+        return false;
+      }
+    }
+  }
+}
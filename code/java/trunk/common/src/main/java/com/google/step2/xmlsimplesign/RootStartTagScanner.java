@@ -0,0 +1,235 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.xmlsimplesign;
+
+import com.google.step2.util.EncodingUtil;
+
+/**
+ * Finds the start tag of the root element in a serialized XML document,
+ * without parsing the document. It skips the XML declaration, processing
+ * instructions, comments, a document type declaration and whitespace, and
+ * then reads the root's start tag, taking quoted attribute values into
+ * account.
+ *
+ * Only encodings in which these constructs are ASCII (e.g., UTF-8, or
+ * ISO-8859-1) are supported.
+ */
+class RootStartTagScanner {
+
+  private final byte[] buf;
+  private final int length;
+
+  // where the start tag ends, i.e., the offset after the closing '>'
+  private int end = -1;
+  private boolean emptyElement;
+  private String name;
+
+  private RootStartTagScanner(byte[] buf, int length) {
+    this.buf = buf;
+    this.length = length;
+  }
+
+  /**
+   * Scans the first length bytes of buf. Returns null if they end before the
+   * root's start tag does.
+   *
+   * @throws XmlSimpleSignException if the document isn't well-formed, or
+   *   isn't in a supported encoding
+   */
+  public static RootStartTagScanner scan(byte[] buf, int length)
+      throws XmlSimpleSignException {
+    RootStartTagScanner scanner = new RootStartTagScanner(buf, length);
+    return scanner.scan() ? scanner : null;
+  }
+
+  /**
+   * Returns the offset right after the '>' that ends the root's start tag.
+   */
+  public int getEnd() {
+    return end;
+  }
+
+  /**
+   * Returns true if the root is an empty-element tag (as in
+   * {@code <root/>}), in which case the tag ends in "/>".
+   */
+  public boolean isEmptyElement() {
+    return emptyElement;
+  }
+
+  /**
+   * Returns the qualified name of the root element.
+   */
+  public String getName() {
+    return name;
+  }
+
+  private boolean scan() throws XmlSimpleSignException {
+    int p = 0;
+    if (startsWith(p, 0xef, 0xbb, 0xbf)) {
+      // UTF-8 byte order mark
+      p = 3;
+    } else if (startsWith(p, 0xfe, 0xff) || startsWith(p, 0xff, 0xfe)
+        || startsWith(p, 0x00, 0x3c)) {
+      throw new XmlSimpleSignException("Documents must be encoded in UTF-8");
+    }
+
+    while (true) {
+      p = skipWhitespace(p);
+      if (p + 4 > length) {
+        // we need "<!--" to tell what comes next
+        return false;
+      }
+      if (buf[p] != '<') {
+        throw new XmlSimpleSignException("Not a well-formed XML document");
+      }
+
+      if (buf[p + 1] == '?') {
+        p = indexOf(p + 2, "?>");
+      } else if (buf[p + 1] == '!' && buf[p + 2] == '-' && buf[p + 3] == '-') {
+        p = indexOf(p + 4, "-->");
+      } else if (buf[p + 1] == '!') {
+        p = skipDoctype(p + 2);
+      } else {
+        return scanStartTag(p + 1);
+      }
+      if (p < 0) {
+        return false;
+      }
+    }
+  }
+
+  private boolean scanStartTag(int p) throws XmlSimpleSignException {
+    int nameStart = p;
+    while (p < length && !isWhitespace(buf[p]) && buf[p] != '/' && buf[p] != '>') {
+      p++;
+    }
+    if (p >= length) {
+      return false;
+    }
+    if (p == nameStart) {
+      throw new XmlSimpleSignException("Not a well-formed XML document");
+    }
+    name = new String(buf, nameStart, p - nameStart, EncodingUtil.UTF8);
+
+    while (p < length) {
+      byte b = buf[p];
+      if (b == '"' || b == '\'') {
+        p = indexOf(p + 1, b);
+        if (p < 0) {
+          return false;
+        }
+      } else if (b == '>') {
+        end = p + 1;
+        return true;
+      } else if (b == '/') {
+        if (p + 1 >= length) {
+          return false;
+        }
+        if (buf[p + 1] != '>') {
+          throw new XmlSimpleSignException("Not a well-formed XML document");
+        }
+        emptyElement = true;
+        end = p + 2;
+        return true;
+      } else {
+        p++;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Skips a document type declaration, which may have an internal subset in
+   * square brackets. Returns the offset after it, or -1 if it doesn't end
+   * within the buffer.
+   */
+  private int skipDoctype(int p) {
+    boolean inSubset = false;
+    while (p < length) {
+      byte b = buf[p];
+      if (b == '"' || b == '\'') {
+        p = indexOf(p + 1, b);
+        if (p < 0) {
+          return -1;
+        }
+      } else if (b == '[') {
+        inSubset = true;
+        p++;
+      } else if (b == ']') {
+        inSubset = false;
+        p++;
+      } else if (b == '>' && !inSubset) {
+        return p + 1;
+      } else {
+        p++;
+      }
+    }
+    return -1;
+  }
+
+  private int skipWhitespace(int p) {
+    while (p < length && isWhitespace(buf[p])) {
+      p++;
+    }
+    return p;
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+  }
+
+  private boolean startsWith(int p, int... bytes) {
+    if (p + bytes.length > length) {
+      return false;
+    }
+    for (int i = 0; i < bytes.length; i++) {
+      if ((buf[p + i] & 0xff) != bytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the offset right after the next occurrence of b, or -1.
+   */
+  private int indexOf(int p, byte b) {
+    while (p < length) {
+      if (buf[p++] == b) {
+        return p;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the offset right after the next occurrence of s, or -1.
+   */
+  private int indexOf(int p, String s) {
+    for (; p + s.length() <= length; p++) {
+      boolean match = true;
+      for (int i = 0; i < s.length() && match; i++) {
+        match = buf[p + i] == s.charAt(i);
+      }
+      if (match) {
+        return p + s.length();
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,293 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.xmlsimplesign;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.security.Signature;
+import java.security.interfaces.ECKey;
+
+/**
+ * The signature methods we can sign and verify with. Each algorithm keeps a
+ * JCE Signature object per thread, since looking one up is expensive, and
+ * Signatures aren't thread-safe.
+ */
+public enum SignatureAlgorithm {
+
+  RSA_SHA1(Constants.RSA_SHA1_ALGORITHM, Constants.RSA_SHA1_JCE_ID, "RSA",
+      "SHA-1", "NONEwithRSA", DigestInfo.SHA1),
+  RSA_SHA256(Constants.RSA_SHA256_ALGORITHM, "SHA256withRSA", "RSA",
+      "SHA-256", "NONEwithRSA", DigestInfo.SHA256),
+  ECDSA_SHA256(Constants.ECDSA_SHA256_ALGORITHM, "SHA256withECDSA", "EC",
+      "SHA-256", "NONEwithECDSA", new byte[0]) {
+
+    // XML-DSig wants the signature value to be the concatenation of r and s,
+    // each padded to the size of the curve, while the JCE produces a
+    // DER-encoded SEQUENCE of two INTEGERs
+    @Override
+    public byte[] toSignatureValue(byte[] jceSignature, Key key)
+        throws SignatureException {
+      int size = getFieldSize(key);
+      byte[] result = new byte[2 * size];
+      int offset = readDerHeader(jceSignature, 0, 0x30);
+      offset = copyInteger(jceSignature, offset, result, 0, size);
+      copyInteger(jceSignature, offset, result, size, size);
+      return result;
+    }
+
+    @Override
+    public byte[] toJceSignature(byte[] signatureValue, Key key)
+        throws SignatureException {
+      int size = getFieldSize(key);
+      if (signatureValue.length != 2 * size) {
+        throw new SignatureException("ECDSA signature has wrong length");
+      }
+      byte[] r = new BigInteger(1, copyOf(signatureValue, 0, size)).toByteArray();
+      byte[] s = new BigInteger(1, copyOf(signatureValue, size, size)).toByteArray();
+
+      int contentLength = 2 + r.length + 2 + s.length;
+      byte[] result = new byte[(contentLength > 0x7f ? 3 : 2) + contentLength];
+      int offset = 0;
+      result[offset++] = 0x30;
+      if (contentLength > 0x7f) {
+        result[offset++] = (byte) 0x81;
+      }
+      result[offset++] = (byte) contentLength;
+      result[offset++] = 0x02;
+      result[offset++] = (byte) r.length;
+      System.arraycopy(r, 0, result, offset, r.length);
+      offset += r.length;
+      result[offset++] = 0x02;
+      result[offset++] = (byte) s.length;
+      System.arraycopy(s, 0, result, offset, s.length);
+      return result;
+    }
+  };
+
+  private final String uri;
+  private final String jceName;
+  private final String keyAlgorithm;
+  private final String digestAlgorithm;
+  private final String prehashedJceName;
+  private final byte[] digestInfo;
+  private final ThreadLocal<Signature> signatures = new ThreadLocal<Signature>();
+  private final ThreadLocal<Signature> prehashedSignatures =
+      new ThreadLocal<Signature>();
+
+  /**
+   * @param prehashedJceName the JCE name of the signature algorithm that
+   *   takes a digest, rather than the data, as input
+   * @param digestInfo what goes in front of the digest when it is signed
+   *   (for RSA, the DER encoding of the DigestInfo, up to the digest itself)
+   */
+  private SignatureAlgorithm(String uri, String jceName, String keyAlgorithm,
+      String digestAlgorithm, String prehashedJceName, byte[] digestInfo) {
+    this.uri = uri;
+    this.jceName = jceName;
+    this.keyAlgorithm = keyAlgorithm;
+    this.digestAlgorithm = digestAlgorithm;
+    this.prehashedJceName = prehashedJceName;
+    this.digestInfo = digestInfo;
+  }
+
+  /**
+   * Returns the Algorithm of the SignatureMethod element.
+   */
+  public String getUri() {
+    return uri;
+  }
+
+  public String getJceName() {
+    return jceName;
+  }
+
+  /**
+   * Returns the algorithm of the keys (as in {@link Key#getAlgorithm()})
+   * that this signature method works with.
+   */
+  public String getKeyAlgorithm() {
+    return keyAlgorithm;
+  }
+
+  /**
+   * Returns the name of the MessageDigest this algorithm signs with.
+   */
+  public String getDigestAlgorithm() {
+    return digestAlgorithm;
+  }
+
+  public boolean isCompatibleWith(Key key) {
+    return keyAlgorithm.equals(key.getAlgorithm());
+  }
+
+  /**
+   * Returns the algorithm with the given SignatureMethod URI, or null if we
+   * don't know it.
+   */
+  public static SignatureAlgorithm fromUri(String uri) {
+    for (SignatureAlgorithm algorithm : values()) {
+      if (algorithm.uri.equals(uri)) {
+        return algorithm;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the algorithm to sign with if none is given: rsa-sha1 (which all
+   * verifiers understand) for RSA keys, and ecdsa-sha256 for EC keys.
+   */
+  public static SignatureAlgorithm getDefault(Key key)
+      throws GeneralSecurityException {
+    if (RSA_SHA1.isCompatibleWith(key)) {
+      return RSA_SHA1;
+    }
+    if (ECDSA_SHA256.isCompatibleWith(key)) {
+      return ECDSA_SHA256;
+    }
+    throw new GeneralSecurityException("unsupported key type: " + key.getAlgorithm());
+  }
+
+  /**
+   * Returns this thread's Signature object for this algorithm. Callers must
+   * initialize it, and must be done with it before using this algorithm
+   * again on the same thread.
+   */
+  public Signature getSignature() throws GeneralSecurityException {
+    Signature signature = signatures.get();
+    if (signature == null) {
+      signature = Signature.getInstance(jceName);
+      signatures.set(signature);
+    }
+    return signature;
+  }
+
+  /**
+   * Checks a SignatureValue against the digest of a document (computed with
+   * {@link #getDigestAlgorithm()}), rather than against the document itself.
+   * This gives the same answer as verifying with {@link #getSignature()}.
+   */
+  public boolean verifyDigest(byte[] digest, byte[] signatureValue,
+      PublicKey key) throws GeneralSecurityException {
+    Signature signature = prehashedSignatures.get();
+    if (signature == null) {
+      signature = Signature.getInstance(prehashedJceName);
+      prehashedSignatures.set(signature);
+    }
+    signature.initVerify(key);
+    signature.update(digestInfo);
+    signature.update(digest);
+    return signature.verify(toJceSignature(signatureValue, key));
+  }
+
+  /**
+   * Converts a signature produced by the JCE into a SignatureValue.
+   */
+  public byte[] toSignatureValue(byte[] jceSignature, Key key)
+      throws SignatureException {
+    return jceSignature;
+  }
+
+  /**
+   * Converts a SignatureValue into a signature that the JCE can verify.
+   */
+  public byte[] toJceSignature(byte[] signatureValue, Key key)
+      throws SignatureException {
+    return signatureValue;
+  }
+
+  private static int getFieldSize(Key key) throws SignatureException {
+    if (!(key instanceof ECKey)) {
+      throw new SignatureException("not an EC key");
+    }
+    return (((ECKey) key).getParams().getCurve().getField().getFieldSize() + 7) / 8;
+  }
+
+  /**
+   * Checks the tag of the DER element at offset, and returns the offset of
+   * its contents.
+   */
+  private static int readDerHeader(byte[] der, int offset, int tag)
+      throws SignatureException {
+    if (offset + 2 > der.length || (der[offset] & 0xff) != tag) {
+      throw new SignatureException("malformed ECDSA signature");
+    }
+    int length = der[offset + 1] & 0xff;
+    if (length == 0x81) {
+      return offset + 3;
+    } else if (length > 0x7f) {
+      throw new SignatureException("malformed ECDSA signature");
+    }
+    return offset + 2;
+  }
+
+  /**
+   * Copies the DER INTEGER at offset into size bytes of dest (dropping
+   * leading zeros, or padding with them), and returns the offset of the
+   * next element.
+   */
+  private static int copyInteger(byte[] der, int offset, byte[] dest,
+      int destOffset, int size) throws SignatureException {
+    int contents = readDerHeader(der, offset, 0x02);
+    int length = der[contents - 1] & 0xff;
+    int end = contents + length;
+    if (end > der.length) {
+      throw new SignatureException("malformed ECDSA signature");
+    }
+    while (length > size && der[contents] == 0) {
+      contents++;
+      length--;
+    }
+    if (length > size) {
+      throw new SignatureException("malformed ECDSA signature");
+    }
+    System.arraycopy(der, contents, dest, destOffset + size - length, length);
+    return end;
+  }
+
+  /**
+   * The DER encodings of the DigestInfo structures (RFC 3447, section 9.2)
+   * that RSA signatures wrap the digest in, up to the digest itself.
+   */
+  private static class DigestInfo {
+
+    static final byte[] SHA1 = toBytes(
+        0x30, 0x21, 0x30, 0x09, 0x06, 0x05, 0x2b, 0x0e, 0x03, 0x02, 0x1a,
+        0x05, 0x00, 0x04, 0x14);
+
+    static final byte[] SHA256 = toBytes(
+        0x30, 0x31, 0x30, 0x0d, 0x06, 0x09, 0x60, 0x86, 0x48, 0x01, 0x65,
+        0x03, 0x04, 0x02, 0x01, 0x05, 0x00, 0x04, 0x20);
+
+    private static byte[] toBytes(int... values) {
+      byte[] result = new byte[values.length];
+      for (int i = 0; i < values.length; i++) {
+        result[i] = (byte) values[i];
+      }
+      return result;
+    }
+  }
+
+  private static byte[] copyOf(byte[] bytes, int offset, int length) {
+    byte[] result = new byte[length];
+    System.arraycopy(bytes, offset, result, 0, length);
+    return result;
+  }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.xmlsimplesign;
+
+import com.google.common.collect.Lists;
+
+import java.util.List;
+
+/**
+ * The parts of a document's Signature element that the {@link Verifier}
+ * needs: the algorithms from the SignedInfo, the SignatureLocation, and the
+ * (base64-encoded) certificates from the KeyInfo. Missing elements are
+ * represented by null values (or false, for the containers).
+ *
+ * Signature blocks are read with {@link SignatureBlockReader}, either from
+ * a document on its own, or by a reader that streams through the rest of
+ * the document as well.
+ */
+public class SignatureBlock {
+
+  private boolean signedInfoPresent;
+  private String canonicalizationMethod;
+  private String signatureMethod;
+  private String signatureLocation;
+  private boolean keyInfoPresent;
+  private boolean x509DataPresent;
+  private final List<String> certificates = Lists.newArrayList();
+
+  public boolean isSignedInfoPresent() {
+    return signedInfoPresent;
+  }
+
+  void setSignedInfoPresent(boolean signedInfoPresent) {
+    this.signedInfoPresent = signedInfoPresent;
+  }
+
+  /**
+   * Returns the Algorithm of the CanonicalizationMethod, the empty string if
+   * the element had no Algorithm, or null if there was no such element.
+   */
+  public String getCanonicalizationMethod() {
+    return canonicalizationMethod;
+  }
+
+  void setCanonicalizationMethod(String canonicalizationMethod) {
+    this.canonicalizationMethod = canonicalizationMethod;
+  }
+
+  /**
+   * Returns the Algorithm of the SignatureMethod, the empty string if the
+   * element had no Algorithm, or null if there was no such element.
+   */
+  public String getSignatureMethod() {
+    return signatureMethod;
+  }
+
+  void setSignatureMethod(String signatureMethod) {
+    this.signatureMethod = signatureMethod;
+  }
+
+  /**
+   * Returns the (trimmed) text of the SignatureLocation, or null if there was
+   * no such element.
+   */
+  public String getSignatureLocation() {
+    return signatureLocation;
+  }
+
+  void setSignatureLocation(String signatureLocation) {
+    this.signatureLocation = signatureLocation;
+  }
+
+  public boolean isKeyInfoPresent() {
+    return keyInfoPresent;
+  }
+
+  void setKeyInfoPresent(boolean keyInfoPresent) {
+    this.keyInfoPresent = keyInfoPresent;
+  }
+
+  public boolean isX509DataPresent() {
+    return x509DataPresent;
+  }
+
+  void setX509DataPresent(boolean x509DataPresent) {
+    this.x509DataPresent = x509DataPresent;
+  }
+
+  /**
+   * Returns the base64-encoded certificates from the X509Data, in document
+   * order (i.e., signing certificate first). They may still contain line
+   * breaks.
+   */
+  public List<String> getCertificates() {
+    return certificates;
+  }
+
+  void addCertificate(String certificate) {
+    certificates.add(certificate);
+  }
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.xmlsimplesign;
+
+import com.google.step2.util.XmlUtil;
+
+import java.io.InputStream;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Pulls the {@link SignatureBlock} out of a document with a StAX parser,
+ * without building a tree of the document. Siblings of the Signature element
+ * (i.e., the actual content of the document) are skipped over, and we stop
+ * reading as soon as we've reached the end of the Signature element. In
+ * particular, this means that we don't notice if the document is not
+ * well-formed after the Signature element.
+ *
+ * Readers that stream through a document for other reasons (e.g., to read
+ * an XRDS) can pick up the signature block on their way with
+ * {@link #isSignature(XMLStreamReader)} and
+ * {@link #readSignature(XMLStreamReader)}.
+ */
+public class SignatureBlockReader {
+
+  private SignatureBlockReader() {
+  }
+
+  /**
+   * Returns the signature block of the document, or null if the root
+   * element of the document doesn't have a Signature child element.
+   */
+  public static SignatureBlock read(InputStream input)
+      throws XMLStreamException {
+    XMLStreamReader reader = XmlUtil.getXmlStreamReader(input);
+    try {
+      // move to the root element
+      int event = reader.getEventType();
+      while (event != XMLStreamConstants.START_ELEMENT) {
+        if (!reader.hasNext()) {
+          return null;
+        }
+        event = reader.next();
+      }
+
+      while (nextChild(reader)) {
+        if (isSignature(reader)) {
+          return readSignature(reader);
+        }
+        skipElement(reader);
+      }
+      return null;
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Returns true if the reader is on the start tag of a Signature element.
+   * Only a Signature element that is a child of the root element signs the
+   * document.
+   */
+  public static boolean isSignature(XMLStreamReader reader) {
+    return isDsig(reader, Constants.SIGNATURE_ELEMENT);
+  }
+
+  /**
+   * Reads the Signature element that the reader is on, and leaves the
+   * reader on its end tag.
+   */
+  public static SignatureBlock readSignature(XMLStreamReader reader)
+      throws XMLStreamException {
+    SignatureBlock block = new SignatureBlock();
+    while (nextChild(reader)) {
+      if (!block.isSignedInfoPresent()
+          && isDsig(reader, Constants.SIGNED_INFO_ELEMENT)) {
+        block.setSignedInfoPresent(true);
+        readSignedInfo(reader, block);
+      } else if (block.getSignatureLocation() == null
+          && isSimpleSig(reader, Constants.SIGNATURE_LOCATION_ELEMENT)) {
+        block.setSignatureLocation(reader.getElementText().trim());
+      } else if (!block.isKeyInfoPresent()
+          && isDsig(reader, Constants.KEY_INFO_ELEMENT)) {
+        block.setKeyInfoPresent(true);
+        readKeyInfo(reader, block);
+      } else {
+        skipElement(reader);
+      }
+    }
+    return block;
+  }
+
+  private static void readSignedInfo(XMLStreamReader reader,
+      SignatureBlock block) throws XMLStreamException {
+    while (nextChild(reader)) {
+      if (block.getCanonicalizationMethod() == null
+          && isDsig(reader, Constants.CANONICALIZATION_METHOD_ELEMENT)) {
+        block.setCanonicalizationMethod(getAlgorithm(reader));
+      } else if (block.getSignatureMethod() == null
+          && isDsig(reader, Constants.SIGNATURE_METHOD_ELEMENT)) {
+        block.setSignatureMethod(getAlgorithm(reader));
+      }
+      skipElement(reader);
+    }
+  }
+
+  private static void readKeyInfo(XMLStreamReader reader,
+      SignatureBlock block) throws XMLStreamException {
+    while (nextChild(reader)) {
+      if (!block.isX509DataPresent()
+          && isDsig(reader, Constants.X509_DATA_ELEMENT)) {
+        block.setX509DataPresent(true);
+        while (nextChild(reader)) {
+          if (isDsig(reader, Constants.X509_CERTIFICATE)) {
+            block.addCertificate(reader.getElementText().trim());
+          } else {
+            skipElement(reader);
+          }
+        }
+      } else {
+        skipElement(reader);
+      }
+    }
+  }
+
+  private static String getAlgorithm(XMLStreamReader reader) {
+    String algorithm =
+        reader.getAttributeValue(null, Constants.ALGORITHM_ATTRIBUTE);
+    return (algorithm == null) ? "" : algorithm;
+  }
+
+  /**
+   * Moves to the next child element of the current element. Returns false
+   * (leaving the reader on the end tag of the current element) if there are
+   * no more child elements.
+   */
+  private static boolean nextChild(XMLStreamReader reader)
+      throws XMLStreamException {
+    while (reader.hasNext()) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        return true;
+      }
+      if (event == XMLStreamConstants.END_ELEMENT) {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Moves the reader from the start tag of an element to its end tag.
+   */
+  private static void skipElement(XMLStreamReader reader)
+      throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0) {
+      int event = reader.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+  }
+
+  private static boolean isDsig(XMLStreamReader reader, String name) {
+    return isElement(reader, name, Constants.XML_DSIG_NAMESPACE);
+  }
+
+  private static boolean isSimpleSig(XMLStreamReader reader, String name) {
+    return isElement(reader, name, Constants.SIMPLE_SIGN_NAMESPACE);
+  }
+
+  private static boolean isElement(XMLStreamReader reader, String name,
+      String ns) {
+    return name.equals(reader.getLocalName())
+        && ns.equals(reader.getNamespaceURI());
+  }
+}
@@ -28,25 +28,43 @@ import org.jdom.output.Format;
 import org.jdom.output.XMLOutputter;
 
 import java.io.ByteArrayInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.GeneralSecurityException;
 import java.security.PrivateKey;
 import java.security.Signature;
+import java.security.SignatureException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.List;
 
 
 /**
- * Signs XML documents.
+ * Signs XML documents. {@link #sign()} parses the document, adds the
+ * Signature element, and signs the re-serialized document.
+ * {@link #sign(InputStream, OutputStream)} splices the Signature element
+ * into the document's bytes instead, which leaves the document's
+ * formatting alone, and doesn't need to hold the document in memory.
  */
 public class Signer {
 
+  private static final int STREAM_BUFFER_SIZE = 8192;
+
+  // how far into a document we look for the root element when streaming
+  private static final int MAX_PROLOG_SIZE = 64 * 1024;
+
   private byte[] document;
   private PrivateKey privateKey;
   private X509Certificate signingCert;
   private List<X509Certificate> certificateChain = new ArrayList<X509Certificate>();
   private String signatureFilePrefix;
+  private SignatureAlgorithm algorithm;
+
+  // the serialized KeyInfo element for the signing key and chain, used when
+  // streaming
+  private volatile byte[] keyInfo;
 
   public Signer() {
   }
@@ -59,6 +77,7 @@ public class Signer {
   public Signer setSigningKey(X509Certificate signingCert, PrivateKey privateKey) {
     this.signingCert = signingCert;
     this.privateKey = privateKey;
+    this.keyInfo = null;
     return this;
   }
 
@@ -74,8 +93,18 @@ public class Signer {
     return this;
   }
 
+  /**
+   * Sets the algorithm to sign with. If not set, RSA keys sign with rsa-sha1,
+   * and EC keys with ecdsa-sha256.
+   */
+  public Signer setSignatureAlgorithm(SignatureAlgorithm algorithm) {
+    this.algorithm = algorithm;
+    return this;
+  }
+
   public Signer addIntermediateCert(X509Certificate intermediate) {
     certificateChain.add(intermediate);
+    this.keyInfo = null;
     return this;
   }
 
@@ -85,17 +114,19 @@ public class Signer {
     Preconditions.checkNotNull(certificateChain);
 
     try {
+      SignatureAlgorithm signingAlgorithm = getSignatureAlgorithm();
       String signatureLocation = (signatureFilePrefix == null)
         ? null
         : signatureFilePrefix + RandUtil.getRandomString(8);
       Document xml = XmlUtil.getJdomDocument(new ByteArrayInputStream(document));
-      xml.getRootElement().addContent(0, createSignatureElement(signatureLocation));
+      xml.getRootElement().addContent(0,
+          createSignatureElement(signatureLocation, signingAlgorithm));
 
       XMLOutputter outputter = new XMLOutputter();
       outputter.setFormat(Format.getPrettyFormat());
       String textDoc = outputter.outputString(xml);
       byte[] docBytes = EncodingUtil.getUtf8Bytes(textDoc);
-      String sig = signDoc(docBytes);
+      String sig = signDoc(docBytes, signingAlgorithm);
       return new SignatureResult(docBytes, signatureLocation, sig);
     } catch (JDOMException e) {
       throw new XmlSimpleSignException("Can't parse input XML", e);
@@ -106,7 +137,167 @@ public class Signer {
     }
   }
 
-  private Element createSignatureElement(String location) throws GeneralSecurityException {
+  /**
+   * Signs a document without parsing and re-serializing it. The Signature
+   * element is spliced into the document as the first child of the root
+   * element, everything else is copied from in to out unchanged, and the
+   * signature is computed while the signed document is being written. The
+   * document must be encoded in UTF-8 (or ASCII).
+   *
+   * The document set with {@link #setDocument(byte[])} is ignored, so that
+   * a configured Signer can sign any number of documents this way, also from
+   * several threads at once.
+   *
+   * @return the signature and its location. The signed document was written
+   *   to out, so the result doesn't hold on to it: its document is null.
+   */
+  public SignatureResult sign(InputStream in, OutputStream out)
+      throws XmlSimpleSignException, IOException {
+    Preconditions.checkNotNull(signingCert);
+    Preconditions.checkNotNull(privateKey);
+
+    try {
+      SignatureAlgorithm signingAlgorithm = getSignatureAlgorithm();
+      String signatureLocation = (signatureFilePrefix == null)
+        ? null
+        : signatureFilePrefix + RandUtil.getRandomString(8);
+
+      // read until we're past the root's start tag
+      byte[] head = new byte[STREAM_BUFFER_SIZE];
+      int headLength = 0;
+      RootStartTagScanner root = null;
+      while (root == null) {
+        if (headLength == head.length) {
+          if (head.length >= MAX_PROLOG_SIZE) {
+            throw new XmlSimpleSignException("Can't find root element");
+          }
+          byte[] bigger = new byte[head.length * 2];
+          System.arraycopy(head, 0, bigger, 0, headLength);
+          head = bigger;
+        }
+        int read = in.read(head, headLength, head.length - headLength);
+        if (read < 0) {
+          throw new XmlSimpleSignException("Can't find root element");
+        }
+        headLength += read;
+        root = RootStartTagScanner.scan(head, headLength);
+      }
+
+      Signature signer = signingAlgorithm.getSignature();
+      signer.initSign(privateKey);
+      SigningOutputStream signed = new SigningOutputStream(out, signer);
+
+      byte[] signature =
+          createSignatureBlock(signatureLocation, signingAlgorithm);
+      if (root.isEmptyElement()) {
+        // <root/> becomes <root><ds:Signature .../></root>
+        signed.write(head, 0, root.getEnd() - 2);
+        signed.write('>');
+        signed.write(signature);
+        signed.write(EncodingUtil.getUtf8Bytes("</" + root.getName() + ">"));
+      } else {
+        signed.write(head, 0, root.getEnd());
+        signed.write(signature);
+      }
+      signed.write(head, root.getEnd(), headLength - root.getEnd());
+
+      byte[] buf = head;
+      int read;
+      while ((read = in.read(buf)) >= 0) {
+        signed.write(buf, 0, read);
+      }
+      signed.flush();
+
+      String sig = EncodingUtil.encodeBase64(
+          signingAlgorithm.toSignatureValue(signer.sign(), privateKey));
+      return new SignatureResult(null, signatureLocation, sig);
+    } catch (GeneralSecurityException e) {
+      throw new XmlSimpleSignException("Can't sign document", e);
+    }
+  }
+
+  /**
+   * Serializes the Signature element. Only the SignatureLocation differs
+   * between documents, so the rest of the element is cheap to produce.
+   */
+  private byte[] createSignatureBlock(String location,
+      SignatureAlgorithm signingAlgorithm) throws GeneralSecurityException {
+    StringBuilder sig = new StringBuilder();
+    sig.append("<ds:").append(Constants.SIGNATURE_ELEMENT)
+        .append(" xmlns:ds=\"").append(Constants.XML_DSIG_NAMESPACE).append("\">")
+        .append("<ds:").append(Constants.SIGNED_INFO_ELEMENT).append(">")
+        .append("<ds:").append(Constants.CANONICALIZATION_METHOD_ELEMENT)
+        .append(" ").append(Constants.ALGORITHM_ATTRIBUTE).append("=\"")
+        .append(Constants.CANONICALIZE_RAW_OCTETS).append("\"/>")
+        .append("<ds:").append(Constants.SIGNATURE_METHOD_ELEMENT)
+        .append(" ").append(Constants.ALGORITHM_ATTRIBUTE).append("=\"")
+        .append(signingAlgorithm.getUri()).append("\"/>")
+        .append("</ds:").append(Constants.SIGNED_INFO_ELEMENT).append(">");
+    if (location != null) {
+      sig.append("<sds:").append(Constants.SIGNATURE_LOCATION_ELEMENT)
+          .append(" xmlns:sds=\"").append(Constants.SIMPLE_SIGN_NAMESPACE).append("\">")
+          .append(escape(location))
+          .append("</sds:").append(Constants.SIGNATURE_LOCATION_ELEMENT).append(">");
+    }
+    byte[] head = EncodingUtil.getUtf8Bytes(sig.toString());
+    byte[] keyInfoBytes = getKeyInfo();
+    byte[] tail = EncodingUtil.getUtf8Bytes(
+        "</ds:" + Constants.SIGNATURE_ELEMENT + ">");
+
+    byte[] result = new byte[head.length + keyInfoBytes.length + tail.length];
+    System.arraycopy(head, 0, result, 0, head.length);
+    System.arraycopy(keyInfoBytes, 0, result, head.length, keyInfoBytes.length);
+    System.arraycopy(tail, 0, result, head.length + keyInfoBytes.length, tail.length);
+    return result;
+  }
+
+  /**
+   * Returns the serialized KeyInfo element, which only depends on the
+   * signing key and the certificate chain.
+   */
+  private byte[] getKeyInfo() throws GeneralSecurityException {
+    byte[] result = keyInfo;
+    if (result == null) {
+      StringBuilder info = new StringBuilder();
+      info.append("<ds:").append(Constants.KEY_INFO_ELEMENT).append(">")
+          .append("<ds:").append(Constants.X509_DATA_ELEMENT).append(">");
+      appendCertificate(info, signingCert);
+      for (X509Certificate cert : certificateChain) {
+        appendCertificate(info, cert);
+      }
+      info.append("</ds:").append(Constants.X509_DATA_ELEMENT).append(">")
+          .append("</ds:").append(Constants.KEY_INFO_ELEMENT).append(">");
+      result = EncodingUtil.getUtf8Bytes(info.toString());
+      keyInfo = result;
+    }
+    return result;
+  }
+
+  private void appendCertificate(StringBuilder info, X509Certificate cert)
+      throws GeneralSecurityException {
+    info.append("<ds:").append(Constants.X509_CERTIFICATE).append(">")
+        .append(getCertAsString(cert))
+        .append("</ds:").append(Constants.X509_CERTIFICATE).append(">");
+  }
+
+  private static String escape(String text) {
+    return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+  }
+
+  private SignatureAlgorithm getSignatureAlgorithm()
+      throws GeneralSecurityException {
+    if (algorithm == null) {
+      return SignatureAlgorithm.getDefault(privateKey);
+    }
+    if (!algorithm.isCompatibleWith(privateKey)) {
+      throw new GeneralSecurityException("can't sign with " + algorithm.getUri()
+          + " using a key of type " + privateKey.getAlgorithm());
+    }
+    return algorithm;
+  }
+
+  private Element createSignatureElement(String location,
+      SignatureAlgorithm signingAlgorithm) throws GeneralSecurityException {
     Element sig = new Element(Constants.SIGNATURE_ELEMENT, Constants.XML_DSIG_NS);
 
     Element signedInfo = dsigElement(Constants.SIGNED_INFO_ELEMENT);
@@ -115,10 +306,9 @@ public class Signer {
     c14n.setAttribute(Constants.ALGORITHM_ATTRIBUTE,
         Constants.CANONICALIZE_RAW_OCTETS);
 
-    // TODO: add support for rsa-sha256 and dsa
     Element signatureMethod = dsigElement(Constants.SIGNATURE_METHOD_ELEMENT);
     signatureMethod.setAttribute(Constants.ALGORITHM_ATTRIBUTE,
-        Constants.RSA_SHA1_ALGORITHM);
+        signingAlgorithm.getUri());
 
     Element signatureLocation = null;
     if (location != null) {
@@ -156,12 +346,13 @@ public class Signer {
     return EncodingUtil.encodeBase64(der);
   }
 
-  private String signDoc(byte[] docBytes) throws GeneralSecurityException {
-    // TODO(beaton) support DSA sigs as well?
-    Signature signer = Signature.getInstance(Constants.RSA_SHA1_JCE_ID);
+  private String signDoc(byte[] docBytes, SignatureAlgorithm signingAlgorithm)
+      throws GeneralSecurityException {
+    Signature signer = signingAlgorithm.getSignature();
     signer.initSign(privateKey);
     signer.update(docBytes);
-    return EncodingUtil.encodeBase64(signer.sign());
+    return EncodingUtil.encodeBase64(
+        signingAlgorithm.toSignatureValue(signer.sign(), privateKey));
   }
 
   private Element dsigElement(String name) {
@@ -171,4 +362,38 @@ public class Signer {
   private Element simpleSigElement(String name) {
     return new Element(name, Constants.SIMPLE_SIGN_NS);
   }
+
+  /**
+   * Passes everything written to it on to the signature, as well as to the
+   * underlying stream.
+   */
+  private static class SigningOutputStream extends FilterOutputStream {
+
+    private final Signature signature;
+
+    public SigningOutputStream(OutputStream out, Signature signature) {
+      super(out);
+      this.signature = signature;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      update(new byte[] { (byte) b }, 0, 1);
+      out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      update(b, off, len);
+      out.write(b, off, len);
+    }
+
+    private void update(byte[] b, int off, int len) throws IOException {
+      try {
+        signature.update(b, off, len);
+      } catch (SignatureException e) {
+        throw new IOException("Can't sign document: " + e.getMessage());
+      }
+    }
+  }
 }
@@ -0,0 +1,439 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.xmlsimplesign;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.step2.util.ByteArrayKey;
+import com.google.step2.util.EncodingUtil;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * A set of trust roots, indexed by subject and by subject key identifier.
+ *
+ * The PKIX validator tries every trust anchor it is given against the top
+ * of the chain, and the JDK ships with well over a hundred of them. A chain
+ * can only end in an anchor whose subject is the issuer of the top-most
+ * certificate, though, so we set up, once, PKIXParameters for every group
+ * of anchors that share a subject, and hand the validator only the group
+ * that matches the chain. When several anchors share a subject (e.g., a
+ * re-keyed root), the authority key identifier of the top-most certificate
+ * narrows it down further.
+ *
+ * An index can also be loaded from a snapshot, i.e., a file of PEM-encoded
+ * certificates written by {@link #writeSnapshot(Collection, OutputStream)}.
+ * That skips loading the JDK's trust store and setting up a
+ * TrustManagerFactory (as {@link DefaultTrustRootsProvider} does), and
+ * certificates from a snapshot aren't parsed until a chain needs them. To
+ * take a snapshot of the JDK's trust roots:
+ *
+ * <pre>
+ * TrustAnchorIndex.writeSnapshot(
+ *     new DefaultTrustRootsProvider().getTrustRoots(), out);
+ * </pre>
+ *
+ * Remember to take a fresh snapshot when the JDK's trust roots change.
+ *
+ * The parameters handed out are copies, which callers may modify.
+ */
+public class TrustAnchorIndex {
+
+  private static final Logger log = Logger.getLogger(TrustAnchorIndex.class.getName());
+
+  private static final String SUBJECT_KEY_ID_OID = "2.5.29.14";
+  private static final String AUTHORITY_KEY_ID_OID = "2.5.29.35";
+
+  private static final String BEGIN = "-----BEGIN CERTIFICATE-----";
+  private static final String END = "-----END CERTIFICATE-----";
+  private static final int LINE_LENGTH = 64;
+
+  // DER tags
+  private static final int OCTET_STRING = 0x04;
+  private static final int SEQUENCE = 0x30;
+  private static final int VERSION = 0xa0;
+  private static final int KEY_IDENTIFIER = 0x80;
+
+  private final Map<X500Principal, AnchorGroup> groups;
+
+  // all anchors, for chains that don't match any group
+  private volatile PKIXParameters allParams;
+
+  /**
+   * Indexes the given trust roots, and sets up the validation parameters for
+   * all of them right away.
+   *
+   * @throws IllegalArgumentException if there are no trust roots.
+   */
+  public TrustAnchorIndex(Collection<X509Certificate> trustRoots) {
+    Map<X500Principal, List<X509Certificate>> bySubject = Maps.newHashMap();
+    for (X509Certificate root : trustRoots) {
+      List<X509Certificate> sameSubject = bySubject.get(root.getSubjectX500Principal());
+      if (sameSubject == null) {
+        sameSubject = Lists.newArrayList();
+        bySubject.put(root.getSubjectX500Principal(), sameSubject);
+      }
+      sameSubject.add(root);
+    }
+
+    this.groups = Maps.newHashMap();
+    for (Map.Entry<X500Principal, List<X509Certificate>> entry : bySubject.entrySet()) {
+      AnchorGroup group = new AnchorGroup(null, entry.getValue());
+      group.setUp();
+      groups.put(entry.getKey(), group);
+    }
+    getAllParams();
+  }
+
+  private TrustAnchorIndex(Map<X500Principal, AnchorGroup> groups) {
+    this.groups = groups;
+  }
+
+  /**
+   * Reads a snapshot. The certificates in it are only parsed once a chain
+   * that may end in them needs to be validated.
+   *
+   * @throws IllegalArgumentException if there are no trust roots in the
+   *   snapshot.
+   */
+  public static TrustAnchorIndex load(InputStream snapshot)
+      throws IOException, GeneralSecurityException {
+    Map<X500Principal, List<byte[]>> bySubject = Maps.newHashMap();
+    BufferedReader in = new BufferedReader(
+        new InputStreamReader(snapshot, EncodingUtil.UTF8));
+
+    StringBuilder b64 = null;
+    String line;
+    while ((line = in.readLine()) != null) {
+      line = line.trim();
+      if (line.equals(BEGIN)) {
+        b64 = new StringBuilder();
+      } else if (line.equals(END) && b64 != null) {
+        byte[] encoded = EncodingUtil.decodeBase64(b64.toString());
+        X500Principal subject = new X500Principal(getSubject(encoded));
+        List<byte[]> sameSubject = bySubject.get(subject);
+        if (sameSubject == null) {
+          sameSubject = Lists.newArrayList();
+          bySubject.put(subject, sameSubject);
+        }
+        sameSubject.add(encoded);
+        b64 = null;
+      } else if (b64 != null) {
+        b64.append(line);
+      }
+    }
+
+    if (bySubject.isEmpty()) {
+      throw new IllegalArgumentException("no trust roots in snapshot");
+    }
+    Map<X500Principal, AnchorGroup> groups = Maps.newHashMap();
+    for (Map.Entry<X500Principal, List<byte[]>> entry : bySubject.entrySet()) {
+      groups.put(entry.getKey(), new AnchorGroup(entry.getValue(), null));
+    }
+    return new TrustAnchorIndex(groups);
+  }
+
+  /**
+   * Writes the certificates as a snapshot that {@link #load(InputStream)}
+   * can read.
+   */
+  public static void writeSnapshot(Collection<X509Certificate> trustRoots,
+      OutputStream out) throws IOException, CertificateEncodingException {
+    StringBuilder pem = new StringBuilder();
+    for (X509Certificate root : trustRoots) {
+      String b64 = EncodingUtil.encodeBase64(root.getEncoded());
+      pem.append(BEGIN).append('\n');
+      for (int i = 0; i < b64.length(); i += LINE_LENGTH) {
+        pem.append(b64, i, Math.min(b64.length(), i + LINE_LENGTH)).append('\n');
+      }
+      pem.append(END).append('\n');
+    }
+    out.write(EncodingUtil.getUtf8Bytes(pem.toString()));
+    out.flush();
+  }
+
+  public Set<TrustAnchor> getAnchors() {
+    return getAllParams().getTrustAnchors();
+  }
+
+  /**
+   * Returns the anchors that the given chain may end in.
+   */
+  public Set<TrustAnchor> getAnchors(List<X509Certificate> certs) {
+    return findParams(certs).getTrustAnchors();
+  }
+
+  /**
+   * Returns a copy of the validation parameters for the given chain, whose
+   * trust anchors are limited to the ones the chain may end in. If no
+   * anchor matches the chain, the parameters contain all anchors, so that
+   * the validator can produce a proper error.
+   */
+  public PKIXParameters getParameters(List<X509Certificate> certs) {
+    return (PKIXParameters) findParams(certs).clone();
+  }
+
+  private PKIXParameters findParams(List<X509Certificate> certs) {
+    if (certs.isEmpty()) {
+      return getAllParams();
+    }
+    X509Certificate top = certs.get(certs.size() - 1);
+    AnchorGroup group = groups.get(top.getIssuerX500Principal());
+    PKIXParameters params = (group == null) ? null : group.getParams(top);
+    return (params == null) ? getAllParams() : params;
+  }
+
+  private PKIXParameters getAllParams() {
+    PKIXParameters params = allParams;
+    if (params == null) {
+      synchronized (this) {
+        params = allParams;
+        if (params == null) {
+          List<TrustAnchor> all = Lists.newArrayList();
+          for (AnchorGroup group : groups.values()) {
+            all.addAll(group.getAnchors());
+          }
+          params = createParams(ImmutableSet.copyOf(all));
+          allParams = params;
+        }
+      }
+    }
+    return params;
+  }
+
+  private static PKIXParameters createParams(Set<TrustAnchor> anchors) {
+    try {
+      PKIXParameters params = new PKIXParameters(anchors);
+      params.setRevocationEnabled(false);
+      return params;
+    } catch (InvalidAlgorithmParameterException e) {
+      // there were no trust roots
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /**
+   * The trust anchors that share a subject. Anchors from a snapshot are
+   * parsed, and their parameters set up, on first use.
+   */
+  private static class AnchorGroup {
+
+    private List<byte[]> encoded;
+    private List<X509Certificate> certs;
+
+    // the fields below are only read once setUp is true. params is null if
+    // none of the certificates could be parsed.
+    private volatile boolean setUp;
+    private PKIXParameters params;
+    private Map<ByteArrayKey, PKIXParameters> paramsByKeyId;
+
+    public AnchorGroup(List<byte[]> encoded, List<X509Certificate> certs) {
+      this.encoded = encoded;
+      this.certs = certs;
+    }
+
+    public synchronized void setUp() {
+      if (setUp) {
+        return;
+      }
+
+      if (certs == null) {
+        certs = Lists.newArrayList();
+        for (byte[] der : encoded) {
+          try {
+            certs.add(CertUtil.getCertFromBytes(der));
+          } catch (GeneralSecurityException e) {
+            log.log(Level.WARNING, "could not parse trust root", e);
+          }
+        }
+        encoded = null;
+      }
+
+      List<TrustAnchor> anchors = Lists.newArrayList();
+      paramsByKeyId = Maps.newHashMap();
+      for (X509Certificate cert : certs) {
+        TrustAnchor anchor = new TrustAnchor(cert, null);
+        anchors.add(anchor);
+
+        // only worth it if the subject alone doesn't tell anchors apart
+        byte[] keyId = getSubjectKeyId(cert);
+        if (certs.size() > 1 && keyId != null) {
+          paramsByKeyId.put(new ByteArrayKey(keyId),
+              createParams(ImmutableSet.of(anchor)));
+        }
+      }
+      params = anchors.isEmpty() ? null : createParams(ImmutableSet.copyOf(anchors));
+      setUp = true;
+    }
+
+    public Collection<TrustAnchor> getAnchors() {
+      if (!setUp) {
+        setUp();
+      }
+      return (params == null)
+          ? Collections.<TrustAnchor>emptySet()
+          : params.getTrustAnchors();
+    }
+
+    /**
+     * Returns the parameters for a chain whose top-most certificate is the
+     * given one, or null if there are none.
+     */
+    public PKIXParameters getParams(X509Certificate top) {
+      if (!setUp) {
+        setUp();
+      }
+      if (!paramsByKeyId.isEmpty()) {
+        byte[] keyId = getAuthorityKeyId(top);
+        if (keyId != null) {
+          PKIXParameters keyParams = paramsByKeyId.get(new ByteArrayKey(keyId));
+          if (keyParams != null) {
+            return keyParams;
+          }
+        }
+      }
+      return params;
+    }
+  }
+
+  /**
+   * Returns the subject key identifier of the certificate, or null if it
+   * doesn't have one.
+   */
+  /* visible for testing */
+  static byte[] getSubjectKeyId(X509Certificate cert) {
+    // OCTET STRING (extension value) containing
+    //   OCTET STRING (key identifier)
+    byte[] der = unwrapExtension(cert.getExtensionValue(SUBJECT_KEY_ID_OID));
+    return (der == null) ? null : getContents(der, OCTET_STRING);
+  }
+
+  /**
+   * Returns the key identifier from the authority key identifier of the
+   * certificate, or null if it doesn't have one.
+   */
+  /* visible for testing */
+  static byte[] getAuthorityKeyId(X509Certificate cert) {
+    // OCTET STRING (extension value) containing
+    //   SEQUENCE { [0] key identifier OPTIONAL, ... }
+    byte[] der = unwrapExtension(cert.getExtensionValue(AUTHORITY_KEY_ID_OID));
+    if (der == null) {
+      return null;
+    }
+    byte[] sequence = getContents(der, SEQUENCE);
+    return (sequence == null) ? null : getContents(sequence, KEY_IDENTIFIER);
+  }
+
+  /**
+   * Returns the DER-encoded subject of a DER-encoded certificate, without
+   * parsing the rest of the certificate.
+   */
+  /* visible for testing */
+  static byte[] getSubject(byte[] cert) throws CertificateParsingException {
+    // SEQUENCE (certificate) {
+    //   SEQUENCE (tbsCertificate) {
+    //     [0] version OPTIONAL, serial number, signature algorithm, issuer,
+    //     validity, subject, ...
+    int[] certificate = readElement(cert, 0);
+    int[] tbs = (certificate == null || certificate[0] != SEQUENCE)
+        ? null
+        : readElement(cert, certificate[1]);
+    if (tbs == null || tbs[0] != SEQUENCE) {
+      throw new CertificateParsingException("not a certificate");
+    }
+
+    int offset = tbs[1];
+    int skip = 4;
+    int[] element = readElement(cert, offset);
+    if (element != null && element[0] == VERSION) {
+      skip++;
+    }
+    for (int i = 0; i < skip && element != null; i++) {
+      offset = element[1] + element[2];
+      element = readElement(cert, offset);
+    }
+    if (element == null || element[0] != SEQUENCE) {
+      throw new CertificateParsingException("could not find subject");
+    }
+    return Arrays.copyOfRange(cert, offset, element[1] + element[2]);
+  }
+
+  private static byte[] unwrapExtension(byte[] extensionValue) {
+    return (extensionValue == null) ? null : getContents(extensionValue, OCTET_STRING);
+  }
+
+  /**
+   * Returns the contents of the DER element at the beginning of der, or null
+   * if that element doesn't have the expected tag or is malformed.
+   */
+  private static byte[] getContents(byte[] der, int expectedTag) {
+    int[] element = readElement(der, 0);
+    if (element == null || element[0] != expectedTag) {
+      return null;
+    }
+    return Arrays.copyOfRange(der, element[1], element[1] + element[2]);
+  }
+
+  /**
+   * Reads the header of the DER element at the given offset. Returns the tag,
+   * the offset of the contents, and the length of the contents, or null if
+   * the element is malformed.
+   */
+  private static int[] readElement(byte[] der, int offset) {
+    if (offset + 2 > der.length) {
+      return null;
+    }
+    int tag = der[offset++] & 0xff;
+    int length = der[offset++] & 0xff;
+    if (length > 0x7f) {
+      int lengthBytes = length & 0x7f;
+      if (lengthBytes > 3 || offset + lengthBytes > der.length) {
+        return null;
+      }
+      length = 0;
+      for (int i = 0; i < lengthBytes; i++) {
+        length = (length << 8) | (der[offset++] & 0xff);
+      }
+    }
+    if (offset + length > der.length) {
+      return null;
+    }
+    return new int[] { tag, offset, length };
+  }
+}
@@ -18,39 +18,141 @@ package com.google.step2.xmlsimplesign;
 
 import com.google.common.collect.Lists;
 import com.google.inject.Inject;
-import com.google.step2.http.FetchException;
-import com.google.step2.http.FetchRequest;
-import com.google.step2.http.FetchResponse;
+import com.google.inject.name.Named;
+import com.google.step2.cache.CacheCodec;
+import com.google.step2.cache.Codecs;
+import com.google.step2.cache.NearCache;
+import com.google.step2.cache.SharedCache;
 import com.google.step2.http.HttpFetcher;
+import com.google.step2.util.ByteArrayKey;
+import com.google.step2.util.Cache;
 import com.google.step2.util.EncodingUtil;
-import com.google.step2.util.XmlUtil;
+import com.google.step2.util.ExpiringLruCache;
+import com.google.step2.util.TimeSource;
+import com.google.step2.util.Weigher;
+import com.google.step2.util.Weighers;
 
-import org.jdom.Document;
-import org.jdom.Element;
-import org.jdom.JDOMException;
-import org.jdom.Namespace;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.net.URI;
+import java.io.InputStream;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PublicKey;
 import java.security.Signature;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Future;
+
+import javax.xml.stream.XMLStreamException;
 
 /**
  * Verifies signatures on XML documents.
+ *
+ * Successful verifications are cached for a few minutes (but never beyond
+ * the expiry of any of the certificates involved), keyed by a digest of the
+ * document and the signature value. Verifying the same document with the
+ * same signature again then doesn't involve any crypto, except for computing
+ * the digest. Cached verifications from before the validator last dropped
+ * its own cached validations (e.g., because of new CRLs) aren't used.
+ *
+ * Detached signatures (see {@link DetachedSignatureFetcher}) are fetched
+ * as soon as the SignatureLocation has been read, while the certificates are
+ * decoded and validated. A cached detached signature that doesn't verify is
+ * fetched again (once), in case the document has been re-signed.
  */
 public class Verifier {
 
+  // cached results hold on to their certificate chains, so the cache is
+  // bounded by their (estimated) size in bytes, rather than by their number
+  private static final long VERIFICATION_CACHE_MAX_BYTES = 4 * 1024 * 1024;
+  private static final long VERIFICATION_CACHE_AGE_SECONDS = 10 * 60;
+  private static final String DIGEST_ALGORITHM = "SHA-256";
+
+  // MessageDigest objects aren't thread-safe, but looking them up for every
+  // verification is expensive, so we keep one per thread (as
+  // SignatureAlgorithm does for Signature objects)
+  private static final ThreadLocal<MessageDigest> digests =
+      new ThreadLocal<MessageDigest>();
+
+  private static final String SHARED_CACHE_NAMESPACE = "step2-verification:";
+
   private final CachedCertPathValidator validator;
-  private final HttpFetcher fetcher;
+  private final ExpiringLruCache<ByteArrayKey, CachedVerification>
+      localVerificationCache = new ExpiringLruCache<ByteArrayKey,
+          CachedVerification>(VERIFICATION_CACHE_MAX_BYTES,
+              new Weigher<ByteArrayKey, CachedVerification>() {
+                public int weigh(ByteArrayKey key, CachedVerification value) {
+                  return Weighers.weighCertificates(value.result.getCerts());
+                }
+              });
+  private Cache<ByteArrayKey, CachedVerification> verificationCache =
+      localVerificationCache;
+
+  // the validator's generation when we last looked, and the time we noticed
+  // it had changed. Cached verifications from before then aren't used.
+  private volatile long validatorGeneration;
+  private volatile long invalidatedAt = Long.MIN_VALUE;
+
+  private DetachedSignatureFetcher signatureFetcher;
+  private TimeSource timeSource = new TimeSource();
 
   @Inject
   public Verifier(CachedCertPathValidator validator, HttpFetcher fetcher) {
     this.validator = validator;
-    this.fetcher = fetcher;
+    this.signatureFetcher = new DetachedSignatureFetcher(fetcher);
+    this.validatorGeneration = validator.getGeneration();
+  }
+
+  public void setTimeSource(TimeSource timeSource) {
+    this.timeSource = timeSource;
+    localVerificationCache.setTimeSource(timeSource);
+    signatureFetcher.setTimeSource(timeSource);
+  }
+
+  /**
+   * Shares successful verifications with other nodes through the given
+   * cache, so that a document verified by one node isn't verified again by
+   * the others. Verifications in the shared cache are only used if they
+   * were written with the same secret (see {@link NearCache}).
+   */
+  @Inject(optional = true)
+  public void setSharedCache(SharedCache sharedCache,
+      @Named("SharedCacheSecret") String secret) {
+    this.verificationCache = new NearCache<ByteArrayKey, CachedVerification>(
+        localVerificationCache, sharedCache, SHARED_CACHE_NAMESPACE,
+        CachedVerification.CODEC, EncodingUtil.getUtf8Bytes(secret));
+  }
+
+  /**
+   * Returns the estimated number of bytes used by cached verification
+   * results (on this node).
+   */
+  public long getCacheWeight() {
+    return localVerificationCache.getWeight();
+  }
+
+  /**
+   * Returns a number that changes whenever signatures that have verified
+   * might not verify anymore (see
+   * {@link CachedCertPathValidator#getGeneration()}). Callers that cache
+   * what they learned from verified documents should drop it when it changes.
+   */
+  public long getGeneration() {
+    return validator.getGeneration();
+  }
+
+  @Inject(optional = true)
+  public void setDetachedSignatureFetcher(
+      DetachedSignatureFetcher signatureFetcher) {
+    this.signatureFetcher = signatureFetcher;
   }
 
   /**
@@ -58,6 +160,9 @@ public class Verifier {
    * not null, then we verify the supplied signature. If the signature is null,
    * then we fetch the signature from the location specified in the document.
    *
+   * The document is not parsed into a tree: we stream through it only until
+   * we have read the Signature element (see {@link SignatureBlockReader}).
+   *
    * @param document
    * @param signature if null, signature is fetched from location specified
    *   in the document.
@@ -65,27 +170,195 @@ public class Verifier {
    */
   public VerificationResult verify(byte[] document, String signature)
       throws XmlSimpleSignException {
-    try {
-      /* xml parsing bits */
-      Document xml = XmlUtil.getJdomDocument(new ByteArrayInputStream(document));
-      Element signatureElement =
-          findDsig(xml.getRootElement(), Constants.SIGNATURE_ELEMENT);
-      parseSignatureInfo(signatureElement);
-
-      List<X509Certificate> docCerts = parseCerts(signatureElement);
-
-      byte[] sig;
-      if (signature == null) {
-        sig = parseSignatureValue(signatureElement);
-      } else {
-        sig = EncodingUtil.decodeBase64(signature);
+    byte[] sig = null;
+    ByteArrayKey digest = null;
+    if (signature != null) {
+      // if we've seen this document and signature before, we don't even
+      // have to look at the document
+      sig = EncodingUtil.decodeBase64(signature);
+      digest = getDigest(document, null, sig);
+      VerificationResult cached = getCachedResult(digest);
+      if (cached != null) {
+        return cached;
       }
+    }
 
-      return checkSignature(document, sig, docCerts);
-    } catch (JDOMException e) {
+    SignatureBlock block;
+    try {
+      block = SignatureBlockReader.read(new ByteArrayInputStream(document));
+    } catch (XMLStreamException e) {
       throw new XmlSimpleSignException("XML error", e);
-    } catch (IOException e) {
+    }
+    return verify(document, null, block, sig, digest);
+  }
+
+  /**
+   * Verifies the signature on a document while it is being read from the
+   * given stream (e.g., an HTTP response). We stream through the document
+   * until we have read the Signature element, and only digest the rest of it,
+   * so the document is never buffered in full.
+   *
+   * @param signature if null, signature is fetched from location specified
+   *   in the document.
+   * @throws XmlSimpleSignException
+   */
+  public VerificationResult verify(InputStream document, String signature)
+      throws XmlSimpleSignException {
+    DigestingInputStream digested = new DigestingInputStream(document);
+    SignatureBlock block;
+    try {
+      block = SignatureBlockReader.read(digested);
+      digested.finish();
+    } catch (XMLStreamException e) {
       throw new XmlSimpleSignException("XML error", e);
+    } catch (IOException e) {
+      throw new XmlSimpleSignException("couldn't read document", e);
+    }
+    byte[] sig =
+        (signature == null) ? null : EncodingUtil.decodeBase64(signature);
+    return verify(null, digested, block, sig, null);
+  }
+
+  /**
+   * Verifies the signature on a document that the caller has streamed
+   * through a {@link DigestingInputStream}, picking up its signature block
+   * on the way (see {@link SignatureBlockReader#readSignature}). The
+   * signature is checked against the digest of what went through the
+   * stream, so the document is never buffered in full. Any part of the
+   * document that the caller didn't read is read from the stream before
+   * verifying.
+   *
+   * @param document the stream the document was read from
+   * @param block the signature block of the document, or null if it had
+   *   none (in which case verification fails)
+   * @param signature if null, signature is fetched from location specified
+   *   in the document.
+   * @throws XmlSimpleSignException
+   */
+  public VerificationResult verify(DigestingInputStream document,
+      SignatureBlock block, String signature) throws XmlSimpleSignException {
+    try {
+      document.finish();
+    } catch (IOException e) {
+      throw new XmlSimpleSignException("couldn't read document", e);
+    }
+    byte[] sig =
+        (signature == null) ? null : EncodingUtil.decodeBase64(signature);
+    return verify(null, document, block, sig, null);
+  }
+
+  /**
+   * Verifies the signature on a document that the caller has already parsed
+   * (for example, to extract information from it). The Signature element is
+   * looked up in the parsed document, while the signature itself is checked
+   * against the raw bytes of the document, so the two must represent the
+   * same document.
+   *
+   * @param document the raw bytes of the document
+   * @param xml the parsed document
+   * @param signature if null, signature is fetched from location specified
+   *   in the document.
+   * @throws XmlSimpleSignException
+   */
+  public VerificationResult verify(byte[] document, Document xml,
+      String signature) throws XmlSimpleSignException {
+    byte[] sig =
+        (signature == null) ? null : EncodingUtil.decodeBase64(signature);
+    return verify(document, null, getSignatureBlock(xml), sig, null);
+  }
+
+  /**
+   * Verifies the signature on a document that the caller has parsed from a
+   * {@link DigestingInputStream}: the signature is checked against the
+   * digest of what went through the stream, so the caller never needs to
+   * hold on to the raw bytes of the document. Any part of the document that
+   * the parser didn't read is read from the stream before verifying.
+   *
+   * @param document the stream the document was parsed from
+   * @param xml the parsed document
+   * @param signature if null, signature is fetched from location specified
+   *   in the document.
+   * @throws XmlSimpleSignException
+   */
+  public VerificationResult verify(DigestingInputStream document, Document xml,
+      String signature) throws XmlSimpleSignException {
+    try {
+      document.finish();
+    } catch (IOException e) {
+      throw new XmlSimpleSignException("couldn't read document", e);
+    }
+    byte[] sig =
+        (signature == null) ? null : EncodingUtil.decodeBase64(signature);
+    return verify(null, document, getSignatureBlock(xml), sig, null);
+  }
+
+  /**
+   * @param document the raw bytes of the document, or null if it was read
+   *   through digested
+   * @param digested the finished stream the document was read through, or
+   *   null if we have its raw bytes
+   * @param sig the signature value, or null if it should be fetched from
+   *   the SignatureLocation
+   * @param digest the digest of document and sig, if it has already been
+   *   computed, or null
+   */
+  private VerificationResult verify(byte[] document,
+      DigestingInputStream digested, SignatureBlock block, byte[] sig,
+      ByteArrayKey digest) throws XmlSimpleSignException {
+    // the result is only as recent as the CRLs we start out with
+    long verifiedAt = timeSource.currentTimeMillis();
+    SignatureAlgorithm algorithm = parseSignatureInfo(block);
+
+    // start fetching a detached signature right away. If it isn't cached,
+    // we decode and validate the certificates while it's on its way.
+    String location = null;
+    Future<byte[]> detached = null;
+    if (sig == null) {
+      location = getSignatureLocation(block);
+      detached = signatureFetcher.prefetch(location);
+    }
+
+    try {
+      List<X509Certificate> docCerts = null;
+      if (detached != null && !detached.isDone()) {
+        docCerts = parseCerts(block);
+        validator.validate(docCerts);
+      }
+      boolean validated = (docCerts != null);
+      if (detached != null) {
+        sig = signatureFetcher.getSignature(detached);
+      }
+
+      if (digest == null) {
+        digest = getDigest(document, digested, sig);
+        VerificationResult cached = getCachedResult(digest);
+        if (cached != null) {
+          return cached;
+        }
+      }
+
+      if (docCerts == null) {
+        docCerts = parseCerts(block);
+      }
+      VerificationResult result;
+      try {
+        result = checkSignature(document, digested, sig, docCerts, algorithm);
+      } catch (XmlSimpleSignException e) {
+        // the document may have been re-signed since we cached its detached
+        // signature, so we ask the server once more
+        if (location == null
+            || !signatureFetcher.evict(location, sig, verifiedAt)) {
+          throw e;
+        }
+        sig = signatureFetcher.fetch(location);
+        digest = getDigest(document, digested, sig);
+        result = checkSignature(document, digested, sig, docCerts, algorithm);
+      }
+      if (!validated) {
+        validator.validate(docCerts);
+      }
+      cacheResult(digest, result, verifiedAt);
+      return result;
     } catch (GeneralSecurityException e) {
       throw new XmlSimpleSignException("Signature verification error", e);
     } catch (CertValidatorException e) {
@@ -93,94 +366,210 @@ public class Verifier {
     }
   }
 
-  private void parseSignatureInfo(Element signature) throws XmlSimpleSignException {
+  private SignatureAlgorithm parseSignatureInfo(SignatureBlock signature)
+      throws XmlSimpleSignException {
 
     if (signature == null) {
       throw new XmlSimpleSignException("no Signature element");
     }
 
-    Element signedInfo = findDsig(signature, Constants.SIGNED_INFO_ELEMENT);
-    if (signedInfo == null) {
+    if (!signature.isSignedInfoPresent()) {
       throw new XmlSimpleSignException("No SignedInfo element");
     }
-    Element c14n = findDsig(signedInfo, Constants.CANONICALIZATION_METHOD_ELEMENT);
-    if (c14n == null) {
+    String c14nAlg = signature.getCanonicalizationMethod();
+    if (c14nAlg == null) {
       throw new XmlSimpleSignException("No CanonicalizationMethod element");
     }
-    String c14nAlg = c14n.getAttributeValue(Constants.ALGORITHM_ATTRIBUTE);
     if (!Constants.CANONICALIZE_RAW_OCTETS.equals(c14nAlg)) {
       throw new XmlSimpleSignException("Unknown canonicalization algorithm: " + c14nAlg);
     }
-    Element sigMethod = findDsig(signedInfo, Constants.SIGNATURE_METHOD_ELEMENT);
-    if (sigMethod == null) {
+    String signingAlg = signature.getSignatureMethod();
+    if (signingAlg == null) {
       throw new XmlSimpleSignException("No SignatureMethod element");
     }
-    // TODO: add support for alternate signing algorithms
-    String signingAlg = sigMethod.getAttributeValue(Constants.ALGORITHM_ATTRIBUTE);
-    if (!Constants.RSA_SHA1_ALGORITHM.equals(signingAlg)) {
+    SignatureAlgorithm algorithm = SignatureAlgorithm.fromUri(signingAlg);
+    if (algorithm == null) {
       throw new XmlSimpleSignException("Unknown signing algorithm: " + signingAlg);
     }
+    return algorithm;
   }
 
-  private byte[] parseSignatureValue(Element signature) throws XmlSimpleSignException {
-    Element signatureLocation = findSimpleSig(signature, Constants.SIGNATURE_LOCATION_ELEMENT);
-    if (signatureLocation == null) {
+  private String getSignatureLocation(SignatureBlock signature)
+      throws XmlSimpleSignException {
+    String signatureHref = signature.getSignatureLocation();
+    if (signatureHref == null) {
       throw new XmlSimpleSignException("No SignatureLocation element found");
     }
-    String signatureHref = signatureLocation.getTextTrim();
-    if (signatureHref == null) {
+    if (signatureHref.length() == 0) {
       throw new XmlSimpleSignException("No SignatureLocation text found");
     }
-
-    FetchRequest request = FetchRequest.createGetRequest(URI.create(signatureHref));
-    try {
-      FetchResponse r = fetcher.fetch(request);
-      return EncodingUtil.decodeBase64(r.getContentAsBytes());
-    } catch (FetchException e) {
-      throw new XmlSimpleSignException("couldn't fetch signature from " +
-          signatureHref, e);
-    }
+    return signatureHref;
   }
 
-  private List<X509Certificate> parseCerts(Element signature)
+  private List<X509Certificate> parseCerts(SignatureBlock signature)
       throws XmlSimpleSignException, GeneralSecurityException {
-    Element keyInfo = findDsig(signature, Constants.KEY_INFO_ELEMENT);
-    if (keyInfo == null) {
+    if (!signature.isKeyInfoPresent()) {
       throw new XmlSimpleSignException("No KeyInfo element found");
     }
-    Element x509Data = findDsig(keyInfo, Constants.X509_DATA_ELEMENT);
-    if (x509Data == null) {
+    if (!signature.isX509DataPresent()) {
       throw new XmlSimpleSignException("No X509Data element found");
     }
-    List<Element> certs = findElements(x509Data, Constants.X509_CERTIFICATE);
+    List<String> certs = signature.getCertificates();
     if (certs.isEmpty()) {
       throw new XmlSimpleSignException("No X509Certificate elements found");
     }
     List<X509Certificate> docCerts = Lists.newArrayList();
-    for (Element i : certs) {
-      docCerts.add(CertUtil.getCertFromBase64Bytes(i.getTextNormalize()));
+    for (String i : certs) {
+      docCerts.add(CertUtil.getCertFromBase64Bytes(i));
     }
     return docCerts;
   }
 
-  private VerificationResult checkSignature(byte[] document, byte[] sig,
-      List<X509Certificate> docCerts)
-      throws GeneralSecurityException, XmlSimpleSignException, CertValidatorException {
-    Signature verifier = Signature.getInstance(Constants.RSA_SHA1_JCE_ID);
-    verifier.initVerify(docCerts.get(0).getPublicKey());
-    verifier.update(document);
-    boolean match = verifier.verify(sig);
+  private VerificationResult checkSignature(byte[] document,
+      DigestingInputStream digested, byte[] sig,
+      List<X509Certificate> docCerts, SignatureAlgorithm algorithm)
+      throws GeneralSecurityException, XmlSimpleSignException {
+    PublicKey key = docCerts.get(0).getPublicKey();
+    if (!algorithm.isCompatibleWith(key)) {
+      throw new XmlSimpleSignException("Signing algorithm " + algorithm.getUri()
+          + " doesn't match key of type " + key.getAlgorithm());
+    }
+    boolean match;
+    if (document != null) {
+      Signature verifier = algorithm.getSignature();
+      verifier.initVerify(key);
+      verifier.update(document);
+      match = verifier.verify(algorithm.toJceSignature(sig, key));
+    } else {
+      match = algorithm.verifyDigest(
+          digested.getDigest(algorithm.getDigestAlgorithm()), sig, key);
+    }
     if (!match) {
       throw new XmlSimpleSignException("Signature is invalid");
     }
-    validator.validate(docCerts);
-    return new VerificationResult(docCerts);
+    return new VerificationResult(Collections.unmodifiableList(docCerts));
+  }
+
+  /**
+   * Returns a digest over the (SHA-256 digest of the) document and the
+   * signature value. The digest of the document has a fixed length, so no
+   * bytes can be moved between the document and the signature without
+   * changing the result. Documents verified from bytes and from streams
+   * share cache entries.
+   */
+  private ByteArrayKey getDigest(byte[] document,
+      DigestingInputStream digested, byte[] sig) throws XmlSimpleSignException {
+    MessageDigest md = digests.get();
+    if (md == null) {
+      try {
+        md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+      } catch (GeneralSecurityException e) {
+        throw new XmlSimpleSignException("Signature verification error", e);
+      }
+      digests.set(md);
+    }
+    byte[] documentDigest = (document != null)
+        ? md.digest(document)
+        : digested.getDigest(DIGEST_ALGORITHM);
+    md.update(documentDigest);
+    md.update(sig);
+    return new ByteArrayKey(md.digest());
+  }
+
+  private VerificationResult getCachedResult(ByteArrayKey digest) {
+    long now = timeSource.currentTimeMillis();
+    long generation = validator.getGeneration();
+    if (generation != validatorGeneration) {
+      validatorGeneration = generation;
+      invalidatedAt = now;
+    }
+
+    CachedVerification cached = verificationCache.get(digest);
+    if (cached == null) {
+      return null;
+    }
+    // the expiry of an entry in the shared cache isn't covered by its MAC,
+    // so we don't rely on it to keep old verifications out
+    if (now < cached.notBefore || now >= cached.notAfter
+        || cached.verifiedAt <= invalidatedAt
+        || now - cached.verifiedAt > VERIFICATION_CACHE_AGE_SECONDS * 1000L) {
+      return null;
+    }
+    return cached.result;
+  }
+
+  /**
+   * Caches a successful verification until the first of the certificates
+   * expires, or for VERIFICATION_CACHE_AGE_SECONDS, whichever comes first.
+   *
+   * @param verifiedAt when we started verifying
+   */
+  private void cacheResult(ByteArrayKey digest, VerificationResult result,
+      long verifiedAt) {
+    CachedVerification cached = CachedVerification.of(result, verifiedAt);
+    long secondsLeft =
+        (cached.notAfter - timeSource.currentTimeMillis()) / 1000L;
+    long maxAge = Math.min(VERIFICATION_CACHE_AGE_SECONDS, secondsLeft);
+    if (maxAge > 0) {
+      verificationCache.put(digest, cached, maxAge);
+    }
+  }
+
+  /**
+   * Collects the same information from a parsed document that
+   * {@link SignatureBlockReader} collects while streaming through it. Returns
+   * null if there is no Signature element.
+   */
+  private SignatureBlock getSignatureBlock(Document xml) {
+    Element signature =
+        findDsig(xml.getDocumentElement(), Constants.SIGNATURE_ELEMENT);
+    if (signature == null) {
+      return null;
+    }
+
+    SignatureBlock block = new SignatureBlock();
+
+    Element signedInfo = findDsig(signature, Constants.SIGNED_INFO_ELEMENT);
+    if (signedInfo != null) {
+      block.setSignedInfoPresent(true);
+      Element c14n =
+          findDsig(signedInfo, Constants.CANONICALIZATION_METHOD_ELEMENT);
+      if (c14n != null) {
+        block.setCanonicalizationMethod(
+            c14n.getAttribute(Constants.ALGORITHM_ATTRIBUTE));
+      }
+      Element sigMethod =
+          findDsig(signedInfo, Constants.SIGNATURE_METHOD_ELEMENT);
+      if (sigMethod != null) {
+        block.setSignatureMethod(
+            sigMethod.getAttribute(Constants.ALGORITHM_ATTRIBUTE));
+      }
+    }
+
+    Element signatureLocation =
+        findSimpleSig(signature, Constants.SIGNATURE_LOCATION_ELEMENT);
+    if (signatureLocation != null) {
+      block.setSignatureLocation(signatureLocation.getTextContent().trim());
+    }
+
+    Element keyInfo = findDsig(signature, Constants.KEY_INFO_ELEMENT);
+    if (keyInfo != null) {
+      block.setKeyInfoPresent(true);
+      Element x509Data = findDsig(keyInfo, Constants.X509_DATA_ELEMENT);
+      if (x509Data != null) {
+        block.setX509DataPresent(true);
+        for (Element i : findElements(x509Data, Constants.X509_CERTIFICATE)) {
+          block.addCertificate(i.getTextContent().trim());
+        }
+      }
+    }
+    return block;
   }
 
   private List<Element> findElements(Element parent, String name) {
     List<Element> els = new ArrayList<Element>();
     for (Element i : getChildren(parent)) {
-      if (name.equals(i.getName()) && Constants.XML_DSIG_NS.equals(i.getNamespace())) {
+      if (isElement(i, name, Constants.XML_DSIG_NAMESPACE)) {
         els.add(i);
       }
     }
@@ -188,24 +577,81 @@ public class Verifier {
   }
 
   private Element findDsig(Element parent, String name) {
-    return find(parent, name, Constants.XML_DSIG_NS);
+    return find(parent, name, Constants.XML_DSIG_NAMESPACE);
   }
 
   private Element findSimpleSig(Element parent, String name) {
-    return find(parent, name, Constants.SIMPLE_SIGN_NS);
+    return find(parent, name, Constants.SIMPLE_SIGN_NAMESPACE);
   }
 
-  private Element find(Element parent, String name, Namespace ns) {
+  private Element find(Element parent, String name, String ns) {
     for (Element i : getChildren(parent)) {
-      if (name.equals(i.getName()) && ns.equals(i.getNamespace())) {
+      if (isElement(i, name, ns)) {
         return i;
       }
     }
     return null;
   }
 
-  @SuppressWarnings("unchecked")
+  private boolean isElement(Element element, String name, String ns) {
+    return name.equals(element.getLocalName())
+        && ns.equals(element.getNamespaceURI());
+  }
+
   private List<Element> getChildren(Element xml) {
-    return xml.getChildren();
+    List<Element> children = new ArrayList<Element>();
+    for (Node i = xml.getFirstChild(); i != null; i = i.getNextSibling()) {
+      if (i.getNodeType() == Node.ELEMENT_NODE) {
+        children.add((Element) i);
+      }
+    }
+    return children;
+  }
+
+  /**
+   * A verification result, with the time span in which all of its
+   * certificates are valid, and the time it was verified at.
+   */
+  private static class CachedVerification {
+
+    // only the certificates and the time of verification go into a shared
+    // cache; the time span follows from the certificates
+    private static final CacheCodec<CachedVerification> CODEC =
+        new CacheCodec<CachedVerification>() {
+          public void write(CachedVerification value, DataOutput out)
+              throws IOException {
+            Codecs.verificationResult().write(value.result, out);
+            out.writeLong(value.verifiedAt);
+          }
+
+          public CachedVerification read(DataInput in) throws IOException {
+            VerificationResult result = Codecs.verificationResult().read(in);
+            return of(result, in.readLong());
+          }
+        };
+
+    private final VerificationResult result;
+    private final long notBefore;
+    private final long notAfter;
+    private final long verifiedAt;
+
+    public CachedVerification(VerificationResult result, long notBefore,
+        long notAfter, long verifiedAt) {
+      this.result = result;
+      this.notBefore = notBefore;
+      this.notAfter = notAfter;
+      this.verifiedAt = verifiedAt;
+    }
+
+    public static CachedVerification of(VerificationResult result,
+        long verifiedAt) {
+      long notBefore = Long.MIN_VALUE;
+      long notAfter = Long.MAX_VALUE;
+      for (X509Certificate cert : result.getCerts()) {
+        notBefore = Math.max(notBefore, cert.getNotBefore().getTime());
+        notAfter = Math.min(notAfter, cert.getNotAfter().getTime());
+      }
+      return new CachedVerification(result, notBefore, notAfter, verifiedAt);
+    }
   }
 }
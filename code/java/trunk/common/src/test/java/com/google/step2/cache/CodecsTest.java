@@ -0,0 +1,155 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.cache;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.step2.discovery.HostMeta;
+import com.google.step2.discovery.IdpIdentifier;
+import com.google.step2.discovery.SecureDiscoveryInformation;
+import com.google.step2.discovery.SecureUrlIdentifier;
+import com.google.step2.util.EncodingUtil;
+import com.google.step2.xmlsimplesign.CertConstantUtil;
+import com.google.step2.xmlsimplesign.VerificationResult;
+
+import junit.framework.TestCase;
+
+import org.openid4java.association.Association;
+import org.openid4java.discovery.DiscoveryInformation;
+import org.openid4java.discovery.UrlIdentifier;
+
+import java.io.IOException;
+import java.net.URL;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.List;
+
+public class CodecsTest extends TestCase {
+
+  public void testHostMeta() throws Exception {
+    HostMeta hostMeta = HostMeta.parseFromBytes(EncodingUtil.getUtf8Bytes(
+        "Link: <http://example.com/xrd>; rel=\"describedby\"; type=\"application/xrd+xml\"\n"
+        + "Link: <http://example.com/other>\n"
+        + "Link-Pattern: <http://example.com/user?uri={%uri}>; rel=\"describedby\"\n"));
+
+    HostMeta copy = roundTrip(Codecs.hostMeta(), hostMeta);
+    assertEquals(ImmutableList.copyOf(hostMeta.getLinks()),
+        ImmutableList.copyOf(copy.getLinks()));
+    assertEquals(ImmutableList.copyOf(hostMeta.getLinkPatterns()),
+        ImmutableList.copyOf(copy.getLinkPatterns()));
+  }
+
+  public void testDiscoveryInformation() throws Exception {
+    SecureDiscoveryInformation secure = new SecureDiscoveryInformation(
+        new URL("https://example.com/op"),
+        new SecureUrlIdentifier(new UrlIdentifier("http://example.com/user")),
+        null, DiscoveryInformation.OPENID2,
+        ImmutableSet.of(DiscoveryInformation.OPENID2));
+    secure.setSecure(true);
+    SecureDiscoveryInformation site = new SecureDiscoveryInformation(
+        new URL("https://example.com/op"), new IdpIdentifier("example.com"),
+        null, DiscoveryInformation.OPENID2_OP);
+
+    List<SecureDiscoveryInformation> copy = roundTrip(
+        Codecs.listOf(Codecs.discoveryInformation()),
+        ImmutableList.of(secure, site));
+    assertEquals(2, copy.size());
+
+    assertEquals(secure, copy.get(0));
+    assertTrue(copy.get(0).getClaimedIdentifier() instanceof SecureUrlIdentifier);
+    assertEquals("secure:http://example.com/user",
+        copy.get(0).getClaimedIdentifier().getIdentifier());
+    assertEquals(secure.getTypes(), copy.get(0).getTypes());
+
+    assertFalse(copy.get(1).isSecure());
+    assertEquals("example.com", copy.get(1).getClaimedIdentifier().getIdentifier());
+    assertEquals(DiscoveryInformation.OPENID2_OP, copy.get(1).getVersion());
+  }
+
+  public void testVerificationResult() throws Exception {
+    List<X509Certificate> certs = ImmutableList.of(
+        CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.INTERMEDIATE_PUB_CERT);
+    VerificationResult copy = roundTrip(Codecs.verificationResult(),
+        new VerificationResult(certs));
+    assertEquals(certs, copy.getCerts());
+  }
+
+  public void testAssociation() throws Exception {
+    for (Association association : new Association[] {
+        Association.generateHmacSha1("handle1", 600),
+        Association.generateHmacSha256("handle2", 600) }) {
+      Association copy = roundTrip(Codecs.association(), association);
+      assertEquals(association.getType(), copy.getType());
+      assertEquals(association.getHandle(), copy.getHandle());
+      assertEquals(association.getExpiry(), copy.getExpiry());
+      assertEquals(association.sign("hello"), copy.sign("hello"));
+    }
+  }
+
+  public void testMalformed() throws Exception {
+    byte[] encoded = Codecs.encode(Codecs.association(),
+        Association.generateHmacSha1("handle", 600));
+
+    byte[] otherVersion = encoded.clone();
+    otherVersion[0] = 2;
+    assertDecodeFails(otherVersion);
+    assertDecodeFails(Arrays.copyOf(encoded, encoded.length - 1));
+    assertDecodeFails(Arrays.copyOf(encoded, encoded.length + 1));
+  }
+
+  public void testEncrypt() throws Exception {
+    byte[] secret = EncodingUtil.getUtf8Bytes("fleet secret");
+    Association association = Association.generateHmacSha256("handle", 600);
+    byte[] encoded = Codecs.encode(Codecs.association(), association);
+    byte[] encrypted = Codecs.encrypt(secret, "key", encoded);
+    assertFalse(contains(encrypted, association.getMacKey().getEncoded()));
+    assertTrue(Arrays.equals(encoded, Codecs.decrypt(secret, "key", encrypted)));
+
+    // the same value encrypts differently every time
+    assertFalse(Arrays.equals(encrypted, Codecs.encrypt(secret, "key", encoded)));
+
+    assertNull(Codecs.decrypt(EncodingUtil.getUtf8Bytes("other secret"), "key",
+        encrypted));
+    assertNull(Codecs.decrypt(secret, "other key", encrypted));
+    byte[] tampered = encrypted.clone();
+    tampered[0] ^= 1;
+    assertNull(Codecs.decrypt(secret, "key", tampered));
+  }
+
+  static boolean contains(byte[] bytes, byte[] part) {
+    for (int i = 0; i + part.length <= bytes.length; i++) {
+      if (Arrays.equals(part, Arrays.copyOfRange(bytes, i, i + part.length))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void assertDecodeFails(byte[] encoded) {
+    try {
+      Codecs.decode(Codecs.association(), encoded);
+      fail("Should have thrown, value is malformed");
+    } catch (IOException e) {
+      // good
+    }
+  }
+
+  private static <V> V roundTrip(CacheCodec<V> codec, V value)
+      throws IOException {
+    return Codecs.decode(codec, Codecs.encode(codec, value));
+  }
+}
@@ -0,0 +1,272 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.cache;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.step2.discovery.HostMeta;
+import com.google.step2.util.EncodingUtil;
+import com.google.step2.util.ExpiringLruCache;
+import com.google.step2.util.FakeTimeSource;
+import com.google.step2.xmlsimplesign.CachedCertPathValidator;
+import com.google.step2.xmlsimplesign.CertConstantUtil;
+import com.google.step2.xmlsimplesign.SignatureResult;
+import com.google.step2.xmlsimplesign.Signer;
+import com.google.step2.xmlsimplesign.SignerTest;
+import com.google.step2.xmlsimplesign.Verifier;
+import com.google.step2.xmlsimplesign.XmlSimpleSignException;
+
+import junit.framework.TestCase;
+
+import org.openid4java.association.Association;
+
+import java.io.IOException;
+import java.util.List;
+
+public class SharedCacheServerTest extends TestCase {
+
+  private static final String SECRET = "fleet secret";
+
+  private FakeTimeSource timeSource;
+  private SharedCacheServer server;
+  private SocketSharedCache client;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    timeSource = new FakeTimeSource();
+    server = new SharedCacheServer(0, 1024 * 1024);
+    server.setTimeSource(timeSource);
+    server.start();
+    client = new SocketSharedCache("127.0.0.1", server.getPort());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    client.close();
+    server.stop();
+    super.tearDown();
+  }
+
+  public void testGetPutRemove() throws Exception {
+    assertNull(client.get("foo"));
+
+    client.put("foo", new byte[] { 1, 2, 3 }, 60);
+    SharedCache.Entry entry = client.get("foo");
+    assertEquals(3, entry.getValue().length);
+    assertEquals(3, entry.getValue()[2]);
+    assertEquals(60 * 1000L, entry.getRemainingMillis());
+    assertTrue(server.getWeight() > 3);
+
+    timeSource.advanceSeconds(20);
+    assertEquals(40 * 1000L, client.get("foo").getRemainingMillis());
+
+    client.remove("foo");
+    assertNull(client.get("foo"));
+    assertEquals(0, server.getWeight());
+  }
+
+  public void testExpiry() throws Exception {
+    client.put("foo", new byte[10], 60);
+    timeSource.advanceSeconds(60);
+    assertNull(client.get("foo"));
+  }
+
+  public void testNearCachesShareValues() throws Exception {
+    NearCache<String, HostMeta> node1 = newNearCache();
+    NearCache<String, HostMeta> node2 = newNearCache();
+
+    node1.put("example.com", HostMeta.parseFromBytes(EncodingUtil.getUtf8Bytes(
+        "Link: <http://example.com/xrd>; rel=\"describedby\"\n")), 60);
+
+    // the second node finds it in the shared cache, with the time it has left
+    timeSource.advanceSeconds(50);
+    HostMeta hostMeta = node2.get("example.com");
+    assertEquals(1, hostMeta.getLinks().size());
+    assertEquals(1, node2.getSharedHitCount());
+
+    // and keeps it locally, but no longer than the shared cache does
+    assertSame(hostMeta, node2.get("example.com"));
+    assertEquals(1, node2.getSharedHitCount());
+    timeSource.advanceSeconds(11);
+    assertNull(node2.get("example.com"));
+    assertEquals(1, node2.getSharedMissCount());
+  }
+
+  public void testNearCacheWithoutServer() throws Exception {
+    NearCache<String, HostMeta> node = newNearCache();
+    server.stop();
+
+    HostMeta hostMeta = new HostMeta();
+    node.put("example.com", hostMeta, 60);
+    assertSame(hostMeta, node.get("example.com"));
+    assertNull(node.get("other.com"));
+    assertEquals(2, node.getSharedFailureCount());
+  }
+
+  public void testAssociationStore() throws Exception {
+    // openid4java associations expire relative to the real clock
+    timeSource = new FakeTimeSource(System.currentTimeMillis());
+    server.setTimeSource(timeSource);
+    SharedAssociationStore store1 = new SharedAssociationStore(client, SECRET);
+    store1.setTimeSource(timeSource);
+    SharedAssociationStore store2 = new SharedAssociationStore(client, SECRET);
+    store2.setTimeSource(timeSource);
+
+    Association association = Association.generateHmacSha256("handle", 600);
+    store1.save("https://example.com/op", association);
+
+    // nobody who can talk to the shared cache can read the MAC key
+    byte[] raw = client.get("step2-association:latest https://example.com/op")
+        .getValue();
+    assertFalse(CodecsTest.contains(raw, association.getMacKey().getEncoded()));
+
+    Association shared = store2.load("https://example.com/op");
+    assertEquals("handle", shared.getHandle());
+    assertEquals(association.sign("hello"), shared.sign("hello"));
+    assertEquals("handle",
+        store2.load("https://example.com/op", "handle").getHandle());
+    assertNull(store2.load("https://example.com/op", "other"));
+
+    store1.remove("https://example.com/op", "handle");
+    assertNull(store1.load("https://example.com/op"));
+    SharedAssociationStore store3 = new SharedAssociationStore(client, SECRET);
+    store3.setTimeSource(timeSource);
+    assertNull(store3.load("https://example.com/op", "handle"));
+  }
+
+  public void testVerifiersShareResults() throws Exception {
+    timeSource = new FakeTimeSource(CertConstantUtil.VALID_TIME_MILLIS);
+    server.setTimeSource(timeSource);
+    SignatureResult signed = new Signer()
+        .setSigningKey(CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.SERVER_PRIV_KEY)
+        .addIntermediateCert(CertConstantUtil.INTERMEDIATE_PUB_CERT)
+        .setDocument(EncodingUtil.getUtf8Bytes(SignerTest.TEST_DOC))
+        .sign();
+
+    CachedCertPathValidator validator =
+        new CachedCertPathValidator(ImmutableSet.of(CertConstantUtil.CA_PUB_CERT));
+    validator.setTimeSource(timeSource);
+    Verifier verifier1 = new Verifier(validator, null);
+    verifier1.setTimeSource(timeSource);
+    verifier1.setSharedCache(client, SECRET);
+    verifier1.verify(signed.getDocument(), signed.getSignature());
+
+    // a node that doesn't trust the CA can't verify the document itself...
+    CachedCertPathValidator untrusting = new CachedCertPathValidator(
+        ImmutableSet.of(CertConstantUtil.EC_SERVER_PUB_CERT));
+    untrusting.setTimeSource(timeSource);
+    Verifier verifier2 = new Verifier(untrusting, null);
+    verifier2.setTimeSource(timeSource);
+    try {
+      verifier2.verify(signed.getDocument(), signed.getSignature());
+      fail("Should have thrown, CA isn't trusted");
+    } catch (XmlSimpleSignException e) {
+      // good
+    }
+
+    // ...but takes the word of the other nodes
+    verifier2.setSharedCache(client, SECRET);
+    assertEquals(CertConstantUtil.SERVER_PUB_CERT, verifier2.verify(
+        signed.getDocument(), signed.getSignature()).getCerts().get(0));
+  }
+
+  public void testOldVerificationsAreIgnored() throws Exception {
+    timeSource = new FakeTimeSource(CertConstantUtil.VALID_TIME_MILLIS);
+    server.setTimeSource(timeSource);
+    SignatureResult signed = new Signer()
+        .setSigningKey(CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.SERVER_PRIV_KEY)
+        .addIntermediateCert(CertConstantUtil.INTERMEDIATE_PUB_CERT)
+        .setDocument(EncodingUtil.getUtf8Bytes(SignerTest.TEST_DOC))
+        .sign();
+
+    CachedCertPathValidator validator =
+        new CachedCertPathValidator(ImmutableSet.of(CertConstantUtil.CA_PUB_CERT));
+    validator.setTimeSource(timeSource);
+    final List<String> keys = Lists.newArrayList();
+    SharedCache recording = new SharedCache() {
+      public Entry get(String key) throws IOException {
+        return client.get(key);
+      }
+
+      public void put(String key, byte[] value, long maxSeconds)
+          throws IOException {
+        keys.add(key);
+        client.put(key, value, maxSeconds);
+      }
+
+      public void remove(String key) throws IOException {
+        client.remove(key);
+      }
+    };
+    Verifier verifier1 = new Verifier(validator, null);
+    verifier1.setTimeSource(timeSource);
+    verifier1.setSharedCache(recording, SECRET);
+    verifier1.verify(signed.getDocument(), signed.getSignature());
+
+    // someone who can write to the shared cache keeps the verification
+    // around for much longer than it was meant to be
+    assertEquals(1, keys.size());
+    client.put(keys.get(0), client.get(keys.get(0)).getValue(), 24 * 60 * 60);
+    timeSource.advanceSeconds(60 * 60);
+
+    CachedCertPathValidator untrusting = new CachedCertPathValidator(
+        ImmutableSet.of(CertConstantUtil.EC_SERVER_PUB_CERT));
+    untrusting.setTimeSource(timeSource);
+    Verifier verifier2 = new Verifier(untrusting, null);
+    verifier2.setTimeSource(timeSource);
+    verifier2.setSharedCache(client, SECRET);
+    try {
+      verifier2.verify(signed.getDocument(), signed.getSignature());
+      fail("Should have thrown, shared verification is too old");
+    } catch (XmlSimpleSignException e) {
+      // good
+    }
+  }
+
+  public void testForgedValuesAreIgnored() throws Exception {
+    HostMeta hostMeta = HostMeta.parseFromBytes(EncodingUtil.getUtf8Bytes(
+        "Link: <http://example.com/xrd>; rel=\"describedby\"\n"));
+    NearCache<String, HostMeta> node = newNearCache();
+
+    // written by someone who doesn't know the secret
+    client.put("host-meta:example.com",
+        Codecs.encode(Codecs.hostMeta(), hostMeta), 60);
+    assertNull(node.get("example.com"));
+    newNearCache("other secret").put("example.com", hostMeta, 60);
+    assertNull(node.get("example.com"));
+
+    // a genuine value, moved to another key
+    newNearCache().put("example.com", hostMeta, 60);
+    client.put("host-meta:example.org",
+        client.get("host-meta:example.com").getValue(), 60);
+    assertNull(node.get("example.org"));
+    assertEquals(3, node.getSharedMissCount());
+  }
+
+  private NearCache<String, HostMeta> newNearCache() {
+    return newNearCache(SECRET);
+  }
+
+  private NearCache<String, HostMeta> newNearCache(String secret) {
+    ExpiringLruCache<String, HostMeta> local =
+        new ExpiringLruCache<String, HostMeta>(100);
+    local.setTimeSource(timeSource);
+    return new NearCache<String, HostMeta>(local, client, "host-meta:",
+        Codecs.hostMeta(), EncodingUtil.getUtf8Bytes(secret));
+  }
+}
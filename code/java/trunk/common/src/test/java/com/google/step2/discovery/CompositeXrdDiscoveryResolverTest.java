@@ -0,0 +1,80 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.discovery;
+
+import static com.google.step2.discovery.XrdLocationSelectorTest.getHostMeta;
+
+import junit.framework.TestCase;
+
+import org.openid4java.discovery.UrlIdentifier;
+
+public class CompositeXrdDiscoveryResolverTest extends TestCase {
+
+  private XrdResolver xrdResolver;
+  private LegacyXrdsResolver xrdsResolver;
+  private CompositeXrdDiscoveryResolver resolver;
+  private UrlIdentifier user;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    xrdResolver = new XrdResolver(null, null, null);
+    xrdsResolver = new LegacyXrdsResolver(null, null, null);
+    resolver = new CompositeXrdDiscoveryResolver(xrdResolver, xrdsResolver);
+    user = new UrlIdentifier("http://host.com/bob");
+  }
+
+  public void testSelectForSite() throws Exception {
+    HostMeta hostMeta = getHostMeta(
+        "Link: <http://foo.com/xrds>; rel=describedby; type=application/xrds+xml");
+    assertSame(xrdsResolver, resolver.select(hostMeta, null));
+
+    // both are equally cheap, so we prefer XRD
+    hostMeta = getHostMeta(
+        "Link: <http://foo.com/xrds>; rel=describedby; type=application/xrds+xml",
+        "Link: <http://foo.com/xrd>; rel=describedby; type=application/xrd+xml");
+    assertSame(xrdResolver, resolver.select(hostMeta, null));
+
+    // link-patterns don't help with discovery for the site
+    hostMeta = getHostMeta(
+        "Link: <http://foo.com/xrds>; rel=describedby; type=application/xrds+xml",
+        "Link-Pattern: <http://foo.com/xrd?uri={%uri}>; rel=describedby; "
+            + "type=application/xrd+xml");
+    assertSame(xrdsResolver, resolver.select(hostMeta, null));
+  }
+
+  public void testSelectForUser() throws Exception {
+    // a link-pattern to the user's XRDS saves fetching the site's XRD
+    HostMeta hostMeta = getHostMeta(
+        "Link: <http://foo.com/xrd>; rel=describedby; type=application/xrd+xml",
+        "Link-Pattern: <http://foo.com/xrds?uri={%uri}>; rel=describedby; "
+            + "type=application/xrds+xml");
+    assertSame(xrdsResolver, resolver.select(hostMeta, user));
+
+    hostMeta = getHostMeta(
+        "Link: <http://foo.com/xrd>; rel=describedby; type=application/xrd+xml",
+        "Link: <http://foo.com/xrds>; rel=describedby; type=application/xrds+xml");
+    assertSame(xrdResolver, resolver.select(hostMeta, user));
+  }
+
+  public void testSelectWithoutLinks() throws Exception {
+    HostMeta hostMeta = getHostMeta(
+        "Link: <http://foo.com/bar>; rel=describedby; type=text/html");
+    assertSame(xrdResolver, resolver.select(hostMeta, user));
+    assertEquals("application/xrd+xml", resolver.getDiscoveryDocumentType());
+  }
+}
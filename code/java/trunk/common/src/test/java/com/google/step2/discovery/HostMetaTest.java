@@ -63,4 +63,18 @@ public class HostMetaTest extends TestCase {
 
     assertEquals(7, links.size());
   }
+
+  public void testWeigher() throws Exception {
+    HostMeta empty = new HostMeta();
+    HostMeta hostMeta = HostMeta.parseFromBytes(hostMetaStr.getBytes());
+    HostMeta larger = HostMeta.parseFromBytes(
+        (hostMetaStr + "Link: <http://foo.com/a/much/longer/path>\n").getBytes());
+
+    int emptyWeight = HostMeta.weigher().weigh("foo.com", empty);
+    int weight = HostMeta.weigher().weigh("foo.com", hostMeta);
+    assertTrue(emptyWeight > 0);
+    // 9 links and link patterns, each with its URI
+    assertTrue(weight > emptyWeight + 9 * 2 * "http://foo.com/".length());
+    assertTrue(HostMeta.weigher().weigh("foo.com", larger) > weight);
+  }
 }
@@ -16,24 +16,28 @@
  */
 package com.google.step2.discovery;
 
-import static org.easymock.EasyMock.aryEq;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.isA;
 import static org.easymock.EasyMock.isNull;
+import static org.easymock.EasyMock.reportMatcher;
 
 import com.google.common.collect.ImmutableList;
 import com.google.step2.http.FetchRequest;
 import com.google.step2.http.FetchResponse;
 import com.google.step2.http.HttpFetcher;
+import com.google.step2.util.FakeTimeSource;
 import com.google.step2.xmlsimplesign.CertConstantUtil;
 import com.google.step2.xmlsimplesign.CertValidator;
+import com.google.step2.xmlsimplesign.DigestingInputStream;
+import com.google.step2.xmlsimplesign.SignatureBlock;
 import com.google.step2.xmlsimplesign.VerificationResult;
 import com.google.step2.xmlsimplesign.Verifier;
 import com.google.step2.xmlsimplesign.XmlSimpleSignException;
 
 import junit.framework.TestCase;
 
+import org.easymock.IArgumentMatcher;
 import org.easymock.classextension.EasyMock;
 import org.easymock.classextension.IMocksControl;
 import org.openid4java.discovery.UrlIdentifier;
@@ -42,11 +46,14 @@ import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.List;
 
 public class LegacyXrdsResolverTest extends TestCase {
 
-  private static String SITE_XRD =
+  static final String SITE_XRD =
     "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
     "<xrds:XRDS xmlns:xrds=\"xri://$xrds\" xmlns=\"xri://$xrd*($v*2.0)\">\n" +
     "<XRD>\n" +
@@ -65,7 +72,7 @@ public class LegacyXrdsResolverTest extends TestCase {
     "</XRD>\n" +
     "</xrds:XRDS>\n";
 
-  private static String SITE_XRD_NEXT_AUTHORITY =
+  static final String SITE_XRD_NEXT_AUTHORITY =
     "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
     "<xrds:XRDS xmlns:xrds=\"xri://$xrds\" xmlns=\"xri://$xrd*($v*2.0)\">\n" +
     "<XRD>\n" +
@@ -86,7 +93,7 @@ public class LegacyXrdsResolverTest extends TestCase {
     "</xrds:XRDS>\n";
 
 
-  private static String USER_XRD =
+  static final String USER_XRD =
     "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
     "<xrds:XRDS xmlns:xrds=\"xri://$xrds\" xmlns=\"xri://$xrd*($v*2.0)\">\n" +
     "<XRD>\n" +
@@ -99,7 +106,7 @@ public class LegacyXrdsResolverTest extends TestCase {
     "</XRD>\n" +
     "</xrds:XRDS>\n";
 
-  private static String USER_XRD_WITH_LOCAL_ID =
+  static final String USER_XRD_WITH_LOCAL_ID =
     "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
     "<xrds:XRDS xmlns:xrds=\"xri://$xrds\" xmlns=\"xri://$xrd*($v*2.0)\">\n" +
     "<XRD>\n" +
@@ -118,6 +125,7 @@ public class LegacyXrdsResolverTest extends TestCase {
   private LegacyXrdsResolver xrdResolver;
   private Verifier verifier;
   private CertValidator validator;
+  private FakeTimeSource timeSource;
 
   @Override
   protected void setUp() throws Exception {
@@ -126,7 +134,12 @@ public class LegacyXrdsResolverTest extends TestCase {
     fetcher = control.createMock(HttpFetcher.class);
     verifier = control.createMock(Verifier.class);
     validator = control.createMock(CertValidator.class);
+    expect(verifier.getGeneration()).andStubReturn(0L);
     xrdResolver = new LegacyXrdsResolver(fetcher, verifier, validator);
+
+    // the test certs have long expired, so we pretend it's Jan 31, 2009
+    timeSource = new FakeTimeSource(1233465103000L);
+    xrdResolver.setTimeSource(timeSource);
   }
 
   public void testFindOpEndpointsForSite() throws Exception {
@@ -135,7 +148,8 @@ public class LegacyXrdsResolverTest extends TestCase {
 
     FetchRequest httpRequest = FetchRequest.createGetRequest(siteXrdsUri);
 
-    expect(verifier.verify(isA(byte[].class), (String) isNull()))
+    expect(verifier.verify(isA(DigestingInputStream.class),
+        (SignatureBlock) isNull(), (String) isNull()))
         .andStubThrow(new XmlSimpleSignException("no signature"));
     expect(fetcher.fetch(httpRequest)).andReturn(new FakeResponse(SITE_XRD));
 
@@ -157,7 +171,8 @@ public class LegacyXrdsResolverTest extends TestCase {
 
     FetchRequest httpRequest = FetchRequest.createGetRequest(siteXrdsUri);
 
-    expect(verifier.verify(isA(byte[].class), (String) isNull()))
+    expect(verifier.verify(isA(DigestingInputStream.class),
+        (SignatureBlock) isNull(), (String) isNull()))
         .andStubThrow(new XmlSimpleSignException("no signature"));
     expect(fetcher.fetch(httpRequest)).andReturn(new FakeResponse(USER_XRD));
 
@@ -181,7 +196,8 @@ public class LegacyXrdsResolverTest extends TestCase {
 
     FetchRequest httpRequest = FetchRequest.createGetRequest(siteXrdsUri);
 
-    expect(verifier.verify(isA(byte[].class), (String) isNull()))
+    expect(verifier.verify(isA(DigestingInputStream.class),
+        (SignatureBlock) isNull(), (String) isNull()))
         .andStubThrow(new XmlSimpleSignException("no signature"));
     expect(fetcher.fetch(httpRequest)).andReturn(new FakeResponse(USER_XRD_WITH_LOCAL_ID));
 
@@ -205,7 +221,8 @@ public class LegacyXrdsResolverTest extends TestCase {
 
     FetchRequest httpRequest = FetchRequest.createGetRequest(siteXrdsUri);
 
-    expect(verifier.verify(isA(byte[].class), (String) isNull()))
+    expect(verifier.verify(isA(DigestingInputStream.class),
+        (SignatureBlock) isNull(), (String) isNull()))
         .andStubThrow(new XmlSimpleSignException("no signature"));
     expect(fetcher.fetch(httpRequest)).andReturn(new FakeResponse(SITE_XRD));
 
@@ -242,7 +259,8 @@ public class LegacyXrdsResolverTest extends TestCase {
             CertConstantUtil.INTERMEDIATE_PUB_CERT));
 
     expect(fetcher.fetch(httpRequest)).andReturn(new FakeResponse(SITE_XRD));
-    expect(verifier.verify(aryEq(SITE_XRD.getBytes()), (String) isNull()))
+    expect(verifier.verify(digestOf(SITE_XRD),
+        (SignatureBlock) isNull(), (String) isNull()))
         .andReturn(verification);
     expect(validator.matches(CertConstantUtil.SERVER_PUB_CERT, "balfanz.net"))
         .andReturn(Boolean.TRUE);
@@ -254,7 +272,8 @@ public class LegacyXrdsResolverTest extends TestCase {
         URI.create(userXrdsUri));
 
     expect(fetcher.fetch(nextRequest)).andReturn(new FakeResponse(USER_XRD));
-    expect(verifier.verify(aryEq(USER_XRD.getBytes()), (String) isNull()))
+    expect(verifier.verify(digestOf(USER_XRD),
+        (SignatureBlock) isNull(), (String) isNull()))
         .andReturn(verification);
     expect(validator.matches(CertConstantUtil.SERVER_PUB_CERT,
         "http://balfanz.net/openid?id=12345"))
@@ -287,8 +306,8 @@ public class LegacyXrdsResolverTest extends TestCase {
 
     expect(fetcher.fetch(httpRequest))
         .andReturn(new FakeResponse(SITE_XRD_NEXT_AUTHORITY));
-    expect(verifier.verify(aryEq(SITE_XRD_NEXT_AUTHORITY.getBytes()),
-        (String) isNull()))
+    expect(verifier.verify(digestOf(SITE_XRD_NEXT_AUTHORITY),
+        (SignatureBlock) isNull(), (String) isNull()))
         .andReturn(verification);
     expect(validator.matches(CertConstantUtil.SERVER_PUB_CERT, "balfanz.net"))
         .andReturn(Boolean.TRUE);
@@ -300,7 +319,8 @@ public class LegacyXrdsResolverTest extends TestCase {
         URI.create(userXrdsUri));
 
     expect(fetcher.fetch(nextRequest)).andReturn(new FakeResponse(USER_XRD));
-    expect(verifier.verify(aryEq(USER_XRD.getBytes()), (String) isNull()))
+    expect(verifier.verify(digestOf(USER_XRD),
+        (SignatureBlock) isNull(), (String) isNull()))
         .andReturn(verification);
     expect(validator.matches(CertConstantUtil.SERVER_PUB_CERT,
         "www.google.com"))
@@ -337,7 +357,8 @@ public class LegacyXrdsResolverTest extends TestCase {
     userResponse.setSignature("userSig");
 
     expect(fetcher.fetch(httpRequest)).andReturn(siteResponse);
-    expect(verifier.verify(aryEq(SITE_XRD.getBytes()), eq("siteSig")))
+    expect(verifier.verify(digestOf(SITE_XRD),
+        (SignatureBlock) isNull(), eq("siteSig")))
         .andReturn(verification);
     expect(validator.matches(CertConstantUtil.SERVER_PUB_CERT, "balfanz.net"))
         .andReturn(Boolean.TRUE);
@@ -349,7 +370,8 @@ public class LegacyXrdsResolverTest extends TestCase {
         URI.create(userXrdsUri));
 
     expect(fetcher.fetch(nextRequest)).andReturn(userResponse);
-    expect(verifier.verify(aryEq(USER_XRD.getBytes()), eq("userSig")))
+    expect(verifier.verify(digestOf(USER_XRD),
+        (SignatureBlock) isNull(), eq("userSig")))
         .andReturn(verification);
     expect(validator.matches(CertConstantUtil.SERVER_PUB_CERT,
         "http://balfanz.net/openid?id=12345"))
@@ -369,7 +391,149 @@ public class LegacyXrdsResolverTest extends TestCase {
     assertNull(info.getDelegateIdentifier());
   }
 
-  private static class FakeResponse implements FetchResponse {
+  public void testSiteXrdIsCached() throws Exception {
+    UrlIdentifier user1 = new UrlIdentifier("http://balfanz.net/openid?id=12345");
+    UrlIdentifier user2 = new UrlIdentifier("http://balfanz.net/openid?id=67890");
+    URI siteXrdsUri = URI.create("http://example.com/xrds");
+    VerificationResult verification = new VerificationResult(
+        ImmutableList.of(
+            CertConstantUtil.SERVER_PUB_CERT,
+            CertConstantUtil.INTERMEDIATE_PUB_CERT));
+
+    // the site's XRDS is fetched and verified once
+    expect(fetcher.fetch(FetchRequest.createGetRequest(siteXrdsUri)))
+        .andReturn(new FakeResponse(SITE_XRD_NEXT_AUTHORITY));
+    expect(verifier.verify(digestOf(SITE_XRD_NEXT_AUTHORITY),
+        (SignatureBlock) isNull(), (String) isNull()))
+        .andReturn(verification);
+    expect(validator.matches(CertConstantUtil.SERVER_PUB_CERT, "balfanz.net"))
+        .andReturn(Boolean.TRUE);
+
+    // each user's XRDS is fetched and verified, against the next authority
+    for (UrlIdentifier user : new UrlIdentifier[] { user1, user2 }) {
+      String userXrd = USER_XRD.replace("12345",
+          user.getIdentifier().substring(user.getIdentifier().length() - 5));
+      String userXrdsUri = "https://www.google.com/accounts/o8/user-xrds?uri="
+          + URLEncoder.encode(user.getIdentifier(), "UTF-8");
+      expect(fetcher.fetch(FetchRequest.createGetRequest(URI.create(userXrdsUri))))
+          .andReturn(new FakeResponse(userXrd));
+      expect(verifier.verify(digestOf(userXrd),
+          (SignatureBlock) isNull(), (String) isNull()))
+          .andReturn(verification);
+      expect(validator.matches(CertConstantUtil.SERVER_PUB_CERT,
+          "www.google.com"))
+          .andReturn(Boolean.TRUE);
+    }
+
+    control.replay();
+    List<SecureDiscoveryInformation> result1 =
+        xrdResolver.findOpEndpointsForUserThroughSiteXrd(user1, siteXrdsUri);
+    List<SecureDiscoveryInformation> result2 =
+        xrdResolver.findOpEndpointsForUserThroughSiteXrd(user2, siteXrdsUri);
+    control.verify();
+
+    assertTrue(result1.get(0).isSecure());
+    assertEquals(user1.getIdentifier(),
+        result1.get(0).getClaimedIdentifier().toString());
+    assertTrue(result2.get(0).isSecure());
+    assertEquals(user2.getIdentifier(),
+        result2.get(0).getClaimedIdentifier().toString());
+  }
+
+  public void testSiteXrdIsReverifiedWhenGenerationChanges()
+      throws Exception {
+    UrlIdentifier user = new UrlIdentifier("http://balfanz.net/openid?id=12345");
+    URI siteXrdsUri = URI.create("http://example.com/xrds");
+    String userXrdsUri = "https://www.google.com/accounts/o8/user-xrds?uri="
+        + URLEncoder.encode(user.getIdentifier(), "UTF-8");
+    VerificationResult verification = new VerificationResult(
+        ImmutableList.of(
+            CertConstantUtil.SERVER_PUB_CERT,
+            CertConstantUtil.INTERMEDIATE_PUB_CERT));
+
+    // e.g., new CRLs come in between the two discoveries
+    expect(verifier.getGeneration()).andReturn(0L);
+    expect(verifier.getGeneration()).andReturn(1L);
+
+    expect(fetcher.fetch(FetchRequest.createGetRequest(siteXrdsUri)))
+        .andReturn(new FakeResponse(SITE_XRD_NEXT_AUTHORITY)).times(2);
+    expect(verifier.verify(digestOf(SITE_XRD_NEXT_AUTHORITY),
+        (SignatureBlock) isNull(), (String) isNull()))
+        .andReturn(verification).times(2);
+    expect(validator.matches(CertConstantUtil.SERVER_PUB_CERT, "balfanz.net"))
+        .andReturn(Boolean.TRUE).times(2);
+    expect(fetcher.fetch(FetchRequest.createGetRequest(URI.create(userXrdsUri))))
+        .andReturn(new FakeResponse(USER_XRD)).times(2);
+    expect(verifier.verify(digestOf(USER_XRD),
+        (SignatureBlock) isNull(), (String) isNull()))
+        .andReturn(verification).times(2);
+    expect(validator.matches(CertConstantUtil.SERVER_PUB_CERT,
+        "www.google.com"))
+        .andReturn(Boolean.TRUE).times(2);
+
+    control.replay();
+    xrdResolver.findOpEndpointsForUserThroughSiteXrd(user, siteXrdsUri);
+    List<SecureDiscoveryInformation> result =
+        xrdResolver.findOpEndpointsForUserThroughSiteXrd(user, siteXrdsUri);
+    control.verify();
+
+    assertTrue(result.get(0).isSecure());
+  }
+
+  public void testUnsignedSiteXrdIsCachedBriefly() throws Exception {
+    UrlIdentifier user = new UrlIdentifier("http://balfanz.net/openid?id=12345");
+    URI siteXrdsUri = URI.create("http://example.com/xrds");
+    String userXrdsUri = "https://www.google.com/accounts/o8/user-xrds?uri="
+        + URLEncoder.encode(user.getIdentifier(), "UTF-8");
+
+    expect(verifier.verify(isA(DigestingInputStream.class),
+        (SignatureBlock) isNull(), (String) isNull()))
+        .andStubThrow(new XmlSimpleSignException("no signature"));
+    expect(fetcher.fetch(FetchRequest.createGetRequest(siteXrdsUri)))
+        .andReturn(new FakeResponse(SITE_XRD)).times(2);
+    expect(fetcher.fetch(FetchRequest.createGetRequest(URI.create(userXrdsUri))))
+        .andReturn(new FakeResponse(USER_XRD)).times(3);
+
+    control.replay();
+    xrdResolver.findOpEndpointsForUserThroughSiteXrd(user, siteXrdsUri);
+    timeSource.advanceSeconds(30);
+    xrdResolver.findOpEndpointsForUserThroughSiteXrd(user, siteXrdsUri);
+    timeSource.advanceSeconds(31);
+    List<SecureDiscoveryInformation> result =
+        xrdResolver.findOpEndpointsForUserThroughSiteXrd(user, siteXrdsUri);
+    control.verify();
+
+    assertFalse(result.get(0).isSecure());
+  }
+
+  /**
+   * Matches a (finished) DigestingInputStream that the given document was
+   * read through.
+   */
+  private static DigestingInputStream digestOf(final String document) {
+    reportMatcher(new IArgumentMatcher() {
+      public boolean matches(Object argument) {
+        if (!(argument instanceof DigestingInputStream)) {
+          return false;
+        }
+        try {
+          byte[] expected = MessageDigest.getInstance("SHA-256")
+              .digest(document.getBytes());
+          return Arrays.equals(expected,
+              ((DigestingInputStream) argument).getDigest("SHA-256"));
+        } catch (NoSuchAlgorithmException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+
+      public void appendTo(StringBuffer buffer) {
+        buffer.append("digestOf(").append(document).append(")");
+      }
+    });
+    return null;
+  }
+
+  static class FakeResponse implements FetchResponse {
 
     private final String content;
     private final int status;
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.discovery;
+
+import static org.easymock.EasyMock.aryEq;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.isNull;
+
+import com.google.common.collect.ImmutableList;
+import com.google.step2.discovery.LegacyXrdsResolverTest.FakeResponse;
+import com.google.step2.http.FetchRequest;
+import com.google.step2.http.HttpFetcher;
+import com.google.step2.xmlsimplesign.CertConstantUtil;
+import com.google.step2.xmlsimplesign.CertValidator;
+import com.google.step2.xmlsimplesign.VerificationResult;
+import com.google.step2.xmlsimplesign.Verifier;
+import com.google.step2.xmlsimplesign.XmlSimpleSignException;
+
+import junit.framework.TestCase;
+
+import org.easymock.classextension.EasyMock;
+import org.easymock.classextension.IMocksControl;
+import org.openid4java.discovery.DiscoveryException;
+import org.openid4java.discovery.UrlIdentifier;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.util.List;
+
+public class XrdResolverTest extends TestCase {
+
+  static final String SITE_XRD =
+    "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+    "<XRD xmlns=\"http://docs.oasis-open.org/ns/xri/xrd-1.0\"\n" +
+    "     xmlns:openid=\"http://namespace.google.com/openid/xmlns\">\n" +
+    "<Subject>balfanz.net</Subject>\n" +
+    "<Link rel=\"http://specs.openid.net/auth/2.0/server\"\n" +
+    "      href=\"https://www.google.com/a/balfanz.net/o8/ud?be=o8\"/>\n" +
+    "<Link rel=\"http://specs.openid.net/auth/2.0/server\"\n" +
+    "      href=\"https://backup.balfanz.net/op\"/>\n" +
+    "<Link rel=\"describedby\" type=\"application/xrd+xml\"\n" +
+    "      template=\"https://www.google.com/accounts/o8/user-xrd?uri={%uri}\">\n" +
+    "  <openid:NextAuthority>www.google.com</openid:NextAuthority>\n" +
+    "</Link>\n" +
+    "</XRD>\n";
+
+  static final String USER_XRD =
+    "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+    "<XRD xmlns=\"http://docs.oasis-open.org/ns/xri/xrd-1.0\"\n" +
+    "     xmlns:openid=\"http://namespace.google.com/openid/xmlns\">\n" +
+    "<Subject>http://balfanz.net/openid?id=12345</Subject>\n" +
+    "<Link rel=\"http://specs.openid.net/auth/2.0/signon\"\n" +
+    "      href=\"https://www.google.com/a/balfanz.net/o8/ud?be=o8\">\n" +
+    "  <openid:LocalID>12345</openid:LocalID>\n" +
+    "</Link>\n" +
+    "</XRD>\n";
+
+  private IMocksControl control;
+  private HttpFetcher fetcher;
+  private Verifier verifier;
+  private CertValidator validator;
+  private XrdResolver resolver;
+  private VerificationResult verification;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    control = EasyMock.createControl();
+    fetcher = control.createMock(HttpFetcher.class);
+    verifier = control.createMock(Verifier.class);
+    validator = control.createMock(CertValidator.class);
+    resolver = new XrdResolver(fetcher, verifier, validator);
+    verification = new VerificationResult(ImmutableList.of(
+        CertConstantUtil.SERVER_PUB_CERT,
+        CertConstantUtil.INTERMEDIATE_PUB_CERT));
+  }
+
+  public void testFindOpEndpointsForSite() throws Exception {
+    IdpIdentifier site = new IdpIdentifier("balfanz.net");
+    URI siteXrdUri = URI.create("http://example.com/xrd");
+
+    expect(fetcher.fetch(FetchRequest.createGetRequest(siteXrdUri)))
+        .andReturn(new FakeResponse(SITE_XRD));
+    expect(verifier.verify(aryEq(SITE_XRD.getBytes()), (String) isNull()))
+        .andReturn(verification);
+    expect(validator.matches(CertConstantUtil.SERVER_PUB_CERT, "balfanz.net"))
+        .andReturn(Boolean.TRUE);
+
+    control.replay();
+    List<SecureDiscoveryInformation> result =
+        resolver.findOpEndpointsForSite(site, siteXrdUri);
+    control.verify();
+
+    assertEquals(2, result.size());
+    assertEquals("https://www.google.com/a/balfanz.net/o8/ud?be=o8",
+        result.get(0).getOPEndpoint().toString());
+    assertEquals("https://backup.balfanz.net/op",
+        result.get(1).getOPEndpoint().toString());
+    assertTrue(result.get(0).isSecure());
+  }
+
+  public void testFindOpEndpointsForUser_insecure() throws Exception {
+    UrlIdentifier user = new UrlIdentifier("http://balfanz.net/openid?id=12345");
+    URI userXrdUri = URI.create("http://example.com/user-xrd");
+
+    expect(fetcher.fetch(FetchRequest.createGetRequest(userXrdUri)))
+        .andReturn(new FakeResponse(USER_XRD));
+    expect(verifier.verify(isA(byte[].class), (String) isNull()))
+        .andThrow(new XmlSimpleSignException("no signature"));
+
+    control.replay();
+    List<SecureDiscoveryInformation> result =
+        resolver.findOpEndpointsForUser(user, userXrdUri);
+    control.verify();
+
+    assertEquals(1, result.size());
+    SecureDiscoveryInformation info = result.get(0);
+    assertFalse(info.isSecure());
+    assertEquals(user.getIdentifier(), info.getClaimedIdentifier().toString());
+    assertEquals("12345", info.getDelegateIdentifier());
+  }
+
+  public void testFindOpEndpointsForUser_wrongSubject() throws Exception {
+    UrlIdentifier user = new UrlIdentifier("http://balfanz.net/openid?id=67890");
+    URI userXrdUri = URI.create("http://example.com/user-xrd");
+
+    // the signature isn't even looked at
+    expect(fetcher.fetch(FetchRequest.createGetRequest(userXrdUri)))
+        .andReturn(new FakeResponse(USER_XRD));
+
+    control.replay();
+    List<SecureDiscoveryInformation> result =
+        resolver.findOpEndpointsForUser(user, userXrdUri);
+    control.verify();
+
+    assertFalse(result.get(0).isSecure());
+  }
+
+  public void testFindOpEndpointsForUser_throughSiteXrd() throws Exception {
+    UrlIdentifier user = new UrlIdentifier("http://balfanz.net/openid?id=12345");
+    URI siteXrdUri = URI.create("http://example.com/xrd");
+    URI userXrdUri = URI.create(
+        "https://www.google.com/accounts/o8/user-xrd?uri="
+        + URLEncoder.encode(user.getIdentifier(), "UTF-8"));
+
+    expect(fetcher.fetch(FetchRequest.createGetRequest(siteXrdUri)))
+        .andReturn(new FakeResponse(SITE_XRD));
+    expect(verifier.verify(aryEq(SITE_XRD.getBytes()), (String) isNull()))
+        .andReturn(verification);
+    expect(validator.matches(CertConstantUtil.SERVER_PUB_CERT, "balfanz.net"))
+        .andReturn(Boolean.TRUE);
+
+    // the user's XRD must be signed by the next authority
+    FakeResponse userResponse = new FakeResponse(USER_XRD);
+    userResponse.setSignature("userSig");
+    expect(fetcher.fetch(FetchRequest.createGetRequest(userXrdUri)))
+        .andReturn(userResponse);
+    expect(verifier.verify(aryEq(USER_XRD.getBytes()), eq("userSig")))
+        .andReturn(verification);
+    expect(validator.matches(CertConstantUtil.SERVER_PUB_CERT, "www.google.com"))
+        .andReturn(Boolean.TRUE);
+
+    control.replay();
+    List<SecureDiscoveryInformation> result =
+        resolver.findOpEndpointsForUserThroughSiteXrd(user, siteXrdUri);
+    control.verify();
+
+    assertEquals(1, result.size());
+    assertTrue(result.get(0).isSecure());
+    assertEquals("12345", result.get(0).getDelegateIdentifier());
+  }
+
+  public void testNotAnXrd() throws Exception {
+    URI uri = URI.create("http://example.com/xrds");
+    expect(fetcher.fetch(FetchRequest.createGetRequest(uri)))
+        .andReturn(new FakeResponse(LegacyXrdsResolverTest.SITE_XRD));
+
+    control.replay();
+    try {
+      resolver.findOpEndpointsForSite(new IdpIdentifier("balfanz.net"), uri);
+      fail("Should have thrown, document is an XRDS");
+    } catch (DiscoveryException e) {
+      // good
+    }
+    control.verify();
+  }
+}
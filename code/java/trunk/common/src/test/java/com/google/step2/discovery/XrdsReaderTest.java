@@ -0,0 +1,302 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.discovery;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.step2.util.EncodingUtil;
+import com.google.step2.util.FakeTimeSource;
+import com.google.step2.util.XmlUtil;
+import com.google.step2.xmlsimplesign.CachedCertPathValidator;
+import com.google.step2.xmlsimplesign.CertConstantUtil;
+import com.google.step2.xmlsimplesign.DigestingInputStream;
+import com.google.step2.xmlsimplesign.SignatureResult;
+import com.google.step2.xmlsimplesign.Signer;
+import com.google.step2.xmlsimplesign.VerificationResult;
+import com.google.step2.xmlsimplesign.Verifier;
+
+import junit.framework.TestCase;
+
+import org.openxri.xml.Service;
+import org.openxri.xml.XRD;
+import org.openxri.xml.XRDS;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Vector;
+
+public class XrdsReaderTest extends TestCase {
+
+  private static final String PRIORITIES_XRD =
+    "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+    "<xrds:XRDS xmlns:xrds=\"xri://$xrds\" xmlns=\"xri://$xrd*($v*2.0)\">\n" +
+    "<XRD>\n" +
+    "<CanonicalID>example.com</CanonicalID>\n" +
+    "<Service>\n" +
+    "<Type>http://specs.openid.net/auth/2.0/server</Type>\n" +
+    "<URI>https://example.com/none</URI>\n" +
+    "</Service>\n" +
+    "<Service priority=\"10\">\n" +
+    "<Type>http://specs.openid.net/auth/2.0/server</Type>\n" +
+    "<URI>https://example.com/ten</URI>\n" +
+    "<URI>https://example.com/ten-backup</URI>\n" +
+    "</Service>\n" +
+    "<Service priority=\"0\">\n" +
+    "<Type>http://specs.openid.net/auth/2.0/signon</Type>\n" +
+    "<Type>http://openid.net/srv/ax/1.0</Type>\n" +
+    "<URI>https://example.com/zero</URI>\n" +
+    "<LocalID>http://example.com/local</LocalID>\n" +
+    "</Service>\n" +
+    "<Service priority=\"5\" xmlns:openid=\"http://namespace.google.com/openid/xmlns\">\n" +
+    "<Type>http://www.iana.org/assignments/relation/describedby</Type>\n" +
+    "<openid:URITemplate>https://example.com/user?uri={%uri}</openid:URITemplate>\n" +
+    "<openid:NextAuthority>example.net</openid:NextAuthority>\n" +
+    "</Service>\n" +
+    "</XRD>\n" +
+    "</xrds:XRDS>\n";
+
+  private static final String NESTED_XRD =
+    "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+    "<xrds:XRDS xmlns:xrds=\"xri://$xrds\" xmlns=\"xri://$xrd*($v*2.0)\">\n" +
+    "<XRD>\n" +
+    "<CanonicalID>first.example.com</CanonicalID>\n" +
+    "</XRD>\n" +
+    "<xrds:XRDS>\n" +
+    "<XRD>\n" +
+    "<CanonicalID>second.example.com</CanonicalID>\n" +
+    "</XRD>\n" +
+    "<XRD>\n" +
+    "<CanonicalID>final.example.com</CanonicalID>\n" +
+    "<CanonicalID>another.example.com</CanonicalID>\n" +
+    "<Service priority=\"1\">\n" +
+    "<Type>http://specs.openid.net/auth/2.0/server</Type>\n" +
+    "<URI>https://final.example.com/op</URI>\n" +
+    "</Service>\n" +
+    "</XRD>\n" +
+    "</xrds:XRDS>\n" +
+    "</xrds:XRDS>\n";
+
+  private static final String[] FIXTURES = {
+    LegacyXrdsResolverTest.SITE_XRD,
+    LegacyXrdsResolverTest.SITE_XRD_NEXT_AUTHORITY,
+    LegacyXrdsResolverTest.USER_XRD,
+    LegacyXrdsResolverTest.USER_XRD_WITH_LOCAL_ID,
+    PRIORITIES_XRD,
+    NESTED_XRD,
+  };
+
+  public void testRead() throws Exception {
+    XrdsDescriptor xrd = read(PRIORITIES_XRD);
+    assertEquals(Collections.singletonList("example.com"), xrd.getCanonicalIds());
+
+    List<XrdsService> services = xrd.getServices();
+    assertEquals(4, services.size());
+    assertEquals("https://example.com/zero", services.get(0).getUri());
+    assertEquals("http://example.com/local", services.get(0).getLocalId());
+    assertEquals("https://example.com/user?uri={%uri}",
+        services.get(1).getTagValue("URITemplate"));
+    assertEquals("example.net", services.get(1).getTagValue("NextAuthority"));
+    assertNull(services.get(1).getUri());
+    assertEquals(Lists.newArrayList("https://example.com/ten",
+        "https://example.com/ten-backup"), services.get(2).getUris());
+    assertNull(services.get(3).getPriority());
+
+    List<XrdsService> servers =
+        xrd.getServicesForType("http://specs.openid.net/auth/2.0/server");
+    assertEquals(2, servers.size());
+    assertEquals("https://example.com/ten", servers.get(0).getUri());
+    assertEquals("https://example.com/none", servers.get(1).getUri());
+    assertNull(xrd.getServiceForType("http://example.com/unknown"));
+  }
+
+  public void testFinalXrd() throws Exception {
+    XrdsDescriptor xrd = read(NESTED_XRD);
+    assertEquals(Lists.newArrayList("final.example.com", "another.example.com"),
+        xrd.getCanonicalIds());
+    assertEquals(1, xrd.getServices().size());
+  }
+
+  public void testSignature() throws Exception {
+    assertNull(read(PRIORITIES_XRD).getSignatureBlock());
+
+    SignatureResult signed = new Signer()
+        .setSigningKey(CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.SERVER_PRIV_KEY)
+        .addIntermediateCert(CertConstantUtil.INTERMEDIATE_PUB_CERT)
+        .setDocument(EncodingUtil.getUtf8Bytes(PRIORITIES_XRD))
+        .sign();
+
+    // the XRD and the signature come out of a single pass over the document
+    DigestingInputStream in =
+        new DigestingInputStream(new ByteArrayInputStream(signed.getDocument()));
+    XrdsDescriptor xrd = XrdsReader.read(in);
+    assertEquals(4, xrd.getServices().size());
+    assertNotNull(xrd.getSignatureBlock());
+
+    CachedCertPathValidator validator =
+        new CachedCertPathValidator(ImmutableSet.of(CertConstantUtil.CA_PUB_CERT));
+    validator.setTimeSource(new FakeTimeSource(CertConstantUtil.VALID_TIME_MILLIS));
+    VerificationResult result = new Verifier(validator, null)
+        .verify(in, xrd.getSignatureBlock(), signed.getSignature());
+    assertEquals(CertConstantUtil.SERVER_PUB_CERT, result.getCerts().get(0));
+    assertEquals(signed.getDocument().length, in.getLength());
+  }
+
+  public void testNoXrd() throws Exception {
+    assertNull(read("<xrds:XRDS xmlns:xrds=\"xri://$xrds\"/>"));
+    assertNull(read("<foo/>"));
+  }
+
+  public void testMalformed() throws Exception {
+    try {
+      read(LegacyXrdsResolverTest.SITE_XRD.replace("</xrds:XRDS>", ""));
+      fail("Should have thrown, document isn't well-formed");
+    } catch (javax.xml.stream.XMLStreamException e) {
+      // good
+    }
+  }
+
+  /**
+   * Checks that we find the same things as openxri in the final XRD of each
+   * of the fixtures.
+   */
+  public void testSameAsOpenxri() throws Exception {
+    for (String fixture : FIXTURES) {
+      XRD expected = readWithOpenxri(fixture);
+      XrdsDescriptor actual = read(fixture);
+
+      // openxri only gives us the first CanonicalID (XRI 2.0 allows just
+      // one), so we take any others from the XRD's DOM
+      List<String> expectedIds = Lists.newArrayList();
+      NodeList ids = expected.getDOM().getElementsByTagName("CanonicalID");
+      for (int i = 0; i < ids.getLength(); i++) {
+        expectedIds.add(ids.item(i).getTextContent().trim());
+      }
+      if (expected.getCanonicalID() != null) {
+        assertEquals(expected.getCanonicalID().getValue(), expectedIds.get(0));
+      }
+      assertEquals(expectedIds, actual.getCanonicalIds());
+
+      // openxri shuffles services with the same priority, so we compare
+      // the sequences of priorities, and the services regardless of order
+      @SuppressWarnings("unchecked")
+      List<Service> services = expected.getPrioritizedServices();
+      List<Integer> expectedPriorities = Lists.newArrayList();
+      List<String> expectedServices = Lists.newArrayList();
+      for (Service service : services) {
+        expectedPriorities.add(service.getPriority());
+        expectedServices.add(describe(service));
+      }
+      List<Integer> actualPriorities = Lists.newArrayList();
+      List<String> actualServices = Lists.newArrayList();
+      for (XrdsService service : actual.getServices()) {
+        actualPriorities.add(service.getPriority());
+        actualServices.add(describe(service));
+      }
+      assertEquals(expectedPriorities, actualPriorities);
+      Collections.sort(expectedServices);
+      Collections.sort(actualServices);
+      assertEquals(expectedServices, actualServices);
+    }
+  }
+
+  public void testSpeed() throws Exception {
+    byte[] document = EncodingUtil.getUtf8Bytes(PRIORITIES_XRD);
+
+    // warm up
+    for (int i = 0; i < 2000; i++) {
+      readWithOpenxri(document);
+      XrdsReader.read(new ByteArrayInputStream(document));
+    }
+
+    long ops = 0;
+    long start = System.currentTimeMillis();
+    while (System.currentTimeMillis() < start + 1000L) {
+      readWithOpenxri(document).getPrioritizedServices();
+      ++ops;
+    }
+    long stop = System.currentTimeMillis();
+    System.out.println("openxri: " + ops / (stop - start) + " ops per ms");
+
+    ops = 0;
+    start = System.currentTimeMillis();
+    while (System.currentTimeMillis() < start + 1000L) {
+      XrdsReader.read(new ByteArrayInputStream(document));
+      ++ops;
+    }
+    stop = System.currentTimeMillis();
+    System.out.println("XrdsReader: " + ops / (stop - start) + " ops per ms");
+  }
+
+  private static XrdsDescriptor read(String document) throws Exception {
+    return XrdsReader.read(
+        new ByteArrayInputStream(EncodingUtil.getUtf8Bytes(document)));
+  }
+
+  private static XRD readWithOpenxri(String document) throws Exception {
+    return readWithOpenxri(EncodingUtil.getUtf8Bytes(document));
+  }
+
+  private static XRD readWithOpenxri(byte[] document) throws Exception {
+    Document xml = XmlUtil.getDocument(new ByteArrayInputStream(document));
+    return new XRDS(xml.getDocumentElement(), false).getFinalXRD();
+  }
+
+  private static String describe(Service service) {
+    List<String> types = Lists.newArrayList();
+    for (int i = 0; i < service.getNumTypes(); i++) {
+      types.add(service.getTypeAt(i).getValue());
+    }
+    List<String> uris = Lists.newArrayList();
+    for (int i = 0; i < service.getNumURIs(); i++) {
+      uris.add(service.getURIAt(i).getURI().toString());
+    }
+    List<String> localIds = Lists.newArrayList();
+    for (int i = 0; i < service.getNumLocalIDs(); i++) {
+      localIds.add(service.getLocalIDAt(i).getValue());
+    }
+    return describe(service.getPriority(), types, uris, localIds,
+        getTagValue(service, "URITemplate"),
+        getTagValue(service, "NextAuthority"));
+  }
+
+  private static String describe(XrdsService service) {
+    return describe(service.getPriority(), service.getTypes(),
+        service.getUris(), service.getLocalIds(),
+        service.getTagValue("URITemplate"),
+        service.getTagValue("NextAuthority"));
+  }
+
+  private static String describe(Integer priority, List<String> types,
+      List<String> uris, List<String> localIds, String uriTemplate,
+      String nextAuthority) {
+    return priority + " " + types + " " + uris + " " + localIds + " "
+        + uriTemplate + " " + nextAuthority;
+  }
+
+  private static String getTagValue(Service service, String tagName) {
+    @SuppressWarnings("unchecked")
+    Vector<Element> tags = service.getOtherTagValues(tagName);
+    if (tags == null || tags.size() == 0) {
+      return null;
+    }
+    return tags.get(0).getTextContent();
+  }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.http;
+
+import com.google.step2.util.EncodingUtil;
+
+import junit.framework.TestCase;
+
+import java.net.ServerSocket;
+import java.net.URI;
+
+public class DefaultHttpFetcherTest extends TestCase {
+
+  private StubHttpServer server;
+  private PermanentRedirectCache redirectCache;
+  private HttpFetcher fetcher;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    server = new StubHttpServer(new ServerSocket(0));
+    server.setContent("/new", "new content");
+    server.start();
+    redirectCache = new PermanentRedirectCache();
+    fetcher = new DefaultHttpFetcher(SharedSslContext.getDefault(),
+        redirectCache);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.stop();
+    super.tearDown();
+  }
+
+  public void testMovedPermanently() throws Exception {
+    server.setRedirect("/old", 301, uri("/new").toString());
+
+    assertEquals("new content", fetch("/old"));
+    assertEquals("new content", fetch("/old"));
+
+    assertEquals(1, server.getRequestCount("/old"));
+    assertEquals(2, server.getRequestCount("/new"));
+    assertEquals(uri("/new"), redirectCache.getLocation(uri("/old")));
+  }
+
+  public void testPermanentRedirect() throws Exception {
+    server.setRedirect("/old", 308, uri("/new").toString());
+
+    assertEquals("new content", fetch("/old"));
+    assertEquals("new content", fetch("/old"));
+
+    assertEquals(1, server.getRequestCount("/old"));
+    assertEquals(2, server.getRequestCount("/new"));
+  }
+
+  public void testTemporaryRedirect() throws Exception {
+    server.setRedirect("/old", 302, uri("/new").toString());
+
+    assertEquals("new content", fetch("/old"));
+    assertEquals("new content", fetch("/old"));
+
+    assertEquals(2, server.getRequestCount("/old"));
+    assertEquals(2, server.getRequestCount("/new"));
+    assertNull(redirectCache.getLocation(uri("/old")));
+  }
+
+  public void testTemporaryRedirectAfterPermanentRedirect() throws Exception {
+    server.setRedirect("/old", 301, uri("/middle").toString());
+    server.setRedirect("/middle", 302, uri("/new").toString());
+
+    assertEquals("new content", fetch("/old"));
+    assertEquals("new content", fetch("/old"));
+
+    // we remember /old -> /middle, but not /middle -> /new
+    assertEquals(1, server.getRequestCount("/old"));
+    assertEquals(2, server.getRequestCount("/middle"));
+    assertEquals(uri("/middle"), redirectCache.getLocation(uri("/old")));
+  }
+
+  public void testFailingLocationIsInvalidated() throws Exception {
+    server.setRedirect("/old", 301, uri("/new").toString());
+    assertEquals("new content", fetch("/old"));
+
+    // the redirect now points elsewhere, and /new is gone
+    server.setResponse("/new", 404, null, "");
+    server.setRedirect("/old", 301, uri("/newer").toString());
+    server.setContent("/newer", "newer content");
+
+    assertEquals("newer content", fetch("/old"));
+    assertEquals(2, server.getRequestCount("/old"));
+    assertEquals(uri("/newer"), redirectCache.getLocation(uri("/old")));
+  }
+
+  public void testPostIsNotRedirected() throws Exception {
+    server.setRedirect("/old", 301, uri("/new").toString());
+    redirectCache.put(uri("/old"), uri("/new"));
+
+    FetchResponse response =
+        fetcher.fetch(FetchRequest.createPostRequest(uri("/old")));
+
+    assertEquals(301, response.getStatusCode());
+    assertEquals(0, server.getRequestCount("/new"));
+  }
+
+  private String fetch(String path) throws FetchException {
+    FetchResponse response =
+        fetcher.fetch(FetchRequest.createGetRequest(uri(path)));
+    assertEquals(200, response.getStatusCode());
+    return EncodingUtil.getUtf8String(response.getContentAsBytes());
+  }
+
+  private URI uri(String path) {
+    return URI.create("http://localhost:" + server.getPort() + path);
+  }
+}
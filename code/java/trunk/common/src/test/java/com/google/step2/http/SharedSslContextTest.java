@@ -0,0 +1,180 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.http;
+
+import com.google.step2.util.EncodingUtil;
+import com.google.step2.xmlsimplesign.CertConstantUtil;
+
+import junit.framework.TestCase;
+
+import org.apache.http.conn.ssl.SSLSocketFactory;
+
+import java.net.ServerSocket;
+import java.net.URI;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Fetches from a local TLS stub server, which closes the connection after
+ * every response, so that every fetch needs a handshake.
+ */
+public class SharedSslContextTest extends TestCase {
+
+  private static final String HOST_META =
+      "Link: <http://example.com/xrds>; rel=\"describedby\"; " +
+      "type=\"application/xrds+xml\"\n";
+
+  private StubHttpServer server;
+  private URI uri;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    server = new StubHttpServer(createServerSocket());
+    server.setContent("/host-meta", HOST_META);
+    server.start();
+    uri = URI.create("https://localhost:" + server.getPort() + "/host-meta");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.stop();
+    super.tearDown();
+  }
+
+  public void testSessionIsResumed() throws Exception {
+    SharedSslContext context = createTrustingContext();
+    HttpFetcher fetcher = new DefaultHttpFetcher(context);
+
+    for (int i = 0; i < 5; i++) {
+      assertEquals(HOST_META, fetch(fetcher));
+    }
+
+    assertEquals(5, context.getHandshakeCount());
+    assertEquals(1, context.getFullHandshakeCount());
+    assertEquals(4, context.getResumedHandshakeCount());
+    assertEquals(0.8, context.getResumptionRate(), 0.001);
+  }
+
+  public void testSessionIsSharedBetweenFetchers() throws Exception {
+    SharedSslContext context = createTrustingContext();
+
+    assertEquals(HOST_META, fetch(new DefaultHttpFetcher(context)));
+    assertEquals(HOST_META, fetch(new DefaultHttpFetcher(context)));
+
+    assertEquals(1, context.getFullHandshakeCount());
+    assertEquals(1, context.getResumedHandshakeCount());
+  }
+
+  public void testNoSessionCache() throws Exception {
+    SharedSslContext context = createTrustingContext();
+    context.setSessionCacheSize(1);
+    context.setSessionTimeout(1);
+    HttpFetcher fetcher = new DefaultHttpFetcher(context);
+
+    fetch(fetcher);
+    Thread.sleep(1100L);
+    fetch(fetcher);
+
+    assertEquals(2, context.getFullHandshakeCount());
+    assertEquals(0, context.getResumedHandshakeCount());
+    assertEquals(0.0, context.getResumptionRate(), 0.001);
+  }
+
+  public void testSpeed() throws Exception {
+    int discoveries = 50;
+
+    // every discovery gets its own SSLContext, i.e., a full handshake
+    SharedSslContext fresh = null;
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < discoveries; i++) {
+      fresh = createTrustingContext();
+      fetch(new DefaultHttpFetcher(fresh));
+    }
+    long freshMillis = System.currentTimeMillis() - start;
+
+    // all discoveries share an SSLContext, i.e., resume the session
+    SharedSslContext shared = createTrustingContext();
+    HttpFetcher fetcher = new DefaultHttpFetcher(shared);
+    start = System.currentTimeMillis();
+    for (int i = 0; i < discoveries; i++) {
+      fetch(fetcher);
+    }
+    long sharedMillis = System.currentTimeMillis() - start;
+
+    System.out.println("full handshakes: "
+        + ((double) freshMillis / discoveries) + " ms per discovery, "
+        + "shared context: " + ((double) sharedMillis / discoveries)
+        + " ms per discovery (" + shared.getFullHandshakeCount() + " full, "
+        + shared.getResumedHandshakeCount() + " resumed handshakes)");
+  }
+
+  private String fetch(HttpFetcher fetcher) throws FetchException {
+    FetchResponse response = fetcher.fetch(FetchRequest.createGetRequest(uri));
+    assertEquals(200, response.getStatusCode());
+    return EncodingUtil.getUtf8String(response.getContentAsBytes());
+  }
+
+  /**
+   * The test certs aren't issued to localhost (and have long expired), so the
+   * client trusts everything.
+   */
+  private SharedSslContext createTrustingContext() throws Exception {
+    TrustManager trustAll = new X509TrustManager() {
+      public void checkClientTrusted(X509Certificate[] chain, String authType) {
+      }
+
+      public void checkServerTrusted(X509Certificate[] chain, String authType) {
+      }
+
+      public X509Certificate[] getAcceptedIssuers() {
+        return new X509Certificate[0];
+      }
+    };
+    SSLContext sslContext = SSLContext.getInstance("TLS");
+    sslContext.init(null, new TrustManager[] { trustAll }, null);
+
+    SharedSslContext result = new SharedSslContext(sslContext);
+    result.getSocketFactory().setHostnameVerifier(
+        SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+    return result;
+  }
+
+  private ServerSocket createServerSocket() throws Exception {
+    char[] password = "password".toCharArray();
+    KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+    keyStore.load(null, null);
+    keyStore.setKeyEntry("server", CertConstantUtil.SERVER_PRIV_KEY,
+        password, new Certificate[] {
+            CertConstantUtil.SERVER_PUB_CERT,
+            CertConstantUtil.INTERMEDIATE_PUB_CERT });
+
+    KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(
+        KeyManagerFactory.getDefaultAlgorithm());
+    keyManagers.init(keyStore, password);
+
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(keyManagers.getKeyManagers(), null, null);
+    return context.getServerSocketFactory().createServerSocket(0);
+  }
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.http;
+
+import com.google.step2.util.EncodingUtil;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A minimal HTTP server for tests. It serves canned responses by path, counts
+ * the requests it sees for each path, and closes the connection after every
+ * response. Give it an SSLServerSocket to make it a TLS server.
+ */
+public class StubHttpServer implements Runnable {
+
+  private final ServerSocket socket;
+  private final Map<String, String> responses = new HashMap<String, String>();
+  private final Map<String, Integer> requestCounts =
+      new HashMap<String, Integer>();
+  private Thread thread;
+
+  public StubHttpServer(ServerSocket socket) {
+    this.socket = socket;
+  }
+
+  public int getPort() {
+    return socket.getLocalPort();
+  }
+
+  /**
+   * Serves a 200 response with the given body.
+   */
+  public void setContent(String path, String body) {
+    setResponse(path, 200, null, body);
+  }
+
+  /**
+   * Serves a redirect to the given location.
+   */
+  public void setRedirect(String path, int status, String location) {
+    setResponse(path, status, "Location: " + location + "\r\n", "");
+  }
+
+  public synchronized void setResponse(String path, int status,
+      String extraHeaders, String body) {
+    byte[] content = EncodingUtil.getUtf8Bytes(body);
+    responses.put(path, "HTTP/1.1 " + status + " Stub\r\n"
+        + "Content-Type: text/plain\r\n"
+        + "Content-Length: " + content.length + "\r\n"
+        + ((extraHeaders == null) ? "" : extraHeaders)
+        + "Connection: close\r\n\r\n"
+        + body);
+  }
+
+  public synchronized int getRequestCount(String path) {
+    Integer count = requestCounts.get(path);
+    return (count == null) ? 0 : count;
+  }
+
+  public void start() {
+    thread = new Thread(this);
+    thread.start();
+  }
+
+  public void stop() throws Exception {
+    socket.close();
+    thread.join();
+  }
+
+  public void run() {
+    while (!socket.isClosed()) {
+      Socket connection;
+      try {
+        connection = socket.accept();
+      } catch (IOException e) {
+        // socket was closed
+        return;
+      }
+      try {
+        String path = readRequest(connection);
+        OutputStream out = connection.getOutputStream();
+        out.write(EncodingUtil.getUtf8Bytes(getResponse(path)));
+        out.flush();
+      } catch (IOException e) {
+        // client went away, ignore
+      } finally {
+        try {
+          connection.close();
+        } catch (IOException e) {
+          // ignored
+        }
+      }
+    }
+  }
+
+  private synchronized String getResponse(String path) {
+    Integer count = requestCounts.get(path);
+    requestCounts.put(path, (count == null) ? 1 : count + 1);
+
+    String response = responses.get(path);
+    if (response == null) {
+      response = "HTTP/1.1 404 Not Found\r\n"
+          + "Content-Length: 0\r\nConnection: close\r\n\r\n";
+    }
+    return response;
+  }
+
+  // reads the request headers, and returns the path of the request
+  private String readRequest(Socket connection) throws IOException {
+    BufferedReader in = new BufferedReader(
+        new InputStreamReader(connection.getInputStream(), "UTF-8"));
+    String requestLine = in.readLine();
+    String line;
+    while ((line = in.readLine()) != null && line.length() > 0) {
+      // skip headers
+    }
+    if (requestLine == null) {
+      throw new IOException("no request");
+    }
+    // e.g. GET /path HTTP/1.1
+    return requestLine.split(" ")[1];
+  }
+}
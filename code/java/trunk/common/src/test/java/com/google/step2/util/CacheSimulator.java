@@ -0,0 +1,156 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.util;
+
+import com.google.common.collect.Lists;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays streams of keys against {@link ExpiringLruCache}s with different
+ * eviction policies and capacities, and reports their hit rates. Every
+ * missed key is put into the cache, as a caller of the cache would.
+ *
+ * To replay a recorded trace (one key per line; only the first
+ * whitespace-separated field of each line is used), run
+ *
+ *   java com.google.step2.util.CacheSimulator trace.txt 100 1000 10000
+ *
+ * Without a trace file, a synthetic trace is used: popular keys with a Zipf
+ * distribution, interleaved with keys that are only looked up once, which
+ * is roughly what a relying party sees when crawlers and one-off visitors
+ * hit it along with its regular users' providers.
+ */
+public class CacheSimulator {
+
+  private static final int[] DEFAULT_CAPACITIES = { 50, 100, 250, 500, 1000 };
+
+  private CacheSimulator() {
+  }
+
+  /**
+   * Returns the hit rate of a cache with the given capacity and policy,
+   * after replaying the trace. The cache has a single segment, so that the
+   * result shows the policy rather than how keys spread over segments.
+   */
+  public static double simulate(List<String> trace, int capacity,
+      EvictionPolicy policy) {
+    ExpiringLruCache<String, String> cache =
+        new ExpiringLruCache<String, String>(capacity, 1, policy);
+    cache.setTimeSource(new FakeTimeSource());
+    for (String key : trace) {
+      if (cache.get(key) == null) {
+        cache.put(key, key, Integer.MAX_VALUE);
+      }
+    }
+    return cache.getStats().getHitRate();
+  }
+
+  /**
+   * Returns a trace of the given length, in which scanFraction of the
+   * lookups are for keys that are never seen again, and the others are for
+   * one of distinctKeys keys, chosen with a Zipf distribution with the given
+   * exponent.
+   */
+  public static List<String> syntheticTrace(int length, int distinctKeys,
+      double exponent, double scanFraction, long seed) {
+    double[] cumulative = new double[distinctKeys];
+    double sum = 0;
+    for (int i = 0; i < distinctKeys; i++) {
+      sum += 1.0 / Math.pow(i + 1, exponent);
+      cumulative[i] = sum;
+    }
+
+    Random random = new Random(seed);
+    List<String> trace = Lists.newArrayList();
+    for (int i = 0; i < length; i++) {
+      if (random.nextDouble() < scanFraction) {
+        trace.add("once-" + i);
+      } else {
+        int rank = Arrays.binarySearch(cumulative,
+            random.nextDouble() * sum);
+        trace.add("key-" + (rank < 0 ? -rank - 1 : rank));
+      }
+    }
+    return trace;
+  }
+
+  public static List<String> readTrace(InputStream in) throws IOException {
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(in, "UTF-8"));
+    List<String> trace = Lists.newArrayList();
+    String line;
+    while ((line = reader.readLine()) != null) {
+      String[] fields = line.trim().split("\\s+");
+      if (fields[0].length() > 0) {
+        trace.add(fields[0]);
+      }
+    }
+    return trace;
+  }
+
+  /**
+   * Prints a table of hit rates: one row per capacity, one column per
+   * policy.
+   */
+  public static void report(List<String> trace, int[] capacities,
+      Appendable out) throws IOException {
+    out.append(String.format("%d lookups%n%10s", trace.size(), "capacity"));
+    for (EvictionPolicy policy : EvictionPolicy.values()) {
+      out.append(String.format("%10s", policy));
+    }
+    out.append(String.format("%n"));
+    for (int capacity : capacities) {
+      out.append(String.format("%10d", capacity));
+      for (EvictionPolicy policy : EvictionPolicy.values()) {
+        out.append(String.format("%9.1f%%",
+            100 * simulate(trace, capacity, policy)));
+      }
+      out.append(String.format("%n"));
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    List<String> trace;
+    if (args.length == 0) {
+      trace = syntheticTrace(200000, 5000, 0.8, 0.3, 42L);
+    } else {
+      InputStream in = new FileInputStream(args[0]);
+      try {
+        trace = readTrace(in);
+      } finally {
+        in.close();
+      }
+    }
+
+    int[] capacities = DEFAULT_CAPACITIES;
+    if (args.length > 1) {
+      capacities = new int[args.length - 1];
+      for (int i = 1; i < args.length; i++) {
+        capacities[i - 1] = Integer.parseInt(args[i]);
+      }
+    }
+    report(trace, capacities, System.out);
+  }
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.util;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.codec.binary.Base64;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class EncodingUtilTest extends TestCase {
+
+  public void testDecodeBase64() throws Exception {
+    assertEquals("", decode(""));
+    assertEquals("f", decode("Zg=="));
+    assertEquals("fo", decode("Zm8="));
+    assertEquals("foo", decode("Zm9v"));
+    assertEquals("foob", decode("Zm9vYg=="));
+    assertEquals("fooba", decode("Zm9vYmE="));
+    assertEquals("foobar", decode("Zm9vYmFy"));
+  }
+
+  public void testDecodeBase64_noPadding() throws Exception {
+    assertEquals("f", decode("Zg"));
+    assertEquals("fo", decode("Zm8"));
+  }
+
+  public void testDecodeBase64_ignoresWhitespace() throws Exception {
+    assertEquals("foobar", decode("\n  Zm9v\r\n  YmFy\n"));
+    assertEquals("foobar", decode("Zm\t9vY mFy"));
+  }
+
+  public void testDecodeBase64_stopsAtPadding() throws Exception {
+    assertEquals("f", decode("Zg==Zm9v"));
+  }
+
+  public void testDecodeBase64_sameAsCommonsCodec() throws Exception {
+    Random random = new Random(42);
+    for (int i = 0; i < 200; i++) {
+      byte[] data = new byte[random.nextInt(300)];
+      random.nextBytes(data);
+
+      // chunked, i.e., with line breaks every 76 characters
+      String encoded = new String(Base64.encodeBase64(data, true), "US-ASCII");
+
+      assertTrue(Arrays.equals(data, EncodingUtil.decodeBase64(encoded)));
+      assertTrue(Arrays.equals(Base64.decodeBase64(encoded.getBytes("US-ASCII")),
+          EncodingUtil.decodeBase64(encoded)));
+    }
+  }
+
+  private String decode(String b64) {
+    return EncodingUtil.getUtf8String(EncodingUtil.decodeBase64(b64));
+  }
+}
@@ -16,11 +16,23 @@
  */
 package com.google.step2.util;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.step2.util.ExpiringLruCache;
 import com.google.step2.util.FakeTimeSource;
+import com.google.step2.xmlsimplesign.CertConstantUtil;
 
 import junit.framework.TestCase;
 
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  *
  */
@@ -60,4 +72,483 @@ public class ExpiringLruCacheTest extends TestCase {
       assertNull(cache.get(i));
     }
   }
+
+  public void testRemove() {
+    cache.put(1, 1, 1000);
+    cache.remove(1);
+    assertNull(cache.get(1));
+    assertEquals(0, cache.size());
+  }
+
+  public void testReplace() {
+    cache.put(1, 1, 1000);
+    cache.put(1, 2, 1000);
+    assertEquals(new Integer(2), cache.get(1));
+    assertEquals(1, cache.size());
+  }
+
+  public void testSegmentedCapacity() {
+    ExpiringLruCache<Integer, Integer> large =
+        new ExpiringLruCache<Integer, Integer>(1024);
+    for (int i = 0; i < 10000; i++) {
+      large.put(i, i, 1000);
+      // keep one entry in use, so that it never becomes the eldest
+      assertEquals(new Integer(0), large.get(0));
+    }
+    assertEquals(1024, large.size());
+    assertEquals(new Integer(9999), large.get(9999));
+  }
+
+  public void testExpiredEntriesAreSwept() {
+    for (int i = 0; i < MAX; ++i) {
+      cache.put(i, i, 10);
+    }
+    timeSource.advanceSeconds(11);
+    assertEquals(MAX, cache.size());
+
+    // looking up an expired entry removes it
+    assertNull(cache.get(0));
+    assertEquals(MAX - 1, cache.size());
+
+    // and once a minute, using the cache removes all expired entries
+    timeSource.advanceSeconds(60);
+    cache.put(10, 10, 1000);
+    assertEquals(1, cache.size());
+  }
+
+  public void testCleanUp() {
+    cache.put(1, 1, 10);
+    cache.put(2, 2, 1000);
+    timeSource.advanceSeconds(11);
+    cache.cleanUp();
+    assertEquals(1, cache.size());
+    assertEquals(new Integer(2), cache.get(2));
+  }
+
+  public void testRemovalListener() {
+    final List<String> removals = Lists.newArrayList();
+    cache.setRemovalListener(new RemovalListener<Integer, Integer>() {
+      public void onRemoval(Integer key, Integer value, RemovalCause cause) {
+        removals.add(key + "=" + value + ":" + cause);
+      }
+    });
+
+    for (int i = 0; i <= MAX; ++i) {
+      cache.put(i, i, 1000);
+    }
+    cache.put(1, 11, 1000);
+    cache.remove(2);
+    cache.put(3, 3, 10);
+    timeSource.advanceSeconds(11);
+    cache.get(3);
+    cache.clear();
+
+    assertEquals(ImmutableList.of(
+        "0=0:SIZE", "1=1:REPLACED", "2=2:EXPLICIT", "3=3:REPLACED",
+        "3=3:EXPIRED", "1=11:EXPLICIT", "5=5:EXPLICIT", "4=4:EXPLICIT"),
+        removals);
+  }
+
+  public void testStats() {
+    cache.put(1, 1, 10);
+    cache.get(1);
+    cache.get(2);
+    timeSource.advanceSeconds(11);
+    cache.get(1);
+    for (int i = 10; i < 10 + MAX + 1; ++i) {
+      cache.put(i, i, 1000);
+    }
+
+    CacheStats stats = cache.getStats();
+    assertEquals(1, stats.getHitCount());
+    assertEquals(2, stats.getMissCount());
+    assertEquals(1, stats.getExpirationCount());
+    assertEquals(1, stats.getEvictionCount());
+    assertEquals(1.0 / 3, stats.getHitRate(), 0.001);
+  }
+
+  public void testLoader() throws Exception {
+    CountingLoader loader = new CountingLoader(1000);
+    assertEquals(new Integer(2), cache.get(1, loader));
+    assertEquals(new Integer(2), cache.get(1, loader));
+    assertEquals(new Integer(2), cache.get(1));
+    assertEquals(1, loader.count.get());
+
+    timeSource.advanceSeconds(1001);
+    assertEquals(new Integer(2), cache.get(1, loader));
+    assertEquals(2, loader.count.get());
+
+    CacheStats stats = cache.getStats();
+    assertEquals(2, stats.getLoadSuccessCount());
+    assertEquals(2, stats.getHitCount());
+    assertEquals(2, stats.getMissCount());
+  }
+
+  public void testLoaderNotCached() throws Exception {
+    CountingLoader loader = new CountingLoader(0);
+    cache.get(1, loader);
+    cache.get(1, loader);
+    assertEquals(2, loader.count.get());
+    assertEquals(0, cache.size());
+  }
+
+  public void testLoaderFailure() throws Exception {
+    CountingLoader loader = new CountingLoader(1000) {
+      @Override
+      public Integer load(Integer key) throws Exception {
+        super.load(key);
+        throw new IllegalStateException("can't load " + key);
+      }
+    };
+    for (int i = 0; i < 2; i++) {
+      try {
+        cache.get(1, loader);
+        fail("Should have thrown, loader failed");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof IllegalStateException);
+      }
+    }
+    // failures aren't cached
+    assertEquals(2, loader.count.get());
+    assertEquals(0, cache.size());
+    assertEquals(2, cache.getStats().getLoadFailureCount());
+  }
+
+  public void testMaxSecondsFailure() throws Exception {
+    CountingLoader loader = new CountingLoader(1000) {
+      @Override
+      public long getMaxSeconds(Integer key, Integer value) {
+        throw new IllegalStateException("no expiry for " + key);
+      }
+    };
+    try {
+      cache.get(1, loader);
+      fail("Should have thrown, getMaxSeconds failed");
+    } catch (IllegalStateException e) {
+      // good
+    }
+    assertEquals(0, cache.size());
+
+    // the key can still be loaded
+    assertEquals(new Integer(2), cache.get(1, new CountingLoader(1000)));
+  }
+
+  public void testConcurrentLoadsAreDeduplicated() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountingLoader loader = new CountingLoader(1000) {
+      @Override
+      public Integer load(Integer key) throws Exception {
+        release.await();
+        return super.load(key);
+      }
+    };
+
+    final AtomicInteger successes = new AtomicInteger();
+    List<Thread> threads = Lists.newArrayList();
+    for (int i = 0; i < 10; i++) {
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            if (cache.get(1, loader).equals(2)) {
+              successes.incrementAndGet();
+            }
+          } catch (ExecutionException e) {
+            // counted below
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+
+    // give all threads a chance to pile up behind the first load
+    Thread.sleep(200);
+    release.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(10, successes.get());
+    assertEquals(1, loader.count.get());
+  }
+
+  public void testFrequencySketch() {
+    FrequencySketch sketch = new FrequencySketch(100);
+    for (int i = 0; i < 6; i++) {
+      sketch.increment(42);
+    }
+    sketch.increment(7);
+    assertEquals(6, sketch.frequency(42));
+    assertEquals(1, sketch.frequency(7));
+    assertEquals(0, sketch.frequency(99));
+
+    sketch.reset();
+    assertEquals(3, sketch.frequency(42));
+    assertEquals(0, sketch.frequency(7));
+
+    for (int i = 0; i < 100; i++) {
+      sketch.increment(42);
+    }
+    assertEquals(15, sketch.frequency(42));
+  }
+
+  public void testTinyLfuKeepsFrequentEntries() {
+    assertEquals(0, countHotKeysAfterScan(EvictionPolicy.LRU));
+    assertTrue(countHotKeysAfterScan(EvictionPolicy.TINY_LFU) >= 95);
+  }
+
+  /**
+   * Fills a cache with 100 keys that are looked up over and over, then looks
+   * up 300 keys once each, and returns how many of the first 100 are left.
+   */
+  private int countHotKeysAfterScan(EvictionPolicy policy) {
+    ExpiringLruCache<Integer, Integer> target =
+        new ExpiringLruCache<Integer, Integer>(100, 1, policy);
+    target.setTimeSource(timeSource);
+    for (int i = 0; i < 100; i++) {
+      target.put(i, i, 1000);
+    }
+    for (int round = 0; round < 10; round++) {
+      for (int i = 0; i < 100; i++) {
+        assertEquals(new Integer(i), target.get(i));
+      }
+    }
+    for (int i = 1000; i < 1300; i++) {
+      assertNull(target.get(i));
+      target.put(i, i, 1000);
+    }
+    assertEquals(100, target.size());
+
+    int hot = 0;
+    for (int i = 0; i < 100; i++) {
+      if (target.get(i) != null) {
+        hot++;
+      }
+    }
+    return hot;
+  }
+
+  public void testTinyLfuRemovalListener() {
+    final List<String> removed = Lists.newArrayList();
+    ExpiringLruCache<Integer, Integer> target =
+        new ExpiringLruCache<Integer, Integer>(3, 1, EvictionPolicy.TINY_LFU);
+    target.setTimeSource(timeSource);
+    target.setRemovalListener(new RemovalListener<Integer, Integer>() {
+      public void onRemoval(Integer key, Integer value, RemovalCause cause) {
+        removed.add(key + ":" + cause);
+      }
+    });
+    target.put(1, 1, 1000);
+    target.put(2, 2, 1000);
+    target.put(3, 3, 1000);
+    target.get(1);
+    target.get(2);
+
+    // 4 pushes 3 out of the window, and 3 has been used less often than 1,
+    // the entry it competes with on probation, so 3 is evicted
+    target.put(4, 4, 1000);
+    assertNull(target.get(3));
+    assertEquals(new Integer(1), target.get(1));
+    assertEquals(ImmutableList.of("3:SIZE"), removed);
+
+    // hitting 1 protected it, and put 2 on probation instead. 4 has been
+    // used more often than 2, so 2 makes room for it
+    for (int i = 0; i < 5; i++) {
+      target.get(4);
+    }
+    target.put(5, 5, 1000);
+    assertEquals(new Integer(4), target.get(4));
+    assertEquals(new Integer(5), target.get(5));
+    assertEquals(ImmutableList.of("3:SIZE", "2:SIZE"), removed);
+    assertEquals(2, target.getStats().getEvictionCount());
+  }
+
+  public void testSimulatedHitRates() throws Exception {
+    List<String> trace = CacheSimulator.syntheticTrace(50000, 2000, 0.8, 0.3, 42L);
+    for (int capacity : new int[] { 100, 250 }) {
+      double lru = CacheSimulator.simulate(trace, capacity, EvictionPolicy.LRU);
+      double tinyLfu =
+          CacheSimulator.simulate(trace, capacity, EvictionPolicy.TINY_LFU);
+      assertTrue(capacity + ": " + tinyLfu + " <= " + lru, tinyLfu > lru);
+    }
+    CacheSimulator.report(trace, new int[] { 50, 100, 250, 500 }, System.out);
+  }
+
+  public void testWeightedCapacity() throws Exception {
+    ExpiringLruCache<String, byte[]> target = new ExpiringLruCache<String, byte[]>(
+        1000, Weighers.byteArrays(), 1, EvictionPolicy.LRU);
+    target.setTimeSource(timeSource);
+    assertEquals(1000, target.getMaxWeight());
+
+    // each entry weighs 32 bytes of overhead plus its length
+    target.put("a", new byte[300], 1000);
+    target.put("b", new byte[300], 1000);
+    assertEquals(664, target.getWeight());
+    target.put("c", new byte[300], 1000);
+    assertEquals(996, target.getWeight());
+    assertEquals(3, target.size());
+
+    // one large entry pushes out two small ones
+    target.get("a");
+    target.put("d", new byte[500], 1000);
+    assertNull(target.get("b"));
+    assertNull(target.get("c"));
+    assertNotNull(target.get("a"));
+    assertEquals(864, target.getWeight());
+    assertEquals(2, target.getStats().getEvictionCount());
+
+    // replacing an entry replaces its weight
+    target.put("d", new byte[100], 1000);
+    assertEquals(464, target.getWeight());
+
+    // an entry heavier than the whole cache isn't kept, but doesn't evict
+    // anything either
+    for (EvictionPolicy policy : EvictionPolicy.values()) {
+      ExpiringLruCache<String, byte[]> small = new ExpiringLruCache<String, byte[]>(
+          1000, Weighers.byteArrays(), 1, policy);
+      small.put("a", new byte[100], 1000);
+      small.put("huge", new byte[2000], 1000);
+      assertNull(policy.toString(), small.get("huge"));
+      assertNotNull(policy.toString(), small.get("a"));
+      assertEquals(132, small.getWeight());
+    }
+
+    target.remove("a");
+    target.remove("d");
+    assertEquals(0, target.getWeight());
+  }
+
+  public void testWeightedLoader() throws Exception {
+    ExpiringLruCache<Integer, Integer> target = new ExpiringLruCache<Integer, Integer>(
+        100, new Weigher<Integer, Integer>() {
+          public int weigh(Integer key, Integer value) {
+            return value;
+          }
+        }, 1, EvictionPolicy.LRU);
+    target.setTimeSource(timeSource);
+    CountingLoader loader = new CountingLoader(1000);
+    assertEquals(new Integer(30), target.get(15, loader));
+    assertEquals(30, target.getWeight());
+    assertEquals(new Integer(80), target.get(40, loader));
+    assertEquals(80, target.getWeight());
+    assertNull(target.get(15));
+
+    try {
+      target.put(1, -1, 1000);
+      fail("Should have thrown, negative weight");
+    } catch (IllegalArgumentException e) {
+      // good
+    }
+  }
+
+  public void testWeighers() throws Exception {
+    assertEquals(1, Weighers.singleton().weigh("foo", "bar"));
+    assertEquals(32 + 10, Weighers.byteArrays().weigh("foo", new byte[10]));
+
+    List<X509Certificate> chain = ImmutableList.of(
+        CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.INTERMEDIATE_PUB_CERT);
+    int encoded = CertConstantUtil.SERVER_PUB_CERT.getEncoded().length
+        + CertConstantUtil.INTERMEDIATE_PUB_CERT.getEncoded().length;
+    int weight = Weighers.certificateChains().weigh("foo", chain);
+    assertTrue(weight > encoded);
+    assertTrue(weight < 3 * encoded);
+    assertTrue(weight > Weighers.certificateChains().weigh("foo",
+        ImmutableList.of(CertConstantUtil.SERVER_PUB_CERT)));
+  }
+
+  public void testConcurrentAccess() throws Exception {
+    final ExpiringLruCache<Integer, Integer> shared =
+        new ExpiringLruCache<Integer, Integer>(256);
+    run(shared, 8, 200L, 2000);
+    assertTrue("size was " + shared.size(), shared.size() <= 256);
+  }
+
+  public void testSpeed() throws Exception {
+    for (int threads : new int[] { 1, 2, 4, 8 }) {
+      double single = run(new ExpiringLruCache<Integer, Integer>(4096, 1),
+          threads, 500L, 8192);
+      double segmented = run(new ExpiringLruCache<Integer, Integer>(4096),
+          threads, 500L, 8192);
+      System.out.println(threads + " threads: "
+          + (int) single + " ops per ms with one segment, "
+          + (int) segmented + " ops per ms segmented");
+    }
+  }
+
+  /**
+   * Uses the cache from the given number of threads for the given time (90%
+   * reads, 10% writes, over the given number of keys), checking that every
+   * value read matches its key. Returns operations per millisecond.
+   */
+  private double run(final ExpiringLruCache<Integer, Integer> target,
+      int threads, final long millis, final int keys) throws Exception {
+    final AtomicLong ops = new AtomicLong();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final CountDownLatch startSignal = new CountDownLatch(1);
+    List<Thread> workers = Lists.newArrayList();
+
+    for (int i = 0; i < threads; i++) {
+      final Random random = new Random(i);
+      Thread worker = new Thread() {
+        @Override
+        public void run() {
+          try {
+            startSignal.await();
+            long count = 0;
+            long stop = System.currentTimeMillis() + millis;
+            while ((count & 0xff) != 0 || System.currentTimeMillis() < stop) {
+              Integer key = random.nextInt(keys);
+              if (random.nextInt(10) == 0) {
+                target.put(key, key, 1000);
+              } else {
+                Integer value = target.get(key);
+                if (value != null && !value.equals(key)) {
+                  throw new AssertionError(value + " cached for " + key);
+                }
+              }
+              count++;
+            }
+            ops.addAndGet(count);
+          } catch (Throwable t) {
+            failure.set(t);
+          }
+        }
+      };
+      worker.start();
+      workers.add(worker);
+    }
+
+    startSignal.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    if (failure.get() != null) {
+      throw new RuntimeException(failure.get());
+    }
+    return ((double) ops.get()) / millis;
+  }
+
+  /**
+   * Loads twice the key, and counts how often it was asked to.
+   */
+  private static class CountingLoader
+      implements ExpiringLruCache.Loader<Integer, Integer> {
+
+    private final AtomicInteger count = new AtomicInteger();
+    private final long maxSeconds;
+
+    public CountingLoader(long maxSeconds) {
+      this.maxSeconds = maxSeconds;
+    }
+
+    public Integer load(Integer key) throws Exception {
+      count.incrementAndGet();
+      return 2 * key;
+    }
+
+    public long getMaxSeconds(Integer key, Integer value) {
+      return maxSeconds;
+    }
+  }
 }
@@ -0,0 +1,207 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.util;
+
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RefreshingCacheTest extends TestCase {
+
+  private FakeTimeSource timeSource;
+  private QueueExecutor executor;
+  private CountingLoader loader;
+  private RefreshingCache<String, Integer> cache;
+
+  @Override
+  public void setUp() {
+    timeSource = new FakeTimeSource();
+    executor = new QueueExecutor();
+    loader = new CountingLoader(100);
+    // refresh after 10 seconds, expire after 100, keep 50 more on failure
+    cache = new RefreshingCache<String, Integer>(10, 10, 50);
+    cache.setTimeSource(timeSource);
+    cache.setExecutor(executor);
+  }
+
+  public void testLoad() throws Exception {
+    assertEquals(1, cache.get("a", loader).intValue());
+    assertEquals(1, cache.get("a", loader).intValue());
+    assertEquals(1, loader.loads.get());
+    assertEquals(0, executor.size());
+  }
+
+  public void testStaleValueIsServedWhileRefreshing() throws Exception {
+    cache.get("a", loader);
+    timeSource.advanceSeconds(11);
+
+    // the stale value comes back, and only one refresh is started
+    assertEquals(1, cache.get("a", loader).intValue());
+    assertEquals(1, cache.get("a", loader).intValue());
+    assertEquals(1, executor.size());
+    assertEquals(1, loader.loads.get());
+
+    executor.runAll();
+    assertEquals(2, cache.get("a", loader).intValue());
+    assertEquals(0, executor.size());
+    assertEquals(1, cache.getRefreshCount());
+  }
+
+  public void testExpiredValueIsLoaded() throws Exception {
+    cache.get("a", loader);
+    timeSource.advanceSeconds(101);
+    assertEquals(2, cache.get("a", loader).intValue());
+    assertEquals(0, executor.size());
+  }
+
+  public void testRefreshInCallingThread() throws Exception {
+    cache.setExecutor(null);
+    cache.get("a", loader);
+    timeSource.advanceSeconds(11);
+    assertEquals(2, cache.get("a", loader).intValue());
+    assertEquals(2, cache.get("a", loader).intValue());
+    assertEquals(2, loader.loads.get());
+  }
+
+  public void testShortLivedValuesAreNotRefreshed() throws Exception {
+    CountingLoader shortLived = new CountingLoader(5);
+    cache.get("a", shortLived);
+    timeSource.advanceSeconds(4);
+    cache.get("a", shortLived);
+    timeSource.advanceSeconds(2);
+    assertEquals(2, cache.get("a", shortLived).intValue());
+    assertEquals(0, executor.size());
+  }
+
+  public void testFailedRefreshKeepsOldValue() throws Exception {
+    cache.get("a", loader);
+    loader.fail = true;
+
+    // the refresh fails, and is tried again 10 seconds later
+    timeSource.advanceSeconds(11);
+    assertEquals(1, cache.get("a", loader).intValue());
+    executor.runAll();
+    assertEquals(1, cache.getRefreshFailureCount());
+    assertEquals(1, cache.get("a", loader).intValue());
+    assertEquals(0, executor.size());
+    timeSource.advanceSeconds(10);
+    assertEquals(1, cache.get("a", loader).intValue());
+    assertEquals(1, executor.size());
+    executor.runAll();
+
+    // past its expiry, the old value is still used during the grace period
+    timeSource.advanceSeconds(120);
+    assertEquals(1, cache.get("a", loader).intValue());
+    executor.runAll();
+    assertEquals(3, cache.getRefreshFailureCount());
+
+    // after that, it's gone, and loading it fails
+    timeSource.advanceSeconds(31);
+    assertNull(cache.getIfPresent("a"));
+    try {
+      cache.get("a", loader);
+      fail("Should have thrown, loader failed");
+    } catch (ExecutionException e) {
+      // good
+    }
+
+    // once the loader works again, so does the cache
+    loader.fail = false;
+    assertEquals(6, cache.get("a", loader).intValue());
+  }
+
+  public void testFailedRefreshWithoutGracePeriod() throws Exception {
+    cache = new RefreshingCache<String, Integer>(10, 10, 0);
+    cache.setTimeSource(timeSource);
+    cache.get("a", loader);
+    loader.fail = true;
+
+    timeSource.advanceSeconds(95);
+    assertEquals(1, cache.get("a", loader).intValue());
+    timeSource.advanceSeconds(6);
+    assertNull(cache.getIfPresent("a"));
+  }
+
+  public void testClearDiscardsRunningRefresh() throws Exception {
+    cache.get("a", loader);
+    timeSource.advanceSeconds(11);
+    cache.get("a", loader);
+    cache.clear();
+    executor.runAll();
+    assertNull(cache.getIfPresent("a"));
+    assertEquals(3, cache.get("a", loader).intValue());
+  }
+
+  /**
+   * Loads the number of times it was called, for 'seconds' seconds.
+   */
+  private static class CountingLoader
+      implements ExpiringLruCache.Loader<String, Integer> {
+
+    private final AtomicInteger loads = new AtomicInteger();
+    private final long seconds;
+    private volatile boolean fail;
+
+    public CountingLoader(long seconds) {
+      this.seconds = seconds;
+    }
+
+    public Integer load(String key) throws Exception {
+      int count = loads.incrementAndGet();
+      if (fail) {
+        throw new Exception("failed to load " + key);
+      }
+      return count;
+    }
+
+    public long getMaxSeconds(String key, Integer value) {
+      return seconds;
+    }
+  }
+
+  /**
+   * Runs tasks when told to.
+   */
+  private static class QueueExecutor implements Executor {
+
+    private final List<Runnable> tasks = Lists.newArrayList();
+
+    public synchronized void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    public synchronized int size() {
+      return tasks.size();
+    }
+
+    public void runAll() {
+      List<Runnable> run;
+      synchronized (this) {
+        run = Lists.newArrayList(tasks);
+        tasks.clear();
+      }
+      for (Runnable task : run) {
+        task.run();
+      }
+    }
+  }
+}
@@ -23,7 +23,9 @@ import org.w3c.dom.Element;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Reader;
 import java.io.StringReader;
 import java.net.ServerSocket;
@@ -32,6 +34,9 @@ import java.net.Socket;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 public class XmlUtilTest extends TestCase {
 
@@ -78,41 +83,7 @@ public class XmlUtilTest extends TestCase {
     DocumentBuilderFactory factory =
         XmlUtil.getSecureDocumentBuilderFactory();
 
-    String[] attacks = new String[] {
-
-      /* The file /dev/tty is used because it will typically cause a hang if
-       * opened, thus causing the test to fail. We need to ensure the file is
-       * never opened - it is not enough to just check that file contents do not
-       * appear in the parsed XML document.
-       */
-      "<!DOCTYPE doc [ <!ENTITY % ent SYSTEM \"file:///dev/tty\">%ent;]><ele/>",
-
-      /* The file /nosuch/file is used because it should not exist. Here, we are
-       * checking that the parser does not behave differently when a
-       * non-existant file is specified. We don't want a file existence
-       * disclosure attack.
-       */
-      "<!DOCTYPE doc [ <!ENTITY % ent SYSTEM \"file:///nosuch/file\">%ent;]>" +
-          "<ele/>",
-      "<!DOCTYPE doc [ <!ENTITY ent SYSTEM \"file:///dev/tty\"> ]>" +
-          "<ele>&ent;</ele>",
-      "<!DOCTYPE doc [ <!ENTITY ent SYSTEM \"file:///nosuch/file\"> ]>" +
-          "<ele>&ent;</ele>",
-      "<!DOCTYPE doc SYSTEM \"file:///dev/tty\"><ele/>",
-      "<!DOCTYPE doc SYSTEM \"file:///nosuch/file\"><ele/>",
-      "<!DOCTYPE doc [ <!ENTITY % ent SYSTEM " +
-          "\"http://localhost:" + listenPort + "/abc\">%ent;]><ele/>",
-      "<!DOCTYPE doc [ <!ENTITY ent SYSTEM \"http://localhost:" + listenPort +
-          "/abc\"> ]><ele>&ent;</ele>",
-      "<!DOCTYPE doc SYSTEM \"http://localhost:" + listenPort + "/abc\">" +
-          "<ele/>",
-      "<!DOCTYPE rss PUBLIC \"-//Netscape Communications//DTD RSS 0.91//EN\" " +
-          "\"file:///dev/tty\"><ele/>",
-      "<!DOCTYPE rss PUBLIC \"-//Netscape Communications//DTD RSS 0.91//EN\" " +
-          "\"http://localhost:" + listenPort + "/abc\"><ele/>"
-    };
-
-    for (String attack : attacks) {
+    for (String attack : getAttacks()) {
       try {
         DocumentBuilder builder = factory.newDocumentBuilder();
         parseStringDOM(builder, attack);
@@ -165,6 +136,179 @@ public class XmlUtilTest extends TestCase {
     }
   }
 
+  public void testSecurityOfStaxParser() throws Exception {
+    for (String attack : getAttacks()) {
+      try {
+        readStringStax(attack);
+      } catch (XMLStreamException e) {
+
+        // Parse errors are expected, ignore them.
+      }
+    }
+
+    // built-in entities still work
+    XMLStreamReader reader = XmlUtil.getXmlStreamReader(new ByteArrayInputStream(
+        EncodingUtil.getUtf8Bytes(
+            "<ele att=\"&amp;&#9;&#x3f;\">&amp;&#9;&#x3f;</ele>")));
+    assertEquals(XMLStreamConstants.START_ELEMENT, reader.nextTag());
+    assertEquals("&\t?", reader.getAttributeValue(null, "att"));
+    assertEquals("&\t?", reader.getElementText());
+    reader.close();
+
+    // benign DTD should parse without error
+    readStringStax(
+        "<?xml version=\"1.0\" encoding=\"iso-8859-1\"?>" +
+        "<!DOCTYPE rss PUBLIC " +
+        "\"-//Netscape Communications//DTD RSS 0.91//EN\" " +
+        "\"http://my.netscape.com/publish/formats/rss-0.91.dtd\"><ele/>");
+  }
+
+  public void testMaxDocumentSize() throws Exception {
+    String doc = "<ele>" + repeat("x", 200) + "</ele>";
+    XmlUtil.setMaxDocumentSize(100);
+    try {
+      XmlUtil.getDocument(toStream(doc));
+      fail("document should have been too large");
+    } catch (IOException e) {
+      // expected
+    } finally {
+      XmlUtil.setMaxDocumentSize(XmlUtil.DEFAULT_MAX_DOCUMENT_SIZE);
+    }
+
+    // and the next parse on this thread works again
+    assertEquals("ele", XmlUtil.getDocument(toStream(doc))
+        .getDocumentElement().getTagName());
+  }
+
+  public void testMaxDocumentSize_stax() throws Exception {
+    XmlUtil.setMaxDocumentSize(100);
+    try {
+      readStringStax("<ele>" + repeat("x", 200) + "</ele>");
+      fail("document should have been too large");
+    } catch (XMLStreamException e) {
+      // expected
+    } finally {
+      XmlUtil.setMaxDocumentSize(XmlUtil.DEFAULT_MAX_DOCUMENT_SIZE);
+    }
+  }
+
+  public void testMaxEntityExpansions() throws Exception {
+    String doc = "<!DOCTYPE doc [" +
+        "<!ENTITY a \"aaaaaaaaaa\">" +
+        "<!ENTITY b \"&a;&a;&a;&a;&a;&a;&a;&a;&a;&a;\">" +
+        "<!ENTITY c \"&b;&b;&b;&b;&b;&b;&b;&b;&b;&b;\">" +
+        "]><ele>&c;</ele>";
+
+    // 111 expansions are fine by default
+    assertEquals(1000, XmlUtil.getDocument(toStream(doc))
+        .getDocumentElement().getTextContent().length());
+
+    XmlUtil.setMaxEntityExpansions(50);
+    try {
+      XmlUtil.getDocument(toStream(doc));
+      fail("expected too many entity expansions");
+    } catch (SAXException e) {
+      // expected
+    } finally {
+      XmlUtil.setMaxEntityExpansions(XmlUtil.DEFAULT_MAX_ENTITY_EXPANSIONS);
+    }
+  }
+
+  public void testSpeed() throws Exception {
+    String doc = "<XRDS xmlns=\"xri://$xrds\"><XRD xmlns=\"xri://$xrd*($v*2.0)\">" +
+        repeat("<Service><Type>http://example.com/type</Type></Service>", 10) +
+        "</XRD></XRDS>";
+    byte[] bytes = EncodingUtil.getUtf8Bytes(doc);
+    int parses = 2000;
+
+    // warm up
+    for (int i = 0; i < 200; i++) {
+      XmlUtil.getSecureDocumentBuilderFactory().newDocumentBuilder()
+          .parse(new ByteArrayInputStream(bytes));
+      XmlUtil.getDocument(new ByteArrayInputStream(bytes));
+    }
+
+    // a new factory and builder for every parse
+    long start = System.nanoTime();
+    for (int i = 0; i < parses; i++) {
+      XmlUtil.getSecureDocumentBuilderFactory().newDocumentBuilder()
+          .parse(new ByteArrayInputStream(bytes));
+    }
+    long freshNanos = System.nanoTime() - start;
+
+    // pooled builders
+    start = System.nanoTime();
+    for (int i = 0; i < parses; i++) {
+      XmlUtil.getDocument(new ByteArrayInputStream(bytes));
+    }
+    long pooledNanos = System.nanoTime() - start;
+
+    System.out.println("new parser per parse: "
+        + (freshNanos / parses / 1000.0) + " us per parse, pooled parser: "
+        + (pooledNanos / parses / 1000.0) + " us per parse");
+  }
+
+  private static String repeat(String s, int times) {
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < times; i++) {
+      result.append(s);
+    }
+    return result.toString();
+  }
+
+  private static InputStream toStream(String xml) {
+    return new ByteArrayInputStream(EncodingUtil.getUtf8Bytes(xml));
+  }
+
+  private String[] getAttacks() {
+    return new String[] {
+
+      /* The file /dev/tty is used because it will typically cause a hang if
+       * opened, thus causing the test to fail. We need to ensure the file is
+       * never opened - it is not enough to just check that file contents do not
+       * appear in the parsed XML document.
+       */
+      "<!DOCTYPE doc [ <!ENTITY % ent SYSTEM \"file:///dev/tty\">%ent;]><ele/>",
+
+      /* The file /nosuch/file is used because it should not exist. Here, we are
+       * checking that the parser does not behave differently when a
+       * non-existant file is specified. We don't want a file existence
+       * disclosure attack.
+       */
+      "<!DOCTYPE doc [ <!ENTITY % ent SYSTEM \"file:///nosuch/file\">%ent;]>" +
+          "<ele/>",
+      "<!DOCTYPE doc [ <!ENTITY ent SYSTEM \"file:///dev/tty\"> ]>" +
+          "<ele>&ent;</ele>",
+      "<!DOCTYPE doc [ <!ENTITY ent SYSTEM \"file:///nosuch/file\"> ]>" +
+          "<ele>&ent;</ele>",
+      "<!DOCTYPE doc SYSTEM \"file:///dev/tty\"><ele/>",
+      "<!DOCTYPE doc SYSTEM \"file:///nosuch/file\"><ele/>",
+      "<!DOCTYPE doc [ <!ENTITY % ent SYSTEM " +
+          "\"http://localhost:" + listenPort + "/abc\">%ent;]><ele/>",
+      "<!DOCTYPE doc [ <!ENTITY ent SYSTEM \"http://localhost:" + listenPort +
+          "/abc\"> ]><ele>&ent;</ele>",
+      "<!DOCTYPE doc SYSTEM \"http://localhost:" + listenPort + "/abc\">" +
+          "<ele/>",
+      "<!DOCTYPE rss PUBLIC \"-//Netscape Communications//DTD RSS 0.91//EN\" " +
+          "\"file:///dev/tty\"><ele/>",
+      "<!DOCTYPE rss PUBLIC \"-//Netscape Communications//DTD RSS 0.91//EN\" " +
+          "\"http://localhost:" + listenPort + "/abc\"><ele/>"
+    };
+  }
+
+  /* Reads through a string with the StAX parser. */
+  private void readStringStax(String xml) throws XMLStreamException {
+    XMLStreamReader reader = XmlUtil.getXmlStreamReader(
+        new ByteArrayInputStream(EncodingUtil.getUtf8Bytes(xml)));
+    try {
+      while (reader.hasNext()) {
+        reader.next();
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
   /* Parses a string with the current DOM parser. */
   private Document parseStringDOM(DocumentBuilder builder, String xml)
       throws SAXException {
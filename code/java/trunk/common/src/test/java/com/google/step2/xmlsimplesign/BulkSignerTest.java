@@ -0,0 +1,218 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.xmlsimplesign;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.step2.util.EncodingUtil;
+import com.google.step2.util.FakeTimeSource;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+public class BulkSignerTest extends TestCase {
+
+  private static final String PREFIX = "http://example.com/sigs/";
+
+  private Signer signer;
+  private CollectingSink sink;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    signer = new Signer()
+        .setSignatureFilePrefix(PREFIX)
+        .setSigningKey(CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.SERVER_PRIV_KEY)
+        .addIntermediateCert(CertConstantUtil.INTERMEDIATE_PUB_CERT);
+    sink = new CollectingSink();
+  }
+
+  public void testSignAll() throws Exception {
+    BulkSigner bulk = new BulkSigner(signer, sink, 4, 8);
+    for (int i = 0; i < 50; i++) {
+      bulk.submit("user" + i, createXrds("user" + i));
+    }
+    bulk.finish();
+
+    assertEquals(50, bulk.getSignedCount());
+    assertEquals(0, bulk.getFailedCount());
+    assertEquals(0, bulk.getPendingCount());
+    assertEquals(50, sink.documents.size());
+    assertTrue(bulk.getBytesSigned() > 0);
+
+    for (int i = 0; i < 50; i += 7) {
+      String id = "user" + i;
+      SignatureResult r = sink.signatures.get(id);
+      assertTrue(r.getSignatureLocation().startsWith(PREFIX));
+      Verifier v = new Verifier(createValidator(),
+          new FakeFetcher(r.getSignatureLocation(), r.getSignature()));
+      VerificationResult vr = v.verify(sink.documents.get(id), null);
+      assertEquals(CertConstantUtil.SERVER_PUB_CERT, vr.getCerts().get(0));
+    }
+  }
+
+  public void testFailure() throws Exception {
+    BulkSigner bulk = new BulkSigner(signer, sink, 2, 2);
+    bulk.submit("good", createXrds("good"));
+    bulk.submit("bad", EncodingUtil.getUtf8Bytes("<?xml version='1.0'?><XR"));
+    bulk.finish();
+
+    assertEquals(1, bulk.getSignedCount());
+    assertEquals(1, bulk.getFailedCount());
+    assertTrue(sink.documents.containsKey("good"));
+    assertTrue(sink.failures.get("bad") instanceof XmlSimpleSignException);
+  }
+
+  public void testBackpressure() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    CollectingSink slowSink = new CollectingSink() {
+      @Override
+      public void write(String id, byte[] signedDocument,
+          SignatureResult signature) throws IOException {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IOException("interrupted");
+        }
+        super.write(id, signedDocument, signature);
+      }
+    };
+    final BulkSigner bulk = new BulkSigner(signer, slowSink, 1, 2);
+    bulk.submit("user0", createXrds("user0"));
+    bulk.submit("user1", createXrds("user1"));
+    assertEquals(2, bulk.getPendingCount());
+
+    // the third document has to wait until the sink lets the first one go
+    new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(200);
+        } catch (InterruptedException e) {
+          // ignored
+        }
+        release.countDown();
+      }
+    }.start();
+    bulk.submit("user2", createXrds("user2"));
+    bulk.finish();
+
+    assertEquals(3, bulk.getSignedCount());
+    assertTrue("blocked for " + bulk.getBlockedMillis() + " ms",
+        bulk.getBlockedMillis() >= 100);
+  }
+
+  public void testDirectorySink() throws Exception {
+    File dir = File.createTempFile("bulksigner", "");
+    dir.delete();
+    File docs = new File(dir, "docs");
+    File sigs = new File(dir, "sigs");
+    docs.mkdirs();
+    sigs.mkdirs();
+    try {
+      BulkSigner bulk = new BulkSigner(signer,
+          new BulkSigner.DirectorySink(docs, sigs), 2, 4);
+      bulk.submit("alice", createXrds("alice"));
+      bulk.finish();
+
+      byte[] document = FileUtils.readFileToByteArray(new File(docs, "alice"));
+      File[] signatures = sigs.listFiles();
+      assertEquals(1, signatures.length);
+      String location = PREFIX + signatures[0].getName();
+      String signature = FileUtils.readFileToString(signatures[0], "UTF-8");
+
+      Verifier v = new Verifier(createValidator(),
+          new FakeFetcher(location, signature));
+      VerificationResult vr = v.verify(document, null);
+      assertEquals(CertConstantUtil.SERVER_PUB_CERT, vr.getCerts().get(0));
+    } finally {
+      FileUtils.deleteDirectory(dir);
+    }
+  }
+
+  public void testSpeed() throws Exception {
+    int documents = 2000;
+    int threads = Runtime.getRuntime().availableProcessors();
+
+    // warm up
+    signAll(new BulkSigner(signer, new CollectingSink(), 1, 64), 200);
+
+    BulkSigner single = new BulkSigner(signer, new CollectingSink(), 1, 64);
+    signAll(single, documents);
+    BulkSigner parallel = new BulkSigner(signer, new CollectingSink(), threads, 64);
+    signAll(parallel, documents);
+
+    System.out.println("bulk signing " + documents + " documents: "
+        + (int) single.getDocumentsPerSecond() + " per second on 1 thread, "
+        + (int) parallel.getDocumentsPerSecond() + " per second on "
+        + threads + " threads (submit blocked for "
+        + parallel.getBlockedMillis() + " ms)");
+  }
+
+  private void signAll(BulkSigner bulk, int documents) throws Exception {
+    for (int i = 0; i < documents; i++) {
+      bulk.submit("user" + i, createXrds("user" + i));
+    }
+    bulk.finish();
+    assertEquals(documents, bulk.getSignedCount());
+  }
+
+  private static byte[] createXrds(String user) {
+    return EncodingUtil.getUtf8Bytes(
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<xrds:XRDS xmlns:xrds=\"xri://$xrds\" xmlns=\"xri://$xrd*($v*2.0)\">\n"
+        + "  <XRD>\n"
+        + "    <Service>\n"
+        + "      <Type>http://specs.openid.net/auth/2.0/signon</Type>\n"
+        + "      <URI>https://example.com/openid</URI>\n"
+        + "      <LocalID>https://example.com/id/" + user + "</LocalID>\n"
+        + "    </Service>\n"
+        + "  </XRD>\n"
+        + "</xrds:XRDS>\n");
+  }
+
+  private CachedCertPathValidator createValidator() {
+    // the test certs have expired, so we validate as of when they were valid
+    CachedCertPathValidator validator =
+        new CachedCertPathValidator(ImmutableSet.of(CertConstantUtil.CA_PUB_CERT));
+    validator.setTimeSource(new FakeTimeSource(1233465103000L));
+    return validator;
+  }
+
+  private static class CollectingSink implements BulkSigner.Sink {
+
+    final Map<String, byte[]> documents = Maps.newHashMap();
+    final Map<String, SignatureResult> signatures = Maps.newHashMap();
+    final Map<String, Exception> failures = Maps.newHashMap();
+
+    public synchronized void write(String id, byte[] signedDocument,
+        SignatureResult signature) throws IOException {
+      documents.put(id, signedDocument);
+      signatures.put(id, signature);
+    }
+
+    public synchronized void failed(String id, Exception e) {
+      failures.put(id, e);
+    }
+  }
+}
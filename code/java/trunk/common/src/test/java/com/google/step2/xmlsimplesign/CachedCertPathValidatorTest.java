@@ -18,6 +18,8 @@ package com.google.step2.xmlsimplesign;
 
 import java.security.cert.X509Certificate;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
 
@@ -31,14 +33,14 @@ import com.google.step2.util.FakeTimeSource;
 public class CachedCertPathValidatorTest extends TestCase {
 
   private FakeTimeSource timeSource;
-  private CachedCertPathValidator validator;
+  private CountingValidator validator;
   private List<X509Certificate> serverChain = Lists.newArrayList(
       CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.INTERMEDIATE_PUB_CERT);
 
   @Override
   public void setUp() throws Exception {
     timeSource = new FakeTimeSource(1233465103000L); // Jan 31, 2009
-    validator = new CachedCertPathValidator(ImmutableSet.of(CertConstantUtil.CA_PUB_CERT));
+    validator = new CountingValidator();
     validator.setTimeSource(timeSource);
   }
 
@@ -77,6 +79,133 @@ public class CachedCertPathValidatorTest extends TestCase {
     }
   }
 
+  public void testRestrictedTrustRoots() throws Exception {
+    validator.restrictTrustRoots("hosted-id.google.com",
+        ImmutableSet.of(CertConstantUtil.INTERMEDIATE_PUB_CERT));
+    validator.validate(serverChain);
+
+    validator.restrictTrustRoots("Server Cert",
+        ImmutableSet.of(CertConstantUtil.INTERMEDIATE_PUB_CERT));
+    try {
+      validator.validate(Lists.newArrayList(
+          CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.CA_PUB_CERT));
+      fail("Should have thrown, chain doesn't lead to the restricted root");
+    } catch (CertValidatorException e) {
+      // good
+    }
+    validator.validate(Lists.newArrayList(CertConstantUtil.SERVER_PUB_CERT));
+  }
+
+  public void testSuccessIsCached() throws Exception {
+    validator.validate(serverChain);
+    validator.validate(Lists.newArrayList(serverChain));
+    assertEquals(1, validator.getCount());
+
+    timeSource.advanceSeconds(11 * 60);
+    validator.validate(serverChain);
+    assertEquals(2, validator.getCount());
+  }
+
+  public void testSuccessIsRefreshed() throws Exception {
+    validator.validate(serverChain);
+
+    // after five minutes, the chain is validated again before the cached
+    // result expires, which keeps it cached beyond the first ten minutes
+    timeSource.advanceSeconds(6 * 60);
+    validator.validate(serverChain);
+    assertEquals(2, validator.getCount());
+    timeSource.advanceSeconds(4 * 60 + 30);
+    validator.validate(serverChain);
+    assertEquals(2, validator.getCount());
+  }
+
+  public void testFailureIsCachedBriefly() throws Exception {
+    List<X509Certificate> incomplete =
+        Lists.newArrayList(CertConstantUtil.SERVER_PUB_CERT);
+    for (int i = 0; i < 3; i++) {
+      try {
+        validator.validate(incomplete);
+        fail("Should have thrown, cert chain incomplete.");
+      } catch (CertValidatorException e) {
+        // good
+      }
+    }
+    assertEquals(1, validator.getCount());
+
+    timeSource.advanceSeconds(31);
+    try {
+      validator.validate(incomplete);
+      fail("Should have thrown, cert chain incomplete.");
+    } catch (CertValidatorException e) {
+      // good
+    }
+    assertEquals(2, validator.getCount());
+  }
+
+  public void testCacheExpiresWithCertificate() throws Exception {
+    long notAfter = Math.min(
+        CertConstantUtil.SERVER_PUB_CERT.getNotAfter().getTime(),
+        CertConstantUtil.INTERMEDIATE_PUB_CERT.getNotAfter().getTime());
+    timeSource = new FakeTimeSource(notAfter - 60 * 1000L);
+    validator.setTimeSource(timeSource);
+
+    validator.validate(serverChain);
+
+    // two minutes later, the chain has expired, even though the cache entry
+    // would otherwise still be fresh
+    timeSource.advanceSeconds(2 * 60);
+    try {
+      validator.validate(serverChain);
+      fail("Should have thrown, cert expired");
+    } catch (CertValidatorException e) {
+      // good
+    }
+  }
+
+  public void testConcurrentValidationsAreDeduplicated() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountingValidator slowValidator = new CountingValidator() {
+      @Override
+      void validateNoCache(List<X509Certificate> certs) throws CertValidatorException {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new CertValidatorException(e);
+        }
+        super.validateNoCache(certs);
+      }
+    };
+    slowValidator.setTimeSource(timeSource);
+
+    final AtomicInteger successes = new AtomicInteger();
+    List<Thread> threads = Lists.newArrayList();
+    for (int i = 0; i < 10; i++) {
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            slowValidator.validate(serverChain);
+            successes.incrementAndGet();
+          } catch (CertValidatorException e) {
+            // counted below
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+
+    // give all threads a chance to pile up behind the first validation
+    Thread.sleep(200);
+    release.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(10, successes.get());
+    assertEquals(1, slowValidator.getCount());
+  }
+
   public void testSpeed() throws Exception {
     long start = System.currentTimeMillis();
     long ops = 0;
@@ -87,4 +216,23 @@ public class CachedCertPathValidatorTest extends TestCase {
     long stop = System.currentTimeMillis();
     System.out.println(ops/(stop-start) + " ops per ms");
   }
+
+  private static class CountingValidator extends CachedCertPathValidator {
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    public CountingValidator() {
+      super(ImmutableSet.of(CertConstantUtil.CA_PUB_CERT));
+    }
+
+    @Override
+    void validateNoCache(List<X509Certificate> certs) throws CertValidatorException {
+      count.incrementAndGet();
+      super.validateNoCache(certs);
+    }
+
+    public int getCount() {
+      return count.get();
+    }
+  }
 }
@@ -29,10 +29,16 @@ public class CertConstantUtil {
   public static final X509Certificate SERVER_PUB_CERT;
   public static final X509Certificate INTERMEDIATE_PUB_CERT;
   public static final X509Certificate CA_PUB_CERT;
+  public static final X509Certificate EC_SERVER_PUB_CERT;
 
   public static final PrivateKey SERVER_PRIV_KEY;
   public static final PrivateKey INTERMEDIATE_PRIV_KEY;
   public static final PrivateKey CA_PRIV_KEY;
+  public static final PrivateKey EC_SERVER_PRIV_KEY;
+
+  // the certs have long expired, so tests that validate them pretend it's
+  // Jan 31, 2009
+  public static final long VALID_TIME_MILLIS = 1233465103000L;
 
   static {
     try {
@@ -42,6 +48,8 @@ public class CertConstantUtil {
       SERVER_PRIV_KEY = CertUtil.getPrivateKeyFromBytes(CertConstants.SERVER_PRIV);
       INTERMEDIATE_PRIV_KEY = CertUtil.getPrivateKeyFromBytes(CertConstants.INTERMEDIATE_PRIV);
       CA_PRIV_KEY = CertUtil.getPrivateKeyFromBytes(CertConstants.CA_PRIV);
+      EC_SERVER_PUB_CERT = CertUtil.getCertFromBytes(CertConstants.EC_SERVER_PUB);
+      EC_SERVER_PRIV_KEY = CertUtil.getPrivateKeyFromBytes(CertConstants.EC_SERVER_PRIV);
     } catch (GeneralSecurityException e) {
       throw new RuntimeException(e);
     }
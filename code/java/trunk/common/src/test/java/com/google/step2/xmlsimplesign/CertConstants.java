@@ -244,4 +244,42 @@ public class CertConstants {
     45,36,-126,-76,123,115,73,63,-119,94,42,64,-9,-57,-72,17,
     -30,35,33,53,26,-122,-9,-13,-44,-102,0,
   };
+
+  // an EC (P-256) certificate issued by the intermediate CA
+  public static final byte[] EC_SERVER_PUB = new byte[] {
+    48,-126,1,91,48,-127,-59,2,2,83,0,48,13,6,9,42,
+    -122,72,-122,-9,13,1,1,11,5,0,48,26,49,24,48,22,
+    6,3,85,4,3,19,15,73,110,116,101,114,109,101,100,105,
+    97,116,101,32,67,65,48,30,23,13,48,57,48,49,50,55,
+    48,48,48,48,48,48,90,23,13,49,57,48,49,50,51,48,
+    48,48,48,48,48,90,48,25,49,23,48,21,6,3,85,4,
+    3,12,14,69,67,32,83,101,114,118,101,114,32,67,101,114,
+    116,48,89,48,19,6,7,42,-122,72,-50,61,2,1,6,8,
+    42,-122,72,-50,61,3,1,7,3,66,0,4,-97,121,-121,75,
+    -24,17,22,-93,8,-78,-127,-95,-32,13,4,40,12,25,-13,-95,
+    -114,-97,-116,-96,-35,31,0,-101,38,77,-127,-54,-78,-63,22,21,
+    2,16,18,126,11,26,10,-108,42,80,26,49,-14,-62,-109,-74,
+    -86,-17,20,53,36,117,-93,68,-122,13,-69,10,48,13,6,9,
+    42,-122,72,-122,-9,13,1,1,11,5,0,3,-127,-127,0,-113,
+    119,-56,-30,24,-32,-62,-66,92,-20,6,9,100,4,32,9,59,
+    69,120,-28,13,-118,-43,-32,-9,77,24,15,42,59,-23,101,5,
+    -33,56,-106,-22,106,-36,15,66,47,80,-27,111,126,109,79,-77,
+    29,68,-19,-61,-112,7,-37,-118,-128,55,-75,-31,122,-62,47,115,
+    -113,69,5,-114,70,67,-28,11,-91,-72,52,36,124,-35,70,-118,
+    -104,-54,-38,-98,-103,-124,-87,8,59,-81,127,-114,95,83,76,13,
+    -115,-38,-111,-5,31,99,90,87,43,-116,12,-67,-121,-72,125,48,
+    -89,109,-80,-117,-46,-69,-6,87,-108,118,36,-115,121,115,97
+  };
+
+  public static final byte[] EC_SERVER_PRIV = new byte[] {
+    48,-127,-121,2,1,0,48,19,6,7,42,-122,72,-50,61,2,
+    1,6,8,42,-122,72,-50,61,3,1,7,4,109,48,107,2,
+    1,1,4,32,-59,-92,-103,-41,-56,-121,97,-92,-12,-15,-111,64,
+    -10,34,-51,125,-3,-64,75,40,42,64,85,118,-110,-55,45,127,
+    -20,-127,105,120,-95,68,3,66,0,4,-97,121,-121,75,-24,17,
+    22,-93,8,-78,-127,-95,-32,13,4,40,12,25,-13,-95,-114,-97,
+    -116,-96,-35,31,0,-101,38,77,-127,-54,-78,-63,22,21,2,16,
+    18,126,11,26,10,-108,42,80,26,49,-14,-62,-109,-74,-86,-17,
+    20,53,36,117,-93,68,-122,13,-69,10
+  };
 }
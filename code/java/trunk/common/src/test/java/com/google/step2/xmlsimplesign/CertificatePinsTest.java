@@ -0,0 +1,116 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.xmlsimplesign;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.step2.util.EncodingUtil;
+import com.google.step2.util.FakeTimeSource;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.List;
+
+public class CertificatePinsTest extends TestCase {
+
+  private static final String AUTHORITY = "Server Cert";
+
+  private Date now;
+  private List<X509Certificate> serverChain = Lists.newArrayList(
+      CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.INTERMEDIATE_PUB_CERT);
+
+  @Override
+  public void setUp() throws Exception {
+    now = new Date(1233465103000L); // Jan 31, 2009
+  }
+
+  public void testPinnedLeaf() throws Exception {
+    CertificatePins pins = new CertificatePins().addPin(AUTHORITY,
+        CertificatePins.getFingerprint(CertConstantUtil.SERVER_PUB_CERT));
+    assertTrue(pins.accepts(serverChain, now));
+    assertTrue(pins.accepts(
+        Lists.newArrayList(CertConstantUtil.SERVER_PUB_CERT), now));
+  }
+
+  public void testPinnedIntermediate() throws Exception {
+    CertificatePins pins = new CertificatePins().addPin(AUTHORITY,
+        CertificatePins.getFingerprint(CertConstantUtil.INTERMEDIATE_PUB_CERT));
+    assertTrue(pins.accepts(serverChain, now));
+    assertEquals(1, pins.findPin(serverChain, now));
+
+    // the leaf wasn't issued by the pinned intermediate
+    assertFalse(pins.accepts(Lists.newArrayList(
+        CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.CA_PUB_CERT,
+        CertConstantUtil.INTERMEDIATE_PUB_CERT), now));
+  }
+
+  public void testOtherAuthority() throws Exception {
+    CertificatePins pins = new CertificatePins().addPin("hosted-id.google.com",
+        CertificatePins.getFingerprint(CertConstantUtil.SERVER_PUB_CERT));
+    assertFalse(pins.accepts(serverChain, now));
+  }
+
+  public void testWrongPin() throws Exception {
+    CertificatePins pins = new CertificatePins().addPin(AUTHORITY,
+        CertificatePins.getFingerprint(CertConstantUtil.CA_PUB_CERT));
+    assertFalse(pins.accepts(serverChain, now));
+  }
+
+  public void testExpired() throws Exception {
+    CertificatePins pins = new CertificatePins().addPin(AUTHORITY,
+        CertificatePins.getFingerprint(CertConstantUtil.SERVER_PUB_CERT));
+    Date expired = new Date(
+        CertConstantUtil.SERVER_PUB_CERT.getNotAfter().getTime() + 1000L);
+    assertFalse(pins.accepts(serverChain, expired));
+  }
+
+  public void testLoad() throws Exception {
+    // spaces in keys have to be escaped in properties files
+    String config = "Server\\ Cert = "
+        + CertificatePins.getFingerprint(CertConstantUtil.CA_PUB_CERT) + ", "
+        + CertificatePins.getFingerprint(CertConstantUtil.INTERMEDIATE_PUB_CERT)
+        + "\n";
+    CertificatePins pins = CertificatePins.load(
+        new ByteArrayInputStream(EncodingUtil.getUtf8Bytes(config)));
+    assertFalse(pins.isEmpty());
+    assertTrue(pins.accepts(serverChain, now));
+  }
+
+  public void testValidatorSkipsPathValidation() throws Exception {
+    // the chain doesn't lead to the only trust root
+    FakeTimeSource timeSource = new FakeTimeSource(now.getTime());
+    CachedCertPathValidator validator = new CachedCertPathValidator(
+        ImmutableSet.of(CertConstantUtil.SERVER_PUB_CERT));
+    validator.setTimeSource(timeSource);
+    try {
+      validator.validate(serverChain);
+      fail("Should have thrown, chain not trusted");
+    } catch (CertValidatorException e) {
+      // good
+    }
+
+    validator = new CachedCertPathValidator(
+        ImmutableSet.of(CertConstantUtil.SERVER_PUB_CERT));
+    validator.setTimeSource(timeSource);
+    validator.setCertificatePins(new CertificatePins().addPin(AUTHORITY,
+        CertificatePins.getFingerprint(CertConstantUtil.INTERMEDIATE_PUB_CERT)));
+    validator.validate(serverChain);
+  }
+}
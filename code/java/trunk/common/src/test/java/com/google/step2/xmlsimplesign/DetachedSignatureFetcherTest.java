@@ -0,0 +1,242 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.xmlsimplesign;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.step2.http.FetchException;
+import com.google.step2.http.FetchRequest;
+import com.google.step2.http.FetchResponse;
+import com.google.step2.http.HttpFetcher;
+import com.google.step2.util.EncodingUtil;
+import com.google.step2.util.FakeTimeSource;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class DetachedSignatureFetcherTest extends TestCase {
+
+  // the test certs have long expired, so we pretend it's Jan 31, 2009
+  private static final long NOW = 1233465103000L;
+  private static final String LOCATION = "http://example.com/sigs/abc";
+
+  private FakeTimeSource timeSource;
+  private SignatureServer server;
+  private DetachedSignatureFetcher signatureFetcher;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    timeSource = new FakeTimeSource(NOW);
+    server = new SignatureServer(EncodingUtil.encodeBase64(
+        EncodingUtil.getUtf8Bytes("signature")));
+    signatureFetcher = new DetachedSignatureFetcher(server);
+    signatureFetcher.setTimeSource(timeSource);
+  }
+
+  public void testFreshSignatureIsCached() throws Exception {
+    server.etag = "\"v1\"";
+    assertEquals("signature", fetch());
+    timeSource.advanceSeconds(5 * 60);
+    assertEquals("signature", fetch());
+
+    assertEquals(1, server.requests.size());
+  }
+
+  public void testConditionalGet() throws Exception {
+    server.etag = "\"v1\"";
+    assertEquals("signature", fetch());
+    timeSource.advanceSeconds(11 * 60);
+
+    // the server says the signature hasn't changed
+    server.notModified = true;
+    assertEquals("signature", fetch());
+    assertEquals(2, server.requests.size());
+    assertEquals("\"v1\"",
+        server.requests.get(1).getHeaders().get("If-None-Match"));
+
+    // which makes the signature fresh again
+    timeSource.advanceSeconds(5 * 60);
+    assertEquals("signature", fetch());
+    assertEquals(2, server.requests.size());
+  }
+
+  public void testChangedSignature() throws Exception {
+    server.etag = "\"v1\"";
+    fetch();
+    timeSource.advanceSeconds(11 * 60);
+
+    server.etag = "\"v2\"";
+    server.signature = EncodingUtil.encodeBase64(
+        EncodingUtil.getUtf8Bytes("new signature"));
+    assertEquals("new signature", fetch());
+  }
+
+  public void testNoEtag() throws Exception {
+    fetch();
+    timeSource.advanceSeconds(11 * 60);
+    fetch();
+
+    assertEquals(2, server.requests.size());
+    assertTrue(server.requests.get(1).getHeaders().isEmpty());
+  }
+
+  public void testErrorStatus() throws Exception {
+    server.status = 404;
+    try {
+      fetch();
+      fail("should have thrown, signature not found");
+    } catch (XmlSimpleSignException e) {
+      // good
+    }
+  }
+
+  public void testResignedDocument() throws Exception {
+    SignatureResult signed = sign();
+    CachedCertPathValidator validator = new CachedCertPathValidator(
+        ImmutableSet.of(CertConstantUtil.CA_PUB_CERT));
+    validator.setTimeSource(timeSource);
+    Verifier verifier = new Verifier(validator, server);
+    verifier.setDetachedSignatureFetcher(signatureFetcher);
+    verifier.setTimeSource(timeSource);
+
+    // the signature at the location is for an older version of the document
+    server.signature = sign().getSignature();
+    try {
+      verifier.verify(signed.getDocument(), null);
+      fail("should have thrown, wrong signature");
+    } catch (XmlSimpleSignException e) {
+      // good, and we didn't ask twice for a signature we had just fetched
+      assertEquals(1, server.requests.size());
+    }
+
+    // once the signature has been updated, the cached one is replaced
+    timeSource.advanceSeconds(60);
+    server.signature = signed.getSignature();
+    VerificationResult result = verifier.verify(signed.getDocument(), null);
+    assertEquals(CertConstantUtil.SERVER_PUB_CERT, result.getCerts().get(0));
+    assertEquals(2, server.requests.size());
+  }
+
+  /**
+   * The signature server only answers once the certificates have been
+   * validated, i.e., the fetch and the validation have to run at the same
+   * time for the verification to succeed.
+   */
+  public void testPrefetchOverlapsValidation() throws Exception {
+    SignatureResult signed = sign();
+
+    final CountDownLatch validated = new CountDownLatch(1);
+    CachedCertPathValidator validator = new CachedCertPathValidator(
+        ImmutableSet.of(CertConstantUtil.CA_PUB_CERT)) {
+      @Override
+      public void validate(List<X509Certificate> certs)
+          throws CertValidatorException {
+        super.validate(certs);
+        validated.countDown();
+      }
+    };
+    validator.setTimeSource(timeSource);
+
+    final FakeFetcher fakeFetcher =
+        new FakeFetcher(signed.getSignatureLocation(), signed.getSignature());
+    HttpFetcher slowFetcher = new HttpFetcher() {
+      public FetchResponse fetch(FetchRequest request) throws FetchException {
+        try {
+          if (!validated.await(5, TimeUnit.SECONDS)) {
+            throw new FetchException("certificates weren't validated");
+          }
+        } catch (InterruptedException e) {
+          throw new FetchException(e);
+        }
+        return fakeFetcher.fetch(request);
+      }
+    };
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      DetachedSignatureFetcher prefetcher = new DetachedSignatureFetcher(slowFetcher);
+      prefetcher.setExecutor(executor);
+      Verifier verifier = new Verifier(validator, slowFetcher);
+      verifier.setDetachedSignatureFetcher(prefetcher);
+      verifier.setTimeSource(timeSource);
+
+      VerificationResult result = verifier.verify(signed.getDocument(), null);
+      assertEquals(CertConstantUtil.SERVER_PUB_CERT, result.getCerts().get(0));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static SignatureResult sign() throws Exception {
+    return new Signer()
+        .setSignatureFilePrefix("http://example.com/sigs/")
+        .setSigningKey(CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.SERVER_PRIV_KEY)
+        .addIntermediateCert(CertConstantUtil.INTERMEDIATE_PUB_CERT)
+        .setDocument(EncodingUtil.getUtf8Bytes(SignerTest.TEST_DOC))
+        .sign();
+  }
+
+  private String fetch() throws XmlSimpleSignException {
+    return EncodingUtil.getUtf8String(signatureFetcher.fetch(LOCATION));
+  }
+
+  private static class SignatureServer implements HttpFetcher {
+
+    private final List<FetchRequest> requests = Lists.newArrayList();
+    private String signature;
+    private String etag;
+    private boolean notModified;
+    private int status = 200;
+
+    public SignatureServer(String signature) {
+      this.signature = signature;
+    }
+
+    public FetchResponse fetch(FetchRequest request) {
+      requests.add(request);
+      final int responseStatus = notModified ? 304 : status;
+      final byte[] body = EncodingUtil.getUtf8Bytes(notModified ? "" : signature);
+      final String responseEtag = etag;
+      return new FetchResponse() {
+        public int getStatusCode() {
+          return responseStatus;
+        }
+
+        public byte[] getContentAsBytes() {
+          return body;
+        }
+
+        public InputStream getContentAsStream() {
+          return new ByteArrayInputStream(body);
+        }
+
+        public String getFirstHeader(String name) {
+          return "ETag".equalsIgnoreCase(name) ? responseEtag : null;
+        }
+      };
+    }
+  }
+}
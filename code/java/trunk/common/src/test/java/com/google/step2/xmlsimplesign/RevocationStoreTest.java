@@ -0,0 +1,259 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.xmlsimplesign;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.step2.util.EncodingUtil;
+import com.google.step2.util.FakeTimeSource;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.URI;
+import java.security.PublicKey;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.List;
+
+public class RevocationStoreTest extends TestCase {
+
+  // issued by the intermediate CA, revokes the server cert as of Jan 28, 2009
+  static final String REVOKED_CRL =
+      "-----BEGIN X509 CRL-----\n"
+      + "MIIBCDBzAgEBMA0GCSqGSIb3DQEBCwUAMBoxGDAWBgNVBAMTD0ludGVybWVkaWF0\n"
+      + "ZSBDQRcNMjYxMDE5MDAxMjM3WhcNMzYxMDE2MDAxMjM3WjAVMBMCAlJKFw0wOTAx\n"
+      + "MjgwMDAwMDBaoA4wDDAKBgNVHRQEAwIBATANBgkqhkiG9w0BAQsFAAOBgQCzYrDQ\n"
+      + "ocgVhTwQySk/njj89ncWZW8aVRblpLpKSkNOFYcf+Nju9ksGNpU5jr/eHWCjdrJc\n"
+      + "Fy5ASk1x62J3yoodbdifY3ScZr5XTcbKKbdTS4Jks1jHkgQEZZZAmJMYIOreCcKK\n"
+      + "yHp+ML8SSCkC+h+PXwY6GZEPWSzw6qiTsQxIhg==\n"
+      + "-----END X509 CRL-----\n";
+
+  // the same, but signed by some other key
+  private static final String FORGED_CRL =
+      "-----BEGIN X509 CRL-----\n"
+      + "MIIBCDBzAgEBMA0GCSqGSIb3DQEBCwUAMBoxGDAWBgNVBAMMD0ludGVybWVkaWF0\n"
+      + "ZSBDQRcNMjYxMDE5MDAxMjQxWhcNMzYxMDE2MDAxMjQxWjAVMBMCAlJKFw0wOTAx\n"
+      + "MjgwMDAwMDBaoA4wDDAKBgNVHRQEAwIBATANBgkqhkiG9w0BAQsFAAOBgQBCCfXW\n"
+      + "1OK3OJFtSnnw9chX+D3hOT/9mJrd5s74gHb3Ch8ws4aQGkm7a4TYvzSWOaMV+2fL\n"
+      + "yYIxSscgBY5XJRxByVey2gzmix1hBsiiU/Gt1+Oc3Ly2q3j+/cCI3EmfM+6Oqgb3\n"
+      + "jpYt6hdKJLSozn5CRqXuWzK2il/WCcsSivnAxw==\n"
+      + "-----END X509 CRL-----\n";
+
+  private static final long NOW = 1233465103000L; // Jan 31, 2009
+
+  private RevocationStore store;
+  private List<X509Certificate> serverChain = Lists.newArrayList(
+      CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.INTERMEDIATE_PUB_CERT);
+
+  @Override
+  public void setUp() throws Exception {
+    store = new RevocationStore();
+  }
+
+  public void testRevoked() throws Exception {
+    store.addCrls(parse(REVOKED_CRL));
+    assertFalse(store.isEmpty());
+
+    X509Certificate server = CertConstantUtil.SERVER_PUB_CERT;
+    PublicKey issuerKey = CertConstantUtil.INTERMEDIATE_PUB_CERT.getPublicKey();
+    assertTrue(store.isRevoked(server, issuerKey, new Date(NOW)));
+
+    // before it was revoked
+    assertFalse(store.isRevoked(server, issuerKey, new Date(NOW - 7L * 24 * 60 * 60 * 1000)));
+
+    // not on the list
+    assertFalse(store.isRevoked(CertConstantUtil.INTERMEDIATE_PUB_CERT,
+        CertConstantUtil.CA_PUB_CERT.getPublicKey(), new Date(NOW)));
+  }
+
+  public void testForgedCrlIsIgnored() throws Exception {
+    store.addCrls(parse(FORGED_CRL));
+    assertFalse(store.isRevoked(CertConstantUtil.SERVER_PUB_CERT,
+        CertConstantUtil.INTERMEDIATE_PUB_CERT.getPublicKey(), new Date(NOW)));
+  }
+
+  public void testForgedCrlDoesNotReplaceVerifiedCrl() throws Exception {
+    store.addIssuerCertificates(ImmutableList.of(CertConstantUtil.INTERMEDIATE_PUB_CERT));
+    assertTrue(store.addCrls(parse(REVOKED_CRL)));
+    X509CRL verified = store.getCrl(
+        CertConstantUtil.INTERMEDIATE_PUB_CERT.getSubjectX500Principal());
+
+    // the forged CRL is more recent, but must not replace the real one
+    assertFalse(store.addCrls(parse(FORGED_CRL)));
+    assertEquals(verified, store.getCrl(
+        CertConstantUtil.INTERMEDIATE_PUB_CERT.getSubjectX500Principal()));
+    assertTrue(store.isRevoked(CertConstantUtil.SERVER_PUB_CERT,
+        CertConstantUtil.INTERMEDIATE_PUB_CERT.getPublicKey(), new Date(NOW)));
+  }
+
+  public void testCrlIsHeldBackUntilIssuerIsKnown() throws Exception {
+    assertFalse(store.addCrls(parse(REVOKED_CRL)));
+    assertNull(store.getCrl(
+        CertConstantUtil.INTERMEDIATE_PUB_CERT.getSubjectX500Principal()));
+    assertFalse(store.isEmpty());
+
+    store.addIssuerCertificates(ImmutableList.of(CertConstantUtil.INTERMEDIATE_PUB_CERT));
+    assertNotNull(store.getCrl(
+        CertConstantUtil.INTERMEDIATE_PUB_CERT.getSubjectX500Principal()));
+  }
+
+  public void testCrlFromTheFutureIsRejected() throws Exception {
+    // the test CRLs were issued long after this
+    store.setTimeSource(new FakeTimeSource(NOW));
+    store.addIssuerCertificates(ImmutableList.of(CertConstantUtil.INTERMEDIATE_PUB_CERT));
+    assertFalse(store.addCrls(parse(REVOKED_CRL)));
+    assertTrue(store.isEmpty());
+  }
+
+  public void testValidatorChecksRevocation() throws Exception {
+    CachedCertPathValidator validator =
+        new CachedCertPathValidator(ImmutableSet.of(CertConstantUtil.CA_PUB_CERT));
+    validator.setTimeSource(new FakeTimeSource(NOW));
+    validator.setRevocationStore(store);
+    validator.validate(serverChain);
+    long generation = validator.getGeneration();
+
+    // the cached validation is dropped as soon as the CRL is added
+    store.addCrls(parse(REVOKED_CRL));
+    assertTrue(generation != validator.getGeneration());
+    try {
+      validator.validate(serverChain);
+      fail("Should have thrown, cert revoked");
+    } catch (CertValidatorException e) {
+      // good
+    }
+  }
+
+  public void testUnknownIssuerKeyCountsAsRevoked() throws Exception {
+    store.addIssuerCertificates(ImmutableList.of(CertConstantUtil.INTERMEDIATE_PUB_CERT));
+    store.addCrls(parse(REVOKED_CRL));
+    assertTrue(store.isRevoked(CertConstantUtil.SERVER_PUB_CERT, null, new Date(NOW)));
+
+    // a chain claiming some other issuer doesn't get past the CRL either
+    assertTrue(store.isRevoked(CertConstantUtil.SERVER_PUB_CERT,
+        CertConstantUtil.CA_PUB_CERT.getPublicKey(), new Date(NOW)));
+  }
+
+  public void testPinnedLeafIsChecked() throws Exception {
+    store.addIssuerCertificates(ImmutableList.of(CertConstantUtil.INTERMEDIATE_PUB_CERT));
+    store.addCrls(parse(REVOKED_CRL));
+    CachedCertPathValidator validator = newPinnedValidator();
+    try {
+      validator.validate(ImmutableList.of(CertConstantUtil.SERVER_PUB_CERT));
+      fail("Should have thrown, cert revoked");
+    } catch (CertValidatorException e) {
+      // good
+    }
+  }
+
+  public void testPinnedChainWithForgedIssuer() throws Exception {
+    store.addIssuerCertificates(ImmutableList.of(CertConstantUtil.INTERMEDIATE_PUB_CERT));
+    store.addCrls(parse(REVOKED_CRL));
+    CachedCertPathValidator validator = newPinnedValidator();
+
+    // the CA didn't issue the server cert, but the pin walk never looks at it
+    try {
+      validator.validate(ImmutableList.of(
+          CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.CA_PUB_CERT));
+      fail("Should have thrown, cert revoked");
+    } catch (CertValidatorException e) {
+      // good
+    }
+
+    // and the store still has the key of the real issuer
+    assertTrue(store.addCrls(parse(REVOKED_CRL)));
+    assertFalse(store.addCrls(parse(FORGED_CRL)));
+  }
+
+  public void testRefresher() throws Exception {
+    File dir = File.createTempFile("crls", "");
+    dir.delete();
+    dir.mkdir();
+    try {
+      String location = "http://crl.example.com/intermediate.crl";
+      store.addIssuerCertificates(ImmutableList.of(CertConstantUtil.INTERMEDIATE_PUB_CERT));
+      CrlRefresher refresher = new CrlRefresher(
+          new FakeFetcher(location, REVOKED_CRL), store,
+          Lists.newArrayList(URI.create(location)), dir);
+      refresher.run();
+      assertTrue(store.isRevoked(CertConstantUtil.SERVER_PUB_CERT,
+          CertConstantUtil.INTERMEDIATE_PUB_CERT.getPublicKey(), new Date(NOW)));
+
+      // saved for the next startup
+      RevocationStore loaded = new RevocationStore();
+      loaded.loadDirectory(dir);
+      assertTrue(loaded.isRevoked(CertConstantUtil.SERVER_PUB_CERT,
+          CertConstantUtil.INTERMEDIATE_PUB_CERT.getPublicKey(), new Date(NOW)));
+    } finally {
+      for (File file : dir.listFiles()) {
+        file.delete();
+      }
+      dir.delete();
+    }
+  }
+
+  public void testRefresherDoesNotSaveForgedCrl() throws Exception {
+    File dir = File.createTempFile("crls", "");
+    dir.delete();
+    dir.mkdir();
+    try {
+      String location = "http://crl.example.com/intermediate.crl";
+      store.addIssuerCertificates(ImmutableList.of(CertConstantUtil.INTERMEDIATE_PUB_CERT));
+      new CrlRefresher(new FakeFetcher(location, FORGED_CRL), store,
+          Lists.newArrayList(URI.create(location)), dir).run();
+      assertEquals(0, dir.listFiles().length);
+    } finally {
+      for (File file : dir.listFiles()) {
+        file.delete();
+      }
+      dir.delete();
+    }
+  }
+
+  public void testRefreshFailureKeepsCrls() throws Exception {
+    store.addIssuerCertificates(ImmutableList.of(CertConstantUtil.INTERMEDIATE_PUB_CERT));
+    store.addCrls(parse(REVOKED_CRL));
+    CrlRefresher refresher = new CrlRefresher(
+        new FakeFetcher("http://crl.example.com/other.crl", ""), store,
+        Lists.newArrayList(URI.create("http://crl.example.com/intermediate.crl")),
+        null);
+    refresher.run();
+    assertNotNull(store.getCrl(
+        CertConstantUtil.INTERMEDIATE_PUB_CERT.getSubjectX500Principal()));
+  }
+
+  private CachedCertPathValidator newPinnedValidator() throws Exception {
+    // the chains in these tests don't lead to the trust root, so they only
+    // pass because of the pin
+    CachedCertPathValidator validator =
+        new CachedCertPathValidator(ImmutableSet.of(CertConstantUtil.CA_PUB_CERT));
+    validator.setTimeSource(new FakeTimeSource(NOW));
+    validator.setCertificatePins(new CertificatePins().addPin("Server Cert",
+        CertificatePins.getFingerprint(CertConstantUtil.SERVER_PUB_CERT)));
+    validator.setRevocationStore(store);
+    return validator;
+  }
+
+  private static List<X509CRL> parse(String pem) throws Exception {
+    return Lists.newArrayList(RevocationStore.parseCrls(
+        new ByteArrayInputStream(EncodingUtil.getUtf8Bytes(pem))));
+  }
+}
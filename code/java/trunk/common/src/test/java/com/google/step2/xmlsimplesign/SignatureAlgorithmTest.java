@@ -0,0 +1,227 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.xmlsimplesign;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.step2.util.EncodingUtil;
+import com.google.step2.util.FakeTimeSource;
+
+import junit.framework.TestCase;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+
+public class SignatureAlgorithmTest extends TestCase {
+
+  private Verifier verifier;
+
+  @Override
+  public void setUp() throws Exception {
+    CachedCertPathValidator validator =
+        new CachedCertPathValidator(ImmutableSet.of(CertConstantUtil.CA_PUB_CERT));
+    // the test certs have expired, so we validate as of when they were valid
+    validator.setTimeSource(new FakeTimeSource(1233465103000L));
+    verifier = new Verifier(validator, new FakeFetcher(null, null));
+  }
+
+  public void testFromUri() throws Exception {
+    for (SignatureAlgorithm algorithm : SignatureAlgorithm.values()) {
+      assertEquals(algorithm, SignatureAlgorithm.fromUri(algorithm.getUri()));
+    }
+    assertNull(SignatureAlgorithm.fromUri("http://www.w3.org/2000/09/xmldsig#dsa-sha1"));
+  }
+
+  public void testDefaults() throws Exception {
+    assertEquals(SignatureAlgorithm.RSA_SHA1,
+        SignatureAlgorithm.getDefault(CertConstantUtil.SERVER_PRIV_KEY));
+    assertEquals(SignatureAlgorithm.ECDSA_SHA256,
+        SignatureAlgorithm.getDefault(CertConstantUtil.EC_SERVER_PRIV_KEY));
+  }
+
+  public void testRsaSha256() throws Exception {
+    SignatureResult r = new Signer()
+        .setSigningKey(CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.SERVER_PRIV_KEY)
+        .addIntermediateCert(CertConstantUtil.INTERMEDIATE_PUB_CERT)
+        .setSignatureAlgorithm(SignatureAlgorithm.RSA_SHA256)
+        .setDocument(EncodingUtil.getUtf8Bytes(SignerTest.TEST_DOC))
+        .sign();
+    assertTrue(EncodingUtil.getUtf8String(r.getDocument())
+        .contains(Constants.RSA_SHA256_ALGORITHM));
+
+    VerificationResult vr = verifier.verify(r.getDocument(), r.getSignature());
+    assertEquals(CertConstantUtil.SERVER_PUB_CERT, vr.getCerts().get(0));
+  }
+
+  public void testEcdsa() throws Exception {
+    SignatureResult r = new Signer()
+        .setSigningKey(CertConstantUtil.EC_SERVER_PUB_CERT,
+            CertConstantUtil.EC_SERVER_PRIV_KEY)
+        .addIntermediateCert(CertConstantUtil.INTERMEDIATE_PUB_CERT)
+        .setDocument(EncodingUtil.getUtf8Bytes(SignerTest.TEST_DOC))
+        .sign();
+    assertTrue(EncodingUtil.getUtf8String(r.getDocument())
+        .contains(Constants.ECDSA_SHA256_ALGORITHM));
+
+    // r and s, 32 bytes each
+    assertEquals(64, EncodingUtil.decodeBase64(r.getSignature()).length);
+
+    VerificationResult vr = verifier.verify(r.getDocument(), r.getSignature());
+    assertEquals(CertConstantUtil.EC_SERVER_PUB_CERT, vr.getCerts().get(0));
+  }
+
+  public void testEcdsaSignatureConversion() throws Exception {
+    SignatureAlgorithm algorithm = SignatureAlgorithm.ECDSA_SHA256;
+    PublicKey key = CertConstantUtil.EC_SERVER_PUB_CERT.getPublicKey();
+    byte[] data = EncodingUtil.getUtf8Bytes(SignerTest.TEST_DOC);
+
+    // enough signatures that some have leading zeros in r or s
+    for (int i = 0; i < 50; i++) {
+      Signature signer = algorithm.getSignature();
+      signer.initSign(CertConstantUtil.EC_SERVER_PRIV_KEY);
+      signer.update(data);
+      byte[] jce = signer.sign();
+
+      byte[] value = algorithm.toSignatureValue(jce, key);
+      assertEquals(64, value.length);
+      assertTrue(Arrays.equals(jce, algorithm.toJceSignature(value, key)));
+    }
+  }
+
+  public void testVerifyDigest() throws Exception {
+    byte[] data = EncodingUtil.getUtf8Bytes(SignerTest.TEST_DOC);
+    for (SignatureAlgorithm algorithm : SignatureAlgorithm.values()) {
+      boolean ec = algorithm == SignatureAlgorithm.ECDSA_SHA256;
+      PrivateKey privateKey = ec
+          ? CertConstantUtil.EC_SERVER_PRIV_KEY : CertConstantUtil.SERVER_PRIV_KEY;
+      PublicKey key = ec
+          ? CertConstantUtil.EC_SERVER_PUB_CERT.getPublicKey()
+          : CertConstantUtil.SERVER_PUB_CERT.getPublicKey();
+
+      Signature signer = algorithm.getSignature();
+      signer.initSign(privateKey);
+      signer.update(data);
+      byte[] value = algorithm.toSignatureValue(signer.sign(), key);
+
+      byte[] digest = MessageDigest.getInstance(algorithm.getDigestAlgorithm())
+          .digest(data);
+      assertTrue(algorithm.toString(), algorithm.verifyDigest(digest, value, key));
+      digest[0] ^= 1;
+      assertFalse(algorithm.toString(), algorithm.verifyDigest(digest, value, key));
+    }
+  }
+
+  public void testKeyMismatch() throws Exception {
+    try {
+      new Signer()
+          .setSigningKey(CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.SERVER_PRIV_KEY)
+          .setSignatureAlgorithm(SignatureAlgorithm.ECDSA_SHA256)
+          .setDocument(EncodingUtil.getUtf8Bytes(SignerTest.TEST_DOC))
+          .sign();
+      fail("Should have thrown, can't sign with ECDSA using an RSA key");
+    } catch (XmlSimpleSignException e) {
+      // good
+    }
+
+    // a document that claims an ECDSA signature, but comes with an RSA cert
+    SignatureResult r = new Signer()
+        .setSigningKey(CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.SERVER_PRIV_KEY)
+        .addIntermediateCert(CertConstantUtil.INTERMEDIATE_PUB_CERT)
+        .setDocument(EncodingUtil.getUtf8Bytes(SignerTest.TEST_DOC))
+        .sign();
+    String doc = EncodingUtil.getUtf8String(r.getDocument()).replace(
+        Constants.RSA_SHA1_ALGORITHM, Constants.ECDSA_SHA256_ALGORITHM);
+    try {
+      verifier.verify(EncodingUtil.getUtf8Bytes(doc), r.getSignature());
+      fail("Should have thrown, algorithm doesn't match key");
+    } catch (XmlSimpleSignException e) {
+      // good
+    }
+  }
+
+  public void testSpeed() throws Exception {
+    StringBuilder doc = new StringBuilder("<xrds>");
+    while (doc.length() < 2048) {
+      doc.append("<Service><Type>http://specs.openid.net/auth/2.0/server</Type></Service>");
+    }
+    byte[] data = EncodingUtil.getUtf8Bytes(doc.append("</xrds>").toString());
+
+    KeyPairGenerator rsaGenerator = KeyPairGenerator.getInstance("RSA");
+    rsaGenerator.initialize(2048);
+    KeyPair rsa2048 = rsaGenerator.generateKeyPair();
+    KeyPairGenerator ecGenerator = KeyPairGenerator.getInstance("EC");
+    ecGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+    KeyPair p256 = ecGenerator.generateKeyPair();
+
+    PublicKey rsa1024Public = CertConstantUtil.SERVER_PUB_CERT.getPublicKey();
+    PrivateKey rsa1024Private = CertConstantUtil.SERVER_PRIV_KEY;
+
+    measure(SignatureAlgorithm.RSA_SHA1, "RSA-1024", rsa1024Private, rsa1024Public, data);
+    measure(SignatureAlgorithm.RSA_SHA256, "RSA-1024", rsa1024Private, rsa1024Public, data);
+    measure(SignatureAlgorithm.RSA_SHA1, "RSA-2048",
+        rsa2048.getPrivate(), rsa2048.getPublic(), data);
+    measure(SignatureAlgorithm.RSA_SHA256, "RSA-2048",
+        rsa2048.getPrivate(), rsa2048.getPublic(), data);
+    measure(SignatureAlgorithm.ECDSA_SHA256, "P-256",
+        p256.getPrivate(), p256.getPublic(), data);
+  }
+
+  private void measure(SignatureAlgorithm algorithm, String keyName,
+      PrivateKey privateKey, PublicKey publicKey, byte[] data) throws Exception {
+    Signature signature = algorithm.getSignature();
+
+    // warm up
+    for (int i = 0; i < 200; i++) {
+      signature.initSign(privateKey);
+      signature.update(data);
+      byte[] value = algorithm.toSignatureValue(signature.sign(), privateKey);
+      signature.initVerify(publicKey);
+      signature.update(data);
+      signature.verify(algorithm.toJceSignature(value, publicKey));
+    }
+
+    byte[] value = null;
+    long signs = 0;
+    long start = System.currentTimeMillis();
+    while (System.currentTimeMillis() < start + 500L) {
+      signature.initSign(privateKey);
+      signature.update(data);
+      value = algorithm.toSignatureValue(signature.sign(), privateKey);
+      ++signs;
+    }
+    long signMillis = System.currentTimeMillis() - start;
+
+    long verifies = 0;
+    start = System.currentTimeMillis();
+    while (System.currentTimeMillis() < start + 500L) {
+      signature.initVerify(publicKey);
+      signature.update(data);
+      assertTrue(signature.verify(algorithm.toJceSignature(value, publicKey)));
+      ++verifies;
+    }
+    long verifyMillis = System.currentTimeMillis() - start;
+
+    System.out.println(algorithm + " " + keyName + ": "
+        + (signs * 1000 / signMillis) + " signs per second, "
+        + (verifies * 1000 / verifyMillis) + " verifies per second");
+  }
+}
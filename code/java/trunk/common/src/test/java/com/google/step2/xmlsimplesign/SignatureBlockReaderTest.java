@@ -0,0 +1,121 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.xmlsimplesign;
+
+import com.google.step2.util.EncodingUtil;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+
+public class SignatureBlockReaderTest extends TestCase {
+
+  private static final String SIGNATURE =
+      "<ds:Signature xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\">\n" +
+      "  <ds:SignedInfo>\n" +
+      "    <ds:CanonicalizationMethod Algorithm=\"" +
+          Constants.CANONICALIZE_RAW_OCTETS + "\" />\n" +
+      "    <ds:SignatureMethod Algorithm=\"" +
+          Constants.RSA_SHA1_ALGORITHM + "\" />\n" +
+      "  </ds:SignedInfo>\n" +
+      "  <ds:KeyInfo>\n" +
+      "    <ds:X509Data>\n" +
+      "      <ds:X509Certificate>\n  Zmlyc3Q=\n  </ds:X509Certificate>\n" +
+      "      <ds:X509Certificate>c2Vjb25k</ds:X509Certificate>\n" +
+      "    </ds:X509Data>\n" +
+      "  </ds:KeyInfo>\n" +
+      "  <sds:SignatureLocation " +
+          "xmlns:sds=\"http://docs.oasis-open.org/xri/xrd/2009/01\">\n" +
+      "    http://example.com/sig\n" +
+      "  </sds:SignatureLocation>\n" +
+      "</ds:Signature>\n";
+
+  public void testRead() throws Exception {
+    SignatureBlock block = read("<?xml version=\"1.0\"?>\n" +
+        "<XRDS><XRD><Service/></XRD>" + SIGNATURE + "<XRD/></XRDS>");
+
+    assertTrue(block.isSignedInfoPresent());
+    assertEquals(Constants.CANONICALIZE_RAW_OCTETS,
+        block.getCanonicalizationMethod());
+    assertEquals(Constants.RSA_SHA1_ALGORITHM, block.getSignatureMethod());
+    assertEquals("http://example.com/sig", block.getSignatureLocation());
+    assertTrue(block.isKeyInfoPresent());
+    assertTrue(block.isX509DataPresent());
+    assertEquals(2, block.getCertificates().size());
+    assertEquals("Zmlyc3Q=", block.getCertificates().get(0));
+    assertEquals("c2Vjb25k", block.getCertificates().get(1));
+  }
+
+  public void testStopsAfterSignature() throws Exception {
+    // everything after the Signature is never looked at
+    SignatureBlock block = read("<XRDS>" + SIGNATURE + "<XRD><this is not xml");
+
+    assertEquals("http://example.com/sig", block.getSignatureLocation());
+  }
+
+  public void testMissingElements() throws Exception {
+    SignatureBlock block = read("<foo>" +
+        "<ds:Signature xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\">" +
+        "<ds:SignedInfo><ds:SignatureMethod/></ds:SignedInfo>" +
+        "<ds:KeyInfo/>" +
+        "</ds:Signature></foo>");
+
+    assertTrue(block.isSignedInfoPresent());
+    assertNull(block.getCanonicalizationMethod());
+    assertEquals("", block.getSignatureMethod());
+    assertNull(block.getSignatureLocation());
+    assertTrue(block.isKeyInfoPresent());
+    assertFalse(block.isX509DataPresent());
+    assertTrue(block.getCertificates().isEmpty());
+  }
+
+  public void testNoSignature() throws Exception {
+    assertNull(read("<foo><bar>Hello World</bar></foo>"));
+  }
+
+  public void testSignatureNotChildOfRoot() throws Exception {
+    assertNull(read("<foo><bar>" + SIGNATURE + "</bar></foo>"));
+  }
+
+  public void testSignatureInWrongNamespace() throws Exception {
+    assertNull(read("<foo><Signature><SignedInfo/></Signature></foo>"));
+  }
+
+  public void testSignedDocument() throws Exception {
+    SignatureResult r = new Signer()
+        .setSignatureFilePrefix("prefix")
+        .setSigningKey(CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.SERVER_PRIV_KEY)
+        .addIntermediateCert(CertConstantUtil.INTERMEDIATE_PUB_CERT)
+        .setDocument(EncodingUtil.getUtf8Bytes(SignerTest.TEST_DOC))
+        .sign();
+
+    SignatureBlock block =
+        SignatureBlockReader.read(new ByteArrayInputStream(r.getDocument()));
+
+    assertEquals(r.getSignatureLocation(), block.getSignatureLocation());
+    assertEquals(2, block.getCertificates().size());
+    assertEquals(CertConstantUtil.SERVER_PUB_CERT,
+        CertUtil.getCertFromBase64Bytes(block.getCertificates().get(0)));
+    assertEquals(CertConstantUtil.INTERMEDIATE_PUB_CERT,
+        CertUtil.getCertFromBase64Bytes(block.getCertificates().get(1)));
+  }
+
+  private SignatureBlock read(String xml) throws Exception {
+    return SignatureBlockReader.read(
+        new ByteArrayInputStream(EncodingUtil.getUtf8Bytes(xml)));
+  }
+}
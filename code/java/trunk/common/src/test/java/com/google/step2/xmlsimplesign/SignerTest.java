@@ -18,9 +18,15 @@ package com.google.step2.xmlsimplesign;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.step2.util.EncodingUtil;
+import com.google.step2.util.FakeTimeSource;
+import com.google.step2.util.XmlUtil;
 
 import junit.framework.TestCase;
 
+import org.w3c.dom.Document;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 
 /**
  * @author brian
@@ -92,6 +98,26 @@ public class SignerTest extends TestCase {
     assertEquals(CertConstantUtil.SERVER_PUB_CERT, vr.getCerts().get(0));
   }
 
+  public void testVerifyParsedDocument() throws Exception {
+    Signer s = new Signer()
+        .setSigningKey(CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.SERVER_PRIV_KEY)
+        .addIntermediateCert(CertConstantUtil.INTERMEDIATE_PUB_CERT)
+        .setDocument(EncodingUtil.getUtf8Bytes(TEST_DOC));
+
+    SignatureResult r = s.sign();
+    Document xml = XmlUtil.getDocument(new ByteArrayInputStream(r.getDocument()));
+
+    // the test certs have expired, so we validate as of when they were valid
+    CachedCertPathValidator validator =
+        new CachedCertPathValidator(ImmutableSet.of(CertConstantUtil.CA_PUB_CERT));
+    validator.setTimeSource(new FakeTimeSource(1233465103000L));
+    Verifier v = new Verifier(validator, new FakeFetcher(null, null));
+
+    VerificationResult vr = v.verify(r.getDocument(), xml, r.getSignature());
+    assertEquals(CertConstantUtil.SERVER_PUB_CERT, vr.getCerts().get(0));
+    assertEquals(CertConstantUtil.INTERMEDIATE_PUB_CERT, vr.getCerts().get(1));
+  }
+
   public void testBadSignature() throws Exception {
     Signer s = new Signer()
         .setSignatureFilePrefix("prefix")
@@ -113,4 +139,100 @@ public class SignerTest extends TestCase {
       // good.
     }
   }
+
+  public void testStreamingSign() throws Exception {
+    String doc = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<!-- <notRoot> -->\n"
+        + "<foo a=\"x>y\" b='/>'>\n"
+        + "  <bar>Hello World</bar>\n"
+        + "</foo>\n";
+    Signer s = new Signer()
+        .setSignatureFilePrefix("http://example.com/sig?a=1&b=")
+        .setSigningKey(CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.SERVER_PRIV_KEY)
+        .addIntermediateCert(CertConstantUtil.INTERMEDIATE_PUB_CERT);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    SignatureResult r = s.sign(
+        new ByteArrayInputStream(EncodingUtil.getUtf8Bytes(doc)), out);
+    assertNull(r.getDocument());
+    String signed = EncodingUtil.getUtf8String(out.toByteArray());
+
+    // the document is unchanged, except for the Signature element
+    int start = signed.indexOf("<ds:Signature");
+    int end = signed.indexOf("</ds:Signature>") + "</ds:Signature>".length();
+    assertEquals(doc.indexOf("\n  <bar>"), start);
+    assertEquals(doc, signed.substring(0, start) + signed.substring(end));
+
+    Verifier v = new Verifier(createValidator(),
+        new FakeFetcher(r.getSignatureLocation(), r.getSignature()));
+    VerificationResult vr = v.verify(out.toByteArray(), null);
+    assertEquals(CertConstantUtil.SERVER_PUB_CERT, vr.getCerts().get(0));
+  }
+
+  public void testStreamingSignEmptyRoot() throws Exception {
+    Signer s = new Signer()
+        .setSigningKey(CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.SERVER_PRIV_KEY)
+        .addIntermediateCert(CertConstantUtil.INTERMEDIATE_PUB_CERT);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    SignatureResult r = s.sign(
+        new ByteArrayInputStream(EncodingUtil.getUtf8Bytes("<x:foo xmlns:x='urn:x'/>")), out);
+    String signed = EncodingUtil.getUtf8String(out.toByteArray());
+    assertTrue(signed, signed.startsWith("<x:foo xmlns:x='urn:x'><ds:Signature"));
+    assertTrue(signed, signed.endsWith("</ds:Signature></x:foo>"));
+
+    Verifier v = new Verifier(createValidator(), new FakeFetcher(null, null));
+    VerificationResult vr = v.verify(out.toByteArray(), r.getSignature());
+    assertEquals(CertConstantUtil.SERVER_PUB_CERT, vr.getCerts().get(0));
+  }
+
+  public void testStreamingSignNoRoot() throws Exception {
+    Signer s = new Signer()
+        .setSigningKey(CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.SERVER_PRIV_KEY);
+    try {
+      s.sign(new ByteArrayInputStream(EncodingUtil.getUtf8Bytes("<?xml version='1.0'?><fo")),
+          new ByteArrayOutputStream());
+      fail("Should have thrown, no root element");
+    } catch (XmlSimpleSignException e) {
+      // good
+    }
+  }
+
+  public void testStreamingSpeed() throws Exception {
+    StringBuilder doc = new StringBuilder("<xrds>\n");
+    while (doc.length() < 20 * 1024) {
+      doc.append("  <Service>\n    <Type>http://specs.openid.net/auth/2.0/server</Type>\n"
+          + "  </Service>\n");
+    }
+    byte[] bytes = EncodingUtil.getUtf8Bytes(doc.append("</xrds>\n").toString());
+    Signer s = new Signer()
+        .setSigningKey(CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.SERVER_PRIV_KEY)
+        .addIntermediateCert(CertConstantUtil.INTERMEDIATE_PUB_CERT)
+        .setDocument(bytes);
+
+    int documents = 300;
+    long start = System.nanoTime();
+    for (int i = 0; i < documents; i++) {
+      s.sign();
+    }
+    long treeMicros = (System.nanoTime() - start) / 1000;
+
+    start = System.nanoTime();
+    for (int i = 0; i < documents; i++) {
+      s.sign(new ByteArrayInputStream(bytes), new ByteArrayOutputStream(bytes.length + 2048));
+    }
+    long streamingMicros = (System.nanoTime() - start) / 1000;
+
+    System.out.println("signing " + bytes.length + " byte documents: "
+        + (treeMicros / documents) + " us per document re-serialized, "
+        + (streamingMicros / documents) + " us per document streamed");
+  }
+
+  private CachedCertPathValidator createValidator() {
+    // the test certs have expired, so we validate as of when they were valid
+    CachedCertPathValidator validator =
+        new CachedCertPathValidator(ImmutableSet.of(CertConstantUtil.CA_PUB_CERT));
+    validator.setTimeSource(new FakeTimeSource(1233465103000L));
+    return validator;
+  }
 }
@@ -0,0 +1,182 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.xmlsimplesign;
+
+import com.google.common.collect.Lists;
+import com.google.step2.util.FakeTimeSource;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.cert.CertPathValidator;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import javax.security.auth.x500.X500Principal;
+
+public class TrustAnchorIndexTest extends TestCase {
+
+  private List<X509Certificate> jdkRoots;
+  private List<X509Certificate> serverChain = Lists.newArrayList(
+      CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.INTERMEDIATE_PUB_CERT);
+
+  @Override
+  public void setUp() throws Exception {
+    jdkRoots = Lists.newArrayList(new DefaultTrustRootsProvider().getTrustRoots());
+  }
+
+  public void testAnchorsForChain() throws Exception {
+    List<X509Certificate> roots = Lists.newArrayList(jdkRoots);
+    roots.add(CertConstantUtil.CA_PUB_CERT);
+    TrustAnchorIndex index = new TrustAnchorIndex(roots);
+    assertEquals(roots.size(), index.getAnchors().size());
+
+    Set<TrustAnchor> anchors = index.getAnchors(serverChain);
+    assertEquals(1, anchors.size());
+    assertEquals(CertConstantUtil.CA_PUB_CERT,
+        anchors.iterator().next().getTrustedCert());
+  }
+
+  public void testNoMatchingAnchor() throws Exception {
+    TrustAnchorIndex index = new TrustAnchorIndex(jdkRoots);
+    assertEquals(index.getAnchors(), index.getAnchors(serverChain));
+  }
+
+  public void testParametersAreCopies() throws Exception {
+    TrustAnchorIndex index = new TrustAnchorIndex(
+        Arrays.asList(CertConstantUtil.CA_PUB_CERT));
+    PKIXParameters params = index.getParameters(serverChain);
+    assertFalse(params.isRevocationEnabled());
+    params.setDate(new Date(0));
+    assertNull(index.getParameters(serverChain).getDate());
+  }
+
+  public void testKeyIds() throws Exception {
+    X509Certificate root = CertConstantUtil.CA_PUB_CERT;
+    assertNotNull(TrustAnchorIndex.getSubjectKeyId(root));
+    assertTrue(Arrays.equals(TrustAnchorIndex.getSubjectKeyId(root),
+        TrustAnchorIndex.getAuthorityKeyId(root)));
+    assertNull(TrustAnchorIndex.getSubjectKeyId(CertConstantUtil.SERVER_PUB_CERT));
+    assertNull(TrustAnchorIndex.getAuthorityKeyId(CertConstantUtil.SERVER_PUB_CERT));
+  }
+
+  public void testNoTrustRoots() throws Exception {
+    try {
+      new TrustAnchorIndex(Lists.<X509Certificate>newArrayList());
+      fail("Should have thrown, no trust roots");
+    } catch (IllegalArgumentException e) {
+      // good
+    }
+  }
+
+  public void testSnapshot() throws Exception {
+    List<X509Certificate> roots = Lists.newArrayList(jdkRoots);
+    roots.add(CertConstantUtil.CA_PUB_CERT);
+    TrustAnchorIndex index = TrustAnchorIndex.load(
+        new ByteArrayInputStream(snapshot(roots)));
+
+    Set<TrustAnchor> anchors = index.getAnchors(serverChain);
+    assertEquals(1, anchors.size());
+    assertEquals(CertConstantUtil.CA_PUB_CERT,
+        anchors.iterator().next().getTrustedCert());
+    assertEquals(roots.size(), index.getAnchors().size());
+
+    CachedCertPathValidator validator = new CachedCertPathValidator(index);
+    validator.setTimeSource(new FakeTimeSource(1233465103000L)); // Jan 31, 2009
+    validator.validate(serverChain);
+  }
+
+  public void testEmptySnapshot() throws Exception {
+    try {
+      TrustAnchorIndex.load(new ByteArrayInputStream(new byte[0]));
+      fail("Should have thrown, no trust roots");
+    } catch (IllegalArgumentException e) {
+      // good
+    }
+  }
+
+  public void testSubject() throws Exception {
+    for (X509Certificate root : jdkRoots) {
+      assertEquals(root.getSubjectX500Principal(), new X500Principal(
+          TrustAnchorIndex.getSubject(root.getEncoded())));
+    }
+  }
+
+  public void testSpeed() throws Exception {
+    List<X509Certificate> roots = Lists.newArrayList(jdkRoots);
+    roots.add(CertConstantUtil.CA_PUB_CERT);
+    TrustAnchorIndex index = new TrustAnchorIndex(roots);
+    CertPathValidator validator = CertPathValidator.getInstance("PKIX");
+    Date now = new Date(1233465103000L); // Jan 31, 2009
+
+    // all trust roots, set up for every validation
+    int validations = 500;
+    long start = System.nanoTime();
+    for (int i = 0; i < validations; i++) {
+      PKIXParameters params = new PKIXParameters(index.getAnchors());
+      params.setRevocationEnabled(false);
+      params.setDate(now);
+      validator.validate(CertUtil.getCertPath(serverChain), params);
+    }
+    long allMicros = (System.nanoTime() - start) / 1000;
+
+    // precomputed parameters, limited to the matching root
+    start = System.nanoTime();
+    for (int i = 0; i < validations; i++) {
+      PKIXParameters params = index.getParameters(serverChain);
+      params.setDate(now);
+      validator.validate(CertUtil.getCertPath(serverChain), params);
+    }
+    long indexedMicros = (System.nanoTime() - start) / 1000;
+
+    System.out.println(roots.size() + " trust roots: "
+        + (allMicros / validations) + " us per validation, indexed: "
+        + (indexedMicros / validations) + " us per validation");
+
+    // startup from the trust store vs. from a snapshot
+    byte[] snapshot = snapshot(roots);
+    int startups = 20;
+    start = System.nanoTime();
+    for (int i = 0; i < startups; i++) {
+      new CachedCertPathValidator(new DefaultTrustRootsProvider());
+    }
+    long trustStoreMicros = (System.nanoTime() - start) / 1000;
+
+    start = System.nanoTime();
+    for (int i = 0; i < startups; i++) {
+      new CachedCertPathValidator(
+          TrustAnchorIndex.load(new ByteArrayInputStream(snapshot)));
+    }
+    long snapshotMicros = (System.nanoTime() - start) / 1000;
+
+    System.out.println("trust store: " + (trustStoreMicros / startups)
+        + " us per startup, snapshot: " + (snapshotMicros / startups)
+        + " us per startup");
+  }
+
+  private byte[] snapshot(List<X509Certificate> roots) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    TrustAnchorIndex.writeSnapshot(roots, out);
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,291 @@
+/**
+ * Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package com.google.step2.xmlsimplesign;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.step2.util.EncodingUtil;
+import com.google.step2.util.FakeTimeSource;
+import com.google.step2.util.Weighers;
+import com.google.step2.util.XmlUtil;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Document;
+
+import java.io.ByteArrayInputStream;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class VerifierTest extends TestCase {
+
+  // the test certs have long expired, so we pretend it's Jan 31, 2009
+  private static final long NOW = 1233465103000L;
+
+  private FakeTimeSource timeSource;
+  private CountingValidator validator;
+  private SignatureResult signed;
+  private Verifier verifier;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    timeSource = new FakeTimeSource(NOW);
+    validator = new CountingValidator();
+    validator.setTimeSource(timeSource);
+
+    signed = new Signer()
+        .setSignatureFilePrefix("prefix")
+        .setSigningKey(CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.SERVER_PRIV_KEY)
+        .addIntermediateCert(CertConstantUtil.INTERMEDIATE_PUB_CERT)
+        .setDocument(EncodingUtil.getUtf8Bytes(SignerTest.TEST_DOC))
+        .sign();
+
+    verifier = new Verifier(validator,
+        new FakeFetcher(signed.getSignatureLocation(), signed.getSignature()));
+    verifier.setTimeSource(timeSource);
+  }
+
+  public void testVerificationIsCached() throws Exception {
+    VerificationResult first =
+        verifier.verify(signed.getDocument(), signed.getSignature());
+    VerificationResult second =
+        verifier.verify(signed.getDocument(), signed.getSignature());
+
+    assertEquals(1, validator.getCount());
+    assertSame(first, second);
+    assertEquals(CertConstantUtil.SERVER_PUB_CERT, second.getCerts().get(0));
+  }
+
+  public void testVerificationIsCached_signatureLocation() throws Exception {
+    verifier.verify(signed.getDocument(), null);
+    verifier.verify(signed.getDocument(), null);
+
+    assertEquals(1, validator.getCount());
+  }
+
+  public void testFailureIsNotCached() throws Exception {
+    byte[] tampered = EncodingUtil.getUtf8Bytes(
+        EncodingUtil.getUtf8String(signed.getDocument()).replace("World", "Moon"));
+
+    for (int i = 0; i < 2; i++) {
+      try {
+        verifier.verify(tampered, signed.getSignature());
+        fail("Signature verification should have failed");
+      } catch (XmlSimpleSignException e) {
+        // good.
+      }
+    }
+  }
+
+  public void testCacheKeyCoversDocumentAndSignature() throws Exception {
+    verifier.verify(signed.getDocument(), signed.getSignature());
+
+    // the same document with a different signature is looked at again
+    byte[] sig = EncodingUtil.decodeBase64(signed.getSignature());
+    sig[sig.length - 1] ^= 1;
+    try {
+      verifier.verify(signed.getDocument(), EncodingUtil.encodeBase64(sig));
+      fail("Signature verification should have failed");
+    } catch (XmlSimpleSignException e) {
+      // good.
+    }
+  }
+
+  public void testCacheExpires() throws Exception {
+    verifier.verify(signed.getDocument(), signed.getSignature());
+    timeSource.advanceSeconds(11 * 60);
+    verifier.verify(signed.getDocument(), signed.getSignature());
+
+    assertEquals(2, validator.getCount());
+  }
+
+  public void testCacheExpiresWithCertificate() throws Exception {
+    long notAfter = Long.MAX_VALUE;
+    for (X509Certificate cert : new X509Certificate[] {
+        CertConstantUtil.SERVER_PUB_CERT, CertConstantUtil.INTERMEDIATE_PUB_CERT }) {
+      notAfter = Math.min(notAfter, cert.getNotAfter().getTime());
+    }
+
+    // one minute before the first cert in the chain expires
+    timeSource = new FakeTimeSource(notAfter - 60 * 1000L);
+    validator.setTimeSource(timeSource);
+    verifier.setTimeSource(timeSource);
+    verifier.verify(signed.getDocument(), signed.getSignature());
+
+    // two minutes later, the cached result must not be used anymore
+    timeSource.advanceSeconds(2 * 60);
+    try {
+      verifier.verify(signed.getDocument(), signed.getSignature());
+    } catch (XmlSimpleSignException e) {
+      // the chain has expired, that's fine
+    }
+    assertEquals(2, validator.getCount());
+  }
+
+  public void testCacheWeight() throws Exception {
+    assertEquals(0, verifier.getCacheWeight());
+    VerificationResult result =
+        verifier.verify(signed.getDocument(), signed.getSignature());
+    assertEquals(Weighers.weighCertificates(result.getCerts()),
+        verifier.getCacheWeight());
+  }
+
+  public void testStreamingVerify() throws Exception {
+    VerificationResult result = verifier.verify(
+        new ByteArrayInputStream(signed.getDocument()), signed.getSignature());
+    assertEquals(CertConstantUtil.SERVER_PUB_CERT, result.getCerts().get(0));
+
+    // documents verified from bytes and from streams share the cache
+    assertSame(result,
+        verifier.verify(signed.getDocument(), signed.getSignature()));
+    assertEquals(1, validator.getCount());
+  }
+
+  public void testStreamingVerifyTampered() throws Exception {
+    byte[] tampered = EncodingUtil.getUtf8Bytes(
+        EncodingUtil.getUtf8String(signed.getDocument()) + " ");
+    try {
+      verifier.verify(new ByteArrayInputStream(tampered), signed.getSignature());
+      fail("Signature verification should have failed");
+    } catch (XmlSimpleSignException e) {
+      // good.
+    }
+  }
+
+  public void testStreamingVerifyTooLarge() throws Exception {
+    // the parser stops after the Signature element (give or take its read
+    // buffer), but the rest of the document still counts towards the size
+    // limit when it is digested
+    StringBuilder padded =
+        new StringBuilder(EncodingUtil.getUtf8String(signed.getDocument()));
+    for (int i = 0; i < 10000; i++) {
+      padded.append("          ");
+    }
+    XmlUtil.setMaxDocumentSize(signed.getDocument().length + 20000);
+    try {
+      verifier.verify(new ByteArrayInputStream(
+          EncodingUtil.getUtf8Bytes(padded.toString())), signed.getSignature());
+      fail("Should have thrown, document is too large");
+    } catch (XmlSimpleSignException e) {
+      assertEquals("couldn't read document", e.getMessage());
+    } finally {
+      XmlUtil.setMaxDocumentSize(XmlUtil.DEFAULT_MAX_DOCUMENT_SIZE);
+    }
+  }
+
+  public void testStreamingVerifyParsedDocument() throws Exception {
+    // a parser reads the document through the stream, and the verifier
+    // checks the signature against its digest
+    DigestingInputStream in =
+        new DigestingInputStream(new ByteArrayInputStream(signed.getDocument()));
+    Document xml = XmlUtil.getDocument(in);
+
+    VerificationResult result = verifier.verify(in, xml, signed.getSignature());
+    assertEquals(CertConstantUtil.SERVER_PUB_CERT, result.getCerts().get(0));
+    assertEquals(signed.getDocument().length, in.getLength());
+  }
+
+  public void testNewCrlsDropCachedVerifications() throws Exception {
+    RevocationStore store = new RevocationStore();
+    validator.setRevocationStore(store);
+    verifier.verify(signed.getDocument(), signed.getSignature());
+
+    // revokes the server cert
+    store.addCrls(RevocationStore.parseCrls(new ByteArrayInputStream(
+        EncodingUtil.getUtf8Bytes(RevocationStoreTest.REVOKED_CRL))));
+    try {
+      verifier.verify(signed.getDocument(), signed.getSignature());
+      fail("Should have thrown, cert revoked");
+    } catch (XmlSimpleSignException e) {
+      // good.
+    }
+  }
+
+  public void testSpeed() throws Exception {
+    for (int threads : new int[] { 1, 8 }) {
+      System.out.println(threads + " threads: "
+          + measure(threads, 1000L) + " verifications per ms");
+    }
+  }
+
+  /**
+   * Verifies the signed document from the given number of threads for the
+   * given time. Every verification uses a new Verifier, so that we measure
+   * the actual verification rather than the Verifier's cache. The chain
+   * validation is still cached, as it would be in a real deployment.
+   */
+  private double measure(int threads, final long millis) throws Exception {
+    final AtomicLong ops = new AtomicLong();
+    final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+    final CountDownLatch startSignal = new CountDownLatch(1);
+    List<Thread> workers = Lists.newArrayList();
+
+    for (int i = 0; i < threads; i++) {
+      Thread worker = new Thread() {
+        @Override
+        public void run() {
+          try {
+            startSignal.await();
+            long stop = System.currentTimeMillis() + millis;
+            while (System.currentTimeMillis() < stop) {
+              Verifier v = new Verifier(validator, null);
+              v.setTimeSource(timeSource);
+              v.verify(signed.getDocument(), signed.getSignature());
+              ops.incrementAndGet();
+            }
+          } catch (Exception e) {
+            failure.set(e);
+          }
+        }
+      };
+      worker.start();
+      workers.add(worker);
+    }
+
+    startSignal.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+    return ((double) ops.get()) / millis;
+  }
+
+  private static class CountingValidator extends CachedCertPathValidator {
+
+    private final AtomicLong count = new AtomicLong();
+
+    public CountingValidator() {
+      super(ImmutableSet.of(CertConstantUtil.CA_PUB_CERT));
+    }
+
+    @Override
+    public void validate(List<X509Certificate> certs) throws CertValidatorException {
+      count.incrementAndGet();
+      super.validate(certs);
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+  }
+}
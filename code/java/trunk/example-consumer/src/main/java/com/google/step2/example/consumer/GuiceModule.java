@@ -19,6 +19,7 @@ package com.google.step2.example.consumer;
 
 import com.google.appengine.api.urlfetch.URLFetchService;
 import com.google.appengine.api.urlfetch.URLFetchServiceFactory;
+import com.google.common.collect.Lists;
 import com.google.inject.AbstractModule;
 import com.google.inject.CreationException;
 import com.google.inject.Provides;
@@ -39,8 +40,10 @@ import com.google.step2.hybrid.HybridOauthMessage;
 import com.google.step2.openid.ax2.AxMessage2;
 import com.google.step2.xmlsimplesign.CertValidator;
 import com.google.step2.xmlsimplesign.CnConstraintCertValidator;
+import com.google.step2.xmlsimplesign.CrlRefresher;
 import com.google.step2.xmlsimplesign.DefaultCertValidator;
 import com.google.step2.xmlsimplesign.DisjunctiveCertValidator;
+import com.google.step2.xmlsimplesign.RevocationStore;
 import com.google.step2.xmlsimplesign.TrustRootsProvider;
 
 import org.openid4java.consumer.ConsumerAssociationStore;
@@ -48,6 +51,9 @@ import org.openid4java.consumer.InMemoryConsumerAssociationStore;
 import org.openid4java.message.Message;
 import org.openid4java.message.MessageException;
 
+import java.io.File;
+import java.net.URI;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -133,6 +139,54 @@ public class GuiceModule extends AbstractModule {
       bind(ExecutorService.class)
           .annotatedWith(Names.named("HostMetaFetcherExecutor"))
           .toInstance(Executors.newFixedThreadPool(20));
+
+      // detached XML signatures are fetched on this while the verifier
+      // validates the certificates. Without it (e.g., on App Engine), they
+      // are fetched in the verifying thread.
+      bind(ExecutorService.class)
+          .annotatedWith(Names.named("DetachedSignatureExecutor"))
+          .toInstance(Executors.newCachedThreadPool());
+
+      // cached certificate validations are refreshed on this before they
+      // expire. Without it, they're refreshed in the verifying thread.
+      bind(ExecutorService.class)
+          .annotatedWith(Names.named("CertValidationRefreshExecutor"))
+          .toInstance(Executors.newSingleThreadExecutor());
+    }
+
+    // certificates are checked for revocation against the CRLs fetched from
+    // the (comma-separated) distribution points in step2.crl.uris. If
+    // step2.crl.dir is set, fetched CRLs are saved there, and loaded from
+    // there at startup. Without either, nothing is ever revoked.
+    private static final String CRL_URIS_PARAM = "step2.crl.uris";
+    private static final String CRL_DIR_PARAM = "step2.crl.dir";
+
+    @Provides @Singleton
+    public RevocationStore provideRevocationStore(
+        TrustRootsProvider trustRoots, HttpFetcher fetcher) {
+      RevocationStore store = new RevocationStore();
+
+      // so that CRLs signed by the trust roots are checked as they come in
+      store.addIssuerCertificates(trustRoots.getTrustRoots());
+
+      File dir = null;
+      String dirName = System.getProperty(CRL_DIR_PARAM);
+      if (dirName != null) {
+        dir = new File(dirName);
+        store.loadDirectory(dir);
+      }
+
+      String uris = System.getProperty(CRL_URIS_PARAM);
+      if (uris != null) {
+        List<URI> crlUris = Lists.newArrayList();
+        for (String uri : uris.split(",")) {
+          crlUris.add(URI.create(uri.trim()));
+        }
+        new CrlRefresher(fetcher, store, crlUris, dir).schedule(
+            Executors.newSingleThreadScheduledExecutor(),
+            CrlRefresher.DEFAULT_REFRESH_PERIOD_SECONDS);
+      }
+      return store;
     }
   }
 